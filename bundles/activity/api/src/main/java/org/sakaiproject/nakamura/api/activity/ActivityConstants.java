@@ -102,5 +102,17 @@ public interface ActivityConstants {
   
   public static final String PRIVACY_PUBLIC = "public";
 
+  /**
+   * The name of the single copy of an activity delivered to more feeds than are copied
+   * to individually, stored below the original activity.
+   */
+  public static final String ACTIVITY_SHARED_ITEM_NAME = "sharedFeedItem";
+
+  /**
+   * Multi valued property on the original activity listing the feeds its shared copy
+   * has been delivered to.
+   */
+  public static final String PARAM_ACTIVITY_FEEDS = "sakai:activity-feeds";
+
 
 }
@@ -19,10 +19,11 @@ package org.sakaiproject.nakamura.activity;
 
 import static org.sakaiproject.nakamura.api.activity.ActivityConstants.PARAM_ACTOR_ID;
 
-import com.google.common.collect.ImmutableMap;
-import com.google.common.collect.ImmutableMap.Builder;
+import com.google.common.collect.Maps;
+import com.google.common.collect.Sets;
 
 import org.apache.felix.scr.annotations.Component;
+import org.apache.felix.scr.annotations.Property;
 import org.apache.felix.scr.annotations.Reference;
 import org.apache.sling.jcr.resource.JcrResourceConstants;
 import org.osgi.service.component.ComponentContext;
@@ -35,13 +36,19 @@ import org.sakaiproject.nakamura.api.lite.Session;
 import org.sakaiproject.nakamura.api.lite.StorageClientException;
 import org.sakaiproject.nakamura.api.lite.StorageClientUtils;
 import org.sakaiproject.nakamura.api.lite.accesscontrol.AccessDeniedException;
+import org.sakaiproject.nakamura.api.lite.accesscontrol.Permissions;
+import org.sakaiproject.nakamura.api.lite.accesscontrol.Security;
+import org.sakaiproject.nakamura.api.lite.authorizable.Authorizable;
 import org.sakaiproject.nakamura.api.lite.content.Content;
 import org.sakaiproject.nakamura.api.lite.content.ContentManager;
+import org.sakaiproject.nakamura.util.PathUtils;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.util.List;
+import java.util.Map;
 import java.util.Map.Entry;
+import java.util.Set;
 
 import javax.jcr.RepositoryException;
 import javax.jms.Connection;
@@ -51,9 +58,21 @@ import javax.jms.MessageConsumer;
 import javax.jms.MessageListener;
 import javax.jms.Topic;
 
-@Component(immediate = true)
+/**
+ * Delivers activities to the feeds chosen by the {@link ActivityRouterManager}. An
+ * activity routed to no more than activity.fanout.threshold feeds is copied into each
+ * feed. Beyond that a single copy is stored below the original activity and the feeds it
+ * belongs to are listed on the original, where the indexer picks them up so that feed
+ * searches on path find the one copy. Feeds whose owner can not read the original are
+ * still copied into.
+ */
+@Component(immediate = true, metatype = true)
 public class LiteActivityListener implements MessageListener {
 
+  public static final int DEFAULT_FANOUT_THRESHOLD = 50;
+  @Property(intValue = DEFAULT_FANOUT_THRESHOLD)
+  static final String FANOUT_THRESHOLD = "activity.fanout.threshold";
+
   // References/properties need for JMS
   @Reference
   protected ConnectionFactoryService connFactoryService;
@@ -69,10 +88,16 @@ public class LiteActivityListener implements MessageListener {
 
   private Connection connection = null;
 
+  private int fanOutThreshold = DEFAULT_FANOUT_THRESHOLD;
+
   /**
    * Start a JMS connection.
    */
   public void activate(ComponentContext componentContext) {
+    Object threshold = componentContext.getProperties().get(FANOUT_THRESHOLD);
+    if (threshold != null) {
+      fanOutThreshold = Integer.parseInt(String.valueOf(threshold));
+    }
     try {
       connection = connFactoryService.getDefaultConnectionFactory().createConnection();
       javax.jms.Session session = connection.createSession(false,
@@ -128,9 +153,17 @@ public class LiteActivityListener implements MessageListener {
         List<ActivityRoute> routes = activityRouterManager
             .getActivityRoutes(activity, session);
   
-        // Copy the activity items to each endpoint.
+        Set<String> feeds = Sets.newLinkedHashSet();
         for (ActivityRoute route : routes) {
-          deliverActivityToFeed(session, activity, route.getDestination());
+          feeds.add(route.getDestination());
+        }
+        if (feeds.size() <= fanOutThreshold) {
+          // Copy the activity items to each endpoint.
+          for (String feed : feeds) {
+            deliverActivityToFeed(session, activity, feed);
+          }
+        } else {
+          deliverSharedActivity(session, activity, feeds);
         }
       } finally {
         try { 
@@ -168,7 +201,73 @@ public class LiteActivityListener implements MessageListener {
     ContentManager contentManager = session.getContentManager();
     String deliveryPath = StorageClientUtils
         .newPath(activityFeedPath, StorageClientUtils.getObjectName(activity.getPath()));
-    Builder<String, Object> contentProperties = ImmutableMap.builder();
+    Content content = new Content(deliveryPath, getFeedItemProperties(activity));
+    contentManager.update(content);
+  }
+
+  /**
+   * Delivers an activity to many feeds at once by storing one copy of it below the
+   * activity, and recording the feeds on the activity for the indexer. The copy inherits
+   * the access control of the activity, so feeds whose owner can not read the activity
+   * (or that have no owner) still get a copy of their own.
+   *
+   * @param session
+   *          The session that should be used to do the delivering.
+   * @param activity
+   *          The node that represents the activity.
+   * @param activityFeedPaths
+   *          The paths of the feeds the activity should be delivered to.
+   * @throws StorageClientException
+   * @throws AccessDeniedException
+   */
+  protected void deliverSharedActivity(Session session, Content activity,
+      Set<String> activityFeedPaths) throws AccessDeniedException, StorageClientException {
+    Set<String> sharedFeeds = Sets.newLinkedHashSet();
+    for (String feed : activityFeedPaths) {
+      if (canReadActivity(session, feed, activity)) {
+        sharedFeeds.add(feed);
+      } else {
+        deliverActivityToFeed(session, activity, feed);
+      }
+    }
+    if (sharedFeeds.isEmpty()) {
+      return;
+    }
+    ContentManager contentManager = session.getContentManager();
+    // the feeds have to be on the activity before the copy is indexed.
+    activity.setProperty(ActivityConstants.PARAM_ACTIVITY_FEEDS,
+        sharedFeeds.toArray(new String[sharedFeeds.size()]));
+    contentManager.update(activity);
+    String deliveryPath = StorageClientUtils.newPath(activity.getPath(),
+        ActivityConstants.ACTIVITY_SHARED_ITEM_NAME);
+    Map<String, Object> contentProperties = getFeedItemProperties(activity);
+    contentProperties.remove(ActivityConstants.PARAM_ACTIVITY_FEEDS);
+    contentManager.update(new Content(deliveryPath, contentProperties));
+  }
+
+  /**
+   * @return true if the owner of the feed can read the activity, and so the shared copy
+   *         below it.
+   */
+  private boolean canReadActivity(Session session, String activityFeedPath,
+      Content activity) throws StorageClientException {
+    String ownerId = PathUtils.getAuthorizableId(activityFeedPath);
+    if (ownerId == null) {
+      return false;
+    }
+    try {
+      Authorizable owner = session.getAuthorizableManager().findAuthorizable(ownerId);
+      return owner != null
+          && session.getAccessControlManager().can(owner, Security.ZONE_CONTENT,
+              activity.getPath(), Permissions.CAN_READ);
+    } catch (AccessDeniedException e) {
+      LOG.debug(e.getMessage(), e);
+      return false;
+    }
+  }
+
+  private Map<String, Object> getFeedItemProperties(Content activity) {
+    Map<String, Object> contentProperties = Maps.newHashMap();
     for ( Entry<String, Object> e : activity.getProperties().entrySet()) {
       if (!JcrResourceConstants.SLING_RESOURCE_TYPE_PROPERTY.equals(e.getKey())) {
         contentProperties.put(e.getKey(), e.getValue());
@@ -176,8 +275,7 @@ public class LiteActivityListener implements MessageListener {
     }
     contentProperties.put(JcrResourceConstants.SLING_RESOURCE_TYPE_PROPERTY,
         ActivityConstants.ACTIVITY_ITEM_RESOURCE_TYPE);
-    Content content = new Content(deliveryPath, contentProperties.build());
-    contentManager.update(content);
+    return contentProperties;
   }
 
 }
@@ -33,6 +33,7 @@ import org.osgi.service.event.Event;
 import org.sakaiproject.nakamura.api.activity.ActivityConstants;
 import org.sakaiproject.nakamura.api.lite.Session;
 import org.sakaiproject.nakamura.api.lite.StorageClientException;
+import org.sakaiproject.nakamura.api.lite.StorageClientUtils;
 import org.sakaiproject.nakamura.api.lite.accesscontrol.AccessDeniedException;
 import org.sakaiproject.nakamura.api.lite.content.Content;
 import org.sakaiproject.nakamura.api.lite.content.ContentManager;
@@ -106,6 +107,9 @@ public class ActivityIndexingHandler implements IndexingHandler {
           for (String prop : WHITELISTED_PROPS) {
             doc.addField(prop, content.getProperty(prop));
           }
+          if (path.endsWith("/" + ActivityConstants.ACTIVITY_SHARED_ITEM_NAME)) {
+            addSharedFeeds(cm, path, doc);
+          }
           doc.addField(_DOC_SOURCE_OBJECT, content);
           documents.add(doc);
         }
@@ -119,6 +123,25 @@ public class ActivityIndexingHandler implements IndexingHandler {
     return documents;
   }
 
+  /**
+   * An activity delivered to many feeds is stored once, so index it under each of those
+   * feeds as if it had been copied there. It is also typed so that searches across feeds,
+   * which would otherwise list it next to the copies, can leave it out.
+   */
+  private void addSharedFeeds(ContentManager cm, String path, SolrInputDocument doc)
+      throws StorageClientException, AccessDeniedException {
+    Content activity = cm.get(StorageClientUtils.getParentObjectPath(path));
+    if (activity != null) {
+      doc.addField("type", ActivityConstants.ACTIVITY_SHARED_ITEM_NAME);
+      Object feeds = activity.getProperty(ActivityConstants.PARAM_ACTIVITY_FEEDS);
+      if (feeds instanceof String[]) {
+        for (String feed : (String[]) feeds) {
+          doc.addField(FIELD_PATH, feed);
+        }
+      }
+    }
+  }
+
   /**
    * {@inheritDoc}
    *
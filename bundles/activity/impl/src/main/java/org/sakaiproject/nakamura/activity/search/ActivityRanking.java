@@ -0,0 +1,537 @@
+/**
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.nakamura.activity.search;
+
+import org.apache.commons.lang.StringUtils;
+import org.apache.felix.scr.annotations.Activate;
+import org.apache.felix.scr.annotations.Component;
+import org.apache.felix.scr.annotations.Deactivate;
+import org.apache.felix.scr.annotations.Properties;
+import org.apache.felix.scr.annotations.Property;
+import org.apache.felix.scr.annotations.Reference;
+import org.apache.felix.scr.annotations.Service;
+import org.apache.sling.commons.osgi.PropertiesUtil;
+import org.apache.solr.client.solrj.SolrQuery;
+import org.apache.solr.client.solrj.SolrQuery.ORDER;
+import org.apache.solr.client.solrj.SolrServer;
+import org.apache.solr.client.solrj.SolrServerException;
+import org.apache.solr.client.solrj.response.FacetField;
+import org.apache.solr.client.solrj.response.QueryResponse;
+import org.apache.solr.client.solrj.response.RangeFacet;
+import org.apache.solr.client.solrj.util.ClientUtils;
+import org.apache.solr.common.SolrDocument;
+import org.apache.solr.common.SolrDocumentList;
+import org.apache.solr.common.params.FacetParams;
+import org.osgi.service.event.Event;
+import org.osgi.service.event.EventConstants;
+import org.osgi.service.event.EventHandler;
+import org.sakaiproject.nakamura.api.activity.ActivityConstants;
+import org.sakaiproject.nakamura.api.search.solr.Result;
+import org.sakaiproject.nakamura.api.search.solr.SolrSearchResultSet;
+import org.sakaiproject.nakamura.api.solr.SolrServerService;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.TreeSet;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Keeps the content and groups ranked by how much activity there has been on them, so the
+ * most active feeds can be served without loading every activity in the time window.
+ * <p>
+ * Activity is counted into time buckets as it is recorded, and each of the configured
+ * windows keeps its resources sorted by their count. When a bucket falls out of a window
+ * its counts are taken off the window, so the rankings are exact to the bucket. The
+ * counts are rebuilt from the index on a background thread when the component starts and
+ * then periodically, to pick up activity recorded on other app servers.
+ */
+@Component(immediate = true, metatype = true, label = "ActivityRanking", description = "Ranks content and groups by their recent activity")
+@Service(value = { ActivityRanking.class, EventHandler.class })
+@Properties(value = {
+    @Property(name = "service.vendor", value = "The Sakai Foundation"),
+    @Property(name = EventConstants.EVENT_TOPIC, value = "org/sakaiproject/nakamura/lite/content/ADDED", propertyPrivate = true) })
+public class ActivityRanking implements EventHandler {
+
+  private static final Logger LOGGER = LoggerFactory.getLogger(ActivityRanking.class);
+
+  /** the resource type of activity on pooled content */
+  public static final String CONTENT = "content";
+  /** the resource type of activity on groups */
+  public static final String GROUP = "group";
+
+  private static final String ACTIVITY_ROOT = "/activity/";
+  private static final long DAY_MS = 24 * 60 * 60 * 1000L;
+  private static final int REBUILD_BATCH_SIZE = 1000;
+
+  public static final String[] DEFAULT_WINDOWS = { "1", "7",
+      String.valueOf(MostActiveContentPropertyProvider.DEFAULT_DAYS),
+      String.valueOf(MostActiveContentPropertyProvider.MAXIMUM_DAYS) };
+  @Property(value = { "1", "7", "30", "90" }, cardinality = 9999999)
+  public static final String WINDOWS = "activity.ranking.windows";
+
+  public static final int DEFAULT_BUCKET_MINUTES = 60;
+  @Property(intValue = DEFAULT_BUCKET_MINUTES)
+  public static final String BUCKET_MINUTES = "activity.ranking.bucket.minutes";
+
+  public static final int DEFAULT_REBUILD_INTERVAL = 3600;
+  @Property(intValue = DEFAULT_REBUILD_INTERVAL)
+  public static final String REBUILD_INTERVAL = "activity.ranking.rebuild.interval";
+
+  @Reference
+  protected SolrServerService solrServerService;
+
+  private long bucketSize;
+  private long[] windows;
+
+  /** the rankings by resource type, null until they have been built */
+  private volatile Map<String, Ranking> rankings;
+  /** the rankings being built, which are also given activity as it is recorded */
+  private volatile Map<String, Ranking> rebuilding;
+  private volatile long rebuildStart;
+  private ScheduledExecutorService rebuildExecutor;
+
+  @Activate
+  protected void activate(Map<?, ?> properties) {
+    bucketSize = Math.max(1, PropertiesUtil.toInteger(properties.get(BUCKET_MINUTES),
+        DEFAULT_BUCKET_MINUTES)) * 60000L;
+    String[] days = PropertiesUtil.toStringArray(properties.get(WINDOWS), DEFAULT_WINDOWS);
+    List<Long> windowList = new ArrayList<Long>();
+    for (String day : days) {
+      try {
+        long window = Long.parseLong(day.trim()) * DAY_MS;
+        if (window > 0 && !windowList.contains(window)) {
+          windowList.add(window);
+        }
+      } catch (NumberFormatException e) {
+        LOGGER.warn("Ignoring activity ranking window {}, it isn't a number of days", day);
+      }
+    }
+    Collections.sort(windowList);
+    windows = new long[windowList.size()];
+    for (int i = 0; i < windows.length; i++) {
+      windows[i] = windowList.get(i);
+    }
+    long rebuildInterval = PropertiesUtil.toInteger(properties.get(REBUILD_INTERVAL),
+        DEFAULT_REBUILD_INTERVAL) * 1000L;
+    rankings = null;
+    if (windows.length > 0) {
+      rebuildExecutor = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+        public Thread newThread(Runnable r) {
+          Thread thread = new Thread(r, "Activity Ranking Rebuild");
+          thread.setDaemon(true);
+          return thread;
+        }
+      });
+      Runnable rebuildTask = new Runnable() {
+        public void run() {
+          try {
+            rebuild();
+          } catch (RuntimeException e) {
+            // keep the schedule going.
+            LOGGER.warn("Failed to rebuild the activity rankings: " + e.getMessage(), e);
+          }
+        }
+      };
+      if (rebuildInterval > 0) {
+        rebuildExecutor.scheduleWithFixedDelay(rebuildTask, 0, rebuildInterval,
+            TimeUnit.MILLISECONDS);
+      } else {
+        rebuildExecutor.execute(rebuildTask);
+      }
+    }
+  }
+
+  @Deactivate
+  protected void deactivate(Map<?, ?> properties) {
+    if (rebuildExecutor != null) {
+      rebuildExecutor.shutdownNow();
+      rebuildExecutor = null;
+    }
+    rankings = null;
+    rebuilding = null;
+  }
+
+  /**
+   * Find the window that ranks the activity since a time.
+   *
+   * @param then
+   *          the time the activity is counted from.
+   * @return the window, or -1 if the rankings aren't built yet or no window starts within
+   *         a bucket of <code>then</code>.
+   */
+  public int getWindow(long then) {
+    if (rankings == null) {
+      return -1;
+    }
+    long span = System.currentTimeMillis() - then;
+    for (int i = 0; i < windows.length; i++) {
+      if (Math.abs(windows[i] - span) <= bucketSize) {
+        return i;
+      }
+    }
+    return -1;
+  }
+
+  /**
+   * Get a page of the most active resources of a type.
+   *
+   * @param resourceType
+   *          {@link #CONTENT} or {@link #GROUP}.
+   * @param window
+   *          a window from {@link #getWindow(long)}.
+   * @param offset
+   *          the number of resources to skip.
+   * @param count
+   *          the most resources to return.
+   * @return the resources in order of their activity, most active first.
+   */
+  public List<RankedResource> getRanked(String resourceType, int window, int offset,
+      int count) {
+    Ranking ranking = getRanking(resourceType);
+    if (ranking == null) {
+      return Collections.emptyList();
+    }
+    return ranking.get(window, offset, count, System.currentTimeMillis());
+  }
+
+  /**
+   * @return the number of resources of a type with activity in a window.
+   */
+  public int getRankedSize(String resourceType, int window) {
+    Ranking ranking = getRanking(resourceType);
+    return (ranking == null) ? 0 : ranking.size(window, System.currentTimeMillis());
+  }
+
+  /**
+   * Get a result set to stand in for the activity search when the rankings are used. It
+   * has no results, and its size is the number of activities in the window.
+   */
+  public SolrSearchResultSet getResultSet(String resourceType, int window) {
+    Ranking ranking = getRanking(resourceType);
+    final long size = (ranking == null) ? 0 : ranking.getActivityCount(window,
+        System.currentTimeMillis());
+    return new SolrSearchResultSet() {
+      public Iterator<Result> getResultSetIterator() {
+        return Collections.<Result> emptyList().iterator();
+      }
+
+      public long getSize() {
+        return size;
+      }
+
+      public List<FacetField> getFacetFields() {
+        return null;
+      }
+    };
+  }
+
+  private Ranking getRanking(String resourceType) {
+    Map<String, Ranking> rankings = this.rankings;
+    return (rankings == null) ? null : rankings.get(resourceType);
+  }
+
+  // ---------- EventHandler interface -----------------------------------------
+  /**
+   * {@inheritDoc}
+   *
+   * Counts an activity as it is recorded.
+   *
+   * @see org.osgi.service.event.EventHandler#handleEvent(org.osgi.service.event.Event)
+   */
+  public void handleEvent(Event event) {
+    Object resourceType = event.getProperty("resourceType");
+    if (resourceType != null && !ActivityConstants.RESOURCE_UPDATE.equals(resourceType)) {
+      return;
+    }
+    String[] activity = parseActivityPath((String) event.getProperty("path"));
+    if (activity == null) {
+      return;
+    }
+    long now = System.currentTimeMillis();
+    Map<String, Ranking> rankings = this.rankings;
+    if (rankings != null) {
+      add(rankings, activity, now);
+    }
+    Map<String, Ranking> rebuilding = this.rebuilding;
+    if (rebuilding != null && rebuilding != rankings && now >= rebuildStart) {
+      add(rebuilding, activity, now);
+    }
+  }
+
+  /**
+   * @return the resource type and id of an activity at
+   *         <code>/activity/&lt;type&gt;/&lt;id&gt;/&lt;name&gt;</code>, or null if the
+   *         path isn't an activity on content or a group.
+   */
+  static String[] parseActivityPath(String path) {
+    if (path == null || !path.startsWith(ACTIVITY_ROOT)) {
+      return null;
+    }
+    String[] parts = StringUtils.split(path.substring(ACTIVITY_ROOT.length()), '/');
+    if (parts.length != 3 || !(CONTENT.equals(parts[0]) || GROUP.equals(parts[0]))) {
+      return null;
+    }
+    return parts;
+  }
+
+  private void add(Map<String, Ranking> rankings, String[] activity, long time) {
+    Ranking ranking = rankings.get(activity[0]);
+    if (ranking != null) {
+      ranking.add(activity[1], time);
+    }
+  }
+
+  private Map<String, Ranking> newRankings() {
+    Map<String, Ranking> rankings = new HashMap<String, Ranking>();
+    rankings.put(CONTENT, new Ranking(bucketSize, windows));
+    rankings.put(GROUP, new Ranking(bucketSize, windows));
+    return rankings;
+  }
+
+  /**
+   * Count the indexed activity of the longest window into new rankings. The index doesn't
+   * store the time of an activity, so one query pages through the activity sorted by time
+   * and its first page carries a range facet with the count in each bucket, which places
+   * every activity in its bucket. Activity recorded while this runs is counted by
+   * {@link #handleEvent(Event)}.
+   */
+  protected void rebuild() {
+    long start = System.currentTimeMillis();
+    Map<String, Ranking> rebuilt = newRankings();
+    rebuildStart = start;
+    rebuilding = rebuilt;
+    try {
+      SolrServer server = solrServerService.getServer();
+      long from = start - windows[windows.length - 1];
+      long first = from - (from % bucketSize);
+      SolrQuery query = new SolrQuery("resourceType:"
+          + ClientUtils.escapeQueryChars(ActivityConstants.RESOURCE_UPDATE)
+          + " AND timestamp:[" + from + " TO " + (start - 1) + "]").setFields("id")
+          .setRows(REBUILD_BATCH_SIZE).addSortField("timestamp", ORDER.asc)
+          .addSortField("id", ORDER.asc).setFacet(true);
+      query.set(FacetParams.FACET_RANGE, "timestamp");
+      query.set(FacetParams.FACET_RANGE_START, String.valueOf(first));
+      query.set(FacetParams.FACET_RANGE_END, String.valueOf(start));
+      query.set(FacetParams.FACET_RANGE_GAP, String.valueOf(bucketSize));
+      query.set(FacetParams.FACET_RANGE_HARD_END, true);
+      Iterator<RangeFacet.Count> buckets = null;
+      long bucket = first;
+      int left = 0;
+      for (int offset = 0;; offset += REBUILD_BATCH_SIZE) {
+        QueryResponse response = server.query(query.setStart(offset));
+        if (buckets == null) {
+          List<RangeFacet.Count> counts = Collections.emptyList();
+          List<RangeFacet> ranges = response.getFacetRanges();
+          if (ranges != null && !ranges.isEmpty()) {
+            counts = ranges.get(0).getCounts();
+          }
+          buckets = counts.iterator();
+          // only the first page needs the counts.
+          query.setFacet(false);
+        }
+        SolrDocumentList docs = response.getResults();
+        for (SolrDocument doc : docs) {
+          while (left == 0 && buckets.hasNext()) {
+            RangeFacet.Count count = buckets.next();
+            bucket = Long.parseLong(count.getValue());
+            left = count.getCount();
+          }
+          left--;
+          String[] activity = parseActivityPath((String) doc.getFieldValue("id"));
+          if (activity != null) {
+            add(rebuilt, activity, bucket);
+          }
+        }
+        if (docs.size() < REBUILD_BATCH_SIZE) {
+          break;
+        }
+      }
+      rankings = rebuilt;
+      LOGGER.info("Rebuilt the activity rankings in {} ms",
+          System.currentTimeMillis() - start);
+    } catch (SolrServerException e) {
+      LOGGER.warn("Failed to rebuild the activity rankings: {}", e.getMessage());
+    } finally {
+      rebuilding = null;
+    }
+  }
+
+  /**
+   * A resource and the number of activities on it in a window.
+   */
+  public static class RankedResource {
+    public final String id;
+    public final int count;
+
+    RankedResource(String id, int count) {
+      this.id = id;
+      this.count = count;
+    }
+  }
+
+  /**
+   * The activity on one type of resource, counted into buckets and ranked in every window.
+   * A window covers the latest bucket and the ones before it, back to its length.
+   */
+  static class Ranking {
+    private final long bucketSize;
+    /** the length of each window in buckets */
+    private final long[] windowBuckets;
+    private final long maxBuckets;
+    /** the count of each resource in each bucket, by bucket */
+    private final TreeMap<Long, Map<String, Integer>> buckets = new TreeMap<Long, Map<String, Integer>>();
+    private final List<Map<String, Entry>> entries = new ArrayList<Map<String, Entry>>();
+    private final List<TreeSet<Entry>> ranked = new ArrayList<TreeSet<Entry>>();
+    private final long[] activityCounts;
+    private long latest = Long.MIN_VALUE;
+
+    Ranking(long bucketSize, long[] windows) {
+      this.bucketSize = bucketSize;
+      windowBuckets = new long[windows.length];
+      long max = 0;
+      for (int i = 0; i < windows.length; i++) {
+        windowBuckets[i] = Math.max(1, windows[i] / bucketSize);
+        max = Math.max(max, windowBuckets[i]);
+        entries.add(new HashMap<String, Entry>());
+        ranked.add(new TreeSet<Entry>());
+      }
+      maxBuckets = max;
+      activityCounts = new long[windows.length];
+    }
+
+    synchronized void add(String id, long time) {
+      long bucket = time / bucketSize;
+      roll(bucket);
+      if (bucket <= latest - maxBuckets) {
+        return;
+      }
+      Map<String, Integer> counts = buckets.get(bucket);
+      if (counts == null) {
+        counts = new HashMap<String, Integer>();
+        buckets.put(bucket, counts);
+      }
+      Integer count = counts.get(id);
+      counts.put(id, (count == null) ? 1 : count + 1);
+      for (int w = 0; w < windowBuckets.length; w++) {
+        if (bucket > latest - windowBuckets[w]) {
+          change(w, id, 1, time);
+        }
+      }
+    }
+
+    synchronized List<RankedResource> get(int window, int offset, int count, long now) {
+      roll(now / bucketSize);
+      List<RankedResource> page = new ArrayList<RankedResource>();
+      Iterator<Entry> it = ranked.get(window).iterator();
+      for (int i = 0; it.hasNext() && page.size() < count; i++) {
+        Entry entry = it.next();
+        if (i >= offset) {
+          page.add(new RankedResource(entry.id, entry.count));
+        }
+      }
+      return page;
+    }
+
+    synchronized int size(int window, long now) {
+      roll(now / bucketSize);
+      return ranked.get(window).size();
+    }
+
+    synchronized long getActivityCount(int window, long now) {
+      roll(now / bucketSize);
+      return activityCounts[window];
+    }
+
+    /**
+     * Move the latest bucket forward, taking the buckets that fall out of each window off
+     * it.
+     */
+    private void roll(long bucket) {
+      if (latest == Long.MIN_VALUE) {
+        latest = bucket;
+        return;
+      }
+      if (bucket <= latest) {
+        return;
+      }
+      for (int w = 0; w < windowBuckets.length; w++) {
+        for (Map<String, Integer> counts : buckets.subMap(latest - windowBuckets[w] + 1,
+            true, bucket - windowBuckets[w], true).values()) {
+          for (Map.Entry<String, Integer> count : counts.entrySet()) {
+            change(w, count.getKey(), -count.getValue(), 0);
+          }
+        }
+      }
+      latest = bucket;
+      buckets.headMap(latest - maxBuckets, true).clear();
+    }
+
+    private void change(int window, String id, int delta, long time) {
+      Map<String, Entry> windowEntries = entries.get(window);
+      TreeSet<Entry> windowRanked = ranked.get(window);
+      Entry entry = windowEntries.get(id);
+      if (entry == null) {
+        entry = new Entry(id);
+        windowEntries.put(id, entry);
+      } else {
+        windowRanked.remove(entry);
+      }
+      entry.count += delta;
+      entry.last = Math.max(entry.last, time);
+      activityCounts[window] += delta;
+      if (entry.count > 0) {
+        windowRanked.add(entry);
+      } else {
+        windowEntries.remove(id);
+      }
+    }
+  }
+
+  /**
+   * A resource in a window, ordered by its count, then by its latest activity.
+   */
+  private static class Entry implements Comparable<Entry> {
+    private final String id;
+    private int count;
+    private long last;
+
+    Entry(String id) {
+      this.id = id;
+    }
+
+    public int compareTo(Entry other) {
+      if (count != other.count) {
+        return (count > other.count) ? -1 : 1;
+      }
+      if (last != other.last) {
+        return (last > other.last) ? -1 : 1;
+      }
+      return id.compareTo(other.id);
+    }
+  }
+}
@@ -27,14 +27,16 @@ import org.apache.sling.api.request.RequestParameter;
 import org.apache.sling.commons.json.JSONException;
 import org.apache.sling.commons.json.io.JSONWriter;
 import org.apache.solr.client.solrj.util.ClientUtils;
+import org.sakaiproject.nakamura.activity.search.ActivityRanking.RankedResource;
 import org.sakaiproject.nakamura.api.files.FilesConstants;
-import org.sakaiproject.nakamura.api.lite.Session;
 import org.sakaiproject.nakamura.api.lite.StorageClientException;
 import org.sakaiproject.nakamura.api.lite.StorageClientUtils;
 import org.sakaiproject.nakamura.api.lite.accesscontrol.AccessDeniedException;
 import org.sakaiproject.nakamura.api.lite.content.Content;
+import org.sakaiproject.nakamura.api.lite.content.ContentManager;
 import org.sakaiproject.nakamura.api.search.solr.Query;
 import org.sakaiproject.nakamura.api.search.solr.Result;
+import org.sakaiproject.nakamura.api.search.solr.ResultPrefetch;
 import org.sakaiproject.nakamura.api.search.solr.SolrSearchBatchResultProcessor;
 import org.sakaiproject.nakamura.api.search.solr.SolrSearchConstants;
 import org.sakaiproject.nakamura.api.search.solr.SolrSearchException;
@@ -49,6 +51,7 @@ import java.util.HashMap;
 import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
+import java.util.Map.Entry;
 
 @Component(immediate = true, label = "MostActiveContentSearchBatchResultProcessor", description = "Formatter for most active content")
 @Service(value = SolrSearchBatchResultProcessor.class)
@@ -66,6 +69,9 @@ public class LiteMostActiveContentSearchBatchResultProcessor implements
   @Reference
   private SolrSearchServiceFactory searchServiceFactory;
 
+  @Reference
+  private ActivityRanking activityRanking;
+
   /**
    * 
    * {@inheritDoc}
@@ -75,44 +81,28 @@ public class LiteMostActiveContentSearchBatchResultProcessor implements
    */
   public void writeResults(SlingHttpServletRequest request, JSONWriter write,
       Iterator<Result> iterator) throws JSONException {
-    final Map<String, ResourceActivity> resources = new HashMap<String, ResourceActivity>();
-    final Session session = StorageClientUtils.adaptToSession(request
-        .getResourceResolver().adaptTo(javax.jcr.Session.class));
+    final ResultPrefetch prefetch = ResultPrefetch.forRequest(request);
+    final RequestParameter startpageP = request.getRequestParameter(STARTPAGE_PARAM);
+    int startpage = (startpageP != null) ? Integer.valueOf(startpageP.getString()) : 1;
+    startpage = (startpage < 1) ? 1 : startpage;
+    final RequestParameter numitemsP = request.getRequestParameter(NUMITEMS_PARAM);
+    int numitems = (numitemsP != null) ? Integer.valueOf(numitemsP.getString())
+                                      : SolrSearchConstants.DEFAULT_PAGED_ITEMS;
+    numitems = (numitems < 1) ? SolrSearchConstants.DEFAULT_PAGED_ITEMS : numitems;
+    final int beginPosition = (startpage * numitems) - numitems;
 
-    // count all the activity
-    LOG.debug("Computing the most active content feed.");
-    while (iterator.hasNext()) {
-      try {
-        final Result result = iterator.next();
-        final String path = result.getPath();
-        final Content node = session.getContentManager().get(path);
-        if (node != null) {
-          final String resourceId = (String) node.getProperty("resourceId");
-          if (!resources.containsKey(resourceId)) {
-            final Content resourceNode = session.getContentManager().get(resourceId);
-            if (resourceNode == null) {
-              // this can happen if this content is no longer public
-              continue;
-            }
-            final String resourceName = (String) resourceNode
-                .getProperty(FilesConstants.POOLED_CONTENT_FILENAME);
-            resources.put(resourceId, new ResourceActivity(resourceId, 0, resourceName,
-                (Long) resourceNode.getProperty(FilesConstants.LAST_MODIFIED)));
-          }
-          // increment the count for this particular resource.
-          resources.get(resourceId).activityScore++;
-        }
-      } catch (StorageClientException e) {
-        // if something is wrong with this particular resourceNode,
-        // we don't let it wreck the whole feed
-        continue;
-      } catch (AccessDeniedException e) {
-        // if something is wrong with this particular resourceNode,
-        // we don't let it wreck the whole feed
-        continue;
-      }
+    // the ranking serves the standard windows, anything else is counted from the search
+    final List<ResourceActivity> resourceActivities;
+    final int total;
+    final int window = getRankingWindow(request);
+    if (window >= 0) {
+      resourceActivities = getRankedActivity(prefetch, window, beginPosition + numitems);
+      total = activityRanking.getRankedSize(ActivityRanking.CONTENT, window);
+    } else {
+      resourceActivities = countActivity(request, prefetch, iterator);
+      total = resourceActivities.size();
     }
-    
+
     // KERN-1724 determine how many content items the current user can read
     long totalCanRead = 0L;
     try {
@@ -129,26 +119,15 @@ public class LiteMostActiveContentSearchBatchResultProcessor implements
     }
 
     // write the most-used content to the JSONWriter
-    final List<ResourceActivity> resourceActivities = new ArrayList<ResourceActivity>(
-        resources.values());
-    Collections.sort(resourceActivities, Collections.reverseOrder());
     write.object();
     write.key("totalCanRead");
     write.value(totalCanRead);
     write.key(SolrSearchConstants.TOTAL);
-    write.value(resources.size());
-    final RequestParameter startpageP = request.getRequestParameter(STARTPAGE_PARAM);
-    int startpage = (startpageP != null) ? Integer.valueOf(startpageP.getString()) : 1;
-    startpage = (startpage < 1) ? 1 : startpage;
+    write.value(total);
     write.key(STARTPAGE_PARAM);
     write.value(startpage);
-    final RequestParameter numitemsP = request.getRequestParameter(NUMITEMS_PARAM);
-    int numitems = (numitemsP != null) ? Integer.valueOf(numitemsP.getString())
-                                      : SolrSearchConstants.DEFAULT_PAGED_ITEMS;
-    numitems = (numitems < 1) ? SolrSearchConstants.DEFAULT_PAGED_ITEMS : numitems;
     write.key(NUMITEMS_PARAM);
     write.value(numitems);
-    final int beginPosition = (startpage * numitems) - numitems;
     write.key("content");
     write.array();
     if (beginPosition < resourceActivities.size()) {
@@ -170,6 +149,113 @@ public class LiteMostActiveContentSearchBatchResultProcessor implements
     write.endObject();
   }
 
+  /**
+   * @return the ranking window for the time span of the request, or -1 if the ranking
+   *         can't serve it.
+   */
+  private int getRankingWindow(SlingHttpServletRequest request) {
+    return activityRanking.getWindow(MostActiveContentPropertyProvider.deriveThen(request));
+  }
+
+  /**
+   * Load the content from the top of the ranking until there is enough the user can read
+   * to fill the page.
+   */
+  private List<ResourceActivity> getRankedActivity(ResultPrefetch prefetch, int window,
+      int needed) {
+    final List<ResourceActivity> resourceActivities = new ArrayList<ResourceActivity>();
+    int offset = 0;
+    while (resourceActivities.size() < needed) {
+      final List<RankedResource> ranked = activityRanking.getRanked(ActivityRanking.CONTENT,
+          window, offset, needed - resourceActivities.size());
+      if (ranked.isEmpty()) {
+        break;
+      }
+      offset += ranked.size();
+      final List<String> resourceIds = new ArrayList<String>();
+      for (RankedResource resource : ranked) {
+        resourceIds.add(resource.id);
+      }
+      prefetch.prefetchContent(resourceIds);
+      for (RankedResource resource : ranked) {
+        try {
+          final Content resourceNode = prefetch.getContent(resource.id);
+          if (resourceNode == null) {
+            // this can happen if this content is no longer public
+            continue;
+          }
+          final String resourceName = (String) resourceNode
+              .getProperty(FilesConstants.POOLED_CONTENT_FILENAME);
+          resourceActivities.add(new ResourceActivity(resource.id, resource.count,
+              resourceName, (Long) resourceNode.getProperty(FilesConstants.LAST_MODIFIED)));
+        } catch (StorageClientException e) {
+          continue;
+        }
+      }
+    }
+    return resourceActivities;
+  }
+
+  /**
+   * Count the activity found by the search, most active content first. The activities
+   * are read one at a time and dropped once counted, only the resources they are about
+   * are loaded through the prefetch, each once however active it was.
+   */
+  private List<ResourceActivity> countActivity(SlingHttpServletRequest request,
+      ResultPrefetch prefetch, Iterator<Result> iterator) {
+    final ContentManager contentManager;
+    try {
+      contentManager = StorageClientUtils.adaptToSession(
+          request.getResourceResolver().adaptTo(javax.jcr.Session.class))
+          .getContentManager();
+    } catch (StorageClientException e) {
+      LOG.error(e.getLocalizedMessage(), e);
+      return Collections.emptyList();
+    }
+
+    // count all the activity
+    LOG.debug("Computing the most active content feed.");
+    final Map<String, Integer> counts = new HashMap<String, Integer>();
+    while (iterator.hasNext()) {
+      final Result result = iterator.next();
+      try {
+        final Content node = contentManager.get(result.getPath());
+        if (node != null && node.hasProperty("resourceId")) {
+          final String resourceId = (String) node.getProperty("resourceId");
+          final Integer count = counts.get(resourceId);
+          counts.put(resourceId, count == null ? 1 : count + 1);
+        }
+      } catch (AccessDeniedException e) {
+        continue;
+      } catch (StorageClientException e) {
+        // if something is wrong with this particular activity,
+        // we don't let it wreck the whole feed
+        continue;
+      }
+    }
+
+    prefetch.prefetchContent(counts.keySet());
+    final List<ResourceActivity> resourceActivities = new ArrayList<ResourceActivity>(
+        counts.size());
+    for (Entry<String, Integer> e : counts.entrySet()) {
+      try {
+        final Content resourceNode = prefetch.getContent(e.getKey());
+        if (resourceNode == null) {
+          // this can happen if this content is no longer public
+          continue;
+        }
+        final String resourceName = (String) resourceNode
+            .getProperty(FilesConstants.POOLED_CONTENT_FILENAME);
+        resourceActivities.add(new ResourceActivity(e.getKey(), e.getValue(), resourceName,
+            (Long) resourceNode.getProperty(FilesConstants.LAST_MODIFIED)));
+      } catch (StorageClientException ex) {
+        continue;
+      }
+    }
+    Collections.sort(resourceActivities, Collections.reverseOrder());
+    return resourceActivities;
+  }
+
   public class ResourceActivity implements Comparable<ResourceActivity> {
     public final String id;
     public final String name;
@@ -244,7 +330,11 @@ public class LiteMostActiveContentSearchBatchResultProcessor implements
    */
   public SolrSearchResultSet getSearchResultSet(SlingHttpServletRequest request,
       Query query) throws SolrSearchException {
-
+    final int window = getRankingWindow(request);
+    if (window >= 0) {
+      // the ranking has the counts, so the activities don't need to be found
+      return activityRanking.getResultSet(ActivityRanking.CONTENT, window);
+    }
     return searchServiceFactory.getSearchResultSet(request, query);
   }
 
@@ -53,7 +53,7 @@ public class MostActiveContentPropertyProvider implements SolrSearchPropertyProv
     propertiesMap.put("then", then);
   }
 
-  protected long deriveThen(final SlingHttpServletRequest request) {
+  protected static long deriveThen(final SlingHttpServletRequest request) {
     final RequestParameter thenParam = request.getRequestParameter("then");
     final long now = new Date().getTime();
     long then = now - DEFAULT_DAYS_MS;
@@ -28,6 +28,7 @@ import org.apache.sling.api.resource.Resource;
 import org.apache.sling.api.resource.ResourceResolver;
 import org.apache.sling.commons.json.JSONException;
 import org.apache.sling.commons.json.io.JSONWriter;
+import org.sakaiproject.nakamura.activity.search.ActivityRanking.RankedResource;
 import org.sakaiproject.nakamura.api.files.FilesConstants;
 import org.sakaiproject.nakamura.api.lite.Session;
 import org.sakaiproject.nakamura.api.lite.StorageClientUtils;
@@ -48,9 +49,11 @@ import org.slf4j.LoggerFactory;
 import java.util.ArrayList;
 import java.util.Collections;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
 
 @Component(immediate = true, label = "MostActiveGroupSearchBatchResultProcessor", description = "Formatter for most active groups")
 @Service
@@ -68,6 +71,9 @@ public class MostActiveGroupsSearchBatchResultProcessor implements
   @Reference
   private SolrSearchServiceFactory searchServiceFactory;
 
+  @Reference
+  private ActivityRanking activityRanking;
+
   /**
    * {@inheritDoc}
    * 
@@ -76,64 +82,27 @@ public class MostActiveGroupsSearchBatchResultProcessor implements
    */
   public void writeResults(SlingHttpServletRequest request, JSONWriter write,
       Iterator<Result> results) throws JSONException {
-    final Map<String, ResourceActivity> resources = new HashMap<String, ResourceActivity>();
-    final ResourceResolver resolver = request.getResourceResolver();
     final Session session = StorageClientUtils.adaptToSession(request
         .getResourceResolver().adaptTo(javax.jcr.Session.class));
-    while (results.hasNext()) {
-      final Result result = results.next();
-      final String path = result.getPath();
-      final Resource resource = resolver.getResource(path);
-      final Content content = resource.adaptTo(Content.class);
-      if (content != null) {
-        final String resourceId = (String) content.getProperty("resourceId");
-        if (!resources.containsKey(resourceId)) {
-          final String resourcePath = LitePersonalUtils.getProfilePath(resourceId);
-          Content resourceContent = null;
-          try {
-            resourceContent = session.getContentManager().get(resourcePath);
-          } catch (Exception e) {
-            // this happens if the group is not public
-            // or if the group path simply doesn't exist
-            continue;
-          }
-          if (resourceContent == null) {
-            LOG.info("null profile found for group " + resourceId + ", group has been excluded from search results");
-            continue;
-          }
-
-          // KERN-2125 determine if group should be excluded from search results
-          Authorizable authorizable = null;
-          try {
-            authorizable = session.getAuthorizableManager().findAuthorizable(resourceId);
-            // allow for not being able to find the authorizable for the group
-            if (authorizable == null) {
-              LOG.info("null authorizable found for group " + resourceId + ", group has been exclude from search results");
-              continue;
-            }
-          } catch (Exception e) {
-            // allow for not being able to find the authorizable for the group
-            LOG.info("no authorizable found for group " + resourceId + ", group has been exclude from search results",e);
-            continue;
-          }
-          if (authorizable != null) {
-            if (authorizable.hasProperty(UserConstants.SAKAI_EXCLUDE)) {
-              if (Boolean.parseBoolean(String.valueOf(authorizable.getProperty(UserConstants.SAKAI_EXCLUDE)))) {
-                // don't include groups in search results where property sakai:excludeSearch=true
-                LOG.debug("group {} has been excluded from search results because sakai:excludeSearch=true",resourceId);
-                continue;
-              }
-            }
-          }
+    final RequestParameter startpageP = request.getRequestParameter(STARTPAGE_PARAM);
+    int startpage = (startpageP != null) ? Integer.valueOf(startpageP.getString()) : 1;
+    startpage = (startpage < 1) ? 1 : startpage;
+    final RequestParameter numitemsP = request.getRequestParameter(NUMITEMS_PARAM);
+    int numitems = (numitemsP != null) ? Integer.valueOf(numitemsP.getString())
+                                      : SolrSearchConstants.DEFAULT_PAGED_ITEMS;
+    numitems = (numitems < 1) ? SolrSearchConstants.DEFAULT_PAGED_ITEMS : numitems;
+    final int beginPosition = (startpage * numitems) - numitems;
 
-          final String resourceName = (String) resourceContent
-              .getProperty("sakai:group-title");
-          resources.put(resourceId, new ResourceActivity(resourceId, 0, resourceName,
-              (Long) resourceContent.getProperty(FilesConstants.LAST_MODIFIED)));
-        }
-        // increment the count for this particular resource.
-        resources.get(resourceId).activityScore++;
-      }
+    // the ranking serves the standard windows, anything else is counted from the search
+    final List<ResourceActivity> resourceActivities;
+    final int total;
+    final int window = getRankingWindow(request);
+    if (window >= 0) {
+      resourceActivities = getRankedActivity(session, window, beginPosition + numitems);
+      total = activityRanking.getRankedSize(ActivityRanking.GROUP, window);
+    } else {
+      resourceActivities = countActivity(request, session, results);
+      total = resourceActivities.size();
     }
 
     // KERN-1724 determine how many content items the current user can read
@@ -151,26 +120,15 @@ public class MostActiveGroupsSearchBatchResultProcessor implements
     }
 
     // write the most-used content to the JSONWriter
-    final List<ResourceActivity> resourceActivities = new ArrayList<ResourceActivity>(
-        resources.values());
-    Collections.sort(resourceActivities, Collections.reverseOrder());
     write.object();
     write.key("totalCanRead");
     write.value(totalCanRead);
     write.key(SolrSearchConstants.TOTAL);
-    write.value(resourceActivities.size());
-    final RequestParameter startpageP = request.getRequestParameter(STARTPAGE_PARAM);
-    int startpage = (startpageP != null) ? Integer.valueOf(startpageP.getString()) : 1;
-    startpage = (startpage < 1) ? 1 : startpage;
+    write.value(total);
     write.key(STARTPAGE_PARAM);
     write.value(startpage);
-    final RequestParameter numitemsP = request.getRequestParameter(NUMITEMS_PARAM);
-    int numitems = (numitemsP != null) ? Integer.valueOf(numitemsP.getString())
-                                      : SolrSearchConstants.DEFAULT_PAGED_ITEMS;
-    numitems = (numitems < 1) ? SolrSearchConstants.DEFAULT_PAGED_ITEMS : numitems;
     write.key(NUMITEMS_PARAM);
     write.value(numitems);
-    final int beginPosition = (startpage * numitems) - numitems;
     write.key("groups");
     write.array();
     if (beginPosition < resourceActivities.size()) {
@@ -192,6 +150,123 @@ public class MostActiveGroupsSearchBatchResultProcessor implements
     write.endObject();
   }
 
+  /**
+   * @return the ranking window for the time span of the request, or -1 if the ranking
+   *         can't serve it.
+   */
+  private int getRankingWindow(SlingHttpServletRequest request) {
+    return activityRanking.getWindow(MostActiveContentPropertyProvider.deriveThen(request));
+  }
+
+  /**
+   * Load the groups from the top of the ranking until there are enough to fill the page.
+   */
+  private List<ResourceActivity> getRankedActivity(Session session, int window, int needed) {
+    final List<ResourceActivity> resourceActivities = new ArrayList<ResourceActivity>();
+    int offset = 0;
+    while (resourceActivities.size() < needed) {
+      final List<RankedResource> ranked = activityRanking.getRanked(ActivityRanking.GROUP,
+          window, offset, needed - resourceActivities.size());
+      if (ranked.isEmpty()) {
+        break;
+      }
+      offset += ranked.size();
+      for (RankedResource resource : ranked) {
+        final ResourceActivity resourceActivity = loadGroup(session, resource.id,
+            resource.count);
+        if (resourceActivity != null) {
+          resourceActivities.add(resourceActivity);
+        }
+      }
+    }
+    return resourceActivities;
+  }
+
+  /**
+   * Count the activity found by the search, most active groups first.
+   */
+  private List<ResourceActivity> countActivity(SlingHttpServletRequest request,
+      Session session, Iterator<Result> results) {
+    final Map<String, ResourceActivity> resources = new HashMap<String, ResourceActivity>();
+    final Set<String> excluded = new HashSet<String>();
+    final ResourceResolver resolver = request.getResourceResolver();
+    while (results.hasNext()) {
+      final Result result = results.next();
+      final String path = result.getPath();
+      final Resource resource = resolver.getResource(path);
+      final Content content = resource.adaptTo(Content.class);
+      if (content != null) {
+        final String resourceId = (String) content.getProperty("resourceId");
+        if (excluded.contains(resourceId)) {
+          continue;
+        }
+        if (!resources.containsKey(resourceId)) {
+          final ResourceActivity resourceActivity = loadGroup(session, resourceId, 0);
+          if (resourceActivity == null) {
+            excluded.add(resourceId);
+            continue;
+          }
+          resources.put(resourceId, resourceActivity);
+        }
+        // increment the count for this particular resource.
+        resources.get(resourceId).activityScore++;
+      }
+    }
+    final List<ResourceActivity> resourceActivities = new ArrayList<ResourceActivity>(
+        resources.values());
+    Collections.sort(resourceActivities, Collections.reverseOrder());
+    return resourceActivities;
+  }
+
+  /**
+   * @return the activity of a group, or null if the group can't be read or is excluded
+   *         from search results.
+   */
+  private ResourceActivity loadGroup(Session session, String resourceId, int activityScore) {
+    final String resourcePath = LitePersonalUtils.getProfilePath(resourceId);
+    Content resourceContent = null;
+    try {
+      resourceContent = session.getContentManager().get(resourcePath);
+    } catch (Exception e) {
+      // this happens if the group is not public
+      // or if the group path simply doesn't exist
+      return null;
+    }
+    if (resourceContent == null) {
+      LOG.info("null profile found for group " + resourceId + ", group has been excluded from search results");
+      return null;
+    }
+
+    // KERN-2125 determine if group should be excluded from search results
+    Authorizable authorizable = null;
+    try {
+      authorizable = session.getAuthorizableManager().findAuthorizable(resourceId);
+      // allow for not being able to find the authorizable for the group
+      if (authorizable == null) {
+        LOG.info("null authorizable found for group " + resourceId + ", group has been exclude from search results");
+        return null;
+      }
+    } catch (Exception e) {
+      // allow for not being able to find the authorizable for the group
+      LOG.info("no authorizable found for group " + resourceId + ", group has been exclude from search results",e);
+      return null;
+    }
+    if (authorizable != null) {
+      if (authorizable.hasProperty(UserConstants.SAKAI_EXCLUDE)) {
+        if (Boolean.parseBoolean(String.valueOf(authorizable.getProperty(UserConstants.SAKAI_EXCLUDE)))) {
+          // don't include groups in search results where property sakai:excludeSearch=true
+          LOG.debug("group {} has been excluded from search results because sakai:excludeSearch=true",resourceId);
+          return null;
+        }
+      }
+    }
+
+    final String resourceName = (String) resourceContent
+        .getProperty("sakai:group-title");
+    return new ResourceActivity(resourceId, activityScore, resourceName,
+        (Long) resourceContent.getProperty(FilesConstants.LAST_MODIFIED));
+  }
+
   /**
    * {@inheritDoc}
    * 
@@ -200,6 +275,11 @@ public class MostActiveGroupsSearchBatchResultProcessor implements
    */
   public SolrSearchResultSet getSearchResultSet(SlingHttpServletRequest request,
       Query query) throws SolrSearchException {
+    final int window = getRankingWindow(request);
+    if (window >= 0) {
+      // the ranking has the counts, so the activities don't need to be found
+      return activityRanking.getResultSet(ActivityRanking.GROUP, window);
+    }
     // Return the result set.
     return searchServiceFactory.getSearchResultSet(request, query);
   }
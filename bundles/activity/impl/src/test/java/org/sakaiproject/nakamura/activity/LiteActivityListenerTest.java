@@ -0,0 +1,167 @@
+/**
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.nakamura.activity;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.Mockito.RETURNS_DEEP_STUBS;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+import com.google.common.collect.ImmutableMap;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.Matchers;
+import org.osgi.service.component.ComponentContext;
+import org.sakaiproject.nakamura.api.activemq.ConnectionFactoryService;
+import org.sakaiproject.nakamura.api.activity.AbstractActivityRoute;
+import org.sakaiproject.nakamura.api.activity.ActivityConstants;
+import org.sakaiproject.nakamura.api.activity.ActivityRoute;
+import org.sakaiproject.nakamura.api.activity.ActivityRouterManager;
+import org.sakaiproject.nakamura.api.lite.Repository;
+import org.sakaiproject.nakamura.api.lite.Session;
+import org.sakaiproject.nakamura.api.lite.accesscontrol.AclModification;
+import org.sakaiproject.nakamura.api.lite.accesscontrol.AclModification.Operation;
+import org.sakaiproject.nakamura.api.lite.accesscontrol.Permissions;
+import org.sakaiproject.nakamura.api.lite.accesscontrol.Security;
+import org.sakaiproject.nakamura.api.lite.authorizable.AuthorizableManager;
+import org.sakaiproject.nakamura.api.lite.content.Content;
+import org.sakaiproject.nakamura.api.lite.content.ContentManager;
+import org.sakaiproject.nakamura.lite.BaseMemoryRepository;
+
+import java.util.ArrayList;
+import java.util.Hashtable;
+import java.util.List;
+
+import javax.jms.Message;
+
+/**
+ *
+ */
+public class LiteActivityListenerTest {
+
+  private static final String ACTIVITY_PATH = "/p/abc123/activity/2011/09/19/15/1234";
+
+  private LiteActivityListener listener;
+  private ActivityRouterManager activityRouterManager;
+  private ContentManager contentManager;
+  private Message message;
+
+  @Before
+  public void setUp() throws Exception {
+    Repository repository = new BaseMemoryRepository().getRepository();
+    Session session = repository.loginAdministrative();
+    contentManager = session.getContentManager();
+    contentManager.update(new Content(ACTIVITY_PATH, ImmutableMap.<String, Object> of(
+        "sling:resourceType", ActivityConstants.ACTIVITY_SOURCE_ITEM_RESOURCE_TYPE,
+        ActivityConstants.PARAM_ACTOR_ID, "alice")));
+    AuthorizableManager authorizableManager = session.getAuthorizableManager();
+    for (String user : new String[] { "alice", "bob", "carol", "dave" }) {
+      authorizableManager.createUser(user, user, "password", null);
+    }
+    session.getAccessControlManager().setAcl(
+        Security.ZONE_CONTENT,
+        ACTIVITY_PATH,
+        new AclModification[] {
+            new AclModification(AclModification.grantKey("alice"),
+                Permissions.CAN_READ.getPermission(), Operation.OP_REPLACE),
+            new AclModification(AclModification.grantKey("bob"),
+                Permissions.CAN_READ.getPermission(), Operation.OP_REPLACE),
+            new AclModification(AclModification.grantKey("dave"),
+                Permissions.CAN_READ.getPermission(), Operation.OP_REPLACE),
+            new AclModification(AclModification.denyKey("carol"),
+                Permissions.CAN_READ.getPermission(), Operation.OP_REPLACE) });
+
+    activityRouterManager = mock(ActivityRouterManager.class);
+    message = mock(Message.class);
+    when(message.getStringProperty(ActivityConstants.EVENT_PROP_PATH)).thenReturn(
+        ACTIVITY_PATH);
+
+    listener = new LiteActivityListener();
+    listener.sparseRepository = repository;
+    listener.activityRouterManager = activityRouterManager;
+    listener.connFactoryService = mock(ConnectionFactoryService.class, RETURNS_DEEP_STUBS);
+    ComponentContext componentContext = mock(ComponentContext.class);
+    Hashtable<String, Object> properties = new Hashtable<String, Object>();
+    properties.put(LiteActivityListener.FANOUT_THRESHOLD, 2);
+    when(componentContext.getProperties()).thenReturn(properties);
+    listener.activate(componentContext);
+  }
+
+  @Test
+  public void testSmallAudienceIsCopied() throws Exception {
+    routeTo("/a/alice/activityFeed", "/a/bob/activityFeed");
+    listener.onMessage(message);
+
+    Content copy = contentManager.get("/a/bob/activityFeed/1234");
+    assertEquals(ActivityConstants.ACTIVITY_ITEM_RESOURCE_TYPE,
+        copy.getProperty("sling:resourceType"));
+    assertEquals("alice", copy.getProperty(ActivityConstants.PARAM_ACTOR_ID));
+    assertTrue(contentManager.exists("/a/alice/activityFeed/1234"));
+    assertFalse(contentManager.exists(ACTIVITY_PATH + "/"
+        + ActivityConstants.ACTIVITY_SHARED_ITEM_NAME));
+  }
+
+  @Test
+  public void testLargeAudienceIsStoredOnce() throws Exception {
+    routeTo("a:alice/private/activityFeed", "a:bob/private/activityFeed",
+        "a:dave/private/activityFeed", "a:bob/private/activityFeed");
+    listener.onMessage(message);
+
+    assertFalse(contentManager.exists("a:bob/private/activityFeed/1234"));
+    Content shared = contentManager.get(ACTIVITY_PATH + "/"
+        + ActivityConstants.ACTIVITY_SHARED_ITEM_NAME);
+    assertEquals(ActivityConstants.ACTIVITY_ITEM_RESOURCE_TYPE,
+        shared.getProperty("sling:resourceType"));
+    assertEquals("alice", shared.getProperty(ActivityConstants.PARAM_ACTOR_ID));
+    assertFalse(shared.hasProperty(ActivityConstants.PARAM_ACTIVITY_FEEDS));
+
+    Content activity = contentManager.get(ACTIVITY_PATH);
+    assertArrayEquals(new String[] { "a:alice/private/activityFeed",
+        "a:bob/private/activityFeed", "a:dave/private/activityFeed" }, (String[]) activity
+        .getProperty(ActivityConstants.PARAM_ACTIVITY_FEEDS));
+  }
+
+  @Test
+  public void testLargeAudienceUnreadableFeedsAreCopied() throws Exception {
+    routeTo("a:alice/private/activityFeed", "a:bob/private/activityFeed",
+        "a:carol/private/activityFeed", "activities");
+    listener.onMessage(message);
+
+    assertTrue(contentManager.exists("a:carol/private/activityFeed/1234"));
+    assertTrue(contentManager.exists("activities/1234"));
+    assertFalse(contentManager.exists("a:bob/private/activityFeed/1234"));
+    Content activity = contentManager.get(ACTIVITY_PATH);
+    assertArrayEquals(new String[] { "a:alice/private/activityFeed",
+        "a:bob/private/activityFeed" }, (String[]) activity
+        .getProperty(ActivityConstants.PARAM_ACTIVITY_FEEDS));
+  }
+
+  private void routeTo(String... feeds) {
+    List<ActivityRoute> routes = new ArrayList<ActivityRoute>();
+    for (String feed : feeds) {
+      routes.add(new AbstractActivityRoute(feed) {
+      });
+    }
+    when(activityRouterManager.getActivityRoutes(Matchers.any(Content.class),
+        Matchers.any(Session.class))).thenReturn(routes);
+  }
+}
@@ -0,0 +1,215 @@
+/**
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.nakamura.activity.search;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.Matchers.any;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import com.google.common.collect.ImmutableMap;
+
+import org.apache.solr.client.solrj.SolrQuery;
+import org.apache.solr.client.solrj.SolrServer;
+import org.apache.solr.client.solrj.response.QueryResponse;
+import org.apache.solr.client.solrj.response.RangeFacet;
+import org.apache.solr.common.SolrDocument;
+import org.apache.solr.common.SolrDocumentList;
+import org.apache.solr.common.params.FacetParams;
+import org.apache.solr.common.params.SolrParams;
+import org.junit.After;
+import org.junit.Test;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
+import org.osgi.service.event.Event;
+import org.sakaiproject.nakamura.activity.search.ActivityRanking.RankedResource;
+import org.sakaiproject.nakamura.activity.search.ActivityRanking.Ranking;
+import org.sakaiproject.nakamura.api.solr.SolrServerService;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+public class ActivityRankingTest {
+
+  private static final long HOUR = 60 * 60 * 1000L;
+  private static final long DAY = 24 * HOUR;
+
+  private ActivityRanking activityRanking;
+
+  @After
+  public void after() {
+    if (activityRanking != null) {
+      activityRanking.deactivate(null);
+    }
+  }
+
+  private String ids(List<RankedResource> ranked) {
+    StringBuilder sb = new StringBuilder();
+    for (RankedResource resource : ranked) {
+      sb.append(resource.id).append('=').append(resource.count).append(' ');
+    }
+    return sb.toString().trim();
+  }
+
+  @Test
+  public void testRankedByCount() {
+    long now = 1000 * DAY;
+    Ranking ranking = new Ranking(HOUR, new long[] { DAY, 7 * DAY });
+    ranking.add("a", now - 2 * HOUR);
+    ranking.add("b", now - HOUR);
+    ranking.add("b", now - HOUR);
+    ranking.add("c", now);
+    assertEquals("b=2 c=1 a=1", ids(ranking.get(0, 0, 10, now)));
+    assertEquals(3, ranking.size(0, now));
+    assertEquals(4, ranking.getActivityCount(0, now));
+  }
+
+  @Test
+  public void testPaging() {
+    long now = 1000 * DAY;
+    Ranking ranking = new Ranking(HOUR, new long[] { DAY });
+    for (int i = 0; i < 5; i++) {
+      for (int j = 0; j <= i; j++) {
+        ranking.add("r" + i, now);
+      }
+    }
+    assertEquals("r4=5 r3=4", ids(ranking.get(0, 0, 2, now)));
+    assertEquals("r2=3 r1=2", ids(ranking.get(0, 2, 2, now)));
+    assertEquals("r0=1", ids(ranking.get(0, 4, 2, now)));
+  }
+
+  @Test
+  public void testActivityLeavesWindows() {
+    long now = 1000 * DAY;
+    Ranking ranking = new Ranking(HOUR, new long[] { DAY, 7 * DAY });
+    ranking.add("old", now - 3 * DAY);
+    ranking.add("old", now - 3 * DAY);
+    ranking.add("new", now);
+    assertEquals("new=1", ids(ranking.get(0, 0, 10, now)));
+    assertEquals("old=2 new=1", ids(ranking.get(1, 0, 10, now)));
+
+    // a day later the newest activity has left the one day window
+    assertEquals("", ids(ranking.get(0, 0, 10, now + DAY)));
+    assertEquals(0, ranking.getActivityCount(0, now + DAY));
+    assertEquals("old=2 new=1", ids(ranking.get(1, 0, 10, now + DAY)));
+
+    // and five days later the old activity has left the week
+    assertEquals("new=1", ids(ranking.get(1, 0, 10, now + 5 * DAY)));
+    assertEquals(1, ranking.getActivityCount(1, now + 5 * DAY));
+
+    // activity older than the longest window isn't counted
+    ranking.add("older", now - 30 * DAY);
+    assertEquals(1, ranking.size(1, now + 5 * DAY));
+  }
+
+  @Test
+  public void testParseActivityPath() {
+    String[] activity = ActivityRanking.parseActivityPath("/activity/content/poolId/abc");
+    assertEquals("content", activity[0]);
+    assertEquals("poolId", activity[1]);
+    assertEquals("group", ActivityRanking.parseActivityPath("/activity/group/g-1/abc")[0]);
+    // the tracking node of a resource isn't an activity
+    assertNull(ActivityRanking.parseActivityPath("/activity/content/poolId"));
+    assertNull(ActivityRanking.parseActivityPath("/activity/user/ieb/abc"));
+    assertNull(ActivityRanking.parseActivityPath("/p/poolId"));
+  }
+
+  @Test
+  public void testRebuildAndEvents() throws Exception {
+    long now = System.currentTimeMillis();
+    final long twoDaysAgo = now - 2 * DAY;
+    final long threeHoursAgo = now - 3 * HOUR;
+    SolrServer server = mock(SolrServer.class);
+    when(server.query(any(SolrParams.class))).thenAnswer(new Answer<QueryResponse>() {
+      public QueryResponse answer(InvocationOnMock invocation) throws Throwable {
+        SolrQuery query = (SolrQuery) invocation.getArguments()[0];
+        assertEquals(0, (int) query.getStart());
+        assertEquals("timestamp", query.get(FacetParams.FACET_RANGE));
+        // sorted by time, the counts of each bucket place the activity in it.
+        SolrDocumentList docs = new SolrDocumentList();
+        docs.add(doc("/activity/content/older/a"));
+        docs.add(doc("/activity/content/older/b"));
+        docs.add(doc("/activity/group/g-1/c"));
+        docs.add(doc("/activity/content/recent/e"));
+        List<RangeFacet.Count> counts = new ArrayList<RangeFacet.Count>();
+        counts.add(count(twoDaysAgo - HOUR, 0));
+        counts.add(count(twoDaysAgo, 3));
+        counts.add(count(twoDaysAgo + HOUR, 0));
+        counts.add(count(threeHoursAgo, 1));
+        RangeFacet<?, ?> range = mock(RangeFacet.class);
+        when(range.getCounts()).thenReturn(counts);
+        QueryResponse response = mock(QueryResponse.class);
+        when(response.getResults()).thenReturn(docs);
+        when(response.getFacetRanges()).thenReturn(
+            Collections.<RangeFacet> singletonList(range));
+        return response;
+      }
+    });
+    SolrServerService solrServerService = mock(SolrServerService.class);
+    when(solrServerService.getServer()).thenReturn(server);
+
+    activityRanking = new ActivityRanking();
+    activityRanking.solrServerService = solrServerService;
+    Map<String, Object> properties = new HashMap<String, Object>();
+    properties.put(ActivityRanking.WINDOWS, new String[] { "1", "7" });
+    activityRanking.activate(properties);
+    long start = System.currentTimeMillis();
+    while (activityRanking.getWindow(start - DAY) < 0) {
+      assertTrue(System.currentTimeMillis() - start < 5000);
+      Thread.sleep(10);
+    }
+    // one query for the whole rebuild, whatever the number of buckets.
+    verify(server, times(1)).query(any(SolrParams.class));
+    assertEquals(0, activityRanking.getWindow(System.currentTimeMillis() - DAY));
+    assertEquals(1, activityRanking.getWindow(System.currentTimeMillis() - 7 * DAY));
+    assertEquals(-1, activityRanking.getWindow(System.currentTimeMillis() - 3 * DAY));
+
+    activityRanking.handleEvent(new Event("org/sakaiproject/nakamura/lite/content/ADDED",
+        ImmutableMap.of("path", "/activity/content/newer/d")));
+    activityRanking.handleEvent(new Event("org/sakaiproject/nakamura/lite/content/ADDED",
+        ImmutableMap.of("path", "/activity/content/older", "resourceType",
+            "sakai/resource-activity")));
+    assertEquals("newer=1 recent=1",
+        ids(activityRanking.getRanked(ActivityRanking.CONTENT, 0, 0, 10)));
+    assertEquals("older=2 newer=1 recent=1",
+        ids(activityRanking.getRanked(ActivityRanking.CONTENT, 1, 0, 10)));
+    assertEquals("g-1=1", ids(activityRanking.getRanked(ActivityRanking.GROUP, 1, 0, 10)));
+    assertEquals(4, activityRanking.getResultSet(ActivityRanking.CONTENT, 1).getSize());
+    assertEquals(3, activityRanking.getRankedSize(ActivityRanking.CONTENT, 1));
+  }
+
+  private RangeFacet.Count count(long time, int count) {
+    RangeFacet.Count facetCount = mock(RangeFacet.Count.class);
+    when(facetCount.getValue()).thenReturn(String.valueOf(time - time % HOUR));
+    when(facetCount.getCount()).thenReturn(count);
+    return facetCount;
+  }
+
+  private SolrDocument doc(String id) {
+    SolrDocument doc = new SolrDocument();
+    doc.setField("id", id);
+    return doc;
+  }
+}
@@ -35,7 +35,6 @@ import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.io.IOException;
-import java.io.StringWriter;
 import java.io.UnsupportedEncodingException;
 import java.net.MalformedURLException;
 import java.net.URISyntaxException;
@@ -43,6 +42,8 @@ import java.util.ArrayList;
 import java.util.Dictionary;
 import java.util.Enumeration;
 import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
 
 import javax.servlet.RequestDispatcher;
 import javax.servlet.ServletException;
@@ -55,6 +56,16 @@ public class BatchHelper {
 
   protected static final String REQUESTS_PARAMETER = "requests";
 
+  private volatile ParallelBatchExecutor parallelBatchExecutor;
+
+  /**
+   * @param parallelBatchExecutor
+   *          the executor to run safe requests concurrently with, null to run every
+   *          request in turn on the batch thread.
+   */
+  protected void setParallelBatchExecutor(ParallelBatchExecutor parallelBatchExecutor) {
+    this.parallelBatchExecutor = parallelBatchExecutor;
+  }
 
   /**
    * Takes the original request and starts the batching.
@@ -94,27 +105,107 @@ public class BatchHelper {
       return;
     }
 
-    // Loop over the requests and handle each one.
+    // Anon users may only GET, checked before anything is written.
+    // TODO: This is a nasty hack to work around white listing of /system/batch POST
+    // requests. This should be removed when the UI has refactored itself not to use batch
+    // POSTs in place of GETs (see http spec for reasons by thats bad)
+    if (User.ANON_USER.equals(request.getRemoteUser())) {
+      for (RequestInfo r : batchedRequests) {
+        if (!"GET".equals(r.getMethod())) {
+          response.reset();
+          throw new ServletException("Anon Users may only perform GET operations");
+        }
+      }
+    }
+
+    // Loop over the requests and handle each one, writing the results as they are done.
     try {
-      StringWriter sw = new StringWriter();
-      JSONWriter write = new JSONWriter(sw);
+      response.setContentType("application/json");
+      response.setCharacterEncoding("UTF-8");
+      JSONWriter write = new JSONWriter(response.getWriter());
       write.object();
       write.key("results");
       write.array();
 
-      for (RequestInfo r : batchedRequests) {
-        doRequest(request, response, r, write);
+      ParallelBatchExecutor executor = parallelBatchExecutor;
+      if (executor != null && executor.isEnabled()) {
+        doRequestsConcurrently(executor, request, response, batchedRequests, write);
+      } else {
+        for (RequestInfo r : batchedRequests) {
+          doRequest(request, response, r, write);
+        }
       }
       write.endArray();
       write.endObject();
-      response.setContentType("application/json");
-      response.setCharacterEncoding("UTF-8");
-      response.getWriter().write(sw.getBuffer().toString());
     } catch (JSONException e) {
       LOGGER.warn("Failed to create a JSON response");
-      response.sendError(HttpServletResponse.SC_INTERNAL_SERVER_ERROR,
-          "Failed to write JSON response");
+      if (!response.isCommitted()) {
+        response.reset();
+        response.sendError(HttpServletResponse.SC_INTERNAL_SERVER_ERROR,
+            "Failed to write JSON response");
+      }
+    }
+  }
+
+  /**
+   * Run the safe requests concurrently, and the others one at a time once everything
+   * before them has finished, so a modifying request sees the effect of the requests
+   * before it and is seen by the requests after it. Results are written in the order of
+   * the requests, each as soon as it and every request before it are done.
+   */
+  private void doRequestsConcurrently(ParallelBatchExecutor executor,
+      SlingHttpServletRequest request, SlingHttpServletResponse response,
+      List<RequestInfo> batchedRequests, JSONWriter write) throws JSONException,
+      ServletException, IOException {
+    List<Future<ResponseWrapper>> results = new ArrayList<Future<ResponseWrapper>>();
+    int written = 0;
+    for (RequestInfo r : batchedRequests) {
+      if (r.isSafe()) {
+        results.add(executor.submit(request, response, r));
+      } else {
+        written = writeResults(response, batchedRequests, results, written, write, true);
+        results.add(null);
+        doRequest(request, response, r, write);
+        written++;
+      }
+      written = writeResults(response, batchedRequests, results, written, write, false);
     }
+    writeResults(response, batchedRequests, results, written, write, true);
+  }
+
+  /**
+   * Write the results from the first one not written yet.
+   *
+   * @param wait
+   *          true to wait for all the results, false to stop at the first one not done.
+   * @return the index of the first result not written.
+   */
+  private int writeResults(SlingHttpServletResponse response,
+      List<RequestInfo> batchedRequests, List<Future<ResponseWrapper>> results,
+      int written, JSONWriter write, boolean wait) throws JSONException, IOException {
+    int start = written;
+    while (written < results.size()) {
+      Future<ResponseWrapper> result = results.get(written);
+      if (!wait && !result.isDone()) {
+        break;
+      }
+      RequestInfo requestInfo = batchedRequests.get(written);
+      try {
+        writeResponse(write, result.get(), requestInfo);
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        writeFailedRequest(write, requestInfo);
+      } catch (ExecutionException e) {
+        LOGGER.warn("Failed to process {} in a batch: {} ", requestInfo.getUrl(), e
+            .getCause().getMessage());
+        writeFailedRequest(write, requestInfo);
+      }
+      written++;
+    }
+    if (written > start) {
+      response.flushBuffer();
+    }
+    return written;
   }
 
   private void doRequest(SlingHttpServletRequest request,
@@ -122,15 +213,6 @@ public class BatchHelper {
       JSONWriter write) throws JSONException, ServletException {
     // Look for a matching resource in the usual way. If one is found,
     // the resource will also be embedded with any necessary RequestPathInfo.
-    // TODO: This is a nasty hack to work around white listing of /system/batch POST
-    // requests. This should be removed when the UI has refactored itself not to use batch
-    // POSTs in place of GETs (see http spec for reasons by thats bad)
-    if (User.ANON_USER.equals(request.getRemoteUser())) {
-      if (!"GET".equals(requestInfo.getMethod())) {
-        response.reset();
-        throw new ServletException("Anon Users may only perform GET operations");
-      }
-    }
     String requestPath = requestInfo.getUrl();
     ResourceResolver resourceResolver = request.getResourceResolver();
     Resource resource = resourceResolver.resolve(request, requestPath);
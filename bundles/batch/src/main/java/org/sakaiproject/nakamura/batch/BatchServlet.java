@@ -17,6 +17,9 @@
  */
 package org.sakaiproject.nakamura.batch;
 
+import org.apache.felix.scr.annotations.Reference;
+import org.apache.felix.scr.annotations.ReferenceCardinality;
+import org.apache.felix.scr.annotations.ReferencePolicy;
 import org.apache.felix.scr.annotations.sling.SlingServlet;
 import org.apache.sling.api.SlingHttpServletRequest;
 import org.apache.sling.api.SlingHttpServletResponse;
@@ -40,7 +43,7 @@ import javax.servlet.http.HttpServletResponse;
     bindings = @ServiceBinding(type = BindingType.PATH, bindings = "/system/batch"),
     methods = {
       @ServiceMethod(name = "POST",
-        description = "Get multiple request responses into a single response. It can do GET, POST and DELETE everything is defined in the json block.",
+        description = "Get multiple request responses into a single response. It can do GET, POST and DELETE everything is defined in the json block. GET requests may run concurrently, results are always returned in the order of the requests.",
         parameters = @ServiceParameter(
           name = "requests",
           description = "A JSON string representing a request. <br />Example:" +
@@ -66,6 +69,21 @@ public class BatchServlet extends SlingAllMethodsServlet {
   
   private BatchHelper helper = new BatchHelper();
 
+  @Reference(cardinality = ReferenceCardinality.OPTIONAL_UNARY, policy = ReferencePolicy.DYNAMIC)
+  private ParallelBatchExecutor parallelBatchExecutor;
+
+  protected void bindParallelBatchExecutor(ParallelBatchExecutor parallelBatchExecutor) {
+    this.parallelBatchExecutor = parallelBatchExecutor;
+    helper.setParallelBatchExecutor(parallelBatchExecutor);
+  }
+
+  protected void unbindParallelBatchExecutor(ParallelBatchExecutor parallelBatchExecutor) {
+    if (this.parallelBatchExecutor == parallelBatchExecutor) {
+      this.parallelBatchExecutor = null;
+      helper.setParallelBatchExecutor(null);
+    }
+  }
+
   /**
    * {@inheritDoc}
    *
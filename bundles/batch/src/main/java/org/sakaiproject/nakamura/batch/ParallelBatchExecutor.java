@@ -0,0 +1,578 @@
+/**
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.nakamura.batch;
+
+import org.apache.felix.scr.annotations.Activate;
+import org.apache.felix.scr.annotations.Component;
+import org.apache.felix.scr.annotations.Deactivate;
+import org.apache.felix.scr.annotations.Modified;
+import org.apache.felix.scr.annotations.Property;
+import org.apache.felix.scr.annotations.Reference;
+import org.apache.felix.scr.annotations.Service;
+import org.apache.sling.api.SlingHttpServletRequest;
+import org.apache.sling.api.SlingHttpServletResponse;
+import org.apache.sling.api.resource.LoginException;
+import org.apache.sling.api.resource.ResourceResolver;
+import org.apache.sling.commons.osgi.PropertiesUtil;
+import org.apache.sling.engine.SlingRequestProcessor;
+import org.sakaiproject.nakamura.util.RequestInfo;
+import org.sakaiproject.nakamura.util.RequestWrapper;
+import org.sakaiproject.nakamura.util.ResponseWrapper;
+
+import java.io.BufferedReader;
+import java.io.StringReader;
+import java.security.Principal;
+import java.text.ParseException;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Enumeration;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.TimeZone;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.servlet.ServletInputStream;
+import javax.servlet.http.Cookie;
+import javax.servlet.http.HttpSession;
+
+/**
+ * Runs the safe requests of a batch concurrently.
+ * <p>
+ * Each request is processed by Sling on a thread from a bounded pool, with a clone of the
+ * resource resolver of the batch, so no session is ever used by two threads. The clone is
+ * made on the thread of the batch, from the session of the batch, which costs one login
+ * per request. Off by default, since that login is only worth paying for batches of slow
+ * requests. When the pool and its queue are full, or the pool has been shut down, the
+ * request runs on the thread of the batch instead.
+ */
+@Component(immediate = true, metatype = true)
+@Service(value = ParallelBatchExecutor.class)
+public class ParallelBatchExecutor {
+
+  public static final boolean DEFAULT_ENABLED = false;
+  @Property(boolValue = DEFAULT_ENABLED)
+  static final String ENABLED = "batch.parallel.enabled";
+
+  public static final int DEFAULT_THREADS = 4;
+  @Property(intValue = DEFAULT_THREADS)
+  static final String THREADS = "batch.parallel.threads";
+
+  public static final int DEFAULT_QUEUE_SIZE = 256;
+  @Property(intValue = DEFAULT_QUEUE_SIZE)
+  static final String QUEUE_SIZE = "batch.parallel.queue.size";
+
+  @Reference
+  protected SlingRequestProcessor requestProcessor;
+
+  private volatile boolean enabled;
+  private ThreadPoolExecutor executor;
+
+  @Activate
+  @Modified
+  protected synchronized void activate(Map<?, ?> properties) {
+    enabled = PropertiesUtil.toBoolean(properties.get(ENABLED), DEFAULT_ENABLED);
+    int threads = PropertiesUtil.toInteger(properties.get(THREADS), DEFAULT_THREADS);
+    int queueSize = PropertiesUtil.toInteger(properties.get(QUEUE_SIZE), DEFAULT_QUEUE_SIZE);
+    if (executor != null) {
+      executor.shutdown();
+    }
+    final AtomicInteger threadNumber = new AtomicInteger();
+    executor = new ThreadPoolExecutor(threads, threads, 60, TimeUnit.SECONDS,
+        new ArrayBlockingQueue<Runnable>(queueSize), new ThreadFactory() {
+          public Thread newThread(Runnable r) {
+            Thread t = new Thread(r, "Batch Request " + threadNumber.incrementAndGet());
+            t.setDaemon(true);
+            return t;
+          }
+        }, new ThreadPoolExecutor.AbortPolicy());
+    executor.allowCoreThreadTimeOut(true);
+  }
+
+  @Deactivate
+  protected synchronized void deactivate(Map<?, ?> properties) {
+    enabled = false;
+    if (executor != null) {
+      executor.shutdown();
+      executor = null;
+    }
+  }
+
+  /**
+   * @return true if batches should use this executor.
+   */
+  public boolean isEnabled() {
+    return enabled;
+  }
+
+  /**
+   * Start processing a safe request of a batch.
+   *
+   * @param request
+   *          the batch request, only read on this thread.
+   * @param response
+   *          the batch response.
+   * @param requestInfo
+   *          the request to process.
+   * @return the captured response of the request, when it has been processed.
+   */
+  public Future<ResponseWrapper> submit(SlingHttpServletRequest request,
+      SlingHttpServletResponse response, RequestInfo requestInfo) {
+    final ResourceResolver resourceResolver;
+    try {
+      resourceResolver = request.getResourceResolver().clone(null);
+    } catch (final LoginException ex) {
+      FutureTask<ResponseWrapper> failed = new FutureTask<ResponseWrapper>(
+          new Callable<ResponseWrapper>() {
+            public ResponseWrapper call() throws Exception {
+              throw ex;
+            }
+          });
+      failed.run();
+      return failed;
+    }
+    final IsolatedRequestWrapper requestWrapper = new IsolatedRequestWrapper(request,
+        requestInfo);
+    final IsolatedResponseWrapper responseWrapper = new IsolatedResponseWrapper(response);
+    ThreadPoolExecutor e;
+    synchronized (this) {
+      e = executor;
+    }
+    FutureTask<ResponseWrapper> task = new FutureTask<ResponseWrapper>(
+        new Callable<ResponseWrapper>() {
+          public ResponseWrapper call() throws Exception {
+            process(resourceResolver, requestWrapper, responseWrapper);
+            return responseWrapper;
+          }
+        });
+    if (e != null) {
+      try {
+        e.execute(task);
+        return task;
+      } catch (RejectedExecutionException ex) {
+        // full, or shut down by a reconfiguration since it was read.
+      }
+    }
+    task.run();
+    return task;
+  }
+
+  private void process(ResourceResolver resourceResolver, IsolatedRequestWrapper request,
+      ResponseWrapper response) throws Exception {
+    try {
+      requestProcessor.processRequest(request, response, resourceResolver);
+    } finally {
+      // logs out the session of the clone.
+      resourceResolver.close();
+    }
+  }
+
+  /**
+   * A snapshot of the batch request, taken on the thread of the batch, since servlet
+   * requests are not thread safe and the container keeps using the batch request while
+   * the workers run. Every servlet request method answers from the snapshot, apart from
+   * the dispatcher and real path lookups, which go to the servlet context. The Sling
+   * methods are not called, as Sling wraps this in a request of its own.
+   */
+  static class IsolatedRequestWrapper extends RequestWrapper {
+
+    private static final String[] DATE_FORMATS = { "EEE, dd MMM yyyy HH:mm:ss zzz",
+        "EEEE, dd-MMM-yy HH:mm:ss zzz", "EEE MMM d HH:mm:ss yyyy" };
+
+    private final Map<String, Object> attributes = new HashMap<String, Object>();
+    private String characterEncoding;
+    /** header values by lower case name */
+    private final Map<String, List<String>> headers = new LinkedHashMap<String, List<String>>();
+    private final List<String> headerNames = new ArrayList<String>();
+    private final Cookie[] cookies;
+    private final List<Locale> locales = new ArrayList<Locale>();
+    private final String authType;
+    private final String remoteUser;
+    private final Principal userPrincipal;
+    private final HttpSession session;
+    private final String requestedSessionId;
+    private final boolean requestedSessionIdValid;
+    private final boolean requestedSessionIdFromCookie;
+    private final boolean requestedSessionIdFromURL;
+    private final String contextPath;
+    private final String requestURL;
+    private final String protocol;
+    private final String scheme;
+    private final String serverName;
+    private final int serverPort;
+    private final boolean secure;
+    private final String remoteAddr;
+    private final String remoteHost;
+    private final int remotePort;
+    private final String localName;
+    private final String localAddr;
+    private final int localPort;
+
+    IsolatedRequestWrapper(SlingHttpServletRequest request, RequestInfo requestInfo) {
+      super(request, requestInfo);
+      Enumeration<?> names = request.getAttributeNames();
+      while (names != null && names.hasMoreElements()) {
+        String name = (String) names.nextElement();
+        attributes.put(name, request.getAttribute(name));
+      }
+      characterEncoding = request.getCharacterEncoding();
+      names = request.getHeaderNames();
+      while (names != null && names.hasMoreElements()) {
+        String name = (String) names.nextElement();
+        List<String> values = new ArrayList<String>();
+        Enumeration<?> e = request.getHeaders(name);
+        while (e != null && e.hasMoreElements()) {
+          values.add((String) e.nextElement());
+        }
+        String key = name.toLowerCase(Locale.ENGLISH);
+        if (headers.containsKey(key)) {
+          headers.get(key).addAll(values);
+        } else {
+          headerNames.add(name);
+          headers.put(key, values);
+        }
+      }
+      Cookie[] requestCookies = request.getCookies();
+      if (requestCookies == null) {
+        cookies = null;
+      } else {
+        cookies = new Cookie[requestCookies.length];
+        for (int i = 0; i < cookies.length; i++) {
+          cookies[i] = (Cookie) requestCookies[i].clone();
+        }
+      }
+      Enumeration<?> e = request.getLocales();
+      while (e != null && e.hasMoreElements()) {
+        locales.add((Locale) e.nextElement());
+      }
+      if (locales.isEmpty()) {
+        locales.add(Locale.getDefault());
+      }
+      authType = request.getAuthType();
+      remoteUser = request.getRemoteUser();
+      userPrincipal = request.getUserPrincipal();
+      session = request.getSession(false);
+      requestedSessionId = request.getRequestedSessionId();
+      requestedSessionIdValid = request.isRequestedSessionIdValid();
+      requestedSessionIdFromCookie = request.isRequestedSessionIdFromCookie();
+      requestedSessionIdFromURL = request.isRequestedSessionIdFromURL();
+      contextPath = request.getContextPath();
+      StringBuffer url = request.getRequestURL();
+      requestURL = url == null ? null : url.toString();
+      protocol = request.getProtocol();
+      scheme = request.getScheme();
+      serverName = request.getServerName();
+      serverPort = request.getServerPort();
+      secure = request.isSecure();
+      remoteAddr = request.getRemoteAddr();
+      remoteHost = request.getRemoteHost();
+      remotePort = request.getRemotePort();
+      localName = request.getLocalName();
+      localAddr = request.getLocalAddr();
+      localPort = request.getLocalPort();
+    }
+
+    @Override
+    public Object getAttribute(String name) {
+      return attributes.get(name);
+    }
+
+    @SuppressWarnings("rawtypes")
+    @Override
+    public Enumeration getAttributeNames() {
+      return Collections.enumeration(attributes.keySet());
+    }
+
+    @Override
+    public void setAttribute(String name, Object value) {
+      if (value == null) {
+        attributes.remove(name);
+      } else {
+        attributes.put(name, value);
+      }
+    }
+
+    @Override
+    public void removeAttribute(String name) {
+      attributes.remove(name);
+    }
+
+    @Override
+    public String getCharacterEncoding() {
+      return characterEncoding;
+    }
+
+    @Override
+    public void setCharacterEncoding(String env) {
+      characterEncoding = env;
+    }
+
+    @Override
+    public String getHeader(String name) {
+      List<String> values = headers.get(name.toLowerCase(Locale.ENGLISH));
+      return values == null || values.isEmpty() ? null : values.get(0);
+    }
+
+    @SuppressWarnings("rawtypes")
+    @Override
+    public Enumeration getHeaders(String name) {
+      List<String> values = headers.get(name.toLowerCase(Locale.ENGLISH));
+      return Collections.enumeration(values == null ? Collections.<String> emptyList()
+          : values);
+    }
+
+    @SuppressWarnings("rawtypes")
+    @Override
+    public Enumeration getHeaderNames() {
+      return Collections.enumeration(headerNames);
+    }
+
+    @Override
+    public int getIntHeader(String name) {
+      String value = getHeader(name);
+      return value == null ? -1 : Integer.parseInt(value);
+    }
+
+    @Override
+    public long getDateHeader(String name) {
+      String value = getHeader(name);
+      if (value == null) {
+        return -1L;
+      }
+      for (String format : DATE_FORMATS) {
+        SimpleDateFormat dateFormat = new SimpleDateFormat(format, Locale.US);
+        dateFormat.setTimeZone(TimeZone.getTimeZone("GMT"));
+        try {
+          return dateFormat.parse(value).getTime();
+        } catch (ParseException e) {
+          continue;
+        }
+      }
+      throw new IllegalArgumentException("Header " + name + " is not a date: " + value);
+    }
+
+    @Override
+    public Cookie[] getCookies() {
+      return cookies == null ? null : cookies.clone();
+    }
+
+    @Override
+    public Cookie getCookie(String name) {
+      if (cookies != null) {
+        for (Cookie cookie : cookies) {
+          if (cookie.getName().equals(name)) {
+            return cookie;
+          }
+        }
+      }
+      return null;
+    }
+
+    @Override
+    public Locale getLocale() {
+      return locales.get(0);
+    }
+
+    @SuppressWarnings("rawtypes")
+    @Override
+    public Enumeration getLocales() {
+      return Collections.enumeration(locales);
+    }
+
+    @Override
+    public String getAuthType() {
+      return authType;
+    }
+
+    @Override
+    public String getRemoteUser() {
+      return remoteUser;
+    }
+
+    @Override
+    public Principal getUserPrincipal() {
+      return userPrincipal;
+    }
+
+    @Override
+    public boolean isUserInRole(String role) {
+      // access is decided by the repository, container roles are not used.
+      return false;
+    }
+
+    @Override
+    public HttpSession getSession() {
+      return session;
+    }
+
+    @Override
+    public HttpSession getSession(boolean create) {
+      // a safe request in a batch has no business creating a session.
+      return session;
+    }
+
+    @Override
+    public String getRequestedSessionId() {
+      return requestedSessionId;
+    }
+
+    @Override
+    public boolean isRequestedSessionIdValid() {
+      return requestedSessionIdValid;
+    }
+
+    @Override
+    public boolean isRequestedSessionIdFromCookie() {
+      return requestedSessionIdFromCookie;
+    }
+
+    @Override
+    public boolean isRequestedSessionIdFromURL() {
+      return requestedSessionIdFromURL;
+    }
+
+    @Override
+    @Deprecated
+    public boolean isRequestedSessionIdFromUrl() {
+      return requestedSessionIdFromURL;
+    }
+
+    @Override
+    public String getContextPath() {
+      return contextPath;
+    }
+
+    @Override
+    public StringBuffer getRequestURL() {
+      return requestURL == null ? null : new StringBuffer(requestURL);
+    }
+
+    @Override
+    public ServletInputStream getInputStream() {
+      // only safe requests run here, they have no body.
+      return new ServletInputStream() {
+        @Override
+        public int read() {
+          return -1;
+        }
+      };
+    }
+
+    @Override
+    public BufferedReader getReader() {
+      return new BufferedReader(new StringReader(""));
+    }
+
+    @Override
+    public int getContentLength() {
+      return -1;
+    }
+
+    @Override
+    public String getContentType() {
+      return null;
+    }
+
+    @Override
+    public String getProtocol() {
+      return protocol;
+    }
+
+    @Override
+    public String getScheme() {
+      return scheme;
+    }
+
+    @Override
+    public String getServerName() {
+      return serverName;
+    }
+
+    @Override
+    public int getServerPort() {
+      return serverPort;
+    }
+
+    @Override
+    public boolean isSecure() {
+      return secure;
+    }
+
+    @Override
+    public String getRemoteAddr() {
+      return remoteAddr;
+    }
+
+    @Override
+    public String getRemoteHost() {
+      return remoteHost;
+    }
+
+    @Override
+    public int getRemotePort() {
+      return remotePort;
+    }
+
+    @Override
+    public String getLocalName() {
+      return localName;
+    }
+
+    @Override
+    public String getLocalAddr() {
+      return localAddr;
+    }
+
+    @Override
+    public int getLocalPort() {
+      return localPort;
+    }
+  }
+
+  /**
+   * A captured response that only touches the batch response under its lock.
+   */
+  static class IsolatedResponseWrapper extends ResponseWrapper {
+
+    private final SlingHttpServletResponse response;
+
+    IsolatedResponseWrapper(SlingHttpServletResponse response) {
+      super(response);
+      this.response = response;
+    }
+
+    @Override
+    public void addCookie(Cookie cookie) {
+      synchronized (response) {
+        super.addCookie(cookie);
+      }
+    }
+  }
+
+}
@@ -17,7 +17,12 @@
  */
 package org.sakaiproject.nakamura.batch;
 
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.eq;
 import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
 import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.when;
 import static org.sakaiproject.nakamura.batch.BatchServlet.REQUESTS_PARAMETER;
@@ -26,12 +31,19 @@ import org.apache.sling.api.SlingHttpServletRequest;
 import org.apache.sling.api.SlingHttpServletResponse;
 import org.apache.sling.api.resource.Resource;
 import org.apache.sling.api.resource.ResourceResolver;
+import org.apache.sling.commons.json.JSONArray;
+import org.apache.sling.commons.json.JSONObject;
 import org.junit.Before;
 import org.junit.Test;
+import org.sakaiproject.nakamura.util.RequestInfo;
+import org.sakaiproject.nakamura.util.ResponseWrapper;
 
 import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.io.PrintWriter;
+import java.io.StringWriter;
+import java.util.concurrent.Callable;
+import java.util.concurrent.FutureTask;
 
 import javax.servlet.RequestDispatcher;
 import javax.servlet.ServletException;
@@ -80,4 +92,52 @@ public class BatchServletTest {
     servlet.doPost(request, response);
   }
 
+  @Test
+  public void testConcurrentRequestsKeepOrder() throws Exception {
+    String json = "[{\"url\" : \"/a\",\"method\" : \"GET\"},{\"url\" : \"/b\",\"method\" : \"GET\"},{\"url\" : \"/c\",\"method\" : \"GET\"}]";
+    when(request.getParameter(REQUESTS_PARAMETER)).thenReturn(json);
+    StringWriter stringWriter = new StringWriter();
+    when(response.getWriter()).thenReturn(new PrintWriter(stringWriter));
+
+    // the later requests finish first, and the last one fails.
+    FutureTask<ResponseWrapper> a = capture("A");
+    FutureTask<ResponseWrapper> b = capture("B");
+    FutureTask<ResponseWrapper> c = new FutureTask<ResponseWrapper>(
+        new Callable<ResponseWrapper>() {
+          public ResponseWrapper call() throws Exception {
+            throw new IOException("failed");
+          }
+        });
+    c.run();
+    b.run();
+    a.run();
+    ParallelBatchExecutor executor = mock(ParallelBatchExecutor.class);
+    when(executor.isEnabled()).thenReturn(true);
+    when(executor.submit(eq(request), eq(response), any(RequestInfo.class))).thenReturn(a,
+        b, c);
+    servlet.bindParallelBatchExecutor(executor);
+
+    servlet.doGet(request, response);
+
+    JSONArray results = new JSONObject(stringWriter.toString()).getJSONArray("results");
+    assertEquals(3, results.length());
+    assertEquals("/a", results.getJSONObject(0).getString("url"));
+    assertEquals("A", results.getJSONObject(0).getString("body"));
+    assertEquals("/b", results.getJSONObject(1).getString("url"));
+    assertEquals("B", results.getJSONObject(1).getString("body"));
+    assertEquals("/c", results.getJSONObject(2).getString("url"));
+    assertFalse(results.getJSONObject(2).getBoolean("success"));
+    verify(request, never()).getRequestDispatcher(any(Resource.class));
+  }
+
+  private FutureTask<ResponseWrapper> capture(final String body) {
+    return new FutureTask<ResponseWrapper>(new Callable<ResponseWrapper>() {
+      public ResponseWrapper call() throws Exception {
+        ResponseWrapper responseWrapper = new ResponseWrapper(response);
+        responseWrapper.getWriter().write(body);
+        return responseWrapper;
+      }
+    });
+  }
+
 }
@@ -0,0 +1,186 @@
+/**
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.nakamura.batch;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.eq;
+import static org.mockito.Mockito.doAnswer;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import org.apache.sling.api.SlingHttpServletRequest;
+import org.apache.sling.api.SlingHttpServletResponse;
+import org.apache.sling.api.resource.LoginException;
+import org.apache.sling.api.resource.ResourceResolver;
+import org.apache.sling.engine.SlingRequestProcessor;
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
+import org.sakaiproject.nakamura.util.RequestInfo;
+import org.sakaiproject.nakamura.util.ResponseWrapper;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+/**
+ *
+ */
+public class ParallelBatchExecutorTest {
+
+  private ParallelBatchExecutor batchExecutor;
+  private SlingHttpServletRequest request;
+  private SlingHttpServletResponse response;
+  private ResourceResolver callerResolver;
+  private ResourceResolver resourceResolver;
+
+  @Before
+  public void setUp() throws Exception {
+    request = mock(SlingHttpServletRequest.class);
+    response = mock(SlingHttpServletResponse.class);
+    callerResolver = mock(ResourceResolver.class);
+    resourceResolver = mock(ResourceResolver.class);
+    when(request.getResourceResolver()).thenReturn(callerResolver);
+    when(callerResolver.clone(null)).thenReturn(resourceResolver);
+
+    batchExecutor = new ParallelBatchExecutor();
+    batchExecutor.requestProcessor = mock(SlingRequestProcessor.class);
+  }
+
+  @Test
+  public void testDisabledByDefault() {
+    batchExecutor.activate(new HashMap<String, Object>());
+    assertFalse(batchExecutor.isEnabled());
+    batchExecutor.deactivate(new HashMap<String, Object>());
+  }
+
+  @Test
+  public void testSubmitAfterDeactivateRunsInline() throws Exception {
+    batchExecutor.activate(new HashMap<String, Object>());
+    batchExecutor.deactivate(new HashMap<String, Object>());
+
+    Future<ResponseWrapper> future = batchExecutor.submit(request, response,
+        mock(RequestInfo.class));
+
+    assertTrue(future.isDone());
+    assertNotNull(future.get());
+    verify(batchExecutor.requestProcessor).processRequest(any(HttpServletRequest.class),
+        any(HttpServletResponse.class), eq(resourceResolver));
+    verify(resourceResolver).close();
+  }
+
+  @Test
+  public void testFailedCloneFailsTheRequest() throws Exception {
+    when(callerResolver.clone(null)).thenThrow(new LoginException("gone"));
+    batchExecutor.activate(new HashMap<String, Object>());
+    try {
+      Future<ResponseWrapper> future = batchExecutor.submit(request, response,
+          mock(RequestInfo.class));
+      assertTrue(future.isDone());
+      try {
+        future.get();
+        fail();
+      } catch (ExecutionException e) {
+        assertTrue(e.getCause() instanceof LoginException);
+      }
+      verify(batchExecutor.requestProcessor, never()).processRequest(
+          any(HttpServletRequest.class), any(HttpServletResponse.class),
+          any(ResourceResolver.class));
+    } finally {
+      batchExecutor.deactivate(new HashMap<String, Object>());
+    }
+  }
+
+  @Test
+  public void testSubmitToFullPoolRunsInline() throws Exception {
+    final CountDownLatch release = new CountDownLatch(1);
+    doAnswer(new Answer<Void>() {
+      public Void answer(InvocationOnMock invocation) throws Throwable {
+        if (Thread.currentThread().getName().startsWith("Batch Request")) {
+          release.await(10, TimeUnit.SECONDS);
+        }
+        return null;
+      }
+    }).when(batchExecutor.requestProcessor).processRequest(any(HttpServletRequest.class),
+        any(HttpServletResponse.class), any(ResourceResolver.class));
+    Map<String, Object> properties = new HashMap<String, Object>();
+    properties.put(ParallelBatchExecutor.THREADS, 1);
+    properties.put(ParallelBatchExecutor.QUEUE_SIZE, 1);
+    batchExecutor.activate(properties);
+    try {
+      Future<ResponseWrapper> running = batchExecutor.submit(request, response,
+          mock(RequestInfo.class));
+      Future<ResponseWrapper> queued = batchExecutor.submit(request, response,
+          mock(RequestInfo.class));
+      Future<ResponseWrapper> rejected = batchExecutor.submit(request, response,
+          mock(RequestInfo.class));
+
+      // the pool is busy and its queue full, so the last request ran on this thread.
+      assertTrue(rejected.isDone());
+      assertFalse(queued.isDone());
+      release.countDown();
+      assertNotNull(running.get(10, TimeUnit.SECONDS));
+      assertNotNull(queued.get(10, TimeUnit.SECONDS));
+    } finally {
+      release.countDown();
+      batchExecutor.deactivate(properties);
+    }
+  }
+
+  @Test
+  public void testRequestIsSnapshotOnSubmit() throws Exception {
+    when(request.getHeaderNames()).thenReturn(
+        Collections.enumeration(Arrays.asList("If-Modified-Since", "Accept")));
+    when(request.getHeaders("If-Modified-Since")).thenReturn(
+        Collections.enumeration(Arrays.asList("Sun, 06 Nov 1994 08:49:37 GMT")));
+    when(request.getHeaders("Accept")).thenReturn(
+        Collections.enumeration(Arrays.asList("application/json")));
+    when(request.getRemoteUser()).thenReturn("ieb");
+    when(request.getLocales()).thenReturn(
+        Collections.enumeration(Arrays.asList(Locale.FRANCE)));
+
+    ParallelBatchExecutor.IsolatedRequestWrapper wrapper = new ParallelBatchExecutor.IsolatedRequestWrapper(
+        request, mock(RequestInfo.class));
+    // the container moves on to another request.
+    when(request.getRemoteUser()).thenReturn("anonymous");
+
+    assertEquals("ieb", wrapper.getRemoteUser());
+    assertEquals("application/json", wrapper.getHeader("accept"));
+    assertEquals(784111777000L, wrapper.getDateHeader("If-Modified-Since"));
+    assertEquals(-1L, wrapper.getDateHeader("If-None-Match"));
+    assertEquals(Locale.FRANCE, wrapper.getLocale());
+    assertEquals(-1, wrapper.getInputStream().read());
+  }
+}
@@ -31,11 +31,11 @@ import org.sakaiproject.nakamura.api.lite.StorageClientException;
 import org.sakaiproject.nakamura.api.lite.StorageClientUtils;
 import org.sakaiproject.nakamura.api.lite.accesscontrol.AccessDeniedException;
 import org.sakaiproject.nakamura.api.lite.content.Content;
-import org.sakaiproject.nakamura.api.lite.content.ContentManager;
 import org.sakaiproject.nakamura.api.message.MessageConstants;
 import org.sakaiproject.nakamura.api.presence.PresenceService;
 import org.sakaiproject.nakamura.api.search.solr.Query;
 import org.sakaiproject.nakamura.api.search.solr.Result;
+import org.sakaiproject.nakamura.api.search.solr.ResultPrefetch;
 import org.sakaiproject.nakamura.api.search.solr.SolrSearchBatchResultProcessor;
 import org.sakaiproject.nakamura.api.search.solr.SolrSearchException;
 import org.sakaiproject.nakamura.api.search.solr.SolrSearchResultSet;
@@ -90,13 +90,14 @@ public class DiscussionThreadedSearchBatchResultProcessor implements
     try {
       Session session = StorageClientUtils.adaptToSession(request.getResourceResolver()
           .adaptTo(javax.jcr.Session.class));
-      ContentManager cm = session.getContentManager();
+      ResultPrefetch prefetch = ResultPrefetch.forRequest(request);
+      List<Result> results = prefetch.page(iterator);
+      prefetch.prefetchResults(results);
       List<String> basePosts = new ArrayList<String>();
       Map<String,List<Post>> postChildren = new HashMap<String, List<Post>>();
       Map<String,Post> allPosts = new HashMap<String, Post>();
-      while (iterator.hasNext()) {
-        Result result = iterator.next();
-        Content content = cm.get(result.getPath());
+      for (Result result : results) {
+        Content content = prefetch.getContent(result.getPath());
         if (content == null) {
           continue;
         }
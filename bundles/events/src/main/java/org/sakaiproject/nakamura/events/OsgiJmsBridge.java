@@ -17,19 +17,31 @@
  */
 package org.sakaiproject.nakamura.events;
 
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
 import java.util.Dictionary;
 import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
 
 import javax.jms.Connection;
 import javax.jms.DeliveryMode;
 import javax.jms.Destination;
+import javax.jms.ExceptionListener;
 import javax.jms.JMSException;
 import javax.jms.Message;
 import javax.jms.MessageProducer;
 import javax.jms.Session;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
 
 import org.apache.felix.scr.annotations.Component;
 import org.apache.felix.scr.annotations.Property;
@@ -46,18 +58,28 @@ import org.sakaiproject.nakamura.api.events.EventDeliveryConstants;
 import org.sakaiproject.nakamura.api.events.EventDeliveryConstants.EventAcknowledgeMode;
 import org.sakaiproject.nakamura.api.events.EventDeliveryConstants.EventDeliveryMode;
 import org.sakaiproject.nakamura.api.events.EventDeliveryConstants.EventMessageMode;
-import org.sakaiproject.nakamura.util.telemetry.TelemetryCounter;
+import org.sakaiproject.nakamura.util.telemetry.Counter;
+import org.sakaiproject.nakamura.util.telemetry.TelemetryRegistry;
 import org.sakaiproject.nakamura.util.osgi.EventUtils;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 /**
  * Bridge to send OSGi events onto a JMS topic.
+ * <p>
+ * One connection is shared by all sends. Sessions are not thread safe, so each send
+ * borrows a session from a pool, keyed by acknowledge mode, and returns it afterwards.
+ * Each pooled session keeps a producer per destination. With bridge.async set,
+ * non-persistent events are queued and sent by a single thread in batches, one
+ * transacted session commit per batch. Persistent events are always sent by the calling
+ * thread, so they may overtake queued non-persistent events.
  */
 @Component(label = "%bridge.name", description = "%bridge.description", metatype = true, immediate = true)
 @Service
 public class OsgiJmsBridge implements EventHandler {
   private static final Logger LOGGER = LoggerFactory.getLogger(OsgiJmsBridge.class);
+  private static final Counter EVENTS = TelemetryRegistry.counter("event", "JMSBridge",
+      "sent");
 
   @Property(value = "*", propertyPrivate = true)
   static final String TOPICS = EventConstants.EVENT_TOPIC;
@@ -74,6 +96,28 @@ public class OsgiJmsBridge implements EventHandler {
   @Property(value = {"org/osgi/service/log/LogEntry/LOG_DEBUG", "org/osgi/service/log/LogEntry/LOG_INFO", "org/osgi/service/log/LogEntry/LOG_TRACE"})
   private static final String IGNORE_EVENT_TOPICS = "bridge.ignore.event.topics";
 
+  static final int DEFAULT_SESSION_POOL_SIZE = 10;
+  @Property(intValue = DEFAULT_SESSION_POOL_SIZE)
+  static final String SESSION_POOL_SIZE = "bridge.session.pool.size";
+
+  @Property(boolValue = false)
+  static final String ASYNC = "bridge.async";
+
+  static final int DEFAULT_ASYNC_BATCH_SIZE = 100;
+  @Property(intValue = DEFAULT_ASYNC_BATCH_SIZE)
+  static final String ASYNC_BATCH_SIZE = "bridge.async.batch.size";
+
+  static final int DEFAULT_ASYNC_QUEUE_SIZE = 10000;
+  @Property(intValue = DEFAULT_ASYNC_QUEUE_SIZE)
+  static final String ASYNC_QUEUE_SIZE = "bridge.async.queue.size";
+
+  /**
+   * The most producers a pooled session keeps open, least recently used are closed first.
+   */
+  private static final int MAX_PRODUCERS = 100;
+
+  static final String MBEAN_NAME = "org.sakaiproject.nakamura:type=OsgiJmsBridge";
+
   private Set<String> ignoreEventTopics = new HashSet<String>();
 
 
@@ -87,11 +131,33 @@ public class OsgiJmsBridge implements EventHandler {
   private boolean transacted;
   private String connectionClientId;
   private int acknowledgeMode;
+  private int sessionPoolSize;
+  private int asyncBatchSize;
 
-  private long lastMessage = System.currentTimeMillis();
+  private long lastMessage;
 
   private String serverId;
 
+  /**
+   * The connection shared by all sessions, created on first use.
+   */
+  private Connection connection;
+  private final Object connectionLock = new Object();
+
+  /**
+   * Idle sessions by acknowledge mode.
+   */
+  private final ConcurrentMap<Integer, BlockingQueue<ProducerSession>> idleSessions = new ConcurrentHashMap<Integer, BlockingQueue<ProducerSession>>();
+
+  /**
+   * Non-persistent events waiting for the sender thread, null when sends are synchronous.
+   */
+  private BlockingQueue<Event> sendQueue;
+  private Thread sender;
+  private volatile boolean running;
+
+  private final OsgiJmsBridgeStats stats = new OsgiJmsBridgeStats(this);
+
   /**
    * Default constructor.
    */
@@ -124,6 +190,10 @@ public class OsgiJmsBridge implements EventHandler {
     transacted = PropertiesUtil.toBoolean(props.get(SESSION_TRANSACTED), false);
     acknowledgeMode = PropertiesUtil.toInteger(props.get(ACKNOWLEDGE_MODE), 0);
     connectionClientId = PropertiesUtil.toString(props.get(CONNECTION_CLIENT_ID), "sakai.event.bridge");
+    sessionPoolSize = PropertiesUtil.toInteger(props.get(SESSION_POOL_SIZE), DEFAULT_SESSION_POOL_SIZE);
+    boolean async = PropertiesUtil.toBoolean(props.get(ASYNC), false);
+    asyncBatchSize = PropertiesUtil.toInteger(props.get(ASYNC_BATCH_SIZE), DEFAULT_ASYNC_BATCH_SIZE);
+    int asyncQueueSize = PropertiesUtil.toInteger(props.get(ASYNC_QUEUE_SIZE), DEFAULT_ASYNC_QUEUE_SIZE);
     serverId = clusterTrackingService.getCurrentServerId();
 
     String[] ignoreEventTopicsValues = PropertiesUtil.toStringArray(props.get(IGNORE_EVENT_TOPICS));
@@ -135,8 +205,22 @@ public class OsgiJmsBridge implements EventHandler {
       }
     }
 
-    LOGGER.info("Session Transacted: {}, Acknowledge Mode: {}, " + "Client ID: {}",
-        new Object[] { transacted, acknowledgeMode, connectionClientId });
+    if (async) {
+      sendQueue = new LinkedBlockingQueue<Event>(asyncQueueSize);
+      running = true;
+      sender = new Thread(new Runnable() {
+        public void run() {
+          sendQueued();
+        }
+      }, "OsgiJmsBridge-sender");
+      sender.setDaemon(true);
+      sender.start();
+    }
+
+    registerMBean();
+
+    LOGGER.info("Session Transacted: {}, Acknowledge Mode: {}, " + "Client ID: {}, Async: {}",
+        new Object[] { transacted, acknowledgeMode, connectionClientId, async });
   }
 
   /**
@@ -145,6 +229,19 @@ public class OsgiJmsBridge implements EventHandler {
    * @param ctx
    */
   protected void deactivate(ComponentContext ctx) {
+    if (sender != null) {
+      running = false;
+      sender.interrupt();
+      try {
+        sender.join(10000L);
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+      }
+      sender = null;
+    }
+    sendQueue = null;
+    unregisterMBean();
+    closeConnection();
   }
 
   /**
@@ -158,44 +255,339 @@ public class OsgiJmsBridge implements EventHandler {
       // Ignore Log messages in jms.
       return;
     }
-    Connection conn = null;
 
     LOGGER.debug("Processing event {}", event);
-    TelemetryCounter.incrementValue("event", "JMSBridge", event.getTopic());
-    Session clientSession = null;
+    EVENTS.increment();
+    BlockingQueue<Event> queue = sendQueue;
+    if (queue != null
+        && event.getProperty(EventDeliveryConstants.MESSAGE_MODE) != EventMessageMode.PERSISTENT
+        && queue.offer(event)) {
+      return;
+    }
+    // synchronous, persistent or the queue is full.
+    int clientAcknowledgeMode = getAcknowledgeMode(event);
+    ProducerSession producerSession = null;
+    boolean sent = false;
     try {
+      producerSession = borrowSession(clientAcknowledgeMode);
+      producerSession.send(event);
+      if (transacted) {
+        producerSession.session.commit();
+      }
+      sent = true;
+      stats.sent(1);
+    } catch (JMSException e) {
+      logJMSException(e);
+      if (producerSession != null) {
+        // the connection may have gone with it, don't hand it out again.
+        producerSession.close();
+        resetConnection(producerSession.connection);
+        producerSession = null;
+      }
+    } finally {
+      if (sent) {
+        returnSession(clientAcknowledgeMode, producerSession);
+      } else {
+        stats.failed(1);
+        // the session may be broken, so don't reuse it.
+        if (producerSession != null) {
+          producerSession.close();
+        }
+      }
+    }
+  }
 
-      conn = connFactoryService.getDefaultPooledConnectionFactory().createConnection();
-      // conn.setClientID(connectionClientId);
-      // post to JMS
-      // Sessions are not thread safe, so we need to create and destroy a session, for
-      // sending.
-      EventDeliveryMode deliveryMode = (EventDeliveryMode) event
-          .getProperty(EventDeliveryConstants.DELIVERY_MODE);
-      EventMessageMode messageMode = (EventMessageMode) event
-          .getProperty(EventDeliveryConstants.MESSAGE_MODE);
+  /**
+   * Drain the send queue in batches until deactivated, committing each batch in one
+   * transaction.
+   */
+  private void sendQueued() {
+    BlockingQueue<Event> sendQueue = this.sendQueue;
+    List<Event> batch = new ArrayList<Event>(asyncBatchSize);
+    ProducerSession producerSession = null;
+    while (running || !sendQueue.isEmpty()) {
+      try {
+        if (batch.isEmpty()) {
+          Event first = sendQueue.poll(1, TimeUnit.SECONDS);
+          if (first == null) {
+            continue;
+          }
+          batch.add(first);
+          sendQueue.drainTo(batch, asyncBatchSize - 1);
+        }
+        if (producerSession == null) {
+          producerSession = createSession(true, Session.SESSION_TRANSACTED);
+        }
+        for (Event event : batch) {
+          producerSession.send(event);
+        }
+        producerSession.session.commit();
+        stats.sent(batch.size());
+        stats.batch();
+        batch.clear();
+      } catch (InterruptedException e) {
+        // deactivating, send what is left.
+        running = false;
+      } catch (JMSException e) {
+        stats.failed(batch.size());
+        batch.clear();
+        logJMSException(e);
+        if (producerSession != null) {
+          producerSession.close();
+          resetConnection(producerSession.connection);
+          producerSession = null;
+        }
+        if (!running) {
+          break;
+        }
+      } catch (RuntimeException e) {
+        // eg an event property that can't be converted, drop the batch but keep the
+        // sender running.
+        stats.failed(batch.size());
+        batch.clear();
+        LOGGER.warn("Failed to send a batch of events: " + e.getMessage(), e);
+        if (producerSession != null) {
+          producerSession.close();
+          producerSession = null;
+        }
+      }
+    }
+    if (producerSession != null) {
+      producerSession.close();
+    }
+  }
 
-      EventAcknowledgeMode acknowledgeModeForEvent = (EventAcknowledgeMode) event
-          .getProperty(EventDeliveryConstants.ACKNOWLEDGE_MODE);
+  private int getAcknowledgeMode(Event event) {
+    EventAcknowledgeMode acknowledgeModeForEvent = (EventAcknowledgeMode) event
+        .getProperty(EventDeliveryConstants.ACKNOWLEDGE_MODE);
+
+    int clientAcknowledgeMode = acknowledgeMode;
+    if (acknowledgeModeForEvent != null) {
+      switch (acknowledgeModeForEvent) {
+      case AUTO_ACKNOWLEDGE:
+        clientAcknowledgeMode = Session.AUTO_ACKNOWLEDGE;
+        break;
+      case CLIENT_ACKNOWLEDGE:
+        clientAcknowledgeMode = Session.CLIENT_ACKNOWLEDGE;
+        break;
+      case DUPS_OK_ACKNOWLEDGE:
+        clientAcknowledgeMode = Session.DUPS_OK_ACKNOWLEDGE;
+        break;
+      }
+    }
+    return clientAcknowledgeMode;
+  }
 
-      int clientAcknowledgeMode = acknowledgeMode;
-      if (acknowledgeModeForEvent != null) {
-        switch (acknowledgeModeForEvent) {
-        case AUTO_ACKNOWLEDGE:
-          clientAcknowledgeMode = Session.AUTO_ACKNOWLEDGE;
-          break;
-        case CLIENT_ACKNOWLEDGE:
-          clientAcknowledgeMode = Session.CLIENT_ACKNOWLEDGE;
-          break;
-        case DUPS_OK_ACKNOWLEDGE:
-          clientAcknowledgeMode = Session.DUPS_OK_ACKNOWLEDGE;
-          break;
+  private ProducerSession borrowSession(int clientAcknowledgeMode) throws JMSException {
+    BlockingQueue<ProducerSession> idle = idleSessions.get(clientAcknowledgeMode);
+    if (idle != null) {
+      ProducerSession producerSession = idle.poll();
+      if (producerSession != null) {
+        return producerSession;
+      }
+    }
+    return createSession(transacted, clientAcknowledgeMode);
+  }
+
+  /**
+   * Create a session on the shared connection, if that fails the connection is dropped
+   * so the next attempt reconnects.
+   */
+  private ProducerSession createSession(boolean sessionTransacted, int clientAcknowledgeMode)
+      throws JMSException {
+    Connection conn = getConnection();
+    try {
+      return new ProducerSession(conn, conn.createSession(sessionTransacted,
+          clientAcknowledgeMode));
+    } catch (JMSException e) {
+      resetConnection(conn);
+      throw e;
+    }
+  }
+
+  private void returnSession(int clientAcknowledgeMode, ProducerSession producerSession) {
+    BlockingQueue<ProducerSession> idle = idleSessions.get(clientAcknowledgeMode);
+    if (idle == null) {
+      BlockingQueue<ProducerSession> newIdle = new LinkedBlockingQueue<ProducerSession>(
+          sessionPoolSize);
+      idle = idleSessions.putIfAbsent(clientAcknowledgeMode, newIdle);
+      if (idle == null) {
+        idle = newIdle;
+      }
+    }
+    if (!idle.offer(producerSession)) {
+      producerSession.close();
+    }
+  }
+
+  private Connection getConnection() throws JMSException {
+    synchronized (connectionLock) {
+      if (connection == null) {
+        final Connection conn = connFactoryService.getDefaultPooledConnectionFactory()
+            .createConnection();
+        // conn.setClientID(connectionClientId);
+        conn.setExceptionListener(new ExceptionListener() {
+          public void onException(JMSException e) {
+            logJMSException(e);
+            resetConnection(conn);
+          }
+        });
+        connection = conn;
+      }
+      return connection;
+    }
+  }
+
+  /**
+   * Close the idle sessions and the shared connection.
+   */
+  private void closeConnection() {
+    for (BlockingQueue<ProducerSession> idle : idleSessions.values()) {
+      ProducerSession producerSession;
+      while ((producerSession = idle.poll()) != null) {
+        producerSession.close();
+      }
+    }
+    synchronized (connectionLock) {
+      try {
+        if (connection != null) {
+          connection.close();
+        }
+      } catch (Exception e) {
+        LOGGER.error(e.getMessage(), e);
+      }
+      connection = null;
+    }
+  }
+
+  /**
+   * Drop a connection that has failed, along with its idle sessions, so the next send
+   * creates a new one. Does nothing if the connection has already been replaced.
+   *
+   * @param broken
+   *          the connection the failure came from.
+   */
+  private void resetConnection(Connection broken) {
+    synchronized (connectionLock) {
+      if (connection != broken) {
+        return;
+      }
+      connection = null;
+    }
+    for (BlockingQueue<ProducerSession> idle : idleSessions.values()) {
+      for (Iterator<ProducerSession> i = idle.iterator(); i.hasNext();) {
+        ProducerSession producerSession = i.next();
+        if (producerSession.connection == broken) {
+          i.remove();
+          producerSession.close();
+        }
+      }
+    }
+    try {
+      broken.close();
+    } catch (Exception e) {
+      LOGGER.debug(e.getMessage(), e);
+    }
+  }
+
+  private void logJMSException(JMSException e) {
+    // a broker that has gone fails every send, so only say so every 15 seconds.
+    if ((System.currentTimeMillis() - lastMessage) > 15000L) {
+      lastMessage = System.currentTimeMillis();
+      LOGGER.warn("Failed to send to JMS, reconnecting, use debug level logging to see more :{} ",
+          e.getMessage());
+    }
+    LOGGER.debug(e.getMessage(), e);
+  }
+
+  private void registerMBean() {
+    try {
+      MBeanServer mbeanServer = ManagementFactory.getPlatformMBeanServer();
+      ObjectName name = new ObjectName(MBEAN_NAME);
+      if (mbeanServer.isRegistered(name)) {
+        mbeanServer.unregisterMBean(name);
+      }
+      mbeanServer.registerMBean(stats, name);
+    } catch (Exception e) {
+      LOGGER.warn("Unable to register {} :{}", MBEAN_NAME, e.getMessage());
+    }
+  }
+
+  private void unregisterMBean() {
+    try {
+      MBeanServer mbeanServer = ManagementFactory.getPlatformMBeanServer();
+      ObjectName name = new ObjectName(MBEAN_NAME);
+      if (mbeanServer.isRegistered(name)) {
+        mbeanServer.unregisterMBean(name);
+      }
+    } catch (Exception e) {
+      LOGGER.warn("Unable to unregister {} :{}", MBEAN_NAME, e.getMessage());
+    }
+  }
+
+  /**
+   * The counters exposed through JMX.
+   */
+  OsgiJmsBridgeStats getStats() {
+    return stats;
+  }
+
+  /**
+   * @return the number of events waiting for the sender thread.
+   */
+  int getQueueDepth() {
+    BlockingQueue<Event> queue = sendQueue;
+    return queue == null ? 0 : queue.size();
+  }
+
+  /**
+   * @return the number of pooled sessions not in use.
+   */
+  int getIdleSessions() {
+    int idle = 0;
+    for (BlockingQueue<ProducerSession> sessions : idleSessions.values()) {
+      idle += sessions.size();
+    }
+    return idle;
+  }
+
+  /**
+   * A session with a producer for each destination it has sent to. Only used by one
+   * thread at a time.
+   */
+  private class ProducerSession {
+    private final Connection connection;
+    private final Session session;
+    private final Map<String, MessageProducer> producers = new LinkedHashMap<String, MessageProducer>(
+        16, 0.75f, true) {
+      private static final long serialVersionUID = 1L;
+
+      @Override
+      protected boolean removeEldestEntry(Map.Entry<String, MessageProducer> eldest) {
+        if (size() > MAX_PRODUCERS) {
+          try {
+            eldest.getValue().close();
+          } catch (JMSException e) {
+            LOGGER.debug(e.getMessage(), e);
+          }
+          return true;
         }
+        return false;
       }
+    };
 
-      clientSession = conn.createSession(transacted, clientAcknowledgeMode);
+    private ProducerSession(Connection connection, Session session) {
+      this.connection = connection;
+      this.session = session;
+    }
 
-      Message msg = clientSession.createMessage();
+    private void send(Event event) throws JMSException {
+      EventDeliveryMode deliveryMode = (EventDeliveryMode) event
+          .getProperty(EventDeliveryConstants.DELIVERY_MODE);
+      EventMessageMode messageMode = (EventMessageMode) event
+          .getProperty(EventDeliveryConstants.MESSAGE_MODE);
+
+      Message msg = session.createMessage();
 
       // may need to set a delivery mode eg persistent for certain types of messages.
       // this should be specified in the OSGi event.
@@ -213,21 +605,19 @@ public class OsgiJmsBridge implements EventHandler {
         msg.setJMSDeliveryMode(DeliveryMode.NON_PERSISTENT);
       }
 
-      Destination destination = null;
-      if (deliveryMode != null) {
-        switch (deliveryMode) {
-        case P2P:
-          destination = clientSession.createQueue(event.getTopic());
-          break;
-        case BROADCAST:
-        default:
-          destination = clientSession.createTopic(event.getTopic());
-          break;
+      boolean p2p = deliveryMode == EventDeliveryMode.P2P;
+      String producerKey = (p2p ? "queue:" : "topic:") + event.getTopic();
+      MessageProducer producer = producers.get(producerKey);
+      if (producer == null) {
+        Destination destination = null;
+        if (p2p) {
+          destination = session.createQueue(event.getTopic());
+        } else {
+          destination = session.createTopic(event.getTopic());
         }
-      } else {
-        destination = clientSession.createTopic(event.getTopic());
+        producer = session.createProducer(destination);
+        producers.put(producerKey, producer);
       }
-      MessageProducer producer = clientSession.createProducer(destination);
       msg.setJMSType(event.getTopic());
 
       for (String name : event.getPropertyNames()) {
@@ -246,31 +636,16 @@ public class OsgiJmsBridge implements EventHandler {
 
       // add the current user
 
-      LOGGER.debug("Sending Message {} to {}  ",msg, destination);
+      LOGGER.debug("Sending Message {} to {}  ", msg, producerKey);
       producer.send(msg);
-    } catch (JMSException e) {
-      Throwable t = e.getCause();
-      if ( t != null && t.getClass().getName().equals("org.apache.activemq.transport.TransportDisposedIOException") ) {
-        if ( (System.currentTimeMillis() - lastMessage) > 15000L ) {
-          lastMessage = System.currentTimeMillis();
-          LOGGER.info("Transport disposed, probably on shutdown, use debug level logging to see more :{} ", e.getMessage());
-        }
-        LOGGER.debug(e.getMessage(), e);
-      } else {
-        LOGGER.error(e.getMessage(), e);
-      }
-    } finally {
-      try {
-        if (conn != null) {
-          conn.close();
-        }
-      } catch (Exception e) {
-        LOGGER.error(e.getMessage(), e);
-      }
+    }
+
+    /**
+     * Close the session, which closes its producers.
+     */
+    private void close() {
       try {
-        if (clientSession != null) {
-          clientSession.close();
-        }
+        session.close();
       } catch (Exception e) {
         LOGGER.error(e.getMessage(), e);
       }
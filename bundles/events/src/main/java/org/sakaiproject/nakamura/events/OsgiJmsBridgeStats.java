@@ -0,0 +1,81 @@
+/**
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.nakamura.events;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Counters for the {@link OsgiJmsBridge}.
+ */
+public class OsgiJmsBridgeStats implements OsgiJmsBridgeStatsMBean {
+
+  private final OsgiJmsBridge bridge;
+  private final AtomicLong eventsSent = new AtomicLong();
+  private final AtomicLong eventsFailed = new AtomicLong();
+  private final AtomicLong batchesSent = new AtomicLong();
+  private long lastRateTime = System.currentTimeMillis();
+  private long lastRateCount;
+
+  OsgiJmsBridgeStats(OsgiJmsBridge bridge) {
+    this.bridge = bridge;
+  }
+
+  void sent(int n) {
+    eventsSent.addAndGet(n);
+  }
+
+  void failed(int n) {
+    eventsFailed.addAndGet(n);
+  }
+
+  void batch() {
+    batchesSent.incrementAndGet();
+  }
+
+  public long getEventsSent() {
+    return eventsSent.get();
+  }
+
+  public long getEventsFailed() {
+    return eventsFailed.get();
+  }
+
+  public long getBatchesSent() {
+    return batchesSent.get();
+  }
+
+  public synchronized double getEventsPerSecond() {
+    long now = System.currentTimeMillis();
+    long count = eventsSent.get();
+    double rate = 0;
+    if (now > lastRateTime) {
+      rate = (count - lastRateCount) * 1000.0 / (now - lastRateTime);
+    }
+    lastRateTime = now;
+    lastRateCount = count;
+    return rate;
+  }
+
+  public int getQueueDepth() {
+    return bridge.getQueueDepth();
+  }
+
+  public int getIdleSessions() {
+    return bridge.getIdleSessions();
+  }
+}
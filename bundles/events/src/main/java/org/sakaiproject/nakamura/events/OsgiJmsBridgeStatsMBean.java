@@ -15,26 +15,40 @@
  * KIND, either express or implied. See the License for the
  * specific language governing permissions and limitations under the License.
  */
-package org.sakaiproject.nakamura.memory;
-
-import org.sakaiproject.nakamura.api.memory.Cache;
-
-import java.util.HashMap;
-import java.util.Map;
+package org.sakaiproject.nakamura.events;
 
 /**
- * Represents a Cache stored on the thread, used in the request thread and in other threads.
- * When used in Threads there is a potential for memory leaks as perm space is not cleaned up.
- * This will be caused by references to classloaders being in the Map, and keeping the classloaders
- * open.
+ * JMX view of the events sent by the {@link OsgiJmsBridge}.
  */
-public class ThreadLocalCacheMap extends ThreadLocal<Map<String,Cache<?>>> {
+public interface OsgiJmsBridgeStatsMBean {
+
+  /**
+   * @return the number of events sent to JMS.
+   */
+  long getEventsSent();
+
+  /**
+   * @return the number of events that could not be sent.
+   */
+  long getEventsFailed();
+
+  /**
+   * @return the number of transactions committed by the asynchronous sender.
+   */
+  long getBatchesSent();
+
+  /**
+   * @return events sent per second since the last time this was read.
+   */
+  double getEventsPerSecond();
+
+  /**
+   * @return the number of events waiting to be sent asynchronously.
+   */
+  int getQueueDepth();
+
   /**
-   * {@inheritDoc}
-   * @see java.lang.ThreadLocal#initialValue()
+   * @return the number of pooled sessions not in use.
    */
-  @Override
-  protected Map<String, Cache<?>> initialValue() {
-    return new HashMap<String, Cache<?>>();
-  }
+  int getIdleSessions();
 }
@@ -18,12 +18,14 @@
 package org.sakaiproject.nakamura.events;
 
 import static org.easymock.EasyMock.anyObject;
+import static org.easymock.EasyMock.capture;
 import static org.easymock.EasyMock.createMock;
 import static org.easymock.EasyMock.expect;
 import static org.easymock.EasyMock.expectLastCall;
 import static org.easymock.EasyMock.replay;
 import static org.easymock.EasyMock.verify;
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
 
 import java.util.ArrayList;
 import java.util.Dictionary;
@@ -33,6 +35,7 @@ import java.util.Hashtable;
 
 import javax.jms.Connection;
 import javax.jms.ConnectionFactory;
+import javax.jms.ExceptionListener;
 import javax.jms.JMSException;
 import javax.jms.Message;
 import javax.jms.MessageProducer;
@@ -40,6 +43,7 @@ import javax.jms.Session;
 import javax.jms.Topic;
 
 import org.apache.activemq.command.ActiveMQMessage;
+import org.easymock.Capture;
 import org.junit.Before;
 import org.junit.Test;
 import org.osgi.service.component.ComponentContext;
@@ -223,6 +227,140 @@ public class OsgiJmsBridgeTest {
     verify(ctx, conn, connFactory, clusterTrackingService);
   }
 
+  /**
+   * Test that a second event reuses the connection, session and producer of the first.
+   *
+   * @throws JMSException
+   */
+  @Test
+  public void testSessionReusedBetweenEvents() throws Exception {
+    setUpFullProcess(true);
+    // only the message is created for the second event
+    ActiveMQMessage second = new ActiveMQMessage();
+    expect(sess.createMessage()).andReturn(second);
+    prod.send(second);
+
+    clusterTrackingService = createMock(ClusterTrackingService.class);
+    expect(clusterTrackingService.getCurrentServerId()).andReturn("CurrentServerID");
+    replay(ctx, connFactory, connFactoryService, conn, sess, topic, prod, clusterTrackingService);
+
+    sendMessage(buildEventProperties());
+    bridge.handleEvent(new Event("test-event", buildEventProperties()));
+    assertEquals(2, bridge.getStats().getEventsSent());
+    assertEquals(1, bridge.getStats().getIdleSessions());
+    bridge.deactivate(ctx);
+
+    verify(ctx, connFactory, conn, sess, topic, prod, clusterTrackingService);
+  }
+
+  /**
+   * Test that a session that fails with a runtime exception is closed rather than
+   * returned to the pool or leaked.
+   */
+  @Test
+  public void testRuntimeExceptionClosesSession() throws Exception {
+    setUpConnection(true);
+    sess = createMock(Session.class);
+    expect(conn.createSession(false, Session.AUTO_ACKNOWLEDGE)).andReturn(sess);
+    topic = createMock(Topic.class);
+    expect(sess.createTopic((String) anyObject())).andReturn(topic);
+    prod = createMock(MessageProducer.class);
+    expect(sess.createProducer(topic)).andReturn(prod);
+    message = new ActiveMQMessage();
+    expect(sess.createMessage()).andReturn(message);
+    prod.send(message);
+    expectLastCall().andThrow(new IllegalArgumentException("can't convert property"));
+    sess.close();
+
+    clusterTrackingService = createMock(ClusterTrackingService.class);
+    expect(clusterTrackingService.getCurrentServerId()).andReturn("CurrentServerID");
+    replay(ctx, connFactory, connFactoryService, conn, sess, topic, prod, clusterTrackingService);
+
+    try {
+      sendMessage(buildEventProperties());
+      fail("The runtime exception should be reported to the event admin");
+    } catch (IllegalArgumentException e) {
+      // expected
+    }
+    assertEquals(1, bridge.getStats().getEventsFailed());
+    assertEquals(0, bridge.getStats().getIdleSessions());
+    bridge.deactivate(ctx);
+
+    verify(ctx, connFactory, conn, sess, topic, prod, clusterTrackingService);
+  }
+
+  /**
+   * Test that a failed send drops the connection so the next event reconnects.
+   */
+  @Test
+  public void testJmsExceptionReconnects() throws Exception {
+    setUpConnection(true);
+    sess = createMock(Session.class);
+    expect(conn.createSession(false, Session.AUTO_ACKNOWLEDGE)).andReturn(sess);
+    expect(sess.createMessage()).andThrow(new JMSException("transport failed"));
+    sess.close();
+    Connection second = createMock(Connection.class);
+    expect(connFactory.createConnection()).andReturn(second);
+    second.setExceptionListener((ExceptionListener) anyObject());
+    expect(second.createSession(false, Session.AUTO_ACKNOWLEDGE)).andThrow(
+        new JMSException("still down"));
+    second.close();
+
+    clusterTrackingService = createMock(ClusterTrackingService.class);
+    expect(clusterTrackingService.getCurrentServerId()).andReturn("CurrentServerID");
+    replay(ctx, connFactory, connFactoryService, conn, second, sess, clusterTrackingService);
+
+    sendMessage(buildEventProperties());
+    bridge.handleEvent(new Event("test-event", buildEventProperties()));
+    assertEquals(2, bridge.getStats().getEventsFailed());
+    bridge.deactivate(ctx);
+
+    verify(ctx, connFactory, conn, second, sess, clusterTrackingService);
+  }
+
+  /**
+   * Test that a connection reported broken by the provider is closed along with its
+   * idle sessions and replaced on the next event.
+   */
+  @Test
+  public void testExceptionListenerDropsConnection() throws Exception {
+    conn = createMock(Connection.class);
+    expect(connFactory.createConnection()).andReturn(conn);
+    Capture<ExceptionListener> listener = new Capture<ExceptionListener>();
+    conn.setExceptionListener(capture(listener));
+    sess = createMock(Session.class);
+    expect(conn.createSession(false, Session.AUTO_ACKNOWLEDGE)).andReturn(sess);
+    topic = createMock(Topic.class);
+    expect(sess.createTopic((String) anyObject())).andReturn(topic);
+    prod = createMock(MessageProducer.class);
+    expect(sess.createProducer(topic)).andReturn(prod);
+    message = new ActiveMQMessage();
+    expect(sess.createMessage()).andReturn(message);
+    prod.send(message);
+    sess.close();
+    conn.close();
+    Connection second = createMock(Connection.class);
+    expect(connFactory.createConnection()).andReturn(second);
+    second.setExceptionListener((ExceptionListener) anyObject());
+    expect(second.createSession(false, Session.AUTO_ACKNOWLEDGE)).andThrow(
+        new JMSException("still down"));
+    second.close();
+
+    clusterTrackingService = createMock(ClusterTrackingService.class);
+    expect(clusterTrackingService.getCurrentServerId()).andReturn("CurrentServerID");
+    replay(ctx, connFactory, connFactoryService, conn, second, sess, topic, prod,
+        clusterTrackingService);
+
+    sendMessage(buildEventProperties());
+    assertEquals(1, bridge.getStats().getIdleSessions());
+    listener.getValue().onException(new JMSException("transport failed"));
+    assertEquals(0, bridge.getStats().getIdleSessions());
+    bridge.handleEvent(new Event("test-event", buildEventProperties()));
+    bridge.deactivate(ctx);
+
+    verify(ctx, connFactory, conn, second, sess, topic, prod, clusterTrackingService);
+  }
+
   /**
    * Constructs the bridge, activates it, constructs a message with 2 properties
    * and calls the bridge to handle it.
@@ -277,6 +415,7 @@ public class OsgiJmsBridgeTest {
       // mock a connection for the factory to return and expect it
       conn = createMock(Connection.class);
       expect(connFactory.createConnection()).andReturn(conn);
+      conn.setExceptionListener((ExceptionListener) anyObject());
 
 
       if (closeConnection) {
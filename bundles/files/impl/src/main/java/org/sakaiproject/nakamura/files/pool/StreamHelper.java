@@ -18,10 +18,13 @@
 package org.sakaiproject.nakamura.files.pool;
 
 import static javax.servlet.http.HttpServletResponse.SC_NOT_MODIFIED;
+import static javax.servlet.http.HttpServletResponse.SC_PARTIAL_CONTENT;
+import static javax.servlet.http.HttpServletResponse.SC_REQUESTED_RANGE_NOT_SATISFIABLE;
 import static org.apache.sling.api.servlets.HttpConstants.HEADER_IF_MODIFIED_SINCE;
 import static org.apache.sling.api.servlets.HttpConstants.HEADER_LAST_MODIFIED;
 
 import org.apache.commons.io.IOUtils;
+import org.apache.commons.lang.StringUtils;
 import org.apache.sling.api.resource.Resource;
 import org.sakaiproject.nakamura.api.lite.StorageClientException;
 import org.sakaiproject.nakamura.api.lite.StorageClientUtils;
@@ -29,8 +32,18 @@ import org.sakaiproject.nakamura.api.lite.accesscontrol.AccessDeniedException;
 import org.sakaiproject.nakamura.api.lite.content.Content;
 import org.sakaiproject.nakamura.api.lite.content.ContentManager;
 
+import java.io.FileInputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.UnsupportedEncodingException;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.List;
 import java.util.Map;
 
 import javax.jcr.RepositoryException;
@@ -38,8 +51,28 @@ import javax.servlet.ServletContext;
 import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
 
+/**
+ * Streams the body of a content pool item, honouring conditional requests (ETag and
+ * Last-Modified) and byte range requests, so that media viewers can seek without
+ * downloading the whole body again.
+ */
 public class StreamHelper {
 
+  private static final String BLOCKID_FIELD = "_blockId";
+  private static final String HEADER_ETAG = "ETag";
+  private static final String HEADER_IF_NONE_MATCH = "If-None-Match";
+  private static final String HEADER_RANGE = "Range";
+  private static final String HEADER_IF_RANGE = "If-Range";
+  private static final String HEADER_ACCEPT_RANGES = "Accept-Ranges";
+  private static final String HEADER_CONTENT_RANGE = "Content-Range";
+  private static final String MULTIPART_BOUNDARY = "NAKAMURA_BYTERANGES";
+  /**
+   * Requests for more ranges than this are answered with the whole body, which stops a
+   * handful of bytes of request fanning out into a very large response.
+   */
+  private static final int MAX_RANGES = 16;
+  private static final int BUFFER_SIZE = 8192;
+
   public void stream(HttpServletRequest request, ContentManager contentManager, Content node, String alternativeStream, HttpServletResponse response, Resource resource, ServletContext servletContext) throws IOException, StorageClientException, AccessDeniedException {
     InputStream dataStream = contentManager.getInputStream(node.getPath(), alternativeStream);
 
@@ -47,34 +80,124 @@ public class StreamHelper {
       response.sendError(HttpServletResponse.SC_NOT_FOUND);
       return;
     }
-    
-    Map<String, Object> properties = node.getProperties();
-    long modifTime = StorageClientUtils.toLong(properties.get(StorageClientUtils.getAltField(Content.LASTMODIFIED_FIELD, alternativeStream)));
-    if (unmodified(request, modifTime)) {
-      response.setStatus(SC_NOT_MODIFIED);
-      return;
+
+    try {
+      Map<String, Object> properties = node.getProperties();
+      long modifTime = StorageClientUtils.toLong(properties.get(StorageClientUtils.getAltField(Content.LASTMODIFIED_FIELD, alternativeStream)));
+      long length = StorageClientUtils.toLong(properties.get(StorageClientUtils.getAltField(Content.LENGTH_FIELD, alternativeStream)));
+      String etag = getETag(node.getPath(), properties, alternativeStream, modifTime, length);
+      response.setHeader(HEADER_ETAG, etag);
+      if (unmodified(request, etag, modifTime)) {
+        response.setStatus(SC_NOT_MODIFIED);
+        return;
+      }
+
+      setHeaders(properties, resource, response, alternativeStream, servletContext);
+      List<long[]> ranges = null;
+      if (length > 0) {
+        response.setHeader(HEADER_ACCEPT_RANGES, "bytes");
+        if (rangeApplies(request, etag, modifTime)) {
+          ranges = getRanges(request.getHeader(HEADER_RANGE), length);
+          if (ranges != null && ranges.isEmpty()) {
+            response.setHeader(HEADER_CONTENT_RANGE, "bytes */" + length);
+            response.sendError(SC_REQUESTED_RANGE_NOT_SATISFIABLE);
+            return;
+          }
+        }
+      }
+      if (ranges == null) {
+        setContentLength(length, response);
+        IOUtils.copyLarge(dataStream, response.getOutputStream());
+      } else if (ranges.size() == 1) {
+        long[] range = ranges.get(0);
+        response.setStatus(SC_PARTIAL_CONTENT);
+        response.setHeader(HEADER_CONTENT_RANGE, "bytes " + range[0] + "-" + range[1] + "/" + length);
+        setContentLength(range[1] - range[0] + 1, response);
+        copyRange(dataStream, 0, range[0], range[1] - range[0] + 1, response.getOutputStream());
+      } else {
+        String contentType = response.getContentType();
+        List<byte[]> partHeaders = new ArrayList<byte[]>(ranges.size());
+        long contentLength = 0;
+        for (long[] range : ranges) {
+          byte[] partHeader = getPartHeader(contentType, range, length);
+          partHeaders.add(partHeader);
+          contentLength += partHeader.length + range[1] - range[0] + 1;
+        }
+        byte[] end = toAscii("\r\n--" + MULTIPART_BOUNDARY + "--\r\n");
+        contentLength += end.length;
+        response.setStatus(SC_PARTIAL_CONTENT);
+        response.setContentType("multipart/byteranges; boundary=" + MULTIPART_BOUNDARY);
+        setContentLength(contentLength, response);
+        OutputStream out = response.getOutputStream();
+        long position = 0;
+        for (int i = 0; i < ranges.size(); i++) {
+          long[] range = ranges.get(i);
+          out.write(partHeaders.get(i));
+          if (range[0] < position && !(dataStream instanceof FileInputStream)) {
+            // ranges may be requested in any order, a plain stream cant seek backwards.
+            dataStream.close();
+            dataStream = contentManager.getInputStream(node.getPath(), alternativeStream);
+            position = 0;
+          }
+          position = copyRange(dataStream, position, range[0], range[1] - range[0] + 1, out);
+        }
+        out.write(end);
+      }
+    } finally {
+      dataStream.close();
     }
+  }
 
-    setHeaders(properties, resource, response, alternativeStream, servletContext);
-    setContentLength(properties, response, alternativeStream);
-    IOUtils.copyLarge(dataStream, response.getOutputStream());
-    dataStream.close();
+  /**
+   * A strong ETag for the body. The block id changes every time the body is written, the
+   * last modified time and length are included for bodies stored without one.
+   */
+  private String getETag(String path, Map<String, Object> properties, String alternativeStream, long modifTime, long length) {
+    Object blockId = properties.get(StorageClientUtils.getAltField(BLOCKID_FIELD, alternativeStream));
+    String tag = String.valueOf(blockId == null ? path : blockId) + ":" + alternativeStream + ":" + modifTime + ":" + length;
+    try {
+      byte[] digest = MessageDigest.getInstance("SHA-1").digest(tag.getBytes("UTF-8"));
+      StringBuilder sb = new StringBuilder(digest.length * 2 + 2).append('"');
+      for (byte b : digest) {
+        sb.append(Character.forDigit((b >> 4) & 0xf, 16)).append(Character.forDigit(b & 0xf, 16));
+      }
+      return sb.append('"').toString();
+    } catch (NoSuchAlgorithmException e) {
+      throw new IllegalStateException(e.getMessage(), e);
+    } catch (UnsupportedEncodingException e) {
+      throw new IllegalStateException(e.getMessage(), e);
+    }
   }
 
   /**
-   * Returns <code>true</code> if the request has a <code>If-Modified-Since</code> header
+   * Returns <code>true</code> if the request has an <code>If-None-Match</code> header
+   * listing the ETag, or, when it has none, an <code>If-Modified-Since</code> header
    * whose date value is later than the last modification time given as
    * <code>modifTime</code>.
    *
    * @param request
    *          The <code>ComponentRequest</code> checked for the
    *          <code>If-Modified-Since</code> header.
+   * @param etag
+   *          The ETag of the body.
    * @param modifTime
    *          The last modification time to compare the header to.
-   * @return <code>true</code> if the <code>modifTime</code> is less than or equal to the
-   *         time of the <code>If-Modified-Since</code> header.
+   * @return <code>true</code> if the client already holds the body.
    */
-  private boolean unmodified(HttpServletRequest request, long modifTime) {
+  private boolean unmodified(HttpServletRequest request, String etag, long modifTime) {
+    String ifNoneMatch = request.getHeader(HEADER_IF_NONE_MATCH);
+    if (ifNoneMatch != null) {
+      for (String tag : StringUtils.split(ifNoneMatch, ',')) {
+        tag = tag.trim();
+        if (tag.startsWith("W/")) {
+          tag = tag.substring(2);
+        }
+        if ("*".equals(tag) || etag.equals(tag)) {
+          return true;
+        }
+      }
+      return false;
+    }
     if (modifTime > 0) {
       long modTime = modifTime / 1000; // seconds
       long ims = request.getDateHeader(HEADER_IF_MODIFIED_SINCE) / 1000;
@@ -85,6 +208,149 @@ public class StreamHelper {
     return false;
   }
 
+  /**
+   * @return true if there is a Range header, and no If-Range header or one that matches
+   *         the current body. A strong ETag or an exact date are needed to match.
+   */
+  private boolean rangeApplies(HttpServletRequest request, String etag, long modifTime) {
+    if (request.getHeader(HEADER_RANGE) == null) {
+      return false;
+    }
+    String ifRange = request.getHeader(HEADER_IF_RANGE);
+    if (ifRange == null) {
+      return true;
+    }
+    ifRange = ifRange.trim();
+    if (ifRange.startsWith("\"")) {
+      return etag.equals(ifRange);
+    } else if (ifRange.startsWith("W/")) {
+      return false;
+    }
+    long date = request.getDateHeader(HEADER_IF_RANGE);
+    return modifTime > 0 && date > 0 && modifTime / 1000 == date / 1000;
+  }
+
+  /**
+   * Parse a Range header.
+   *
+   * @return the inclusive ranges requested, empty if none can be satisfied, or null if the
+   *         header is not a byte range request that should be honoured, in which case the
+   *         whole body is sent.
+   */
+  protected List<long[]> getRanges(String rangeHeader, long length) {
+    if (rangeHeader == null) {
+      return null;
+    }
+    rangeHeader = rangeHeader.trim();
+    if (!rangeHeader.startsWith("bytes=")) {
+      return null;
+    }
+    String[] specs = StringUtils.split(rangeHeader.substring("bytes=".length()), ',');
+    if (specs.length == 0 || specs.length > MAX_RANGES) {
+      return null;
+    }
+    List<long[]> ranges = new ArrayList<long[]>(specs.length);
+    for (String spec : specs) {
+      spec = spec.trim();
+      int dash = spec.indexOf('-');
+      if (dash < 0) {
+        return null;
+      }
+      long start;
+      long end;
+      try {
+        if (dash == 0) {
+          // suffix range, the last n bytes.
+          long suffix = Long.parseLong(spec.substring(1));
+          if (suffix <= 0) {
+            continue;
+          }
+          start = Math.max(0, length - suffix);
+          end = length - 1;
+        } else {
+          start = Long.parseLong(spec.substring(0, dash));
+          end = dash == spec.length() - 1 ? length - 1 : Long.parseLong(spec.substring(dash + 1));
+          if (end < start) {
+            return null;
+          }
+          if (start >= length) {
+            continue;
+          }
+          end = Math.min(end, length - 1);
+        }
+      } catch (NumberFormatException e) {
+        return null;
+      }
+      ranges.add(new long[] { start, end });
+    }
+    return ranges;
+  }
+
+  private byte[] getPartHeader(String contentType, long[] range, long length) {
+    StringBuilder sb = new StringBuilder();
+    sb.append("\r\n--").append(MULTIPART_BOUNDARY).append("\r\n");
+    if (contentType != null) {
+      sb.append("Content-Type: ").append(contentType).append("\r\n");
+    }
+    sb.append("Content-Range: bytes ").append(range[0]).append('-').append(range[1]).append('/').append(length).append("\r\n\r\n");
+    return toAscii(sb.toString());
+  }
+
+  private byte[] toAscii(String s) {
+    try {
+      return s.getBytes("US-ASCII");
+    } catch (UnsupportedEncodingException e) {
+      throw new IllegalStateException(e.getMessage(), e);
+    }
+  }
+
+  /**
+   * Copy count bytes starting at offset start from the stream, which is at position. A
+   * file backed stream is read through its channel from the offset, without reading the
+   * bytes before it or moving its position, so its position is left unchanged.
+   *
+   * @return the new position of the stream.
+   */
+  private long copyRange(InputStream in, long position, long start, long count, OutputStream out) throws IOException {
+    if (in instanceof FileInputStream) {
+      FileChannel channel = ((FileInputStream) in).getChannel();
+      WritableByteChannel target = Channels.newChannel(out);
+      long offset = start;
+      long remaining = count;
+      while (remaining > 0) {
+        long n = channel.transferTo(offset, remaining, target);
+        if (n <= 0) {
+          throw new IOException("Body ended before the requested range");
+        }
+        offset += n;
+        remaining -= n;
+      }
+      return position;
+    }
+    long toSkip = start - position;
+    while (toSkip > 0) {
+      long n = in.skip(toSkip);
+      if (n <= 0) {
+        if (in.read() < 0) {
+          throw new IOException("Body ended before the requested range");
+        }
+        n = 1;
+      }
+      toSkip -= n;
+    }
+    byte[] buffer = new byte[(int) Math.min(BUFFER_SIZE, Math.max(1, count))];
+    long remaining = count;
+    while (remaining > 0) {
+      int n = in.read(buffer, 0, (int) Math.min(buffer.length, remaining));
+      if (n < 0) {
+        throw new IOException("Body ended before the requested range");
+      }
+      out.write(buffer, 0, n);
+      remaining -= n;
+    }
+    return start + count;
+  }
+
   /**
    * @param resource
    * @param request
@@ -128,8 +394,7 @@ public class StreamHelper {
    *          The content length to be set. If this value is equal to or less than zero,
    *          the header is not set.
    */
-  private void setContentLength(Map<String,Object> properties, HttpServletResponse response, String alternativeStream) {
-    long length = StorageClientUtils.toLong(properties.get(StorageClientUtils.getAltField(Content.LENGTH_FIELD, alternativeStream)));
+  private void setContentLength(long length, HttpServletResponse response) {
     if (length > 0) {
       if (length < Integer.MAX_VALUE) {
         response.setContentLength((int) length);
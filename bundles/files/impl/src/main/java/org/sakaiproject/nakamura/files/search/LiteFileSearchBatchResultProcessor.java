@@ -36,11 +36,11 @@ import org.sakaiproject.nakamura.api.lite.StorageClientException;
 import org.sakaiproject.nakamura.api.lite.StorageClientUtils;
 import org.sakaiproject.nakamura.api.lite.accesscontrol.AccessDeniedException;
 import org.sakaiproject.nakamura.api.lite.authorizable.Authorizable;
-import org.sakaiproject.nakamura.api.lite.authorizable.AuthorizableManager;
 import org.sakaiproject.nakamura.api.lite.content.Content;
 import org.sakaiproject.nakamura.api.profile.ProfileService;
 import org.sakaiproject.nakamura.api.search.solr.Query;
 import org.sakaiproject.nakamura.api.search.solr.Result;
+import org.sakaiproject.nakamura.api.search.solr.ResultPrefetch;
 import org.sakaiproject.nakamura.api.search.solr.SolrSearchBatchResultProcessor;
 import org.sakaiproject.nakamura.api.search.solr.SolrSearchConstants;
 import org.sakaiproject.nakamura.api.search.solr.SolrSearchException;
@@ -50,8 +50,10 @@ import org.sakaiproject.nakamura.util.ExtendedJSONWriter;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import java.util.ArrayList;
 import java.util.HashSet;
 import java.util.Iterator;
+import java.util.List;
 import java.util.Set;
 
 import javax.jcr.RepositoryException;
@@ -129,13 +131,25 @@ public class LiteFileSearchBatchResultProcessor implements SolrSearchBatchResult
     try {
       javax.jcr.Session jcrSession = request.getResourceResolver().adaptTo(javax.jcr.Session.class);
       final Session session = StorageClientUtils.adaptToSession(jcrSession);
-      while (iterator.hasNext()) {
-        final Result result = iterator.next();
+      final ResultPrefetch prefetch = ResultPrefetch.forRequest(request);
+      final List<Result> results = prefetch.page(iterator);
+      final List<String> contentPaths = new ArrayList<String>();
+      final List<String> authorizableIds = new ArrayList<String>();
+      for (Result result : results) {
+        if ("authorizable".equals(result.getFirstValue("resourceType"))) {
+          authorizableIds.add((String) result.getFirstValue("id"));
+        } else {
+          contentPaths.add(result.getPath());
+        }
+      }
+      prefetch.prefetchAuthorizables(authorizableIds);
+      prefetch.prefetchContent(contentPaths);
+
+      for (Result result : results) {
         uniquePaths.add(result.getPath());
         try {
           if ("authorizable".equals(result.getFirstValue("resourceType"))) {
-            AuthorizableManager authManager = session.getAuthorizableManager();
-            Authorizable auth = authManager.findAuthorizable((String) result.getFirstValue("id"));
+            Authorizable auth = prefetch.getAuthorizable((String) result.getFirstValue("id"));
             if (auth != null) {
               write.object();
               ValueMap map = profileService.getProfileMap(auth, jcrSession);
@@ -144,7 +158,7 @@ public class LiteFileSearchBatchResultProcessor implements SolrSearchBatchResult
             }
           } else {
             String contentPath = result.getPath();
-            final Content content = session.getContentManager().get(contentPath);
+            final Content content = prefetch.getContent(contentPath);
             if (content != null) {
               handleContent(content, session, write, depth);
             } else {
@@ -29,13 +29,15 @@ import org.apache.commons.lang.StringUtils;
 import org.apache.felix.scr.annotations.Activate;
 import org.apache.felix.scr.annotations.Component;
 import org.apache.felix.scr.annotations.Deactivate;
+import org.apache.felix.scr.annotations.Property;
 import org.apache.felix.scr.annotations.Reference;
 import org.apache.sling.commons.osgi.PropertiesUtil;
 import org.apache.solr.client.solrj.util.ClientUtils;
 import org.apache.solr.common.SolrInputDocument;
-import org.apache.tika.exception.TikaException;
 import org.osgi.service.event.Event;
+import org.osgi.service.event.EventAdmin;
 import org.sakaiproject.nakamura.api.files.FilesConstants;
+import org.sakaiproject.nakamura.api.lite.Repository;
 import org.sakaiproject.nakamura.api.lite.Session;
 import org.sakaiproject.nakamura.api.lite.StorageClientException;
 import org.sakaiproject.nakamura.api.lite.accesscontrol.AccessControlManager;
@@ -54,8 +56,6 @@ import org.sakaiproject.nakamura.util.PathUtils;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
-import java.io.IOException;
-import java.io.InputStream;
 import java.util.Collection;
 import java.util.Collections;
 import java.util.List;
@@ -66,9 +66,24 @@ import java.util.Set;
 /**
  * Indexes content with the property sling:resourceType = "sakai/pooled-content".
  */
-@Component(immediate = true)
+@Component(immediate = true, metatype = true)
 public class PoolContentResourceTypeHandler implements IndexingHandler, QoSIndexHandler {
 
+  @Property(intValue = 2)
+  static final String EXTRACTION_THREADS = "extraction.threads";
+
+  @Property(intValue = 100)
+  static final String EXTRACTION_QUEUE_SIZE = "extraction.queue.size";
+
+  @Property(longValue = 30000)
+  static final String EXTRACTION_TIMEOUT = "extraction.timeout";
+
+  @Property(intValue = 200)
+  static final String EXTRACTION_CACHE_SIZE = "extraction.cache.size";
+
+  @Property(intValue = 100000)
+  static final String EXTRACTION_CACHE_MAX_LENGTH = "extraction.cache.max.length";
+
   private static final Set<String> IGNORE_NAMESPACES = ImmutableSet.of("jcr", "rep");
   private static final Set<String> IGNORE_PROPERTIES = ImmutableSet.of();
   private static final Map<String, Object> INDEX_FIELD_MAP = getFieldMap();
@@ -84,6 +99,14 @@ public class PoolContentResourceTypeHandler implements IndexingHandler, QoSIndex
   @Reference
   protected TikaService tika;
 
+  @Reference
+  protected EventAdmin eventAdmin;
+
+  @Reference
+  protected Repository sparseRepository;
+
+  protected TextExtractor textExtractor;
+
   private static Map<String, Object> getFieldMap() {
     Builder<String, Object> builder = ImmutableMap.builder();
     builder.put(FilesConstants.POOLED_CONTENT_USER_MANAGER, "manager");
@@ -112,6 +135,12 @@ public class PoolContentResourceTypeHandler implements IndexingHandler, QoSIndex
 
   @Activate
   public void activate(Map<String, Object> properties) throws Exception {
+    textExtractor = new TextExtractor(tika, sparseRepository, eventAdmin,
+        PropertiesUtil.toInteger(properties.get(EXTRACTION_THREADS), 2),
+        PropertiesUtil.toInteger(properties.get(EXTRACTION_QUEUE_SIZE), 100),
+        PropertiesUtil.toLong(properties.get(EXTRACTION_TIMEOUT), 30000L),
+        PropertiesUtil.toInteger(properties.get(EXTRACTION_CACHE_SIZE), 200),
+        PropertiesUtil.toInteger(properties.get(EXTRACTION_CACHE_MAX_LENGTH), 100000));
     for (String type : CONTENT_TYPES) {
       resourceIndexingService.addHandler(type, this);
     }
@@ -122,6 +151,10 @@ public class PoolContentResourceTypeHandler implements IndexingHandler, QoSIndex
     for (String type : CONTENT_TYPES) {
       resourceIndexingService.removeHandler(type, this);
     }
+    if (textExtractor != null) {
+      textExtractor.shutdown();
+      textExtractor = null;
+    }
   }
 
   /**
@@ -198,15 +231,9 @@ public class PoolContentResourceTypeHandler implements IndexingHandler, QoSIndex
                 LOGGER.debug("Indexing all pages of {} in {} milliseconds.", content.getPath(), finishIndexing - startIndexing);
               }
             } else {
-              try {
-                // tika handles the closing of the input stream
-                InputStream contentStream = contentManager.getInputStream(path);
-                if (contentStream != null) {
-                  String extracted = tika.parseToString(contentStream);
-                  doc.addField("content", extracted);
-                }
-              } catch (TikaException e) {
-                LOGGER.warn(e.getMessage(), e);
+              String extracted = getText(content);
+              if (extracted != null) {
+                doc.addField("content", extracted);
               }
             }
 
@@ -220,8 +247,6 @@ public class PoolContentResourceTypeHandler implements IndexingHandler, QoSIndex
         LOGGER.warn(e.getMessage(), e);
       } catch (AccessDeniedException e) {
         LOGGER.warn(e.getMessage(), e);
-      } catch (IOException e) {
-        LOGGER.warn(e.getMessage(), e);
       } catch (PageIndexingUtil.PageIndexException e) {
         LOGGER.warn(e.getMessage());
       }
@@ -230,6 +255,20 @@ public class PoolContentResourceTypeHandler implements IndexingHandler, QoSIndex
     return documents;
   }
 
+  /**
+   * Gets the text of the content body, reusing the text extracted for the same body
+   * earlier when possible. Outside activation there is no extractor to bound the time
+   * taken, so the body is left out rather than extracted inline.
+   */
+  private String getText(Content content) {
+    TextExtractor extractor = textExtractor;
+    if (extractor == null) {
+      LOGGER.debug("Not active, indexing {} without its body", content.getPath());
+      return null;
+    }
+    return extractor.getText(content);
+  }
+
   /**
    * Gets the principals that can read content at a given path.
    *
@@ -28,10 +28,9 @@ import org.apache.sling.commons.json.io.JSONWriter;
 import org.sakaiproject.nakamura.api.lite.Session;
 import org.sakaiproject.nakamura.api.lite.StorageClientException;
 import org.sakaiproject.nakamura.api.lite.StorageClientUtils;
-import org.sakaiproject.nakamura.api.lite.accesscontrol.AccessDeniedException;
 import org.sakaiproject.nakamura.api.lite.content.Content;
-import org.sakaiproject.nakamura.api.lite.content.ContentManager;
 import org.sakaiproject.nakamura.api.search.solr.Result;
+import org.sakaiproject.nakamura.api.search.solr.ResultPrefetch;
 import org.sakaiproject.nakamura.api.search.solr.SolrSearchBatchResultProcessor;
 import org.sakaiproject.nakamura.api.search.solr.SolrSearchConstants;
 import org.sakaiproject.nakamura.api.search.solr.SolrSearchException;
@@ -40,7 +39,9 @@ import org.sakaiproject.nakamura.api.search.solr.SolrSearchUtil;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import java.util.ArrayList;
 import java.util.Iterator;
+import java.util.List;
 import java.util.Set;
 
 /**
@@ -117,15 +118,25 @@ public class RelatedContentSearchBatchResultProcessor extends
 
         if (i != null) {
 
-          final ContentManager contentManager = session.getContentManager();
-          while (i.hasNext() && uniquePathsProcessed.size() <= VOLUME) {
-            final Result result = i.next();
+          final ResultPrefetch prefetch = ResultPrefetch.forRequest(request);
+          final List<Result> results = prefetch.page(i);
+          final List<String> paths = new ArrayList<String>();
+          for (Result result : results) {
+            final String path = (String) result.getFirstValue("path");
+            if (!uniquePathsProcessed.contains(path)) {
+              paths.add(path);
+            }
+          }
+          prefetch.prefetchContent(paths);
+          for (Iterator<Result> ri = results.iterator(); ri.hasNext()
+              && uniquePathsProcessed.size() <= VOLUME;) {
+            final Result result = ri.next();
             final String path = (String) result.getFirstValue("path");
             if (uniquePathsProcessed.contains(path)) {
               // we have already painted this result
               continue;
             }
-            final Content content = contentManager.get(path);
+            final Content content = prefetch.getContent(path);
             if (content != null) {
               super.handleContent(content, session, write, 0);
               uniquePathsProcessed.add(path);
@@ -141,10 +152,6 @@ public class RelatedContentSearchBatchResultProcessor extends
           }
         }
 
-      } catch (AccessDeniedException e) {
-        // quietly swallow access denied
-        LOG.debug(e.getLocalizedMessage(), e);
-
       } catch (SolrSearchException e) {
         LOGGER.error(e.getMessage(), e);
         throw new IllegalStateException(e);
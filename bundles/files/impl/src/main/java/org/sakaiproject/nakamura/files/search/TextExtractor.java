@@ -0,0 +1,306 @@
+/**
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.nakamura.files.search;
+
+import com.google.common.collect.ImmutableMap;
+
+import org.apache.tika.exception.TikaException;
+import org.osgi.service.event.Event;
+import org.osgi.service.event.EventAdmin;
+import org.sakaiproject.nakamura.api.lite.Repository;
+import org.sakaiproject.nakamura.api.lite.Session;
+import org.sakaiproject.nakamura.api.lite.StoreListener;
+import org.sakaiproject.nakamura.api.lite.StorageClientException;
+import org.sakaiproject.nakamura.api.lite.accesscontrol.AccessDeniedException;
+import org.sakaiproject.nakamura.api.lite.content.Content;
+import org.sakaiproject.nakamura.api.tika.TikaService;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Extracts the text of a content body with Tika on a bounded pool of worker threads and
+ * keeps the result keyed by the body's stream id. A body gets a new stream id every time
+ * it is written, so reindexing a file because its tags, permissions or comments changed
+ * reuses the text that was already extracted.
+ *
+ * The caller waits at most the extraction timeout. An extraction that takes longer keeps
+ * running in the background, so a slow document does not hold up the indexing queue.
+ * When it finishes the file is queued for indexing again with an update event, and its
+ * text is kept for that one pass whatever its length.
+ *
+ * The worker reads the body with an administrative session of its own, as the session
+ * of the indexing thread may be logged out before the worker gets to the body.
+ */
+public class TextExtractor {
+
+  private static final Logger LOGGER = LoggerFactory.getLogger(TextExtractor.class);
+
+  /**
+   * The property sparse sets to the id of the stream holding the content body.
+   */
+  static final String BODY_LOCATION_FIELD = "_bodyLocation";
+
+  /**
+   * States of an extraction.
+   */
+  private static final int RUNNING = 0;
+  private static final int LATE = 1;
+  private static final int DONE = 2;
+
+  private final TikaService tika;
+  private final Repository repository;
+  private final EventAdmin eventAdmin;
+  private final long timeout;
+  private final int maxCachedLength;
+  private final ThreadPoolExecutor executor;
+  private final Map<String, String> cache;
+  private final ConcurrentMap<String, Extraction> running = new ConcurrentHashMap<String, Extraction>();
+
+  public TextExtractor(TikaService tika, Repository repository, EventAdmin eventAdmin,
+      int threads, int queueSize, long timeout, final int cacheSize, int maxCachedLength) {
+    this.tika = tika;
+    this.repository = repository;
+    this.eventAdmin = eventAdmin;
+    this.timeout = timeout;
+    this.maxCachedLength = maxCachedLength;
+    this.cache = Collections.synchronizedMap(new LinkedHashMap<String, String>(16,
+        0.75f, true) {
+      private static final long serialVersionUID = 1L;
+
+      @Override
+      protected boolean removeEldestEntry(Map.Entry<String, String> eldest) {
+        return size() > cacheSize;
+      }
+    });
+    this.executor = new ThreadPoolExecutor(threads, threads, 60L, TimeUnit.SECONDS,
+        new LinkedBlockingQueue<Runnable>(queueSize), new ThreadFactory() {
+          private final AtomicInteger count = new AtomicInteger();
+
+          public Thread newThread(Runnable r) {
+            Thread t = new Thread(r, "TextExtractor-" + count.incrementAndGet());
+            t.setDaemon(true);
+            return t;
+          }
+        });
+  }
+
+  /**
+   * Gets the text of the body of a content item.
+   *
+   * @param content
+   *          The content item.
+   * @return The extracted text, or null if the item has no body, the text could not be
+   *         extracted or the extraction did not finish in time.
+   */
+  public String getText(Content content) {
+    String key = getKey(content);
+    if (key == null) {
+      // no stream id to key on, so the text can't be kept and a late one is abandoned.
+      Extraction extraction = new Extraction(null, content.getPath(), null);
+      return submit(extraction) ? await(extraction) : null;
+    }
+    String text = cache.get(key);
+    if (text != null) {
+      LOGGER.debug("Reusing extracted text of {} ", content.getPath());
+      if (text.length() > maxCachedLength) {
+        // only kept for the pass queued by a late extraction.
+        cache.remove(key);
+      }
+      return text;
+    }
+
+    Extraction extraction = running.get(key);
+    if (extraction == null) {
+      extraction = new Extraction(key, content.getPath(),
+          content.getProperty("sling:resourceType"));
+      Extraction existing = running.putIfAbsent(key, extraction);
+      if (existing != null) {
+        extraction = existing;
+      } else if (!submit(extraction)) {
+        running.remove(key, extraction);
+        return null;
+      }
+    }
+    return await(extraction);
+  }
+
+  /**
+   * @return false if the queue is full and the extraction will not run.
+   */
+  private boolean submit(Extraction extraction) {
+    try {
+      executor.execute(extraction.task);
+      return true;
+    } catch (RejectedExecutionException e) {
+      LOGGER.warn("Text extraction queue is full, indexing {} without its body",
+          extraction.path);
+      return false;
+    }
+  }
+
+  /**
+   * Waits for an extraction until the timeout. An extraction that can't be kept is
+   * cancelled then, one that can is marked late so that it queues the file again.
+   */
+  private String await(Extraction extraction) {
+    try {
+      try {
+        return extraction.task.get(timeout, TimeUnit.MILLISECONDS);
+      } catch (TimeoutException e) {
+        if (extraction.key == null) {
+          extraction.task.cancel(true);
+          LOGGER.info("Text extraction of {} did not finish in {} ms, indexing without its body",
+              extraction.path, timeout);
+          return null;
+        }
+        extraction.state.compareAndSet(RUNNING, LATE);
+        if (extraction.state.get() == LATE) {
+          LOGGER.info("Text extraction of {} did not finish in {} ms, indexing without its body for now",
+              extraction.path, timeout);
+          return null;
+        }
+        // finished just now, so nothing will queue the file again.
+        return extraction.task.get();
+      }
+    } catch (CancellationException e) {
+      return null;
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    } catch (ExecutionException e) {
+      LOGGER.warn(e.getMessage(), e.getCause());
+    }
+    return null;
+  }
+
+  /**
+   * Stops the workers, extractions still running are abandoned.
+   */
+  public void shutdown() {
+    executor.shutdownNow();
+    cache.clear();
+    running.clear();
+  }
+
+  /**
+   * @return the cache key for the body of a content item, or null if there is no stream
+   *         id to key on.
+   */
+  static String getKey(Content content) {
+    Object location = content.getProperty(BODY_LOCATION_FIELD);
+    if (location == null) {
+      return null;
+    }
+    return location + ":" + content.getProperty(Content.LENGTH_FIELD);
+  }
+
+  private String parse(String path, InputStream contentStream) throws IOException {
+    try {
+      // tika handles the closing of the input stream
+      return tika.parseToString(contentStream);
+    } catch (TikaException e) {
+      LOGGER.warn("Failed to extract text from {}: {}", path, e.getMessage());
+      return null;
+    }
+  }
+
+  /**
+   * Posts an update event for a file so that it is indexed again.
+   */
+  private void reindex(String path, Object resourceType) {
+    LOGGER.debug("Queueing {} for indexing with its extracted text", path);
+    ImmutableMap.Builder<String, Object> properties = ImmutableMap.builder();
+    properties.put("path", path);
+    if (resourceType != null) {
+      properties.put("resourceType", resourceType);
+    }
+    eventAdmin.postEvent(new Event(StoreListener.TOPIC_BASE + "content/"
+        + StoreListener.UPDATED_TOPIC, properties.build()));
+  }
+
+  private class Extraction implements Callable<String> {
+    /** null if the text is not to be kept */
+    private final String key;
+    private final String path;
+    private final Object resourceType;
+    private final FutureTask<String> task = new FutureTask<String>(this);
+    /**
+     * Set to LATE by a caller that stopped waiting, or to DONE by the worker, whichever
+     * comes first.
+     */
+    private final AtomicInteger state = new AtomicInteger(RUNNING);
+
+    Extraction(String key, String path, Object resourceType) {
+      this.key = key;
+      this.path = path;
+      this.resourceType = resourceType;
+    }
+
+    public String call() throws Exception {
+      String text = null;
+      boolean late = false;
+      try {
+        long start = System.currentTimeMillis();
+        text = extract();
+        LOGGER.debug("Extracted text of {} in {} ms", path, System.currentTimeMillis() - start);
+        late = state.getAndSet(DONE) == LATE;
+        // an empty string is cached too, failures are not so they are retried.
+        if (key != null && text != null && (late || text.length() <= maxCachedLength)) {
+          cache.put(key, text);
+        }
+        return text;
+      } finally {
+        if (key != null) {
+          running.remove(key);
+        }
+        if (late && text != null) {
+          reindex(path, resourceType);
+        }
+      }
+    }
+
+    private String extract() throws StorageClientException, AccessDeniedException,
+        IOException {
+      Session session = repository.loginAdministrative();
+      try {
+        InputStream contentStream = session.getContentManager().getInputStream(path);
+        return contentStream == null ? null : parse(path, contentStream);
+      } finally {
+        session.logout();
+      }
+    }
+  }
+}
@@ -0,0 +1,177 @@
+/**
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.nakamura.files.pool;
+
+import com.google.common.collect.ImmutableMap;
+
+import junit.framework.Assert;
+
+import org.apache.sling.api.SlingHttpServletRequest;
+import org.apache.sling.api.SlingHttpServletResponse;
+import org.apache.sling.api.resource.Resource;
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.ArgumentCaptor;
+import org.mockito.Mockito;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
+import org.sakaiproject.nakamura.api.lite.content.Content;
+import org.sakaiproject.nakamura.api.lite.content.ContentManager;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+
+import javax.servlet.ServletOutputStream;
+import javax.servlet.http.HttpServletResponse;
+
+public class StreamHelperTest {
+
+  private static final String BODY = "0123456789abcdefghijklmnopqrstuvwxyz";
+
+  private SlingHttpServletRequest request;
+  private SlingHttpServletResponse response;
+  private Resource resource;
+  private ContentManager contentManager;
+  private Content content;
+  private ByteArrayOutputStream outputStream;
+
+  @Before
+  public void before() throws Exception {
+    request = Mockito.mock(SlingHttpServletRequest.class);
+    response = Mockito.mock(SlingHttpServletResponse.class);
+    resource = Mockito.mock(Resource.class);
+    contentManager = Mockito.mock(ContentManager.class);
+    content = new Content("poolId", ImmutableMap.of(Content.LENGTH_FIELD, (Object) BODY.length(),
+        Content.LASTMODIFIED_FIELD, 1309276646000L, Content.MIMETYPE_FIELD, "text/plain",
+        "_blockId", "UbGXYKGfEeCAXdkUrBABAw+"));
+    Mockito.when(contentManager.getInputStream("poolId", null)).thenAnswer(
+        new Answer<ByteArrayInputStream>() {
+          public ByteArrayInputStream answer(InvocationOnMock invocation) throws Throwable {
+            return new ByteArrayInputStream(BODY.getBytes("UTF-8"));
+          }
+        });
+    outputStream = new ByteArrayOutputStream();
+    ServletOutputStream servletOutputStream = new ServletOutputStream() {
+
+      @Override
+      public void write(int arg0) throws IOException {
+        outputStream.write(arg0);
+      }
+    };
+    Mockito.when(response.getOutputStream()).thenReturn(servletOutputStream);
+    Mockito.when(response.getContentType()).thenReturn("text/plain");
+  }
+
+  private String stream() throws Exception {
+    new StreamHelper().stream(request, contentManager, content, null, response, resource, null);
+    return outputStream.toString("UTF-8");
+  }
+
+  private String getETag() throws Exception {
+    ArgumentCaptor<String> etag = ArgumentCaptor.forClass(String.class);
+    Mockito.verify(response).setHeader(Mockito.eq("ETag"), etag.capture());
+    return etag.getValue();
+  }
+
+  @Test
+  public void testWholeBody() throws Exception {
+    Assert.assertEquals(BODY, stream());
+    Mockito.verify(response).setContentLength(BODY.length());
+    Mockito.verify(response).setHeader("Accept-Ranges", "bytes");
+    Mockito.verify(response, Mockito.never()).setStatus(Mockito.anyInt());
+    Assert.assertTrue(getETag().startsWith("\""));
+  }
+
+  @Test
+  public void testIfNoneMatch() throws Exception {
+    stream();
+    String etag = getETag();
+
+    before();
+    Mockito.when(request.getHeader("If-None-Match")).thenReturn("\"other\", " + etag);
+    Assert.assertEquals("", stream());
+    Mockito.verify(response).setStatus(HttpServletResponse.SC_NOT_MODIFIED);
+  }
+
+  @Test
+  public void testSingleRange() throws Exception {
+    Mockito.when(request.getHeader("Range")).thenReturn("bytes=10-15");
+    Assert.assertEquals("abcdef", stream());
+    Mockito.verify(response).setStatus(HttpServletResponse.SC_PARTIAL_CONTENT);
+    Mockito.verify(response).setHeader("Content-Range", "bytes 10-15/36");
+    Mockito.verify(response).setContentLength(6);
+  }
+
+  @Test
+  public void testSuffixRange() throws Exception {
+    Mockito.when(request.getHeader("Range")).thenReturn("bytes=-4");
+    Assert.assertEquals("wxyz", stream());
+    Mockito.verify(response).setHeader("Content-Range", "bytes 32-35/36");
+  }
+
+  @Test
+  public void testMultipleRanges() throws Exception {
+    Mockito.when(request.getHeader("Range")).thenReturn("bytes=30-,0-1");
+    String body = stream();
+    Mockito.verify(response).setStatus(HttpServletResponse.SC_PARTIAL_CONTENT);
+    Mockito.verify(response).setContentType("multipart/byteranges; boundary=NAKAMURA_BYTERANGES");
+    Assert.assertTrue(body.contains("Content-Range: bytes 30-35/36\r\n\r\nuvwxyz\r\n"));
+    Assert.assertTrue(body.contains("Content-Range: bytes 0-1/36\r\n\r\n01\r\n"));
+    Assert.assertTrue(body.indexOf("uvwxyz") < body.indexOf("\r\n\r\n01"));
+    Assert.assertTrue(body.endsWith("\r\n--NAKAMURA_BYTERANGES--\r\n"));
+    ArgumentCaptor<Integer> contentLength = ArgumentCaptor.forClass(Integer.class);
+    Mockito.verify(response).setContentLength(contentLength.capture());
+    Assert.assertEquals(outputStream.size(), contentLength.getValue().intValue());
+  }
+
+  @Test
+  public void testUnsatisfiableRange() throws Exception {
+    Mockito.when(request.getHeader("Range")).thenReturn("bytes=100-200");
+    Assert.assertEquals("", stream());
+    Mockito.verify(response).setHeader("Content-Range", "bytes */36");
+    Mockito.verify(response).sendError(HttpServletResponse.SC_REQUESTED_RANGE_NOT_SATISFIABLE);
+  }
+
+  @Test
+  public void testIfRangeMismatchSendsWholeBody() throws Exception {
+    Mockito.when(request.getHeader("Range")).thenReturn("bytes=10-15");
+    Mockito.when(request.getHeader("If-Range")).thenReturn("\"stale\"");
+    Assert.assertEquals(BODY, stream());
+    Mockito.verify(response, Mockito.never()).setStatus(HttpServletResponse.SC_PARTIAL_CONTENT);
+  }
+
+  @Test
+  public void testFileBackedRanges() throws Exception {
+    File file = File.createTempFile("streamhelper", ".bin");
+    file.deleteOnExit();
+    FileOutputStream fos = new FileOutputStream(file);
+    fos.write(BODY.getBytes("UTF-8"));
+    fos.close();
+    Mockito.when(contentManager.getInputStream("poolId", null)).thenReturn(new FileInputStream(file));
+    Mockito.when(request.getHeader("Range")).thenReturn("bytes=20-22,5-6");
+    String body = stream();
+    Assert.assertTrue(body.contains("\r\n\r\nklm\r\n"));
+    Assert.assertTrue(body.contains("\r\n\r\n56\r\n"));
+    Mockito.verify(contentManager).getInputStream("poolId", null);
+  }
+
+}
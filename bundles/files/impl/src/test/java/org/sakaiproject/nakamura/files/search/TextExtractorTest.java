@@ -0,0 +1,177 @@
+/**
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.nakamura.files.search;
+
+import static junit.framework.Assert.assertEquals;
+import static junit.framework.Assert.assertNull;
+import static junit.framework.Assert.assertTrue;
+import static org.mockito.Matchers.any;
+import static org.mockito.Mockito.doAnswer;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import com.google.common.collect.ImmutableMap;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.ArgumentCaptor;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
+import org.osgi.service.event.Event;
+import org.osgi.service.event.EventAdmin;
+import org.sakaiproject.nakamura.api.lite.Repository;
+import org.sakaiproject.nakamura.api.lite.Session;
+import org.sakaiproject.nakamura.api.lite.content.Content;
+import org.sakaiproject.nakamura.api.lite.content.ContentManager;
+import org.sakaiproject.nakamura.api.tika.TikaService;
+
+import java.io.ByteArrayInputStream;
+import java.io.InputStream;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Tests the TextExtractor class.
+ */
+public class TextExtractorTest {
+
+  private static final String PATH = "/path/to/file";
+
+  private TikaService tika;
+  private Repository repository;
+  private Session session;
+  private EventAdmin eventAdmin;
+  private ContentManager contentManager;
+  private TextExtractor extractor;
+
+  @Before
+  public void setUp() throws Exception {
+    tika = mock(TikaService.class);
+    eventAdmin = mock(EventAdmin.class);
+    contentManager = mock(ContentManager.class);
+    session = mock(Session.class);
+    repository = mock(Repository.class);
+    when(repository.loginAdministrative()).thenReturn(session);
+    when(session.getContentManager()).thenReturn(contentManager);
+    when(contentManager.getInputStream(PATH)).thenAnswer(new Answer<InputStream>() {
+      public InputStream answer(InvocationOnMock invocation) {
+        return new ByteArrayInputStream(new byte[] { 1, 2, 3 });
+      }
+    });
+  }
+
+  @After
+  public void tearDown() {
+    if (extractor != null) {
+      extractor.shutdown();
+    }
+  }
+
+  @Test
+  public void testMetadataChangeReusesText() throws Exception {
+    extractor = new TextExtractor(tika, repository, eventAdmin, 1, 10, 5000, 10, 1000);
+    when(tika.parseToString(any(InputStream.class))).thenReturn("some text");
+
+    Content content = body("2011/1/aa/bb/cc");
+    assertEquals("some text", extractor.getText(content));
+    content.setProperty("sakai:tags", new String[] { "tag" });
+    assertEquals("some text", extractor.getText(content));
+
+    verify(tika, times(1)).parseToString(any(InputStream.class));
+  }
+
+  @Test
+  public void testNewBodyIsExtractedAgain() throws Exception {
+    extractor = new TextExtractor(tika, repository, eventAdmin, 1, 10, 5000, 10, 1000);
+    when(tika.parseToString(any(InputStream.class))).thenReturn("first", "second");
+
+    assertEquals("first", extractor.getText(body("2011/1/aa/bb/cc")));
+    assertEquals("second", extractor.getText(body("2011/1/aa/bb/dd")));
+  }
+
+  @Test
+  public void testSlowExtractionIsQueuedAgain() throws Exception {
+    // longer than the cache keeps, a late result is still kept for the queued pass.
+    extractor = new TextExtractor(tika, repository, eventAdmin, 1, 10, 50, 10, 5);
+    final CountDownLatch release = new CountDownLatch(1);
+    final CountDownLatch queued = new CountDownLatch(1);
+    when(tika.parseToString(any(InputStream.class))).thenAnswer(new Answer<String>() {
+      public String answer(InvocationOnMock invocation) throws Throwable {
+        release.await(5, TimeUnit.SECONDS);
+        return "slow text";
+      }
+    });
+    doAnswer(new Answer<Void>() {
+      public Void answer(InvocationOnMock invocation) {
+        queued.countDown();
+        return null;
+      }
+    }).when(eventAdmin).postEvent(any(Event.class));
+
+    Content content = body("2011/1/aa/bb/cc");
+    assertNull(extractor.getText(content));
+    release.countDown();
+    assertTrue(queued.await(5, TimeUnit.SECONDS));
+
+    ArgumentCaptor<Event> event = ArgumentCaptor.forClass(Event.class);
+    verify(eventAdmin).postEvent(event.capture());
+    assertEquals("org/sakaiproject/nakamura/lite/content/UPDATED", event.getValue()
+        .getTopic());
+    assertEquals(PATH, event.getValue().getProperty("path"));
+    assertEquals("slow text", extractor.getText(content));
+    verify(tika, times(1)).parseToString(any(InputStream.class));
+  }
+
+  @Test
+  public void testBodyIsReadWithOwnSession() throws Exception {
+    extractor = new TextExtractor(tika, repository, eventAdmin, 1, 10, 5000, 10, 1000);
+    when(tika.parseToString(any(InputStream.class))).thenReturn("some text");
+
+    assertEquals("some text", extractor.getText(body("2011/1/aa/bb/cc")));
+    verify(repository).loginAdministrative();
+    verify(session).logout();
+  }
+
+  @Test
+  public void testUnkeyedExtractionIsBounded() throws Exception {
+    extractor = new TextExtractor(tika, repository, eventAdmin, 1, 10, 50, 10, 1000);
+    final CountDownLatch release = new CountDownLatch(1);
+    when(tika.parseToString(any(InputStream.class))).thenAnswer(new Answer<String>() {
+      public String answer(InvocationOnMock invocation) throws Throwable {
+        release.await(5, TimeUnit.SECONDS);
+        return "slow text";
+      }
+    });
+
+    long start = System.currentTimeMillis();
+    assertNull(extractor.getText(new Content(PATH, ImmutableMap.<String, Object> of())));
+    assertTrue(System.currentTimeMillis() - start < 2000);
+    release.countDown();
+    // abandoned, nothing is kept so nothing is queued again.
+    verify(eventAdmin, never()).postEvent(any(Event.class));
+  }
+
+  private Content body(String location) {
+    return new Content(PATH, ImmutableMap.<String, Object> of(
+        TextExtractor.BODY_LOCATION_FIELD, location, Content.LENGTH_FIELD, 3L));
+  }
+}
@@ -17,44 +17,236 @@
  */
 package org.sakaiproject.nakamura.api.http.cache;
 
+import org.apache.commons.lang.StringUtils;
 import org.sakaiproject.nakamura.api.http.cache.Operation;
 import org.sakaiproject.nakamura.http.cache.OperationResponseCapture;
 import org.sakaiproject.nakamura.http.cache.OperationResponseReplay;
 
+import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.io.Serializable;
+import java.io.UnsupportedEncodingException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.zip.GZIPOutputStream;
 
 import javax.servlet.http.HttpServletResponse;
 
 /**
   A pojo to contain the response redo log and content.
+  <p>
+  A strong ETag is computed from the body when the response is captured, and bodies
+  large enough to benefit are gzipped once at capture so that hits never compress.
  */
 public class CachedResponse implements Serializable {
 
   /**
    *
    */
-  private static final long serialVersionUID = -533080549451000116L;
+  private static final long serialVersionUID = -533080549451000117L;
+  /**
+   * Bodies smaller than this are not worth gzipping.
+   */
+  private static final int MIN_GZIP_LENGTH = 256;
   private long expires;
+  private long lastModified;
+  private String etag;
   private Operation[] operations;
   private byte[] byteContent;
   private String stringContent;
+  private byte[] gzippedContent;
 
   public CachedResponse(OperationResponseCapture responseOperation, int cacheAge) throws IOException {
-    expires = System.currentTimeMillis() + cacheAge*1000L;
-    responseOperation.setDateHeader("X-Nakamura-Cache", System.currentTimeMillis());
+    lastModified = System.currentTimeMillis();
+    expires = lastModified + cacheAge*1000L;
+    responseOperation.setDateHeader("X-Nakamura-Cache", lastModified);
     operations = responseOperation.getRedoLog();
     byteContent = responseOperation.getByteContent();
     stringContent = responseOperation.getStringContent();
+    byte[] body = byteContent;
+    if ( stringContent != null ) {
+      body = encode(stringContent, getCharacterEncoding());
+    }
+    etag = "\"" + digest(stringContent == null ? byteContent : stringContent.getBytes("UTF-8")) + "\"";
+    if ( body != null && body.length >= MIN_GZIP_LENGTH && !isEncoded() ) {
+      ByteArrayOutputStream baos = new ByteArrayOutputStream(body.length / 4);
+      GZIPOutputStream gzip = new GZIPOutputStream(baos);
+      gzip.write(body);
+      gzip.close();
+      if ( baos.size() < body.length ) {
+        gzippedContent = baos.toByteArray();
+      }
+    }
+  }
+
+  /**
+   * @return the character encoding the writer would have used, the servlet default if
+   *         none was set.
+   */
+  private String getCharacterEncoding() {
+    String encoding = "ISO-8859-1";
+    for ( Operation o : operations ) {
+      if ( o.getOperation() == OperationResponseCapture.SET_CHARACTER_ENCODING ) {
+        encoding = o.get(0);
+      } else if ( o.getOperation() == OperationResponseCapture.SET_CONTENT_TYPE ) {
+        String type = o.get(0);
+        int i = type == null ? -1 : type.toLowerCase().indexOf("charset=");
+        if ( i >= 0 ) {
+          encoding = StringUtils.strip(StringUtils.substringBefore(type.substring(i + "charset=".length()), ";"), " \"");
+        }
+      }
+    }
+    return encoding;
+  }
+
+  /**
+   * @return null if the encoding is not known, in which case the body is not gzipped.
+   */
+  private byte[] encode(String content, String encoding) {
+    try {
+      return content.getBytes(encoding);
+    } catch (UnsupportedEncodingException e) {
+      return null;
+    } catch (IllegalArgumentException e) {
+      return null;
+    }
+  }
+
+  private boolean isEncoded() {
+    for ( Operation o : operations ) {
+      int op = o.getOperation();
+      if ( (op == OperationResponseCapture.SET_HEADER || op == OperationResponseCapture.ADD_HEADER)
+          && "content-encoding".equalsIgnoreCase((String) o.get(0)) ) {
+        return true;
+      }
+    }
+    return false;
   }
 
+  private String digest(byte[] body) throws IOException {
+    try {
+      MessageDigest md = MessageDigest.getInstance("MD5");
+      if ( body != null ) {
+        md.update(body);
+      }
+      byte[] d = md.digest();
+      StringBuilder sb = new StringBuilder(d.length * 2);
+      for ( byte b : d ) {
+        sb.append(Character.forDigit((b >> 4) & 0xf, 16)).append(Character.forDigit(b & 0xf, 16));
+      }
+      return sb.toString();
+    } catch (NoSuchAlgorithmException e) {
+      throw new IOException(e.getMessage());
+    }
+  }
+
+  /**
+   * @return true if the response has not expired.
+   */
   public boolean isValid() {
     return expires > System.currentTimeMillis();
   }
 
+  /**
+   * @param staleMillis
+   *          how long after expiry a response may still be served while it is being
+   *          recomputed.
+   * @return true if the response may be served while another request recomputes it.
+   */
+  public boolean isServableStale(long staleMillis) {
+    return expires + staleMillis > System.currentTimeMillis();
+  }
+
+  /**
+   * @return the strong ETag of the identity encoded body, quoted.
+   */
+  public String getETag() {
+    return etag;
+  }
+
+  /**
+   * @return the strong ETag of the gzipped body, quoted.
+   */
+  public String getGzipETag() {
+    return etag.substring(0, etag.length() - 1) + "-gz\"";
+  }
+
+  /**
+   * @return the time the response was captured.
+   */
+  public long getLastModified() {
+    return lastModified;
+  }
+
+  /**
+   * @return true if a gzipped body is held.
+   */
+  public boolean hasGzippedContent() {
+    return gzippedContent != null;
+  }
+
   public void replay(HttpServletResponse response) throws IOException {
-    OperationResponseReplay responseOperation = new OperationResponseReplay(operations, byteContent, stringContent);
-    responseOperation.replay(response);
+    replay(response, false);
+  }
+
+  /**
+   * Replay the response, with the body written as stored.
+   *
+   * @param response
+   * @param gzip
+   *          true to send the gzipped body, which must be held.
+   * @throws IOException
+   */
+  public void replay(HttpServletResponse response, boolean gzip) throws IOException {
+    OperationResponseReplay.replayOperations(operations, response, gzip);
+    if ( gzip ) {
+      response.setHeader("Content-Encoding", "gzip");
+      response.setContentLength(gzippedContent.length);
+      response.getOutputStream().write(gzippedContent);
+    } else if ( stringContent != null  ) {
+      response.getWriter().write(stringContent);
+    } else if ( byteContent != null ){
+      response.getOutputStream().write(byteContent);
+    }
+  }
+
+  /**
+   * Replay only the headers a 304 must repeat so that the client refreshes the response
+   * it holds: its caching lifetime and the headers it varies on.
+   *
+   * @param response
+   */
+  public void replayCacheHeaders(HttpServletResponse response) {
+    for ( Operation o : operations ) {
+      int op = o.getOperation();
+      if ( op != OperationResponseCapture.SET_HEADER && op != OperationResponseCapture.ADD_HEADER
+          && op != OperationResponseCapture.SET_DATE_HEADER && op != OperationResponseCapture.ADD_DATE_HEADER ) {
+        continue;
+      }
+      String name = o.get(0);
+      if ( !isCacheHeader(name) ) {
+        continue;
+      }
+      switch (op) {
+      case OperationResponseCapture.SET_HEADER:
+        response.setHeader(name, (String) o.get(1));
+        break;
+      case OperationResponseCapture.ADD_HEADER:
+        response.addHeader(name, (String) o.get(1));
+        break;
+      case OperationResponseCapture.SET_DATE_HEADER:
+        response.setDateHeader(name, (Long) o.get(1));
+        break;
+      case OperationResponseCapture.ADD_DATE_HEADER:
+        response.addDateHeader(name, (Long) o.get(1));
+        break;
+      }
+    }
+  }
+
+  private boolean isCacheHeader(String name) {
+    return "cache-control".equalsIgnoreCase(name) || "expires".equalsIgnoreCase(name)
+        || "vary".equalsIgnoreCase(name) || "content-location".equalsIgnoreCase(name);
   }
 
   @Override
@@ -31,13 +31,18 @@ import org.sakaiproject.nakamura.api.http.cache.CachedResponse;
 import org.sakaiproject.nakamura.api.memory.Cache;
 import org.sakaiproject.nakamura.api.memory.CacheManagerService;
 import org.sakaiproject.nakamura.api.memory.CacheScope;
-import org.sakaiproject.nakamura.util.telemetry.TelemetryCounter;
+import org.sakaiproject.nakamura.util.telemetry.Counter;
+import org.sakaiproject.nakamura.util.telemetry.TelemetryRegistry;
 
 import java.io.IOException;
 import java.util.Dictionary;
 import java.util.HashMap;
 import java.util.Map;
 import java.util.Map.Entry;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
 import java.util.regex.Pattern;
 
 import javax.servlet.Filter;
@@ -57,6 +62,11 @@ import javax.servlet.http.HttpServletResponse;
  * 
  * When more than one pattern matches, the filter sets the lowest maxage of the collection
  * of matching patterns.
+ * 
+ * Responses held in the request cache are sent with an ETag, and conditional requests
+ * that match are answered with a 304. Concurrent misses for the same response are
+ * coalesced so that only one request computes it, the others being served the expired
+ * response if it is recent enough or waiting for the computation otherwise.
  */
 @Component(immediate = true, metatype = true)
 @Properties(value = {
@@ -90,6 +100,13 @@ public class CacheControlFilter implements Filter {
    */
   private Map<Pattern,  Map<String,String>> rootPathPatterns;
 
+  private static final Counter HITS = TelemetryRegistry.counter("http", "CacheControlFilter", "hit");
+  private static final Counter STALE = TelemetryRegistry.counter("http", "CacheControlFilter", "stale");
+  private static final Counter COALESCED = TelemetryRegistry.counter("http", "CacheControlFilter", "coalesced");
+  private static final Counter SAVES = TelemetryRegistry.counter("http", "CacheControlFilter", "save");
+  private static final Counter NOSAVES = TelemetryRegistry.counter("http", "CacheControlFilter", "nosave");
+  private static final Counter NOT_MODIFIED = TelemetryRegistry.counter("http", "CacheControlFilter", "304");
+
   static final String SAKAI_CACHE_PATTERNS = "sakai.cache.patterns";
 
   static final String SAKAI_CACHE_PATHS = "sakai.cache.paths";
@@ -108,6 +125,14 @@ public class CacheControlFilter implements Filter {
             description = "When selected, caching will be disabled for 'localhost' and '127.0.0.1', but enabled for all other hosts. Useful for developers.")
   private static final String BYPASS_CACHE_FOR_LOCALHOST = "bypass.cache.for.localhost";
 
+  @Property(intValue=60, label = "Stale While Revalidate",
+            description = "Seconds after expiry that a cached response may still be served to other requests while one request recomputes it.")
+  private static final String STALE_WHILE_REVALIDATE = "stale.while.revalidate";
+
+  @Property(intValue=5000, label = "Coalesce Timeout",
+            description = "Milliseconds a request for an uncached response waits for a concurrent request computing the same response before computing it itself.")
+  private static final String COALESCE_TIMEOUT = "coalesce.timeout";
+
   @Reference 
   protected CacheManagerService cacheManagerService;
   
@@ -118,6 +143,16 @@ public class CacheControlFilter implements Filter {
   
   private boolean bypassForLocalhost;
 
+  private long staleMillis = 60000L;
+
+  private long coalesceTimeout = 5000L;
+
+  /**
+   * latches of the requests currently computing a cacheable response, by cache key, so
+   * that concurrent misses wait for one computation rather than all running it.
+   */
+  private final ConcurrentMap<String, CountDownLatch> inFlight = new ConcurrentHashMap<String, CountDownLatch>();
+
   /**
    * {@inheritDoc}
    * 
@@ -143,7 +178,6 @@ public class CacheControlFilter implements Filter {
       return;
     }
     String path = srequest.getPathInfo();
-    String cacheKey = srequest.getQueryString() == null ? path : path + "?" + srequest.getQueryString();
 
     int respCode = 0;
     Map<String, String> headers = null;
@@ -180,31 +214,74 @@ public class CacheControlFilter implements Filter {
       sresponse.setStatus(respCode);
       sresponse.flushBuffer();
     } else {
+      CountDownLatch computing = null;
       if ( cacheAge > 0 ) {
-        cachedResponseManager = new CachedResponseManager(srequest, cacheAge, getCache());
+        cachedResponseManager = new CachedResponseManager(srequest, cacheAge, staleMillis, getCache());
         if ( cachedResponseManager.isValid() ) {
-          TelemetryCounter.incrementValue("http", "CacheControlFilter-hit", cacheKey);
-          cachedResponseManager.send(sresponse);
+          HITS.increment();
+          sendCached(cachedResponseManager, srequest, sresponse, withLastModfied);
           return;
         }
+        CountDownLatch latch = new CountDownLatch(1);
+        CountDownLatch other = inFlight.putIfAbsent(cachedResponseManager.getKey(), latch);
+        if ( other == null ) {
+          computing = latch;
+        } else if ( cachedResponseManager.isStale() ) {
+          STALE.increment();
+          sendCached(cachedResponseManager, srequest, sresponse, withLastModfied);
+          return;
+        } else if ( awaitComputation(other) ) {
+          cachedResponseManager.reload();
+          if ( cachedResponseManager.isValid() ) {
+            COALESCED.increment();
+            sendCached(cachedResponseManager, srequest, sresponse, withLastModfied);
+            return;
+          }
+        }
       }
-      if ( !withLastModfied || !withCookies || cachedResponseManager != null ) {
-        fresponse = new FilterResponseWrapper(sresponse, withLastModfied, withCookies, cachedResponseManager != null);
-      }
-      if ( fresponse != null ) {
-        chain.doFilter(request, fresponse);
-        if ( cachedResponseManager != null ) {
-          TelemetryCounter.incrementValue("http", "CacheControlFilter-save", cacheKey);
-          cachedResponseManager.save(fresponse.getResponseOperation());
+      try {
+        if ( !withLastModfied || !withCookies || cachedResponseManager != null ) {
+          fresponse = new FilterResponseWrapper(sresponse, withLastModfied, withCookies, cachedResponseManager != null);
+        }
+        if ( fresponse != null ) {
+          chain.doFilter(request, fresponse);
+          if ( cachedResponseManager != null ) {
+            SAVES.increment();
+            cachedResponseManager.save(fresponse.getResponseOperation());
+          } else {
+            NOSAVES.increment();
+          }
         } else {
-          TelemetryCounter.incrementValue("http", "CacheControlFilter-nosave", cacheKey);
+          chain.doFilter(request, response);
+        }
+      } finally {
+        if ( computing != null ) {
+          inFlight.remove(cachedResponseManager.getKey(), computing);
+          computing.countDown();
         }
-      } else {
-        chain.doFilter(request, response);
       }
     }
   }
 
+  private void sendCached(CachedResponseManager cachedResponseManager, HttpServletRequest srequest,
+      HttpServletResponse sresponse, boolean withLastModified) throws IOException {
+    if ( cachedResponseManager.send(srequest, sresponse, withLastModified) ) {
+      NOT_MODIFIED.increment();
+    }
+  }
+
+  /**
+   * @return true if the other computation finished within the coalesce timeout.
+   */
+  private boolean awaitComputation(CountDownLatch latch) {
+    try {
+      return latch.await(coalesceTimeout, TimeUnit.MILLISECONDS);
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      return false;
+    }
+  }
+
   private Cache<CachedResponse> getCache() {
     return cacheManagerService.getCache(CacheControlFilter.class.getName()+"-cache", CacheScope.INSTANCE);
   }
@@ -291,6 +368,10 @@ public class CacheControlFilter implements Filter {
     
     bypassForLocalhost = PropertiesUtil.toBoolean(properties.get(BYPASS_CACHE_FOR_LOCALHOST), true);
 
+    staleMillis = PropertiesUtil.toInteger(properties.get(STALE_WHILE_REVALIDATE), 60) * 1000L;
+
+    coalesceTimeout = PropertiesUtil.toInteger(properties.get(COALESCE_TIMEOUT), 5000);
+
     if ( disableForDevMode ) {
       extHttpService.unregisterFilter(this);
     } else {
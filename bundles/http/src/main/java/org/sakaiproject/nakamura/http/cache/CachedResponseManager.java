@@ -17,6 +17,7 @@
  */
 package org.sakaiproject.nakamura.http.cache;
 
+import org.apache.commons.lang.StringUtils;
 import org.sakaiproject.nakamura.api.http.cache.CachedResponse;
 import org.sakaiproject.nakamura.api.memory.Cache;
 import org.slf4j.Logger;
@@ -31,12 +32,24 @@ public class CachedResponseManager {
 
   private static final Logger LOGGER = LoggerFactory.getLogger(CachedResponseManager.class);
   private int cacheAge;
+  private long staleMillis;
   private String key;
   private Cache<CachedResponse> cache;
   private CachedResponse cachedResponse;
+  private boolean stale;
 
   public CachedResponseManager(HttpServletRequest request, int cacheAge, Cache<CachedResponse> cache) {
+    this(request, cacheAge, 0L, cache);
+  }
+
+  /**
+   * @param staleMillis
+   *          how long after expiry a cached response is kept so that it can be served
+   *          while one request recomputes it.
+   */
+  public CachedResponseManager(HttpServletRequest request, int cacheAge, long staleMillis, Cache<CachedResponse> cache) {
     this.cacheAge = cacheAge;
+    this.staleMillis = staleMillis;
     this.key = hashKey(request.getPathInfo()+"?"+request.getQueryString());
     this.cache = cache;
     this.cachedResponse = load();
@@ -50,7 +63,29 @@ public class CachedResponseManager {
    * @return true if the CacheResponse is current and valid.
    */
   public boolean isValid() {
-    return cachedResponse != null;
+    return cachedResponse != null && !stale;
+  }
+
+  /**
+   * @return true if the CachedResponse has expired but may be served while it is being
+   *         recomputed.
+   */
+  public boolean isStale() {
+    return cachedResponse != null && stale;
+  }
+
+  /**
+   * @return the key the response is cached under.
+   */
+  public String getKey() {
+    return key;
+  }
+
+  /**
+   * Reload the response from the cache, eg after another request has saved it.
+   */
+  public void reload() {
+    cachedResponse = load();
   }
 
   public void save(OperationResponseCapture responseOperation) {
@@ -66,9 +101,14 @@ public class CachedResponseManager {
   private CachedResponse load() {
     CachedResponse cachedResponse = null;
     cachedResponse = cache.get(key);
+    stale = false;
     if ( cachedResponse != null && !cachedResponse.isValid() ) {
-      cachedResponse = null;
-      cache.remove(key);
+      if ( cachedResponse.isServableStale(staleMillis) ) {
+        stale = true;
+      } else {
+        cachedResponse = null;
+        cache.remove(key);
+      }
     }
     return cachedResponse;
   }
@@ -76,6 +116,81 @@ public class CachedResponseManager {
   public void send(HttpServletResponse response) throws IOException {
     cachedResponse.replay(response);
   }
+
+  /**
+   * Send the cached response, or a 304 with its caching headers if the client already
+   * holds it. The gzipped body is sent to clients that accept it, under its own ETag.
+   *
+   * @param request
+   * @param response
+   * @param withLastModified
+   *          false if Last-Modified must not be sent or used for validation.
+   * @return true if a 304 was sent.
+   * @throws IOException
+   */
+  public boolean send(HttpServletRequest request, HttpServletResponse response, boolean withLastModified) throws IOException {
+    boolean gzip = cachedResponse.hasGzippedContent() && acceptsGzip(request.getHeader("Accept-Encoding"));
+    String etag = gzip ? cachedResponse.getGzipETag() : cachedResponse.getETag();
+    response.setHeader("ETag", etag);
+    if ( withLastModified ) {
+      response.setDateHeader("Last-Modified", cachedResponse.getLastModified());
+    }
+    if ( cachedResponse.hasGzippedContent() && !response.containsHeader("Vary") ) {
+      // the body depends on Accept-Encoding whichever encoding this client gets.
+      response.setHeader("Vary", "Accept-Encoding");
+    }
+    if ( notModified(request, withLastModified) ) {
+      cachedResponse.replayCacheHeaders(response);
+      response.setStatus(HttpServletResponse.SC_NOT_MODIFIED);
+      return true;
+    }
+    cachedResponse.replay(response, gzip);
+    return false;
+  }
+
+  private boolean notModified(HttpServletRequest request, boolean withLastModified) {
+    String ifNoneMatch = request.getHeader("If-None-Match");
+    if ( ifNoneMatch != null ) {
+      for ( String tag : StringUtils.split(ifNoneMatch, ',') ) {
+        tag = tag.trim();
+        if ( tag.startsWith("W/") ) {
+          tag = tag.substring(2);
+        }
+        if ( "*".equals(tag) || tag.equals(cachedResponse.getETag()) || tag.equals(cachedResponse.getGzipETag()) ) {
+          return true;
+        }
+      }
+      return false;
+    }
+    if ( withLastModified ) {
+      long ifModifiedSince = request.getDateHeader("If-Modified-Since");
+      return ifModifiedSince > 0 && cachedResponse.getLastModified() / 1000 <= ifModifiedSince / 1000;
+    }
+    return false;
+  }
+
+  private boolean acceptsGzip(String acceptEncoding) {
+    if ( acceptEncoding == null ) {
+      return false;
+    }
+    for ( String coding : StringUtils.split(acceptEncoding, ',') ) {
+      String[] parts = StringUtils.split(coding, ';');
+      if ( parts.length > 0 && ("gzip".equalsIgnoreCase(parts[0].trim()) || "x-gzip".equalsIgnoreCase(parts[0].trim())) ) {
+        for ( int i = 1; i < parts.length; i++ ) {
+          String param = parts[i].trim();
+          if ( param.startsWith("q=") ) {
+            try {
+              return Float.parseFloat(param.substring(2)) > 0.0f;
+            } catch (NumberFormatException e) {
+              return false;
+            }
+          }
+        }
+        return true;
+      }
+    }
+    return false;
+  }
   
   @Override
   public String toString() {
@@ -46,7 +46,7 @@ public class OperationResponseCapture {
   /**
    * a : delimited list of headernames in lower case that can't be cached.
    */
-  private static final String DONT_CACHE = ":set-cookies:set-cookie:age:connection:www-authenticate:";
+  private static final String DONT_CACHE = ":set-cookies:set-cookie:age:connection:www-authenticate:etag:";
   private PrintWriter writer;
   private SplitOutputStream outputStream;
   private boolean cacheable;
@@ -52,8 +52,26 @@ public class OperationResponseReplay implements Serializable {
    * @param response
    * @throws IOException
    */
-  @SuppressWarnings("deprecation")
   public void replay(HttpServletResponse response) throws IOException {
+    replayOperations(operations, response, false);
+
+     if ( stringContent != null  ) {
+       response.getWriter().write(stringContent);
+     } else if ( byteContent != null ){
+       response.getOutputStream().write(byteContent);
+     }
+
+  }
+
+  /**
+   * Replay the redo log of a cached request without its body.
+   * @param operations
+   * @param response
+   * @param skipContentLength true if the body will differ from the one captured, as when
+   *          it is sent gzipped.
+   */
+  @SuppressWarnings("deprecation")
+  public static void replayOperations(Operation[] operations, HttpServletResponse response, boolean skipContentLength) {
     for ( Operation o : operations ) {
       int op = o.getOperation();
       switch (op) {
@@ -70,7 +88,9 @@ public class OperationResponseReplay implements Serializable {
         response.setCharacterEncoding((String)o.get(0));
         break;
       case OperationResponseCapture.SET_CONTENT_LENGTH:
-        response.setContentLength((Integer)o.get(0));
+        if ( !skipContentLength ) {
+          response.setContentLength((Integer)o.get(0));
+        }
         break;
       case OperationResponseCapture.SET_CONTENT_TYPE:
         response.setContentType((String)o.get(0));
@@ -95,13 +115,6 @@ public class OperationResponseReplay implements Serializable {
         break;
       }
     }
-
-     if ( stringContent != null  ) {
-       response.getWriter().write(stringContent);
-     } else if ( byteContent != null ){
-       response.getOutputStream().write(byteContent);
-     }
-
   }
 
 
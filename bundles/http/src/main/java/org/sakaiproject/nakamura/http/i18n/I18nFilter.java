@@ -17,32 +17,40 @@
  */
 package org.sakaiproject.nakamura.http.i18n;
 
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.Maps;
+
 import org.apache.commons.lang.StringUtils;
 import org.apache.felix.scr.annotations.Activate;
 import org.apache.felix.scr.annotations.Component;
 import org.apache.felix.scr.annotations.Modified;
 import org.apache.felix.scr.annotations.Property;
 import org.apache.felix.scr.annotations.Service;
+import org.apache.sling.api.SlingConstants;
 import org.apache.sling.api.SlingHttpServletRequest;
+import org.apache.sling.api.resource.Resource;
 import org.apache.sling.commons.osgi.PropertiesUtil;
 import org.osgi.framework.Constants;
+import org.osgi.service.event.Event;
+import org.osgi.service.event.EventConstants;
+import org.osgi.service.event.EventHandler;
+import org.sakaiproject.nakamura.http.i18n.PageTemplate.LocalizedPage;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.io.IOException;
 import java.io.InputStream;
-import java.util.ArrayList;
+import java.io.PrintWriter;
 import java.util.Locale;
 import java.util.Map;
 import java.util.Properties;
-import java.util.regex.Matcher;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.regex.Pattern;
 
 import javax.jcr.Node;
-import javax.jcr.PathNotFoundException;
 import javax.jcr.RepositoryException;
 import javax.jcr.Session;
-import javax.jcr.ValueFormatException;
 import javax.servlet.Filter;
 import javax.servlet.FilterChain;
 import javax.servlet.FilterConfig;
@@ -55,17 +63,20 @@ import javax.servlet.http.HttpServletResponse;
  * Filter to transform __MSG_*__ i18n message keys into i18n messages.
  */
 @Component(metatype = true, enabled=false)
-@Service
+@Service(value = { Filter.class, EventHandler.class })
 @org.apache.felix.scr.annotations.Properties(value = {
     @Property(name = Constants.SERVICE_VENDOR, value = "The Sakai Foundation"),
     @Property(name = Constants.SERVICE_DESCRIPTION, value = "Nakamura i18n Filter"),
     @Property(name = Constants.SERVICE_RANKING, intValue = 10, propertyPrivate = true),
     @Property(name = "sling.filter.scope", value = "REQUEST", propertyPrivate = true),
+    @Property(name = EventConstants.EVENT_TOPIC, value = {
+        SlingConstants.TOPIC_RESOURCE_ADDED, SlingConstants.TOPIC_RESOURCE_CHANGED,
+        SlingConstants.TOPIC_RESOURCE_REMOVED }, propertyPrivate = true),
     @Property(name = I18nFilter.BUNDLES_PATH, value = I18nFilter.DEFAULT_BUNDLES_PATH),
     @Property(name = I18nFilter.MESSAGE_KEY_PATTERN, value = I18nFilter.DEFAULT_MESSAGE_KEY_PATTERN),
     @Property(name = I18nFilter.SHOW_MISSING_KEYS, boolValue = I18nFilter.DEFAULT_SHOW_MISSING_KEYS)
 })
-public class I18nFilter implements Filter {
+public class I18nFilter implements Filter, EventHandler {
   public static final String PARAM_LANGUAGE = "l";
   public static final String DEFAULT_BUNDLES_PATH = "/dev/bundle";
   public static final String DEFAULT_MESSAGE_KEY_PATTERN = "__MSG__(.+?)__";
@@ -82,6 +93,23 @@ public class I18nFilter implements Filter {
   private Pattern messageKeyPattern;
   private boolean showMissingKeys;
 
+  /**
+   * Parsed pages by path.
+   */
+  private final ConcurrentMap<String, PageTemplate> templates = Maps.newConcurrentMap();
+
+  /**
+   * Language bundles by name.
+   */
+  private final ConcurrentMap<String, Map<String, String>> bundles = Maps
+      .newConcurrentMap();
+
+  /**
+   * Incremented whenever the language bundles change so that pages localized with the
+   * old bundles, and bundles read while they were changing, are not used.
+   */
+  private final AtomicLong generation = new AtomicLong();
+
   @Activate @Modified
   public void modified(Map<?, ?> props) {
     bundlesPath = PropertiesUtil.toString(props.get(BUNDLES_PATH), DEFAULT_BUNDLES_PATH);
@@ -92,6 +120,10 @@ public class I18nFilter implements Filter {
 
     showMissingKeys = PropertiesUtil.toBoolean(props.get(SHOW_MISSING_KEYS),
         DEFAULT_SHOW_MISSING_KEYS);
+
+    generation.incrementAndGet();
+    templates.clear();
+    bundles.clear();
   }
 
   // ---------- Filter interface ----------
@@ -109,6 +141,8 @@ public class I18nFilter implements Filter {
    * @see javax.servlet.Filter#destroy()
    */
   public void destroy() {
+    templates.clear();
+    bundles.clear();
   }
 
   /**
@@ -158,7 +192,9 @@ public class I18nFilter implements Filter {
 
   /**
    * Filter <code>output</code> of any message keys by replacing them with the matching
-   * message from the language bundle associated to the user.
+   * message from the language bundle associated to the user. The page is parsed once for
+   * as long as it doesn't change, and localized once per language for as long as neither
+   * it nor the language bundles change.
    *
    * @param srequest
    * @param response
@@ -167,62 +203,54 @@ public class I18nFilter implements Filter {
    */
   private void writeFilteredResponse(SlingHttpServletRequest srequest,
       ServletResponse response, String output) throws IOException {
-    StringBuilder sb = new StringBuilder(output);
-    try {
-      Session session = srequest.getResourceResolver().adaptTo(Session.class);
-      Node bundlesNode = session.getNode(bundlesPath);
-
-      // load the language bundle
-      Locale locale = getLocale(srequest);
-      Properties bndLang = getLangBundle(bundlesNode, locale.toString());
-
-      // load the default bundle
-      Properties bndLangDefault = getLangBundle(bundlesNode, "default");
-
-      // check for message keys and replace them with the appropriate message
-      Matcher m = messageKeyPattern.matcher(output);
-      ArrayList<String> matchedKeys = new ArrayList<String>();
-      while (m.find()) {
-        String msgKey = m.group(0);
-        String key = m.group(1);
-        if (!matchedKeys.contains(key)) {
-          String message = "";
-
-          if (bndLang.containsKey(key)) {
-            message = bndLang.getProperty(key);
-          } else if (bndLangDefault.containsKey(key)) {
-            message = bndLangDefault.getProperty(key);
-          } else {
-            String msg = "[MESSAGE KEY NOT FOUND '" + key + "']";
-            logger.warn(msg);
-            if (showMissingKeys) {
-              message = msg;
-            }
-          }
-
-          // replace all instances of msgKey with the actual message
-          int keyStart = sb.indexOf(msgKey);
-          while (keyStart >= 0) {
-            sb.replace(keyStart, keyStart + msgKey.length(), message);
-            keyStart = sb.indexOf(msgKey, keyStart);
-          }
-
-          // track the group so we don't try to replace it again
-          matchedKeys.add(key);
-        }
+    String language = getLocale(srequest).toString();
+    PageTemplate template = getTemplate(srequest, output);
+    long startGeneration = generation.get();
+    LocalizedPage page = template.getLocalized(language, startGeneration);
+    if (page == null) {
+      try {
+        Map<String, String> bndLang = getLangBundle(srequest, language, startGeneration);
+        Map<String, String> bndLangDefault = getLangBundle(srequest, "default",
+            startGeneration);
+        page = template.localize(language, startGeneration, bndLang, bndLangDefault,
+            showMissingKeys);
+      } catch (RepositoryException e) {
+        logger.error(e.getMessage(), e);
+        page = new LocalizedPage(output, startGeneration);
       }
-    } catch (RepositoryException e) {
-      logger.error(e.getMessage(), e);
     }
 
-    response.setContentLength(sb.length());
-
     // send the output to the actual response
     try {
-      response.getWriter().write(sb.toString());
+      PrintWriter writer = response.getWriter();
+      if ("UTF-8".equalsIgnoreCase(response.getCharacterEncoding())) {
+        response.setContentLength(page.bytes.length);
+      }
+      writer.write(page.text);
     } catch (IllegalStateException e) {
-      response.getOutputStream().write(sb.toString().getBytes("UTF-8"));
+      response.setContentLength(page.bytes.length);
+      response.getOutputStream().write(page.bytes);
+    }
+  }
+
+  /**
+   * Get the parsed form of a page, parsing it if it is new or has changed. Pages that
+   * don't come from an existing resource are parsed for this request only.
+   */
+  private PageTemplate getTemplate(SlingHttpServletRequest srequest, String output) {
+    Resource resource = srequest.getResource();
+    if (resource == null
+        || Resource.RESOURCE_TYPE_NON_EXISTING.equals(resource.getResourceType())) {
+      return new PageTemplate(output, -1, messageKeyPattern);
+    }
+    String path = srequest.getPathInfo();
+    long lastModified = resource.getResourceMetadata().getModificationTime();
+    PageTemplate template = templates.get(path);
+    if (template == null || !template.isParsedFrom(output, lastModified)) {
+      template = new PageTemplate(output, lastModified, messageKeyPattern);
+      templates.put(path, template);
     }
+    return template;
   }
 
   private Locale getLocale(SlingHttpServletRequest request) {
@@ -239,15 +267,51 @@ public class I18nFilter implements Filter {
     return l;
   }
 
-  private Properties getLangBundle(Node bundlesNode, String name)
-      throws PathNotFoundException, RepositoryException, ValueFormatException,
-      IOException {
-    Node langNode = bundlesNode.getNode(name + ".properties");
+  /**
+   * Get a language bundle, loading it from the repository if it hasn't been since the
+   * bundles last changed.
+   */
+  private Map<String, String> getLangBundle(SlingHttpServletRequest srequest, String name,
+      long startGeneration) throws RepositoryException, IOException {
+    Map<String, String> bundle = bundles.get(name);
+    if (bundle != null) {
+      return bundle;
+    }
+    Session session = srequest.getResourceResolver().adaptTo(Session.class);
+    Node langNode = session.getNode(bundlesPath).getNode(name + ".properties");
     Node content = langNode.getNode("jcr:content");
     Properties props = new Properties();
     InputStream in = content.getProperty("jcr:data").getBinary().getStream();
-    props.load(in);
-    in.close();
-    return props;
+    try {
+      props.load(in);
+    } finally {
+      in.close();
+    }
+    ImmutableMap.Builder<String, String> builder = ImmutableMap.builder();
+    for (String key : props.stringPropertyNames()) {
+      builder.put(key, props.getProperty(key));
+    }
+    bundle = builder.build();
+    if (startGeneration == generation.get()) {
+      bundles.put(name, bundle);
+    }
+    return bundle;
+  }
+
+  /**
+   * {@inheritDoc}
+   *
+   * Drops the language bundles, and the pages localized with them, when anything under
+   * the bundles path changes.
+   *
+   * @see org.osgi.service.event.EventHandler#handleEvent(org.osgi.service.event.Event)
+   */
+  public void handleEvent(Event event) {
+    String path = (String) event.getProperty(SlingConstants.PROPERTY_PATH);
+    if (path != null && (path.startsWith(bundlesPath + "/") || path.equals(bundlesPath)
+        || bundlesPath.startsWith(path + "/"))) {
+      generation.incrementAndGet();
+      bundles.clear();
+    }
   }
 }
@@ -0,0 +1,137 @@
+/**
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.nakamura.http.i18n;
+
+import com.google.common.collect.Maps;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.UnsupportedEncodingException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentMap;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * A page parsed once into the literal text between its message keys and the keys
+ * themselves, so it can be localized in a single pass. The localized forms are kept with
+ * the page, one per language, until the language bundles change.
+ */
+class PageTemplate {
+  private static final Logger logger = LoggerFactory.getLogger(PageTemplate.class);
+
+  private final String source;
+  private final long lastModified;
+  /**
+   * The literal text, one more than there are keys: literals[i] comes before keys[i] and
+   * the last literal ends the page.
+   */
+  private final String[] literals;
+  private final String[] keys;
+  private final ConcurrentMap<String, LocalizedPage> localized = Maps.newConcurrentMap();
+
+  PageTemplate(String source, long lastModified, Pattern messageKeyPattern) {
+    this.source = source;
+    this.lastModified = lastModified;
+    List<String> literalList = new ArrayList<String>();
+    List<String> keyList = new ArrayList<String>();
+    Matcher m = messageKeyPattern.matcher(source);
+    int last = 0;
+    while (m.find()) {
+      literalList.add(source.substring(last, m.start()));
+      keyList.add(m.group(1));
+      last = m.end();
+    }
+    literalList.add(source.substring(last));
+    literals = literalList.toArray(new String[literalList.size()]);
+    keys = keyList.toArray(new String[keyList.size()]);
+  }
+
+  /**
+   * @return true if this was parsed from <code>output</code>. A different last modified
+   *         time rules it out without comparing the page, otherwise the whole page is
+   *         compared as the time alone doesn't prove the text is the same.
+   */
+  boolean isParsedFrom(String output, long lastModified) {
+    if (lastModified > 0 && this.lastModified != lastModified) {
+      return false;
+    }
+    return source.equals(output);
+  }
+
+  /**
+   * @return the page localized for <code>language</code> while the bundles were at
+   *         <code>generation</code>, or null if it hasn't been done since they changed.
+   */
+  LocalizedPage getLocalized(String language, long generation) {
+    LocalizedPage page = localized.get(language);
+    if (page != null && page.generation == generation) {
+      return page;
+    }
+    return null;
+  }
+
+  /**
+   * Replace the message keys with the message from the language bundle, falling back to
+   * the default bundle.
+   */
+  LocalizedPage localize(String language, long generation, Map<String, String> bndLang,
+      Map<String, String> bndLangDefault, boolean showMissingKeys) {
+    StringBuilder sb = new StringBuilder(source.length());
+    for (int i = 0; i < keys.length; i++) {
+      sb.append(literals[i]);
+      String key = keys[i];
+      String message = bndLang.get(key);
+      if (message == null) {
+        message = bndLangDefault.get(key);
+      }
+      if (message == null) {
+        String msg = "[MESSAGE KEY NOT FOUND '" + key + "']";
+        logger.warn(msg);
+        if (showMissingKeys) {
+          sb.append(msg);
+        }
+      } else {
+        sb.append(message);
+      }
+    }
+    sb.append(literals[keys.length]);
+    LocalizedPage page = new LocalizedPage(sb.toString(), generation);
+    localized.put(language, page);
+    return page;
+  }
+
+  static class LocalizedPage {
+    final String text;
+    final byte[] bytes;
+    final long generation;
+
+    LocalizedPage(String text, long generation) {
+      this.text = text;
+      this.generation = generation;
+      try {
+        this.bytes = text.getBytes("UTF-8");
+      } catch (UnsupportedEncodingException e) {
+        throw new IllegalStateException(e);
+      }
+    }
+  }
+}
@@ -17,6 +17,10 @@
  */
 package org.sakaiproject.nakamura.http.cache;
 
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
 import static org.mockito.Matchers.anyString;
 import static org.mockito.Mockito.never;
 import static org.mockito.Mockito.verify;
@@ -39,6 +43,7 @@ import org.sakaiproject.nakamura.api.memory.Cache;
 import org.sakaiproject.nakamura.api.memory.CacheManagerService;
 import org.sakaiproject.nakamura.api.memory.CacheScope;
 
+import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.io.PrintWriter;
@@ -46,11 +51,13 @@ import java.io.StringWriter;
 import java.util.Dictionary;
 import java.util.Hashtable;
 import java.util.Locale;
+import java.util.zip.GZIPInputStream;
 
 import javax.servlet.FilterChain;
 import javax.servlet.FilterConfig;
 import javax.servlet.ServletException;
 import javax.servlet.ServletOutputStream;
+import javax.servlet.http.HttpServletResponse;
 
 @RunWith(MockitoJUnitRunner.class)
 public class CacheControlFilterTest {
@@ -188,10 +195,95 @@ public class CacheControlFilterTest {
     cacheControlFilter.doFilter(request, response, null);
 
     verify(response, Mockito.atLeastOnce()).setHeader(anyString(), anyString());
+    verify(response, never()).setHeader("Content-Encoding", "gzip");
+  }
+
+  @Test
+  @SuppressWarnings("unchecked")
+  public void checkIdentityReplayVaries() throws Exception {
+    when(request.getPathInfo()).thenReturn("/cacheable/config.json");
+    when(response.getOutputStream()).thenReturn(new ServletOutputStream() {
+
+      @Override
+      public void write(int b) throws IOException {
+      }
+    });
+    CachedResponse cachedResponse  = populateResponseCapture(true);
+    when(cache.get("/cacheable/config.json?null")).thenReturn(cachedResponse);
+
+    CachedResponseManager cachedResponseManager = new CachedResponseManager(request, 30, (Cache<CachedResponse>) (Cache<?>) cache);
+    assertFalse(cachedResponseManager.send(request, response, true));
+
+    // the identity body is negotiable too, so caches must key it on Accept-Encoding.
+    verify(response).setHeader("Vary", "Accept-Encoding");
+    verify(response).setHeader("ETag", cachedResponse.getETag());
+  }
+
+  @Test
+  public void checkRequestCachingNotModified() throws Exception {
+    when(request.getMethod()).thenReturn("GET");
+    when(request.getPathInfo()).thenReturn("/cacheable/config.json");
+    final ByteArrayOutputStream baos = new ByteArrayOutputStream();
+    ServletOutputStream servletOutputStream = new ServletOutputStream() {
+      
+      @Override
+      public void write(int b) throws IOException {
+        baos.write(b);
+      }
+    };
+    when(response.getOutputStream()).thenReturn(servletOutputStream);
+
+    when(cacheMangerService.getCache(CacheControlFilter.class.getName()+"-cache", CacheScope.INSTANCE)).thenReturn(cache);
+    CachedResponse cachedResponse  = populateResponseCapture(true);
+    when(cache.get("/cacheable/config.json?null")).thenReturn(cachedResponse);
+    when(request.getHeader("If-None-Match")).thenReturn("\"other\", " + cachedResponse.getETag());
     
+    cacheControlFilter.cacheManagerService = cacheMangerService;
+
+    cacheControlFilter.doFilter(request, response, null);
+
+    verify(response).setHeader("ETag", cachedResponse.getETag());
+    verify(response).setHeader("Cache-Control", "max-age=3600");
+    verify(response).addHeader("Cache-Control", " public");
+    verify(response, never()).setIntHeader("Age", 1000);
+    verify(response).setStatus(HttpServletResponse.SC_NOT_MODIFIED);
+    assertEquals(0, baos.size());
+  }
+
+  @Test
+  public void checkRequestCachingGzipReplay() throws Exception {
+    when(request.getMethod()).thenReturn("GET");
+    when(request.getPathInfo()).thenReturn("/cacheable/config.json");
+    final ByteArrayOutputStream baos = new ByteArrayOutputStream();
+    ServletOutputStream servletOutputStream = new ServletOutputStream() {
+      
+      @Override
+      public void write(int b) throws IOException {
+        baos.write(b);
+      }
+    };
+    when(response.getOutputStream()).thenReturn(servletOutputStream);
+
+    when(cacheMangerService.getCache(CacheControlFilter.class.getName()+"-cache", CacheScope.INSTANCE)).thenReturn(cache);
+    CachedResponse cachedResponse  = populateResponseCapture(true);
+    assertTrue(cachedResponse.hasGzippedContent());
+    when(cache.get("/cacheable/config.json?null")).thenReturn(cachedResponse);
+    when(request.getHeader("Accept-Encoding")).thenReturn("gzip, deflate");
     
-    
-    
+    cacheControlFilter.cacheManagerService = cacheMangerService;
+
+    cacheControlFilter.doFilter(request, response, null);
+
+    verify(response).setHeader("Content-Encoding", "gzip");
+    verify(response).setHeader("ETag", cachedResponse.getGzipETag());
+    verify(response, never()).setContentLength(10);
+    GZIPInputStream in = new GZIPInputStream(new ByteArrayInputStream(baos.toByteArray()));
+    ByteArrayOutputStream unzipped = new ByteArrayOutputStream();
+    byte[] buffer = new byte[512];
+    for ( int n = in.read(buffer); n >= 0; n = in.read(buffer) ) {
+      unzipped.write(buffer, 0, n);
+    }
+    assertArrayEquals(new byte[1024], unzipped.toByteArray());
   }
 
   private CachedResponse populateResponseCapture(boolean useOutputStream) throws IOException {
@@ -17,6 +17,7 @@
  */
 package org.sakaiproject.nakamura.http.i18n;
 
+import static junit.framework.Assert.assertEquals;
 import static junit.framework.Assert.assertFalse;
 import static junit.framework.Assert.assertNotNull;
 import static junit.framework.Assert.assertTrue;
@@ -25,15 +26,21 @@ import static org.mockito.Matchers.isA;
 import static org.mockito.Mockito.atLeastOnce;
 import static org.mockito.Mockito.doAnswer;
 import static org.mockito.Mockito.reset;
+import static org.mockito.Mockito.times;
 import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.verifyZeroInteractions;
 import static org.mockito.Mockito.when;
 
+import com.google.common.collect.ImmutableMap;
+
 import org.apache.commons.lang.StringUtils;
 import org.apache.jackrabbit.api.JackrabbitSession;
 import org.apache.jackrabbit.api.security.user.Authorizable;
 import org.apache.jackrabbit.api.security.user.UserManager;
+import org.apache.sling.api.SlingConstants;
 import org.apache.sling.api.SlingHttpServletRequest;
+import org.apache.sling.api.resource.Resource;
+import org.apache.sling.api.resource.ResourceMetadata;
 import org.apache.sling.api.resource.ResourceResolver;
 import org.junit.After;
 import org.junit.Before;
@@ -47,6 +54,7 @@ import org.mockito.Mockito;
 import org.mockito.invocation.InvocationOnMock;
 import org.mockito.runners.MockitoJUnitRunner;
 import org.mockito.stubbing.Answer;
+import org.osgi.service.event.Event;
 
 import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
@@ -371,6 +379,77 @@ public class I18nFilterTest {
     assertTrue(output.contains("Wie geht es ihnen?"));
   }
 
+  @Test
+  public void cacheLanguageBundles() throws Exception {
+    when(request.getPathInfo()).thenReturn("/dev/index.html");
+    writeToResponse("__MSG__REPLACE_ME__", false);
+
+    filter.doFilter(request, response, chain);
+    filter.doFilter(request, response, chain);
+
+    verify(bundlesNode, times(1)).getNode("en_US.properties");
+    verify(bundlesNode, times(1)).getNode("default.properties");
+    // the bundle streams can only be read once, so a reload would miss the message
+    assertEquals("<html><body>Yay, In the language bundle!</body></html>"
+        + "<html><body>Yay, In the language bundle!</body></html>", sw.toString());
+  }
+
+  @Test
+  public void reloadLanguageBundlesOnChange() throws Exception {
+    when(request.getPathInfo()).thenReturn("/dev/index.html");
+    writeToResponse("__MSG__REPLACE_ME__", false);
+
+    filter.doFilter(request, response, chain);
+    filter.handleEvent(new Event(SlingConstants.TOPIC_RESOURCE_CHANGED, ImmutableMap.of(
+        SlingConstants.PROPERTY_PATH, "/dev/other.html")));
+    filter.doFilter(request, response, chain);
+    verify(bundlesNode, times(1)).getNode("en_US.properties");
+
+    filter.handleEvent(new Event(SlingConstants.TOPIC_RESOURCE_CHANGED, ImmutableMap.of(
+        SlingConstants.PROPERTY_PATH, I18nFilter.DEFAULT_BUNDLES_PATH
+            + "/en_US.properties/jcr:content")));
+    filter.doFilter(request, response, chain);
+    verify(bundlesNode, times(2)).getNode("en_US.properties");
+  }
+
+  @Test
+  public void reparseChangedPage() throws Exception {
+    Resource resource = Mockito.mock(Resource.class);
+    ResourceMetadata metadata = new ResourceMetadata();
+    metadata.setModificationTime(1000L);
+    when(resource.getResourceMetadata()).thenReturn(metadata);
+    when(request.getResource()).thenReturn(resource);
+    when(request.getPathInfo()).thenReturn("/dev/index.html");
+
+    writeToResponse("__MSG__REPLACE_ME__", false);
+    filter.doFilter(request, response, chain);
+    assertTrue(sw.toString().contains("Yay, In the language bundle!"));
+
+    metadata.setModificationTime(2000L);
+    writeToResponse("__MSG__REPLACE_ME_DEFAULT__", false);
+    filter.doFilter(request, response, chain);
+    assertTrue(sw.toString().endsWith("<html><body>Default replacement</body></html>"));
+  }
+
+  @Test
+  public void reparseChangedPageWithSameTime() throws Exception {
+    Resource resource = Mockito.mock(Resource.class);
+    ResourceMetadata metadata = new ResourceMetadata();
+    metadata.setModificationTime(1000L);
+    when(resource.getResourceMetadata()).thenReturn(metadata);
+    when(request.getResource()).thenReturn(resource);
+    when(request.getPathInfo()).thenReturn("/dev/index.html");
+
+    writeToResponse("A __MSG__REPLACE_ME__", false);
+    filter.doFilter(request, response, chain);
+    assertTrue(sw.toString().endsWith("<html><body>A Yay, In the language bundle!</body></html>"));
+
+    // the same length and time, but not the same page.
+    writeToResponse("B __MSG__REPLACE_ME__", false);
+    filter.doFilter(request, response, chain);
+    assertTrue(sw.toString().endsWith("<html><body>B Yay, In the language bundle!</body></html>"));
+  }
+
   private void writeToResponse(final String key, final boolean useOutputStream) throws IOException, ServletException {
     doAnswer(new Answer<Object>() {
       public Object answer(InvocationOnMock invocation) {
@@ -20,7 +20,9 @@ package org.sakaiproject.nakamura.locking;
 
 import edu.umd.cs.findbugs.annotations.SuppressWarnings;
 
+import org.apache.felix.scr.annotations.Activate;
 import org.apache.felix.scr.annotations.Component;
+import org.apache.felix.scr.annotations.Deactivate;
 import org.apache.felix.scr.annotations.Property;
 import org.apache.felix.scr.annotations.Reference;
 import org.apache.felix.scr.annotations.Service;
@@ -34,11 +36,24 @@ import org.sakaiproject.nakamura.api.memory.CacheScope;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import java.lang.management.ManagementFactory;
 import java.security.NoSuchAlgorithmException;
 import java.security.SecureRandom;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
 
 /**
- * A lock manager that uses a cluster replicated cache to manage the locks
+ * A lock manager that uses a cluster replicated cache to manage the locks. Locks are
+ * created and released under one of a fixed set of stripes chosen by the hash of the id,
+ * and threads waiting for a lock wait on a condition for that id, so an unlock in this
+ * JVM wakes the next waiter at once. Locks released on other nodes are seen by waking
+ * every {@link #RECHECK_INTERVAL} ms.
  */
 @Component(immediate = true)
 @Service
@@ -70,6 +85,26 @@ public class LockManagerImpl implements LockManager {
   @Property(value = "In JVM Lock Manager")
   static final String SERVICE_DESCRIPTION = "service.description";
 
+  public static final long DEFAULT_WAIT_TIMEOUT = 150000L;
+  /**
+   * The longest time in ms waitForLock will wait for a lock before giving up.
+   */
+  @Property(longValue = DEFAULT_WAIT_TIMEOUT)
+  static final String WAIT_TIMEOUT = "wait.timeout";
+
+  /**
+   * How often in ms a waiting thread checks the lock again, to pick up locks released on
+   * other nodes in the cluster.
+   */
+  static final long RECHECK_INTERVAL = 500L;
+
+  /**
+   * The number of stripes, a power of 2.
+   */
+  private static final int STRIPES = 64;
+
+  static final String MBEAN_NAME = "org.sakaiproject.nakamura:type=LockManager";
+
   /**
    * Service dependency, the Cache Manager
    */
@@ -101,7 +136,11 @@ public class LockManagerImpl implements LockManager {
       return random.nextLong();
     }
   };
-  private Object monitor = new Object();
+  private final Stripe[] stripes = new Stripe[STRIPES];
+
+  private final LockManagerStats stats = new LockManagerStats();
+
+  private long waitTimeout = DEFAULT_WAIT_TIMEOUT;
 
   /**
    * @throws NoSuchAlgorithmException
@@ -111,6 +150,32 @@ public class LockManagerImpl implements LockManager {
       throws NoSuchAlgorithmException {
     random = SecureRandom.getInstance("SHA1PRNG");
     instanceId = random.nextLong();
+    for (int i = 0; i < stripes.length; i++) {
+      stripes[i] = new Stripe();
+    }
+  }
+
+  @Activate
+  protected void activate(Map<String, Object> properties) throws Exception {
+    Object timeout = properties.get(WAIT_TIMEOUT);
+    if (timeout != null) {
+      waitTimeout = Long.parseLong(String.valueOf(timeout));
+    }
+    MBeanServer mbeanServer = ManagementFactory.getPlatformMBeanServer();
+    ObjectName name = new ObjectName(MBEAN_NAME);
+    if (mbeanServer.isRegistered(name)) {
+      mbeanServer.unregisterMBean(name);
+    }
+    mbeanServer.registerMBean(stats, name);
+  }
+
+  @Deactivate
+  protected void deactivate(Map<String, Object> properties) throws Exception {
+    MBeanServer mbeanServer = ManagementFactory.getPlatformMBeanServer();
+    ObjectName name = new ObjectName(MBEAN_NAME);
+    if (mbeanServer.isRegistered(name)) {
+      mbeanServer.unregisterMBean(name);
+    }
   }
 
   public Lock getLock(String id) {
@@ -125,7 +190,9 @@ public class LockManagerImpl implements LockManager {
     LockImpl lock = lockMap.get(id);
     if (create) {
       if (lock == null || !lock.isLocked()) {
-        synchronized (monitor) {
+        ReentrantLock stripeLock = getStripe(id).lock;
+        stripeLock.lock();
+        try {
           lock = lockMap.get(id);
           if (lock == null || !lock.isLocked()) {
             Cache<LockImpl> requestLocks = getRequestLocks();
@@ -133,6 +200,8 @@ public class LockManagerImpl implements LockManager {
             lockMap.put(id, lock);
             requestLocks.put(id, lock);
           }
+        } finally {
+          stripeLock.unlock();
         }
       }
     }
@@ -160,8 +229,17 @@ public class LockManagerImpl implements LockManager {
         LOGGER.debug(Thread.currentThread() + " unlocked " + lock.getLocked());
       }
       lock.setLocked(false);
-      synchronized (monitor) {
+      Stripe stripe = getStripe(lock.getLocked());
+      stripe.lock.lock();
+      try {
         lockMap.remove(lock.getLocked());
+        // hand the lock to the next thread waiting for it
+        WaitQueue waitQueue = stripe.waitQueues.get(lock.getLocked());
+        if (waitQueue != null) {
+          waitQueue.condition.signal();
+        }
+      } finally {
+        stripe.lock.unlock();
       }
     }
   }
@@ -186,36 +264,65 @@ public class LockManagerImpl implements LockManager {
    * @see org.sakaiproject.nakamura.api.locking.LockManager#lock(java.lang.String)
    */
   public Lock waitForLock(String id) throws LockTimeoutException {
-    long sleepTime = 100;
-    int tries = 0;
     if (debug) {
       LOGGER.debug(Thread.currentThread() + " locking " + id);
     }
-    while (tries++ < 300) {
+    Stripe stripe = getStripe(id);
+    stripe.lock.lock();
+    try {
       Lock lock = getLock(id);
       if (lock != null && lock.isOwner()) {
-        if (debug) {
-          LOGGER.debug(Thread.currentThread() + " lock Granted " + lock.getLocked());
-        }
+        stats.granted();
         return lock;
       }
-      if (sleepTime < 500) {
-        sleepTime = sleepTime + 10;
+      WaitQueue waitQueue = stripe.waitQueues.get(id);
+      if (waitQueue == null) {
+        waitQueue = new WaitQueue(stripe.lock.newCondition());
+        stripe.waitQueues.put(id, waitQueue);
       }
+      waitQueue.waiters++;
+      stats.startWaiting();
+      long start = System.nanoTime();
+      long deadline = start + TimeUnit.MILLISECONDS.toNanos(waitTimeout);
+      boolean interrupted = false;
+      boolean timedOut = true;
       try {
-       
-        if (debug && tries % 5 == 0) {
-          LOGGER.debug(Thread.currentThread() + " locking " + id);
+        long remaining = deadline - start;
+        while (remaining > 0) {
+          try {
+            waitQueue.condition.await(
+                Math.min(remaining, TimeUnit.MILLISECONDS.toNanos(RECHECK_INTERVAL)),
+                TimeUnit.NANOSECONDS);
+          } catch (InterruptedException e) {
+            interrupted = true;
+          }
+          lock = getLock(id);
+          if (lock != null && lock.isOwner()) {
+            if (debug) {
+              LOGGER.debug(Thread.currentThread() + " lock Granted " + lock.getLocked());
+            }
+            timedOut = false;
+            stats.granted();
+            return lock;
+          }
+          remaining = deadline - System.nanoTime();
         }
-        if (tries % 100 == 0) {
-          LOGGER.warn(Thread.currentThread() + " Waiting for " + sleepTime
-              + " ms " + tries);
+        LOGGER.warn("{} Failed to lock {} after {} ms ", new Object[] {
+            Thread.currentThread(), id, waitTimeout });
+        throw new LockTimeoutException("Failed to lock node " + id);
+      } finally {
+        if (--waitQueue.waiters == 0) {
+          stripe.waitQueues.remove(id);
+        }
+        stats.stopWaiting(TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start),
+            timedOut);
+        if (interrupted) {
+          Thread.currentThread().interrupt();
         }
-        Thread.sleep(sleepTime);
-      } catch (InterruptedException e) {
       }
+    } finally {
+      stripe.lock.unlock();
     }
-    throw new LockTimeoutException("Failed to lock node " + id);
   }
 
   /**
@@ -230,6 +337,45 @@ public class LockManagerImpl implements LockManager {
   }
 
  
+  /**
+   * @return the lock and wait queues for the stripe the id hashes to.
+   */
+  private Stripe getStripe(String id) {
+    int h = id.hashCode();
+    // spread the high bits down, as paths often differ only at the end
+    h ^= (h >>> 20) ^ (h >>> 12);
+    h ^= (h >>> 7) ^ (h >>> 4);
+    return stripes[h & (STRIPES - 1)];
+  }
+
+  /**
+   * @return the counters exposed through JMX.
+   */
+  LockManagerStats getStats() {
+    return stats;
+  }
+
+  /**
+   * A stripe of the lock space. The lock guards creating and removing locks for the ids
+   * in the stripe and the wait queues of those ids.
+   */
+  private static final class Stripe {
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Map<String, WaitQueue> waitQueues = new HashMap<String, WaitQueue>();
+  }
+
+  /**
+   * The threads in this JVM waiting for one id.
+   */
+  private static final class WaitQueue {
+    private final Condition condition;
+    private int waiters;
+
+    private WaitQueue(Condition condition) {
+      this.condition = condition;
+    }
+  }
+
   /**
    * @param cacheManagerService
    */
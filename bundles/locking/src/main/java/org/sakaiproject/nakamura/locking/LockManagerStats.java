@@ -0,0 +1,92 @@
+/**
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.nakamura.locking;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Counters for the lock manager, updated without locking so that recording a wait does
+ * not add contention of its own.
+ */
+public class LockManagerStats implements LockManagerStatsMBean {
+
+  private final AtomicLong locksGranted = new AtomicLong();
+  private final AtomicLong contendedLocks = new AtomicLong();
+  private final AtomicLong lockTimeouts = new AtomicLong();
+  private final AtomicLong waitingThreads = new AtomicLong();
+  private final AtomicLong totalWaitTime = new AtomicLong();
+  private final AtomicLong maxWaitTime = new AtomicLong();
+
+  void granted() {
+    locksGranted.incrementAndGet();
+  }
+
+  void startWaiting() {
+    contendedLocks.incrementAndGet();
+    waitingThreads.incrementAndGet();
+  }
+
+  void stopWaiting(long waitTime, boolean timedOut) {
+    waitingThreads.decrementAndGet();
+    if (timedOut) {
+      lockTimeouts.incrementAndGet();
+    }
+    totalWaitTime.addAndGet(waitTime);
+    long max = maxWaitTime.get();
+    while (waitTime > max && !maxWaitTime.compareAndSet(max, waitTime)) {
+      max = maxWaitTime.get();
+    }
+  }
+
+  public long getLocksGranted() {
+    return locksGranted.get();
+  }
+
+  public long getContendedLocks() {
+    return contendedLocks.get();
+  }
+
+  public long getLockTimeouts() {
+    return lockTimeouts.get();
+  }
+
+  public long getWaitingThreads() {
+    return waitingThreads.get();
+  }
+
+  public long getTotalWaitTime() {
+    return totalWaitTime.get();
+  }
+
+  public long getAverageWaitTime() {
+    long contended = contendedLocks.get();
+    return contended == 0 ? 0 : totalWaitTime.get() / contended;
+  }
+
+  public long getMaxWaitTime() {
+    return maxWaitTime.get();
+  }
+
+  public void reset() {
+    locksGranted.set(0);
+    contendedLocks.set(0);
+    lockTimeouts.set(0);
+    totalWaitTime.set(0);
+    maxWaitTime.set(0);
+  }
+}
@@ -0,0 +1,64 @@
+/**
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.nakamura.locking;
+
+/**
+ * JMX view of the lock waits made through {@link LockManagerImpl#waitForLock(String)}.
+ */
+public interface LockManagerStatsMBean {
+
+  /**
+   * @return the number of locks granted by waitForLock.
+   */
+  long getLocksGranted();
+
+  /**
+   * @return the number of waitForLock calls that found the lock held and had to wait.
+   */
+  long getContendedLocks();
+
+  /**
+   * @return the number of waitForLock calls that timed out.
+   */
+  long getLockTimeouts();
+
+  /**
+   * @return the number of threads waiting for a lock now.
+   */
+  long getWaitingThreads();
+
+  /**
+   * @return the total time spent waiting for held locks, in ms.
+   */
+  long getTotalWaitTime();
+
+  /**
+   * @return the mean time a contended waitForLock waited, in ms.
+   */
+  long getAverageWaitTime();
+
+  /**
+   * @return the longest time a waitForLock waited, in ms.
+   */
+  long getMaxWaitTime();
+
+  /**
+   * Reset the counters, leaving the number of waiting threads.
+   */
+  void reset();
+}
@@ -22,6 +22,7 @@ import static org.easymock.EasyMock.expect;
 import static org.easymock.EasyMock.replay;
 import static org.easymock.EasyMock.verify;
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
 
 import org.junit.After;
 import org.junit.Before;
@@ -33,6 +34,10 @@ import org.sakaiproject.nakamura.api.memory.CacheManagerService;
 import org.sakaiproject.nakamura.api.memory.CacheScope;
 import org.sakaiproject.nakamura.memory.MapCacheImpl;
 
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+
 /**
  *
  */
@@ -99,4 +104,56 @@ public class LockManagerImplTest {
     assertEquals(null, lock);
   }
 
+  @Test
+  public void testWaiterIsWokenByUnlock() throws Exception {
+    final LockImpl held = (LockImpl) lockManager.getLock("foo");
+    final CountDownLatch granted = new CountDownLatch(1);
+    final AtomicReference<Lock> waited = new AtomicReference<Lock>();
+    final AtomicReference<Throwable> failure = new AtomicReference<Throwable>();
+    Thread waiter = new Thread() {
+      @Override
+      public void run() {
+        try {
+          waited.set(lockManager.waitForLock("foo"));
+        } catch (Throwable t) {
+          failure.set(t);
+        } finally {
+          granted.countDown();
+        }
+      }
+    };
+    waiter.start();
+    while (lockManager.getStats().getWaitingThreads() == 0 && failure.get() == null) {
+      Thread.sleep(5);
+    }
+    rethrow(failure.get());
+    assertEquals(1, granted.getCount());
+
+    long start = System.currentTimeMillis();
+    lockManager.unlock(held);
+    assertTrue(granted.await(10, TimeUnit.SECONDS));
+    rethrow(failure.get());
+    // woken by the unlock rather than by the periodic recheck
+    assertTrue(System.currentTimeMillis() - start < LockManagerImpl.RECHECK_INTERVAL);
+    waiter.join();
+
+    assertEquals("foo", waited.get().getLocked());
+    assertEquals(false, waited.get().isOwner());
+    assertEquals(1, lockManager.getStats().getContendedLocks());
+    assertEquals(1, lockManager.getStats().getLocksGranted());
+    assertEquals(0, lockManager.getStats().getWaitingThreads());
+  }
+
+  /**
+   * Report a failure of another thread as the failure of the test.
+   */
+  private void rethrow(Throwable t) throws Exception {
+    if (t instanceof Exception) {
+      throw (Exception) t;
+    }
+    if (t instanceof Error) {
+      throw (Error) t;
+    }
+  }
+
 }
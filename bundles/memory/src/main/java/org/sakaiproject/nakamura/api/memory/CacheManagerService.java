@@ -28,7 +28,9 @@ public interface CacheManagerService {
    * Get a cache to contain a specified type, with a defined scope. Getting a
    * cache of the same name in the same scope will return the same cache for
    * that scope. The thread invoking the method forms part of the scope for
-   * CacheScopes THREAD or REQUEST.
+   * CacheScopes THREAD or REQUEST. Caches are resolved handles that may be held
+   * in a field; a THREAD or REQUEST cache acts on the calling thread's cache on
+   * every call.
    *
    * @param <T> The type of the elements, but be serializable for any non thread bound cache.
    * @param name the name of the cache.
@@ -17,25 +17,23 @@
  */
 package org.sakaiproject.nakamura.memory;
 
-import com.google.common.collect.Sets;
 import net.sf.ehcache.CacheManager;
 import net.sf.ehcache.Element;
 import net.sf.ehcache.config.CacheConfiguration;
 
 import org.sakaiproject.nakamura.api.memory.Cache;
 import org.sakaiproject.nakamura.api.memory.CacheScope;
-import org.sakaiproject.nakamura.util.telemetry.TelemetryCounter;
+import org.sakaiproject.nakamura.util.telemetry.Counter;
+import org.sakaiproject.nakamura.util.telemetry.TelemetryRegistry;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
-import java.io.ByteArrayInputStream;
-import java.io.ByteArrayOutputStream;
-import java.io.IOException;
-import java.io.ObjectInputStream;
-import java.io.ObjectOutputStream;
+import java.io.Serializable;
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.List;
 import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
 
 /**
  *
@@ -43,11 +41,13 @@ import java.util.Set;
 public class CacheImpl<V> implements Cache<V> {
 
   private static final Logger LOGGER = LoggerFactory.getLogger(CacheImpl.class);
+  private static final Counter HITS = TelemetryRegistry.counter("memory", "Cache", "hits");
+  private static final Counter MISSES = TelemetryRegistry.counter("memory", "Cache", "misses");
   private String cacheName;
   private net.sf.ehcache.Cache cache;
   private CacheScope scope;
   private boolean checkPayloadClasses;
-  private Set<String> loadedClasses = Sets.newHashSet();
+  private final Set<String> loadedClasses = Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
 
   /**
    * @param cacheManager
@@ -114,9 +114,9 @@ public class CacheImpl<V> implements Cache<V> {
   @SuppressWarnings("unchecked")
   private V stats(Object objectValue) {
     if (objectValue == null) {
-      TelemetryCounter.incrementValue("memory", "Cache", "misses");
+      MISSES.increment();
     } else {
-      TelemetryCounter.incrementValue("memory", "Cache", "hits");
+      HITS.increment();
     }
     return (V) objectValue;
   }
@@ -128,51 +128,55 @@ public class CacheImpl<V> implements Cache<V> {
    */
   @SuppressWarnings("unchecked")
   public V put(String key, V payload) {
-    V previous = null;
-    if (cache.isKeyInCache(key)) {
-      Element e = cache.get(key);
-      if (e != null) {
-        previous = (V) e.getObjectValue();
-      }
+    if (checkPayloadClasses) {
+      checkPayloadClass(payload);
     }
-    if (checkPayloadClasses
-        && !loadedClasses.contains(payload.getClass().getName())) {
-      ClassLoader cl = Thread.currentThread().getContextClassLoader();
-      Thread.currentThread().setContextClassLoader(this.getClass().getClassLoader());
-      try {
-
-        ByteArrayOutputStream baos = new ByteArrayOutputStream();
-        ObjectOutputStream oos = new ObjectOutputStream(baos);
-        oos.writeObject(payload);
-        oos.flush();
-        ByteArrayInputStream bin = new ByteArrayInputStream(
-            baos.toByteArray());
-        ObjectInputStream ois = new ObjectInputStream(bin);
-        Object o = ois.readObject();
-        if (!o.getClass().equals(payload.getClass())) {
-          throw new IllegalArgumentException(
-              "Class "
-                  + payload.getClass()
-                  + " may not be added to cache "
-                  + cacheName
-                  + "  as it would result in a ClassCast exception, please ensure the class is exported ");
-        }
-        loadedClasses.add(payload.getClass().getName());
-      } catch (IOException e) {
-        LOGGER.error("Unable to check serialization " + e.getMessage(),
-            e);
-      } catch (ClassNotFoundException e) {
-        LOGGER.error(e.getMessage(), e);
-        throw new IllegalArgumentException("Class "
-            + payload.getClass() + " may not be added to cache "
-            + cacheName + " serialization error cause:"
-            + e.getMessage());
-      } finally {
-        Thread.currentThread().setContextClassLoader(cl);
+    // most puts fill an empty key, which putIfAbsent does in one lookup.
+    Element element = new Element(key, payload);
+    Element current = cache.putIfAbsent(element);
+    while (current != null) {
+      if (cache.replace(current, element)) {
+        return current.isExpired() ? null : (V) current.getObjectValue();
       }
+      current = cache.putIfAbsent(element);
+    }
+    return null;
+  }
+
+  /**
+   * Payloads that may leave this bundle, by replication or to disk, must be read back with
+   * the class that was put, so the class must be serializable and this bundle must see the
+   * same class. Each class is checked once.
+   */
+  private void checkPayloadClass(V payload) {
+    Class<?> payloadClass = payload.getClass();
+    String className = payloadClass.getName();
+    if (loadedClasses.contains(className)) {
+      return;
+    }
+    if (!(payload instanceof Serializable)) {
+      // as before, this is reported once but does not stop the put.
+      LOGGER.error("Class {} put into cache {} is not Serializable ", payloadClass, cacheName);
+      loadedClasses.add(className);
+      return;
+    }
+    Class<?> visible;
+    try {
+      visible = Class.forName(className, false, this.getClass().getClassLoader());
+    } catch (ClassNotFoundException e) {
+      throw new IllegalArgumentException("Class " + payloadClass
+          + " may not be added to cache " + cacheName
+          + " as it is not visible to the cache, please ensure the class is exported ");
+    }
+    if (!visible.equals(payloadClass)) {
+      throw new IllegalArgumentException(
+          "Class "
+              + payloadClass
+              + " may not be added to cache "
+              + cacheName
+              + "  as it would result in a ClassCast exception, please ensure the class is exported ");
     }
-    cache.put(new Element(key, payload));
-    return previous;
+    loadedClasses.add(className);
   }
 
   /**
@@ -25,6 +25,9 @@ import org.apache.commons.lang.StringUtils;
 import org.apache.felix.scr.annotations.Activate;
 import org.apache.felix.scr.annotations.Component;
 import org.apache.felix.scr.annotations.Property;
+import org.apache.felix.scr.annotations.Reference;
+import org.apache.felix.scr.annotations.ReferenceCardinality;
+import org.apache.felix.scr.annotations.ReferencePolicy;
 import org.apache.felix.scr.annotations.Service;
 import org.apache.sling.commons.osgi.PropertiesUtil;
 import org.sakaiproject.nakamura.api.memory.Cache;
@@ -40,9 +43,17 @@ import java.io.FileNotFoundException;
 import java.io.IOException;
 import java.io.InputStream;
 import java.lang.management.ManagementFactory;
+import java.util.Collections;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
 import java.util.Map;
 import java.util.Scanner;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicReference;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
@@ -68,6 +79,22 @@ public class CacheManagerServiceImpl implements CacheManagerService {
   @Property( value = DEFAULT_CACHE_STORE)
   public static final String CACHE_STORE = "cache-store";
 
+  /**
+   * Names of caches that keep a sorted index of their keys, for caches where
+   * removeChildren or list are used on large contents.
+   */
+  @Property(cardinality = 9999999)
+  public static final String PREFIX_INDEXED_CACHES = "prefix-indexed-caches";
+
+  /**
+   * Caches with an off heap second tier, as name=megabytes, eg contentCache=512. The
+   * sparse content and authorizable caches are contentCache and authorizableCache. A
+   * cache listed here is not prefix indexed even if it is also listed in
+   * prefix-indexed-caches.
+   */
+  @Property(cardinality = 9999999)
+  public static final String OFF_HEAP_CACHES = "off-heap-caches";
+
   @Property(value = "The Sakai Foundation")
   static final String SERVICE_VENDOR = "service.vendor";
 
@@ -77,9 +104,57 @@ public class CacheManagerServiceImpl implements CacheManagerService {
   private static final String CONFIG_PATH = "res://org/sakaiproject/nakamura/memory/ehcacheConfig.xml";
   private static final Logger LOGGER = LoggerFactory.getLogger(CacheManagerServiceImpl.class);
   private CacheManager cacheManager;
-  private Map<String, Cache<?>> caches = new HashMap<String, Cache<?>>();
-  private ThreadLocalCacheMap requestCacheMapHolder = new ThreadLocalCacheMap();
-  private ThreadLocalCacheMap threadCacheMapHolder = new ThreadLocalCacheMap();
+  private final ConcurrentMap<String, Cache<?>> caches = new ConcurrentHashMap<String, Cache<?>>();
+  private volatile Set<String> prefixIndexedCaches = Collections.emptySet();
+  private volatile Map<String, Long> offHeapCaches = Collections.emptyMap();
+  private final List<OffHeapTieredCacheImpl<?>> tieredCaches = new CopyOnWriteArrayList<OffHeapTieredCacheImpl<?>>();
+  private final ConcurrentMap<String, ThreadBoundCache<?>> requestCaches = new ConcurrentHashMap<String, ThreadBoundCache<?>>();
+  private final ConcurrentMap<String, ThreadBoundCache<?>> threadCaches = new ConcurrentHashMap<String, ThreadBoundCache<?>>();
+  private final ThreadLocalCacheSlots requestCacheSlots = new ThreadLocalCacheSlots(CacheScope.REQUEST);
+  private final ThreadLocalCacheSlots threadCacheSlots = new ThreadLocalCacheSlots(CacheScope.THREAD);
+
+  /**
+   * Publishes changes to CLUSTERINVALIDATED and CLUSTERREPLICATED caches, null until a bus
+   * is bound, in which case those caches behave as INSTANCE caches.
+   */
+  @Reference(cardinality = ReferenceCardinality.OPTIONAL_UNARY, policy = ReferencePolicy.DYNAMIC)
+  private InvalidationBus invalidationBus;
+  private final AtomicReference<InvalidationBus> currentInvalidationBus = new AtomicReference<InvalidationBus>();
+
+  /**
+   * Applies invalidations from other nodes to the caches on this node.
+   */
+  private final InvalidationListener invalidationListener = new InvalidationListener() {
+
+    public void invalidate(String cacheName, String key) {
+      ClusterInvalidatedCache<?> cache = getClusterInvalidatedCache(cacheName);
+      if (cache != null) {
+        cache.removeLocal(key);
+      }
+    }
+
+    public void invalidateChildren(String cacheName, String key) {
+      ClusterInvalidatedCache<?> cache = getClusterInvalidatedCache(cacheName);
+      if (cache != null) {
+        cache.removeChildrenLocal(key);
+      }
+    }
+
+    public void invalidateAll(String cacheName) {
+      ClusterInvalidatedCache<?> cache = getClusterInvalidatedCache(cacheName);
+      if (cache != null) {
+        cache.clearLocal();
+      }
+    }
+
+    public void flush() {
+      for (Cache<?> cache : caches.values()) {
+        if (cache instanceof ClusterInvalidatedCache<?>) {
+          ((ClusterInvalidatedCache<?>) cache).clearLocal();
+        }
+      }
+    }
+  };
 
   public CacheManagerServiceImpl() throws IOException {
     create();
@@ -123,6 +198,35 @@ public class CacheManagerServiceImpl implements CacheManagerService {
    @Activate
    protected void activate(Map<String, Object> properties) throws FileNotFoundException, IOException {
 	  String config = PropertiesUtil.toString(properties.get(CACHE_CONFIG), DEFAULT_CACHE_CONFIG);
+	  String[] indexed = PropertiesUtil.toStringArray(properties.get(PREFIX_INDEXED_CACHES), new String[0]);
+	  Set<String> indexedNames = new HashSet<String>();
+	  for (String name : indexed) {
+	    if (!StringUtils.isBlank(name)) {
+	      indexedNames.add(name.trim());
+	    }
+	  }
+	  prefixIndexedCaches = indexedNames;
+	  String[] offHeap = PropertiesUtil.toStringArray(properties.get(OFF_HEAP_CACHES), new String[0]);
+	  Map<String, Long> offHeapSizes = new HashMap<String, Long>();
+	  for (String spec : offHeap) {
+	    String[] parts = StringUtils.split(spec, "=");
+	    if (parts != null && parts.length == 2) {
+	      try {
+	        offHeapSizes.put(parts[0].trim(), Long.parseLong(parts[1].trim()) * 1024L * 1024L);
+	      } catch (NumberFormatException e) {
+	        LOGGER.warn("Ignoring off heap cache size {}, expected name=megabytes ", spec);
+	      }
+	    } else if (!StringUtils.isBlank(spec)) {
+	      LOGGER.warn("Ignoring off heap cache size {}, expected name=megabytes ", spec);
+	    }
+	  }
+	  for (String name : offHeapSizes.keySet()) {
+	    if (indexedNames.contains(name)) {
+	      LOGGER.warn("Cache {} is in both {} and {}, it will have an off heap tier and no prefix index ",
+	          new Object[] { name, OFF_HEAP_CACHES, PREFIX_INDEXED_CACHES });
+	    }
+	  }
+	  offHeapCaches = offHeapSizes;
 	  File configFile = new File(config);
 	  ClassLoader cl = Thread.currentThread().getContextClassLoader();
 	  try {
@@ -183,10 +287,27 @@ public class CacheManagerServiceImpl implements CacheManagerService {
    * perform a shutdown
    */
   public void stop() {
+    for (OffHeapTieredCacheImpl<?> tiered : tieredCaches) {
+      tiered.dispose();
+    }
+    tieredCaches.clear();
     cacheManager.shutdown();
     // we really want to notify all threads that have maps
   }
 
+  protected void bindInvalidationBus(InvalidationBus invalidationBus) {
+    this.invalidationBus = invalidationBus;
+    currentInvalidationBus.set(invalidationBus);
+    invalidationBus.setListener(invalidationListener);
+  }
+
+  protected void unbindInvalidationBus(InvalidationBus invalidationBus) {
+    invalidationBus.setListener(null);
+    if (currentInvalidationBus.compareAndSet(invalidationBus, null)) {
+      this.invalidationBus = null;
+    }
+  }
+
   /**
    * {@inheritDoc}
    *
@@ -210,37 +331,39 @@ public class CacheManagerServiceImpl implements CacheManagerService {
   }
 
   /**
-   * Generate a cache bound to the thread.
+   * Get the handle on a cache bound to the thread.
    *
    * @param name
    * @return
    */
-  @SuppressWarnings("unchecked")
   private <V> Cache<V> getThreadCache(String name) {
-    Map<String, Cache<?>> threadCacheMap = threadCacheMapHolder.get();
-    Cache<V> threadCache = (Cache<V>) threadCacheMap.get(name);
-    if (threadCache == null) {
-      threadCache = new MapCacheImpl<V>(name, CacheScope.THREAD);
-      threadCacheMap.put(name, threadCache);
-    }
-    return threadCache;
+    return getThreadBoundCache(threadCaches, threadCacheSlots, name, CacheScope.THREAD);
   }
 
   /**
-   * Generate a cache bound to the request
+   * Get the handle on a cache bound to the request
    *
    * @param name
    * @return
    */
-  @SuppressWarnings("unchecked")
   private <V> Cache<V> getRequestCache(String name) {
-    Map<String, Cache<?>> requestCacheMap = requestCacheMapHolder.get();
-    Cache<V> requestCache = (Cache<V>) requestCacheMap.get(name);
-    if (requestCache == null) {
-      requestCache = new MapCacheImpl<V>(name, CacheScope.REQUEST);
-      requestCacheMap.put(name, requestCache);
+    return getThreadBoundCache(requestCaches, requestCacheSlots, name, CacheScope.REQUEST);
+  }
+
+  @SuppressWarnings("unchecked")
+  private <V> Cache<V> getThreadBoundCache(ConcurrentMap<String, ThreadBoundCache<?>> handles,
+      ThreadLocalCacheSlots slots, String name, CacheScope scope) {
+    ThreadBoundCache<V> c = (ThreadBoundCache<V>) handles.get(name);
+    if (c == null) {
+      synchronized (handles) {
+        c = (ThreadBoundCache<V>) handles.get(name);
+        if (c == null) {
+          c = new ThreadBoundCache<V>(name, scope, slots);
+          handles.put(name, c);
+        }
+      }
     }
-    return requestCache;
+    return c;
   }
 
   /**
@@ -251,16 +374,43 @@ public class CacheManagerServiceImpl implements CacheManagerService {
   private <V> Cache<V> getInstanceCache(String name, CacheScope scope) {
     if (name == null) {
       return new CacheImpl<V>(cacheManager, null, scope);
-    } else {
-      Cache<V> c = (Cache<V>) caches.get(name);
+    }
+    Cache<V> c = (Cache<V>) caches.get(name);
+    if (c != null) {
+      return c;
+    }
+    // creating a cache registers it with Ehcache, JMX and the bus, so only one thread may.
+    synchronized (caches) {
+      c = (Cache<V>) caches.get(name);
       if (c == null) {
-        c = new CacheImpl<V>(cacheManager, name, scope);
+        Long offHeapBytes = offHeapCaches.get(name);
+        if (offHeapBytes != null) {
+          OffHeapTieredCacheImpl<V> tiered = new OffHeapTieredCacheImpl<V>(cacheManager, name, scope, offHeapBytes);
+          tieredCaches.add(tiered);
+          c = tiered;
+        } else if (prefixIndexedCaches.contains(name)) {
+          c = new PrefixIndexedCacheImpl<V>(cacheManager, name, scope);
+        } else {
+          c = new CacheImpl<V>(cacheManager, name, scope);
+        }
+        if (CacheScope.CLUSTERINVALIDATED.equals(scope)
+            || CacheScope.CLUSTERREPLICATED.equals(scope)) {
+          c = new ClusterInvalidatedCache<V>(name, c, currentInvalidationBus);
+        }
         caches.put(name, c);
       }
       return c;
     }
   }
 
+  private ClusterInvalidatedCache<?> getClusterInvalidatedCache(String name) {
+    Cache<?> cache = caches.get(name);
+    if (cache instanceof ClusterInvalidatedCache<?>) {
+      return (ClusterInvalidatedCache<?>) cache;
+    }
+    return null;
+  }
+
   /**
    * {@inheritDoc}
    *
@@ -281,22 +431,14 @@ public class CacheManagerServiceImpl implements CacheManagerService {
    *
    */
   private void unbindThread() {
-    Map<String, Cache<?>> threadCache = threadCacheMapHolder.get();
-    for (Cache<?> cache : threadCache.values()) {
-      cache.clear();
-    }
-    threadCacheMapHolder.remove();
+    threadCacheSlots.unbind();
   }
 
   /**
    *
    */
   private void unbindRequest() {
-    Map<String, Cache<?>> requestCache = requestCacheMapHolder.get();
-    for (Cache<?> cache : requestCache.values()) {
-      cache.clear();
-    }
-    requestCacheMapHolder.remove();
+    requestCacheSlots.unbind();
   }
 
 }
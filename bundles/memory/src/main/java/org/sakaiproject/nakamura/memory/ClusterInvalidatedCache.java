@@ -0,0 +1,160 @@
+/**
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.nakamura.memory;
+
+import org.sakaiproject.nakamura.api.memory.Cache;
+import org.sakaiproject.nakamura.api.memory.CacheScope;
+
+import java.util.List;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * A cache held on this node that tells the other nodes when it changes.
+ * <p>
+ * Removing a key, its children or everything is published to the other nodes. A put
+ * that replaces a value held here is an update and is published too. A put into a key
+ * that is not held here is treated as a read through fill and is not published,
+ * otherwise every miss on one node would empty the same key on every other node. Writers
+ * that may not hold the key locally must remove it after writing, as the sparse caching
+ * manager does.
+ */
+public class ClusterInvalidatedCache<V> implements Cache<V> {
+
+  private final String name;
+  private final Cache<V> local;
+  private final AtomicReference<InvalidationBus> bus;
+
+  /**
+   * @param name
+   *          the name of the cache, the same on every node.
+   * @param local
+   *          the cache holding the entries on this node.
+   * @param bus
+   *          the current invalidation bus, holding null when there is none.
+   */
+  public ClusterInvalidatedCache(String name, Cache<V> local,
+      AtomicReference<InvalidationBus> bus) {
+    this.name = name;
+    this.local = local;
+    this.bus = bus;
+  }
+
+  /**
+   * {@inheritDoc}
+   *
+   * @see org.sakaiproject.nakamura.api.memory.Cache#put(java.lang.String, java.lang.Object)
+   */
+  public V put(String key, V payload) {
+    V previous = local.put(key, payload);
+    if (previous != null) {
+      InvalidationBus b = bus.get();
+      if (b != null) {
+        b.invalidate(name, key);
+      }
+    }
+    return previous;
+  }
+
+  /**
+   * {@inheritDoc}
+   *
+   * @see org.sakaiproject.nakamura.api.memory.Cache#containsKey(java.lang.String)
+   */
+  public boolean containsKey(String key) {
+    return local.containsKey(key);
+  }
+
+  /**
+   * {@inheritDoc}
+   *
+   * @see org.sakaiproject.nakamura.api.memory.Cache#get(java.lang.String)
+   */
+  public V get(String key) {
+    return local.get(key);
+  }
+
+  /**
+   * {@inheritDoc}
+   *
+   * @see org.sakaiproject.nakamura.api.memory.Cache#clear()
+   */
+  public void clear() {
+    local.clear();
+    InvalidationBus b = bus.get();
+    if (b != null) {
+      b.invalidateAll(name);
+    }
+  }
+
+  /**
+   * {@inheritDoc}
+   *
+   * @see org.sakaiproject.nakamura.api.memory.Cache#remove(java.lang.String)
+   */
+  public void remove(String key) {
+    local.remove(key);
+    InvalidationBus b = bus.get();
+    if (b != null) {
+      b.invalidate(name, key);
+    }
+  }
+
+  /**
+   * {@inheritDoc}
+   *
+   * @see org.sakaiproject.nakamura.api.memory.Cache#removeChildren(java.lang.String)
+   */
+  public void removeChildren(String key) {
+    local.removeChildren(key);
+    InvalidationBus b = bus.get();
+    if (b != null) {
+      b.invalidateChildren(name, key);
+    }
+  }
+
+  /**
+   * {@inheritDoc}
+   *
+   * @see org.sakaiproject.nakamura.api.memory.Cache#list()
+   */
+  public List<V> list() {
+    return local.list();
+  }
+
+  public void checkCompatableScope(CacheScope scope) {
+    local.checkCompatableScope(scope);
+  }
+
+  /**
+   * Apply an invalidation from another node, without publishing it again.
+   *
+   * @param key
+   */
+  void removeLocal(String key) {
+    local.remove(key);
+  }
+
+  void removeChildrenLocal(String key) {
+    local.removeChildren(key);
+  }
+
+  void clearLocal() {
+    local.clear();
+  }
+
+}
@@ -0,0 +1,393 @@
+/**
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.nakamura.memory;
+
+import org.apache.felix.scr.annotations.Activate;
+import org.apache.felix.scr.annotations.Component;
+import org.apache.felix.scr.annotations.Deactivate;
+import org.apache.felix.scr.annotations.Property;
+import org.apache.felix.scr.annotations.Reference;
+import org.apache.felix.scr.annotations.Service;
+import org.apache.sling.commons.osgi.PropertiesUtil;
+import org.sakaiproject.nakamura.api.activemq.ConnectionFactoryService;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import javax.jms.BytesMessage;
+import javax.jms.Connection;
+import javax.jms.DeliveryMode;
+import javax.jms.ExceptionListener;
+import javax.jms.JMSException;
+import javax.jms.Message;
+import javax.jms.MessageConsumer;
+import javax.jms.MessageListener;
+import javax.jms.MessageProducer;
+import javax.jms.Session;
+import javax.jms.Topic;
+
+/**
+ * Sends invalidations of cluster invalidated caches to the other nodes over a JMS topic.
+ * <p>
+ * Invalidations are collected into a coalescing {@link InvalidationBatch} and sent by a
+ * single thread every batch.delay milliseconds, or as soon as batch.size are waiting.
+ * While the broker cannot be reached the batch keeps coalescing and is sent on reconnect.
+ * <p>
+ * Each connection to the broker starts a new generation on this node. Local caches are
+ * flushed whenever a generation starts, since invalidations sent while this node was not
+ * subscribed were lost. Messages carry the generation and a sequence number within it,
+ * and a receiver that sees a sequence gap from a sender flushes its caches, so a node that
+ * drops out and rejoins never keeps serving entries it may have missed invalidations for.
+ */
+@Component(immediate = true, metatype = true)
+@Service(value = InvalidationBus.class)
+public class ClusterInvalidationBus implements InvalidationBus, MessageListener,
+    ExceptionListener {
+
+  private static final Logger LOGGER = LoggerFactory.getLogger(ClusterInvalidationBus.class);
+
+  public static final String DEFAULT_TOPIC = "org/sakaiproject/nakamura/memory/invalidate";
+  @Property(value = DEFAULT_TOPIC)
+  static final String TOPIC = "invalidation.topic";
+
+  public static final int DEFAULT_BATCH_DELAY = 50;
+  @Property(intValue = DEFAULT_BATCH_DELAY)
+  static final String BATCH_DELAY = "invalidation.batch.delay";
+
+  public static final int DEFAULT_BATCH_SIZE = 500;
+  @Property(intValue = DEFAULT_BATCH_SIZE)
+  static final String BATCH_SIZE = "invalidation.batch.size";
+
+  public static final int DEFAULT_MAX_KEYS_PER_CACHE = 1000;
+  @Property(intValue = DEFAULT_MAX_KEYS_PER_CACHE)
+  static final String MAX_KEYS_PER_CACHE = "invalidation.max.keys.per.cache";
+
+  @Property(value = "The Sakai Foundation")
+  static final String SERVICE_VENDOR = "service.vendor";
+
+  @Property(value = "Invalidates cluster invalidated caches on the other nodes in the cluster")
+  static final String SERVICE_DESCRIPTION = "service.description";
+
+  /**
+   * How long to wait before trying the broker again after failing to connect.
+   */
+  private static final long RECONNECT_DELAY = 5000L;
+
+  static final String PROP_NODE = "node";
+  static final String PROP_GENERATION = "generation";
+  static final String PROP_SEQUENCE = "sequence";
+
+  @Reference
+  protected ConnectionFactoryService connFactoryService;
+
+  private final String nodeId = UUID.randomUUID().toString();
+  private volatile InvalidationListener listener;
+
+  private String topicName;
+  private long batchDelay;
+  private int batchSize;
+  private int maxKeysPerCache;
+
+  private final Object pendingLock = new Object();
+  private InvalidationBatch pending;
+  private final AtomicBoolean flushQueued = new AtomicBoolean();
+
+  /**
+   * The last generation and sequence seen from each of the other nodes.
+   */
+  private final Map<String, long[]> senders = new ConcurrentHashMap<String, long[]>();
+
+  /*
+   * The connection and everything on it belongs to the sender thread.
+   */
+  private ScheduledExecutorService sender;
+  private Connection connection;
+  private Session producerSession;
+  private MessageProducer producer;
+  private long generation;
+  private long sequence;
+  private long nextConnect;
+
+  private final Runnable flushTask = new Runnable() {
+    public void run() {
+      flushQueued.set(false);
+      flush();
+    }
+  };
+
+  @Activate
+  protected void activate(Map<String, Object> properties) {
+    topicName = PropertiesUtil.toString(properties.get(TOPIC), DEFAULT_TOPIC);
+    batchDelay = PropertiesUtil.toInteger(properties.get(BATCH_DELAY), DEFAULT_BATCH_DELAY);
+    batchSize = PropertiesUtil.toInteger(properties.get(BATCH_SIZE), DEFAULT_BATCH_SIZE);
+    maxKeysPerCache = PropertiesUtil.toInteger(properties.get(MAX_KEYS_PER_CACHE),
+        DEFAULT_MAX_KEYS_PER_CACHE);
+    synchronized (pendingLock) {
+      pending = new InvalidationBatch(maxKeysPerCache);
+    }
+    sender = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+      public Thread newThread(Runnable r) {
+        Thread t = new Thread(r, "Cluster Cache Invalidation Sender");
+        t.setDaemon(true);
+        return t;
+      }
+    });
+    sender.scheduleWithFixedDelay(flushTask, 0, batchDelay, TimeUnit.MILLISECONDS);
+  }
+
+  @Deactivate
+  protected void deactivate(Map<String, Object> properties) {
+    sender.shutdown();
+    try {
+      sender.awaitTermination(5, TimeUnit.SECONDS);
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+    // the sender has stopped, so the connection can be used from here.
+    flush();
+    disconnect();
+  }
+
+  /**
+   * {@inheritDoc}
+   *
+   * @see org.sakaiproject.nakamura.memory.InvalidationBus#invalidate(java.lang.String,
+   *      java.lang.String)
+   */
+  public void invalidate(String cacheName, String key) {
+    int size;
+    synchronized (pendingLock) {
+      pending.invalidate(cacheName, key);
+      size = pending.size();
+    }
+    queueFlush(size);
+  }
+
+  /**
+   * {@inheritDoc}
+   *
+   * @see org.sakaiproject.nakamura.memory.InvalidationBus#invalidateChildren(java.lang.String,
+   *      java.lang.String)
+   */
+  public void invalidateChildren(String cacheName, String key) {
+    int size;
+    synchronized (pendingLock) {
+      pending.invalidateChildren(cacheName, key);
+      size = pending.size();
+    }
+    queueFlush(size);
+  }
+
+  /**
+   * {@inheritDoc}
+   *
+   * @see org.sakaiproject.nakamura.memory.InvalidationBus#invalidateAll(java.lang.String)
+   */
+  public void invalidateAll(String cacheName) {
+    int size;
+    synchronized (pendingLock) {
+      pending.invalidateAll(cacheName);
+      size = pending.size();
+    }
+    queueFlush(size);
+  }
+
+  /**
+   * {@inheritDoc}
+   *
+   * @see org.sakaiproject.nakamura.memory.InvalidationBus#setListener(org.sakaiproject.nakamura.memory.InvalidationListener)
+   */
+  public void setListener(InvalidationListener listener) {
+    this.listener = listener;
+  }
+
+  /**
+   * Send a full batch without waiting for the next scheduled flush.
+   */
+  private void queueFlush(int size) {
+    if (size >= batchSize && flushQueued.compareAndSet(false, true)) {
+      try {
+        sender.execute(flushTask);
+      } catch (RuntimeException e) {
+        // shutting down, the final flush in deactivate sends the batch.
+        flushQueued.set(false);
+      }
+    }
+  }
+
+  /**
+   * Send whatever is pending, called on the sender thread only.
+   */
+  void flush() {
+    if (!connect()) {
+      return;
+    }
+    InvalidationBatch batch;
+    synchronized (pendingLock) {
+      if (pending.isEmpty()) {
+        return;
+      }
+      batch = pending;
+      pending = new InvalidationBatch(maxKeysPerCache);
+    }
+    try {
+      BytesMessage message = producerSession.createBytesMessage();
+      message.writeBytes(batch.toBytes());
+      message.setStringProperty(PROP_NODE, nodeId);
+      message.setLongProperty(PROP_GENERATION, generation);
+      message.setLongProperty(PROP_SEQUENCE, sequence + 1);
+      producer.send(message);
+      sequence++;
+    } catch (JMSException e) {
+      LOGGER.warn("Failed to send {} cache invalidations, will retry: {} ", batch.size(),
+          e.getMessage());
+      requeue(batch);
+      disconnect();
+    } catch (IOException e) {
+      // writing to a byte array does not fail.
+      LOGGER.error(e.getMessage(), e);
+    }
+  }
+
+  private void requeue(InvalidationBatch batch) {
+    synchronized (pendingLock) {
+      batch.addAll(pending);
+      pending = batch;
+    }
+  }
+
+  /**
+   * Make sure there is a connection, starting a new generation if one had to be made.
+   *
+   * @return true if connected.
+   */
+  private boolean connect() {
+    if (connection != null) {
+      return true;
+    }
+    if (System.currentTimeMillis() < nextConnect) {
+      return false;
+    }
+    try {
+      connection = connFactoryService.getDefaultConnectionFactory().createConnection();
+      connection.setExceptionListener(this);
+      Session consumerSession = connection.createSession(false, Session.AUTO_ACKNOWLEDGE);
+      Topic topic = consumerSession.createTopic(topicName);
+      MessageConsumer consumer = consumerSession.createConsumer(topic, null, true);
+      consumer.setMessageListener(this);
+      producerSession = connection.createSession(false, Session.AUTO_ACKNOWLEDGE);
+      producer = producerSession.createProducer(topic);
+      producer.setDeliveryMode(DeliveryMode.NON_PERSISTENT);
+      connection.start();
+    } catch (JMSException e) {
+      LOGGER.warn("Unable to connect the cache invalidation bus to {}: {} ", topicName,
+          e.getMessage());
+      disconnect();
+      nextConnect = System.currentTimeMillis() + RECONNECT_DELAY;
+      return false;
+    }
+    generation = System.currentTimeMillis();
+    sequence = 0;
+    senders.clear();
+    InvalidationListener l = listener;
+    if (l != null) {
+      l.flush();
+    }
+    LOGGER.info("Cache invalidation bus connected to {} as {} generation {} ", new Object[] {
+        topicName, nodeId, generation });
+    return true;
+  }
+
+  private void disconnect() {
+    if (connection != null) {
+      try {
+        connection.close();
+      } catch (JMSException e) {
+        LOGGER.debug(e.getMessage(), e);
+      }
+    }
+    connection = null;
+    producerSession = null;
+    producer = null;
+  }
+
+  /**
+   * {@inheritDoc}
+   *
+   * @see javax.jms.ExceptionListener#onException(javax.jms.JMSException)
+   */
+  public void onException(JMSException e) {
+    LOGGER.warn("Cache invalidation bus lost its connection: {} ", e.getMessage());
+    try {
+      sender.execute(new Runnable() {
+        public void run() {
+          disconnect();
+        }
+      });
+    } catch (RuntimeException re) {
+      LOGGER.debug("Sender has stopped, {} ", re.getMessage());
+    }
+  }
+
+  /**
+   * {@inheritDoc}
+   *
+   * @see javax.jms.MessageListener#onMessage(javax.jms.Message)
+   */
+  public void onMessage(Message message) {
+    InvalidationListener l = listener;
+    if (l == null || !(message instanceof BytesMessage)) {
+      return;
+    }
+    try {
+      String node = message.getStringProperty(PROP_NODE);
+      if (node == null || nodeId.equals(node)) {
+        return;
+      }
+      long senderGeneration = message.getLongProperty(PROP_GENERATION);
+      long senderSequence = message.getLongProperty(PROP_SEQUENCE);
+      long[] last = senders.put(node, new long[] { senderGeneration, senderSequence });
+      if (last != null && last[0] == senderGeneration && senderSequence != last[1] + 1) {
+        LOGGER.warn("Missed cache invalidations from {}, expected {} got {}, flushing ",
+            new Object[] { node, last[1] + 1, senderSequence });
+        l.flush();
+        return;
+      }
+      BytesMessage bytesMessage = (BytesMessage) message;
+      byte[] body = new byte[(int) bytesMessage.getBodyLength()];
+      bytesMessage.readBytes(body);
+      InvalidationBatch.fromBytes(body, Integer.MAX_VALUE).apply(l);
+    } catch (JMSException e) {
+      LOGGER.warn("Unreadable cache invalidation, flushing: {} ", e.getMessage());
+      l.flush();
+    } catch (IOException e) {
+      LOGGER.warn("Unreadable cache invalidation, flushing: {} ", e.getMessage());
+      l.flush();
+    }
+  }
+
+}
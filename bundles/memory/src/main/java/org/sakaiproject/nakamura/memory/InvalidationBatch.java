@@ -0,0 +1,196 @@
+/**
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.nakamura.memory;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.Set;
+
+/**
+ * A set of invalidations that travels as one message on the invalidation bus.
+ * <p>
+ * Invalidations are coalesced as they are added. A key is held once per cache however
+ * often it is invalidated, and a cache that has been invalidated as a whole drops its
+ * keys. A cache that collects more than maxKeysPerCache keys is invalidated as a whole,
+ * so a batch never grows beyond the number of caches times maxKeysPerCache. Not thread
+ * safe, the bus guards the batch it is filling.
+ */
+public class InvalidationBatch {
+
+  private static final byte KEY = 0;
+  private static final byte CHILDREN = 1;
+  private static final byte ALL = 2;
+
+  private final int maxKeysPerCache;
+  private final Map<String, Map<String, Byte>> keys = new LinkedHashMap<String, Map<String, Byte>>();
+  private final Set<String> all = new LinkedHashSet<String>();
+  private int size;
+
+  public InvalidationBatch(int maxKeysPerCache) {
+    this.maxKeysPerCache = maxKeysPerCache;
+  }
+
+  public void invalidate(String cacheName, String key) {
+    add(KEY, cacheName, key);
+  }
+
+  public void invalidateChildren(String cacheName, String key) {
+    add(CHILDREN, cacheName, key);
+  }
+
+  public void invalidateAll(String cacheName) {
+    add(ALL, cacheName, null);
+  }
+
+  /**
+   * Add every invalidation in another batch to this one.
+   *
+   * @param other
+   */
+  public void addAll(InvalidationBatch other) {
+    for (String cacheName : other.all) {
+      add(ALL, cacheName, null);
+    }
+    for (Entry<String, Map<String, Byte>> e : other.keys.entrySet()) {
+      for (Entry<String, Byte> k : e.getValue().entrySet()) {
+        add(k.getValue(), e.getKey(), k.getKey());
+      }
+    }
+  }
+
+  private void add(byte type, String cacheName, String key) {
+    if (all.contains(cacheName)) {
+      return;
+    }
+    if (type == ALL) {
+      Map<String, Byte> dropped = keys.remove(cacheName);
+      if (dropped != null) {
+        size -= dropped.size();
+      }
+      all.add(cacheName);
+      size++;
+      return;
+    }
+    Map<String, Byte> cacheKeys = keys.get(cacheName);
+    if (cacheKeys == null) {
+      cacheKeys = new LinkedHashMap<String, Byte>();
+      keys.put(cacheName, cacheKeys);
+    }
+    Byte previous = cacheKeys.get(key);
+    if (previous == null) {
+      if (cacheKeys.size() >= maxKeysPerCache) {
+        add(ALL, cacheName, null);
+        return;
+      }
+      cacheKeys.put(key, type);
+      size++;
+    } else if (type == CHILDREN) {
+      // removing the children also removes the key, so the wider invalidation wins.
+      cacheKeys.put(key, type);
+    }
+  }
+
+  /**
+   * @return the number of distinct invalidations in the batch.
+   */
+  public int size() {
+    return size;
+  }
+
+  public boolean isEmpty() {
+    return size == 0;
+  }
+
+  /**
+   * Apply every invalidation in the batch to a listener.
+   *
+   * @param listener
+   */
+  public void apply(InvalidationListener listener) {
+    for (String cacheName : all) {
+      listener.invalidateAll(cacheName);
+    }
+    for (Entry<String, Map<String, Byte>> e : keys.entrySet()) {
+      for (Entry<String, Byte> k : e.getValue().entrySet()) {
+        if (k.getValue() == CHILDREN) {
+          listener.invalidateChildren(e.getKey(), k.getKey());
+        } else {
+          listener.invalidate(e.getKey(), k.getKey());
+        }
+      }
+    }
+  }
+
+  /**
+   * @return the batch as the body of a bus message.
+   * @throws IOException
+   */
+  public byte[] toBytes() throws IOException {
+    ByteArrayOutputStream baos = new ByteArrayOutputStream();
+    DataOutputStream out = new DataOutputStream(baos);
+    out.writeInt(size);
+    for (String cacheName : all) {
+      out.writeByte(ALL);
+      out.writeUTF(cacheName);
+    }
+    for (Entry<String, Map<String, Byte>> e : keys.entrySet()) {
+      for (Entry<String, Byte> k : e.getValue().entrySet()) {
+        out.writeByte(k.getValue());
+        out.writeUTF(e.getKey());
+        out.writeUTF(k.getKey());
+      }
+    }
+    out.flush();
+    return baos.toByteArray();
+  }
+
+  /**
+   * @param body
+   *          the body of a bus message.
+   * @param maxKeysPerCache
+   * @return the batch the message carried.
+   * @throws IOException
+   *           if the body is not a batch.
+   */
+  public static InvalidationBatch fromBytes(byte[] body, int maxKeysPerCache)
+      throws IOException {
+    InvalidationBatch batch = new InvalidationBatch(maxKeysPerCache);
+    DataInputStream in = new DataInputStream(new ByteArrayInputStream(body));
+    int n = in.readInt();
+    for (int i = 0; i < n; i++) {
+      byte type = in.readByte();
+      String cacheName = in.readUTF();
+      if (type == ALL) {
+        batch.add(ALL, cacheName, null);
+      } else if (type == KEY || type == CHILDREN) {
+        batch.add(type, cacheName, in.readUTF());
+      } else {
+        throw new IOException("Unknown invalidation type " + type);
+      }
+    }
+    return batch;
+  }
+
+}
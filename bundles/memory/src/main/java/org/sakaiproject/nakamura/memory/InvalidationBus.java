@@ -0,0 +1,57 @@
+/**
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.nakamura.memory;
+
+/**
+ * Carries invalidations of cluster invalidated caches to the other nodes in the cluster.
+ * Only keys travel, never values; a node that receives an invalidation drops its own copy
+ * and reloads it on the next miss.
+ */
+public interface InvalidationBus {
+
+  /**
+   * Tell the other nodes that a key has changed.
+   *
+   * @param cacheName
+   * @param key
+   */
+  void invalidate(String cacheName, String key);
+
+  /**
+   * Tell the other nodes that a key and all of its child keys have changed.
+   *
+   * @param cacheName
+   * @param key
+   */
+  void invalidateChildren(String cacheName, String key);
+
+  /**
+   * Tell the other nodes that everything in a cache has changed.
+   *
+   * @param cacheName
+   */
+  void invalidateAll(String cacheName);
+
+  /**
+   * @param listener
+   *          the listener that applies invalidations from other nodes to the local
+   *          caches, or null to stop applying them.
+   */
+  void setListener(InvalidationListener listener);
+
+}
@@ -0,0 +1,55 @@
+/**
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.nakamura.memory;
+
+/**
+ * Receives invalidations for cluster invalidated caches, either from other nodes or from
+ * the bus itself when it can no longer be sure the local caches are current.
+ */
+public interface InvalidationListener {
+
+  /**
+   * Drop a single key from the named cache on this node.
+   *
+   * @param cacheName
+   * @param key
+   */
+  void invalidate(String cacheName, String key);
+
+  /**
+   * Drop a key and all of its child keys from the named cache on this node.
+   *
+   * @param cacheName
+   * @param key
+   */
+  void invalidateChildren(String cacheName, String key);
+
+  /**
+   * Drop every entry from the named cache on this node.
+   *
+   * @param cacheName
+   */
+  void invalidateAll(String cacheName);
+
+  /**
+   * Drop every entry from every cluster invalidated cache on this node, used when
+   * invalidations may have been missed.
+   */
+  void flush();
+
+}
@@ -0,0 +1,261 @@
+/**
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.nakamura.memory;
+
+import org.sakaiproject.nakamura.api.lite.CacheHolder;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.NotSerializableException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.ObjectStreamClass;
+import java.io.Serializable;
+import java.util.Calendar;
+import java.util.GregorianCalendar;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.TimeZone;
+
+/**
+ * Compact binary form of cache values for the off heap tier.
+ * <p>
+ * Sparse {@link CacheHolder}s and the property maps of content and authorizables are
+ * written field by field with a one byte type tag per value, which is a fraction of the
+ * size of Java serialization. Other Serializable values fall back to Java serialization.
+ * Values that cannot be written at all are not moved off heap.
+ */
+public class OffHeapCodec {
+
+  private static final byte NULL = 0;
+  private static final byte STRING = 1;
+  private static final byte INTEGER = 2;
+  private static final byte LONG = 3;
+  private static final byte BOOLEAN = 4;
+  private static final byte DOUBLE = 5;
+  private static final byte STRING_ARRAY = 6;
+  private static final byte MAP = 7;
+  private static final byte CACHE_HOLDER = 8;
+  private static final byte CALENDAR = 9;
+  private static final byte BYTES = 10;
+  private static final byte SERIALIZED = 11;
+
+  /**
+   * @param value
+   * @return the encoded value, or null if the value cannot be encoded.
+   */
+  public static byte[] encode(Object value) {
+    if (value instanceof CacheHolder && ((CacheHolder) value).get() == null) {
+      // an empty holder marks a deleted or locked entry, which only the heap tier may hold.
+      return null;
+    }
+    try {
+      ByteArrayOutputStream baos = new ByteArrayOutputStream();
+      DataOutputStream out = new DataOutputStream(baos);
+      write(out, value);
+      out.flush();
+      return baos.toByteArray();
+    } catch (IOException e) {
+      return null;
+    }
+  }
+
+  /**
+   * @param encoded
+   * @return the value.
+   * @throws IOException
+   *           if the value could not be read back, typically because a serialized class
+   *           is no longer available.
+   */
+  public static Object decode(byte[] encoded) throws IOException {
+    return read(new DataInputStream(new ByteArrayInputStream(encoded)));
+  }
+
+  @SuppressWarnings("unchecked")
+  private static void write(DataOutputStream out, Object value) throws IOException {
+    if (value == null) {
+      out.writeByte(NULL);
+    } else if (value instanceof String) {
+      out.writeByte(STRING);
+      writeString(out, (String) value);
+    } else if (value instanceof Integer) {
+      out.writeByte(INTEGER);
+      out.writeInt((Integer) value);
+    } else if (value instanceof Long) {
+      out.writeByte(LONG);
+      out.writeLong((Long) value);
+    } else if (value instanceof Boolean) {
+      out.writeByte(BOOLEAN);
+      out.writeBoolean((Boolean) value);
+    } else if (value instanceof Double) {
+      out.writeByte(DOUBLE);
+      out.writeDouble((Double) value);
+    } else if (value instanceof String[]) {
+      String[] a = (String[]) value;
+      out.writeByte(STRING_ARRAY);
+      out.writeInt(a.length);
+      for (String s : a) {
+        writeString(out, s);
+      }
+    } else if (value instanceof byte[]) {
+      byte[] b = (byte[]) value;
+      out.writeByte(BYTES);
+      out.writeInt(b.length);
+      out.write(b);
+    } else if (value instanceof GregorianCalendar) {
+      Calendar c = (Calendar) value;
+      out.writeByte(CALENDAR);
+      writeString(out, c.getTimeZone().getID());
+      out.writeLong(c.getTimeInMillis());
+    } else if (value instanceof CacheHolder) {
+      out.writeByte(CACHE_HOLDER);
+      writeMap(out, ((CacheHolder) value).get());
+    } else if (value instanceof Map<?, ?> && hasStringKeys((Map<?, ?>) value)) {
+      out.writeByte(MAP);
+      writeMap(out, (Map<String, Object>) value);
+    } else if (value instanceof Serializable) {
+      out.writeByte(SERIALIZED);
+      ByteArrayOutputStream baos = new ByteArrayOutputStream();
+      ObjectOutputStream oos = new ObjectOutputStream(baos);
+      oos.writeObject(value);
+      oos.flush();
+      out.writeInt(baos.size());
+      baos.writeTo(out);
+    } else {
+      throw new NotSerializableException(value.getClass().getName());
+    }
+  }
+
+  private static boolean hasStringKeys(Map<?, ?> map) {
+    for (Object k : map.keySet()) {
+      if (!(k instanceof String)) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  private static void writeMap(DataOutputStream out, Map<String, Object> map)
+      throws IOException {
+    out.writeInt(map.size());
+    for (Entry<String, Object> e : map.entrySet()) {
+      writeString(out, e.getKey());
+      write(out, e.getValue());
+    }
+  }
+
+  private static void writeString(DataOutputStream out, String s) throws IOException {
+    byte[] b = s.getBytes("UTF-8");
+    out.writeInt(b.length);
+    out.write(b);
+  }
+
+  private static Object read(DataInputStream in) throws IOException {
+    byte type = in.readByte();
+    switch (type) {
+    case NULL:
+      return null;
+    case STRING:
+      return readString(in);
+    case INTEGER:
+      return in.readInt();
+    case LONG:
+      return in.readLong();
+    case BOOLEAN:
+      return in.readBoolean();
+    case DOUBLE:
+      return in.readDouble();
+    case STRING_ARRAY: {
+      String[] a = new String[in.readInt()];
+      for (int i = 0; i < a.length; i++) {
+        a[i] = readString(in);
+      }
+      return a;
+    }
+    case BYTES: {
+      byte[] b = new byte[in.readInt()];
+      in.readFully(b);
+      return b;
+    }
+    case CALENDAR: {
+      Calendar c = new GregorianCalendar(TimeZone.getTimeZone(readString(in)));
+      c.setTimeInMillis(in.readLong());
+      return c;
+    }
+    case CACHE_HOLDER:
+      return new CacheHolder(readMap(in));
+    case MAP:
+      return readMap(in);
+    case SERIALIZED: {
+      byte[] b = new byte[in.readInt()];
+      in.readFully(b);
+      ObjectInputStream ois = new BundleObjectInputStream(new ByteArrayInputStream(b));
+      try {
+        return ois.readObject();
+      } catch (ClassNotFoundException e) {
+        throw new IOException(e.getMessage());
+      }
+    }
+    default:
+      throw new IOException("Unknown value type " + type);
+    }
+  }
+
+  private static Map<String, Object> readMap(DataInputStream in) throws IOException {
+    int n = in.readInt();
+    Map<String, Object> map = new HashMap<String, Object>((int) (n / 0.75f) + 1);
+    for (int i = 0; i < n; i++) {
+      String k = readString(in);
+      map.put(k, read(in));
+    }
+    return map;
+  }
+
+  private static String readString(DataInputStream in) throws IOException {
+    byte[] b = new byte[in.readInt()];
+    in.readFully(b);
+    return new String(b, "UTF-8");
+  }
+
+  /**
+   * Resolves classes through this bundle, which dynamically imports everything, before
+   * trying the context class loader.
+   */
+  private static class BundleObjectInputStream extends ObjectInputStream {
+
+    BundleObjectInputStream(InputStream in) throws IOException {
+      super(in);
+    }
+
+    @Override
+    protected Class<?> resolveClass(ObjectStreamClass desc) throws IOException,
+        ClassNotFoundException {
+      try {
+        return Class.forName(desc.getName(), false, OffHeapCodec.class.getClassLoader());
+      } catch (ClassNotFoundException e) {
+        return super.resolveClass(desc);
+      }
+    }
+  }
+
+}
@@ -0,0 +1,357 @@
+/**
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.nakamura.memory;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Byte array values held outside the Java heap, in direct ByteBuffers.
+ * <p>
+ * Keys are spread over segments, each with its own buffer and lock. A segment is written
+ * as a ring: values are appended at the write position and, when there is no room, the
+ * oldest values are evicted until there is. Values that are read are expected to be
+ * promoted back to the heap tier by the caller, so the entries that reach the tail of
+ * the ring are the ones nobody has asked for since they were written, which approximates
+ * LRU without any bookkeeping on reads. Only the keys and slot positions are on the heap.
+ */
+public class OffHeapStore {
+
+  private static final int SEGMENTS = 16;
+
+  private final Segment[] segments;
+  private final long capacity;
+  private final AtomicLong evictions = new AtomicLong();
+
+  /**
+   * @param capacity
+   *          the number of bytes to allocate outside the heap, shared equally between
+   *          the segments. No single value may be larger than a segment.
+   */
+  public OffHeapStore(long capacity) {
+    int segmentSize = (int) Math.min(Integer.MAX_VALUE, capacity / SEGMENTS);
+    segments = new Segment[SEGMENTS];
+    for (int i = 0; i < SEGMENTS; i++) {
+      segments[i] = new Segment(segmentSize);
+    }
+    this.capacity = (long) segmentSize * SEGMENTS;
+  }
+
+  private Segment segmentFor(String key) {
+    int h = key.hashCode();
+    h ^= (h >>> 16);
+    return segments[(h & 0x7fffffff) % SEGMENTS];
+  }
+
+  /**
+   * Store a value, replacing any value already held for the key.
+   *
+   * @param key
+   * @param value
+   * @param expires
+   *          the time in ms after which the value is no longer returned.
+   * @return false if the value is larger than a segment and was not stored.
+   */
+  public boolean put(String key, byte[] value, long expires) {
+    return segmentFor(key).put(key, value, expires);
+  }
+
+  /**
+   * @param key
+   * @return the value, or null if there is none or it has expired.
+   */
+  public byte[] get(String key) {
+    Record record = segmentFor(key).get(key, false);
+    return record == null ? null : record.getValue();
+  }
+
+  /**
+   * Remove a value.
+   *
+   * @param key
+   * @return the value removed, or null if there was none or it had expired.
+   */
+  public byte[] remove(String key) {
+    Record record = take(key);
+    return record == null ? null : record.getValue();
+  }
+
+  /**
+   * Remove a value with its expiry time, so that it can be promoted to the heap without
+   * outliving the time it was stored with.
+   *
+   * @param key
+   * @return the record removed, or null if there was none or it had expired.
+   */
+  public Record take(String key) {
+    return segmentFor(key).get(key, true);
+  }
+
+  /**
+   * @param key
+   * @return true if an unexpired value is held for the key.
+   */
+  public boolean containsKey(String key) {
+    return segmentFor(key).containsKey(key);
+  }
+
+  /**
+   * Remove the key and every key that starts with key + "/".
+   *
+   * @param key
+   */
+  public void removeChildren(String key) {
+    String prefix = key.endsWith("/") ? key : key + "/";
+    for (Segment s : segments) {
+      s.removeChildren(key, prefix);
+    }
+  }
+
+  public void clear() {
+    for (Segment s : segments) {
+      s.clear();
+    }
+  }
+
+  /**
+   * @return a copy of every unexpired value.
+   */
+  public List<byte[]> values() {
+    List<byte[]> values = new ArrayList<byte[]>();
+    for (Segment s : segments) {
+      s.values(values);
+    }
+    return values;
+  }
+
+  /**
+   * @return the number of values held.
+   */
+  public int size() {
+    int size = 0;
+    for (Segment s : segments) {
+      size += s.size();
+    }
+    return size;
+  }
+
+  /**
+   * @return the bytes held by values that have not been removed.
+   */
+  public long getUsed() {
+    long used = 0;
+    for (Segment s : segments) {
+      used += s.used();
+    }
+    return used;
+  }
+
+  public long getCapacity() {
+    return capacity;
+  }
+
+  /**
+   * @return the number of values evicted to make room for others.
+   */
+  public long getEvictions() {
+    return evictions.get();
+  }
+
+  /**
+   * A value and the time in ms after which it is no longer returned.
+   */
+  public static final class Record {
+    private final byte[] value;
+    private final long expires;
+
+    private Record(byte[] value, long expires) {
+      this.value = value;
+      this.expires = expires;
+    }
+
+    public byte[] getValue() {
+      return value;
+    }
+
+    public long getExpires() {
+      return expires;
+    }
+  }
+
+  private static final class Slot {
+    private final String key;
+    private final int offset;
+    private final int length;
+    private final long expires;
+    private boolean live = true;
+
+    private Slot(String key, int offset, int length, long expires) {
+      this.key = key;
+      this.offset = offset;
+      this.length = length;
+      this.expires = expires;
+    }
+  }
+
+  private final class Segment {
+    private final ByteBuffer buffer;
+    private final int size;
+    private final Map<String, Slot> slots = new HashMap<String, Slot>();
+    /**
+     * Slots in the order they were written, including ones since removed whose space
+     * has not yet been reclaimed.
+     */
+    private final ArrayDeque<Slot> ring = new ArrayDeque<Slot>();
+    private int writePosition;
+    private long used;
+
+    private Segment(int size) {
+      this.size = size;
+      buffer = ByteBuffer.allocateDirect(size);
+    }
+
+    synchronized boolean put(String key, byte[] value, long expires) {
+      kill(slots.remove(key));
+      if (value.length > size) {
+        return false;
+      }
+      int offset = allocate(value.length);
+      buffer.position(offset);
+      buffer.put(value);
+      Slot slot = new Slot(key, offset, value.length, expires);
+      ring.addLast(slot);
+      slots.put(key, slot);
+      used += value.length;
+      return true;
+    }
+
+    synchronized Record get(String key, boolean remove) {
+      Slot slot = slots.get(key);
+      if (slot == null) {
+        return null;
+      }
+      boolean expired = slot.expires < System.currentTimeMillis();
+      if (remove || expired) {
+        // the bytes stay in the buffer until the ring reclaims them.
+        slots.remove(key);
+        kill(slot);
+      }
+      if (expired) {
+        return null;
+      }
+      byte[] value = new byte[slot.length];
+      buffer.position(slot.offset);
+      buffer.get(value);
+      return new Record(value, slot.expires);
+    }
+
+    synchronized boolean containsKey(String key) {
+      Slot slot = slots.get(key);
+      return slot != null && slot.expires >= System.currentTimeMillis();
+    }
+
+    synchronized void removeChildren(String key, String prefix) {
+      for (Iterator<Entry<String, Slot>> i = slots.entrySet().iterator(); i.hasNext();) {
+        Entry<String, Slot> e = i.next();
+        if (e.getKey().equals(key) || e.getKey().startsWith(prefix)) {
+          kill(e.getValue());
+          i.remove();
+        }
+      }
+    }
+
+    synchronized void clear() {
+      slots.clear();
+      ring.clear();
+      writePosition = 0;
+      used = 0;
+    }
+
+    synchronized void values(List<byte[]> values) {
+      long now = System.currentTimeMillis();
+      for (Slot slot : slots.values()) {
+        if (slot.expires >= now) {
+          byte[] value = new byte[slot.length];
+          buffer.position(slot.offset);
+          buffer.get(value);
+          values.add(value);
+        }
+      }
+    }
+
+    synchronized int size() {
+      return slots.size();
+    }
+
+    synchronized long used() {
+      return used;
+    }
+
+    private void kill(Slot slot) {
+      if (slot != null && slot.live) {
+        slot.live = false;
+        used -= slot.length;
+      }
+    }
+
+    /**
+     * Find room for length bytes, evicting from the tail of the ring until there is.
+     */
+    private int allocate(int length) {
+      while (true) {
+        Slot oldest = ring.peekFirst();
+        if (oldest == null) {
+          writePosition = length;
+          return 0;
+        }
+        Slot newest = ring.peekLast();
+        if (newest.offset >= oldest.offset) {
+          // the values lie between oldest and the write position.
+          if (size - writePosition >= length) {
+            return advance(writePosition, length);
+          }
+          if (oldest.offset >= length) {
+            return advance(0, length);
+          }
+        } else if (oldest.offset - writePosition >= length) {
+          // wrapped, the free space is between the write position and oldest.
+          return advance(writePosition, length);
+        }
+        ring.removeFirst();
+        if (oldest.live) {
+          slots.remove(oldest.key);
+          kill(oldest);
+          evictions.incrementAndGet();
+        }
+      }
+    }
+
+    private int advance(int offset, int length) {
+      writePosition = offset + length;
+      return offset;
+    }
+  }
+
+}
@@ -0,0 +1,342 @@
+/**
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.nakamura.memory;
+
+import net.sf.ehcache.CacheException;
+import net.sf.ehcache.CacheManager;
+import net.sf.ehcache.Ehcache;
+import net.sf.ehcache.Element;
+import net.sf.ehcache.event.CacheEventListener;
+
+import org.sakaiproject.nakamura.api.memory.CacheScope;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.util.List;
+import java.util.concurrent.locks.ReentrantLock;
+
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+/**
+ * A {@link CacheImpl} with a second tier outside the Java heap.
+ * <p>
+ * Entries the Ehcache region evicts are encoded with {@link OffHeapCodec} and moved to an
+ * {@link OffHeapStore}, keeping their expiry time. A get that misses the heap and hits
+ * the off heap tier moves the entry back to the heap with the time it had left to live.
+ * An entry lives in one tier at a
+ * time, so the heap keeps the hot entries and the off heap tier holds many more cold
+ * ones without adding to GC pauses. Hits and misses for each tier are published as the
+ * org.sakaiproject.nakamura:type=TieredCache MBean named after the cache.
+ */
+public class OffHeapTieredCacheImpl<V> extends CacheImpl<V> {
+
+  private static final Logger LOGGER = LoggerFactory.getLogger(OffHeapTieredCacheImpl.class);
+  private static final int LOCKS = 64;
+
+  private final String cacheName;
+  private final net.sf.ehcache.Cache cache;
+  private final OffHeapStore offHeap;
+  private final TieredCacheStats stats;
+  private final ReentrantLock[] locks = new ReentrantLock[LOCKS];
+
+  /**
+   * @param cacheManager
+   * @param name
+   * @param scope
+   * @param offHeapBytes
+   *          the bytes to allocate outside the heap for this cache.
+   */
+  public OffHeapTieredCacheImpl(CacheManager cacheManager, String name, CacheScope scope,
+      long offHeapBytes) {
+    super(cacheManager, name, scope);
+    cacheName = name == null ? "default" : name;
+    cache = cacheManager.getCache(cacheName);
+    offHeap = new OffHeapStore(offHeapBytes);
+    stats = new TieredCacheStats(offHeap);
+    for (int i = 0; i < LOCKS; i++) {
+      locks[i] = new ReentrantLock();
+    }
+    cache.getCacheEventNotificationService().registerListener(new DemotionListener());
+    registerMBean();
+  }
+
+  /**
+   * Put, remove and promotion of a key happen under its lock, so a promotion cannot bring
+   * back a value that was replaced or removed while it was being decoded.
+   */
+  private ReentrantLock lockFor(String key) {
+    int h = key.hashCode();
+    h ^= (h >>> 16);
+    return locks[(h & 0x7fffffff) % LOCKS];
+  }
+
+  /**
+   * {@inheritDoc}
+   *
+   * @see org.sakaiproject.nakamura.memory.CacheImpl#get(java.lang.String)
+   */
+  @Override
+  @SuppressWarnings("unchecked")
+  public V get(String key) {
+    V value = super.get(key);
+    if (value != null) {
+      stats.heapHit();
+      return value;
+    }
+    ReentrantLock lock = lockFor(key);
+    lock.lock();
+    try {
+      Element e = cache.get(key);
+      if (e != null) {
+        stats.heapHit();
+        return (V) e.getObjectValue();
+      }
+      OffHeapStore.Record record = offHeap.take(key);
+      value = record == null ? null : (V) decode(key, record.getValue());
+      if (value == null) {
+        stats.miss();
+        return null;
+      }
+      stats.offHeapHit();
+      cache.put(promote(key, value, record.getExpires()));
+      return value;
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  /**
+   * {@inheritDoc}
+   *
+   * @see org.sakaiproject.nakamura.memory.CacheImpl#containsKey(java.lang.String)
+   */
+  @Override
+  public boolean containsKey(String key) {
+    return super.containsKey(key) || offHeap.containsKey(key);
+  }
+
+  /**
+   * {@inheritDoc}
+   *
+   * @see org.sakaiproject.nakamura.memory.CacheImpl#put(java.lang.String, java.lang.Object)
+   */
+  @Override
+  @SuppressWarnings("unchecked")
+  public V put(String key, V payload) {
+    ReentrantLock lock = lockFor(key);
+    lock.lock();
+    try {
+      V previous = super.put(key, payload);
+      byte[] demoted = offHeap.remove(key);
+      if (previous == null && demoted != null) {
+        previous = (V) decode(key, demoted);
+      }
+      return previous;
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  /**
+   * {@inheritDoc}
+   *
+   * @see org.sakaiproject.nakamura.memory.CacheImpl#remove(java.lang.String)
+   */
+  @Override
+  public void remove(String key) {
+    ReentrantLock lock = lockFor(key);
+    lock.lock();
+    try {
+      super.remove(key);
+      offHeap.remove(key);
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  /**
+   * {@inheritDoc}
+   *
+   * @see org.sakaiproject.nakamura.memory.CacheImpl#removeChildren(java.lang.String)
+   */
+  @Override
+  public void removeChildren(String key) {
+    super.removeChildren(key);
+    offHeap.removeChildren(key);
+  }
+
+  /**
+   * {@inheritDoc}
+   *
+   * @see org.sakaiproject.nakamura.memory.CacheImpl#clear()
+   */
+  @Override
+  public void clear() {
+    super.clear();
+    offHeap.clear();
+  }
+
+  /**
+   * {@inheritDoc}
+   *
+   * @see org.sakaiproject.nakamura.memory.CacheImpl#list()
+   */
+  @Override
+  @SuppressWarnings("unchecked")
+  public List<V> list() {
+    List<V> values = super.list();
+    for (byte[] encoded : offHeap.values()) {
+      Object value = decode(null, encoded);
+      if (value != null) {
+        values.add((V) value);
+      }
+    }
+    return values;
+  }
+
+  /**
+   * @return an element for a value coming back from the off heap tier that expires when
+   *         it would have done had it stayed on the heap.
+   */
+  private Element promote(String key, Object value, long expires) {
+    if (expires == Long.MAX_VALUE) {
+      return new Element(key, value);
+    }
+    // whole seconds, rounded down so that it never outlives the original, but at least
+    // one as zero means forever.
+    long ttl = Math.max(1L, (expires - System.currentTimeMillis()) / 1000L);
+    int tti = (int) cache.getCacheConfiguration().getTimeToIdleSeconds();
+    return new Element(key, value, false, tti, (int) Math.min(ttl, Integer.MAX_VALUE));
+  }
+
+  private Object decode(String key, byte[] encoded) {
+    if (encoded == null) {
+      return null;
+    }
+    try {
+      return OffHeapCodec.decode(encoded);
+    } catch (IOException e) {
+      LOGGER.warn("Dropping unreadable off heap entry {} from {}: {} ", new Object[] { key,
+          cacheName, e.getMessage() });
+      return null;
+    }
+  }
+
+  /**
+   * Drop the off heap tier and its MBean, called when the cache manager stops.
+   */
+  public void dispose() {
+    offHeap.clear();
+    unregisterMBean();
+  }
+
+  TieredCacheStats getStats() {
+    return stats;
+  }
+
+  private ObjectName getObjectName() throws Exception {
+    return new ObjectName("org.sakaiproject.nakamura:type=TieredCache,name="
+        + ObjectName.quote(cacheName));
+  }
+
+  private void registerMBean() {
+    try {
+      MBeanServer mbeanServer = ManagementFactory.getPlatformMBeanServer();
+      ObjectName name = getObjectName();
+      if (mbeanServer.isRegistered(name)) {
+        mbeanServer.unregisterMBean(name);
+      }
+      mbeanServer.registerMBean(stats, name);
+    } catch (Exception e) {
+      LOGGER.warn("Unable to register tiered cache MBean for {} :{}", cacheName,
+          e.getMessage());
+    }
+  }
+
+  private void unregisterMBean() {
+    try {
+      MBeanServer mbeanServer = ManagementFactory.getPlatformMBeanServer();
+      ObjectName name = getObjectName();
+      if (mbeanServer.isRegistered(name)) {
+        mbeanServer.unregisterMBean(name);
+      }
+    } catch (Exception e) {
+      LOGGER.warn("Unable to unregister tiered cache MBean for {} :{}", cacheName,
+          e.getMessage());
+    }
+  }
+
+  /**
+   * Moves entries the heap evicts to the off heap tier.
+   */
+  private class DemotionListener implements CacheEventListener {
+
+    public void notifyElementEvicted(Ehcache ehcache, Element element) {
+      if (element.isExpired() || !(element.getObjectKey() instanceof String)) {
+        return;
+      }
+      String key = (String) element.getObjectKey();
+      byte[] encoded = OffHeapCodec.encode(element.getObjectValue());
+      if (encoded == null) {
+        return;
+      }
+      ReentrantLock lock = lockFor(key);
+      // eviction happens inside another key's put, waiting here could deadlock with a
+      // put of this key that is evicting that one, so a busy key is simply dropped.
+      if (lock.tryLock()) {
+        try {
+          if (!cache.isKeyInCache(key)
+              && offHeap.put(key, encoded, element.getExpirationTime())) {
+            stats.demoted();
+          }
+        } finally {
+          lock.unlock();
+        }
+      }
+    }
+
+    public void notifyElementPut(Ehcache ehcache, Element element) throws CacheException {
+    }
+
+    public void notifyElementUpdated(Ehcache ehcache, Element element)
+        throws CacheException {
+    }
+
+    public void notifyElementRemoved(Ehcache ehcache, Element element)
+        throws CacheException {
+    }
+
+    public void notifyElementExpired(Ehcache ehcache, Element element) {
+    }
+
+    public void notifyRemoveAll(Ehcache ehcache) {
+    }
+
+    public void dispose() {
+    }
+
+    @Override
+    public Object clone() throws CloneNotSupportedException {
+      throw new CloneNotSupportedException();
+    }
+  }
+
+}
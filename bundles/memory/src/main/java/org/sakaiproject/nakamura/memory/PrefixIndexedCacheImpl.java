@@ -0,0 +1,157 @@
+/**
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.nakamura.memory;
+
+import net.sf.ehcache.CacheException;
+import net.sf.ehcache.CacheManager;
+import net.sf.ehcache.Ehcache;
+import net.sf.ehcache.Element;
+import net.sf.ehcache.event.CacheEventListener;
+
+import org.sakaiproject.nakamura.api.memory.CacheScope;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.NavigableSet;
+import java.util.concurrent.ConcurrentSkipListSet;
+
+/**
+ * A {@link CacheImpl} that keeps a sorted index of its keys next to the entries, so that
+ * removeChildren and list cost the size of the subtree or the cache contents rather than
+ * a copy and scan of every key Ehcache holds.
+ * <p>
+ * The index follows the Ehcache region through a cache event listener, so entries that
+ * expire, are evicted or are removed by other means leave the index as well. It is not
+ * exact: it may hold keys whose entries are no longer present, which removeChildren
+ * tolerates as removing a missing key does nothing, and list drops when it finds them.
+ * A put racing a removeAll may also be left out of the index until it is put again.
+ */
+public class PrefixIndexedCacheImpl<V> extends CacheImpl<V> {
+
+  private final NavigableSet<String> index = new ConcurrentSkipListSet<String>();
+  private final net.sf.ehcache.Cache cache;
+
+  /**
+   * @param cacheManager
+   * @param name
+   * @param scope
+   */
+  public PrefixIndexedCacheImpl(CacheManager cacheManager, String name, CacheScope scope) {
+    super(cacheManager, name, scope);
+    cache = cacheManager.getCache(name == null ? "default" : name);
+    cache.getCacheEventNotificationService().registerListener(new IndexListener());
+    for (Object k : cache.getKeys()) {
+      index.add((String) k);
+    }
+  }
+
+  /**
+   * {@inheritDoc}
+   *
+   * @see org.sakaiproject.nakamura.memory.CacheImpl#removeChildren(java.lang.String)
+   */
+  @Override
+  public void removeChildren(String key) {
+    cache.remove(key);
+    String prefix = key.endsWith("/") ? key : key + "/";
+    // the first string that sorts after every string starting with the prefix.
+    String end = prefix.substring(0, prefix.length() - 1)
+        + (char) (prefix.charAt(prefix.length() - 1) + 1);
+    // copied, since removing from the cache removes from the index under the iterator.
+    List<String> children = new ArrayList<String>(index.subSet(prefix, true, end, false));
+    for (String child : children) {
+      cache.remove(child);
+    }
+  }
+
+  /**
+   * {@inheritDoc}
+   *
+   * @see org.sakaiproject.nakamura.memory.CacheImpl#list()
+   */
+  @Override
+  @SuppressWarnings("unchecked")
+  public List<V> list() {
+    List<V> values = new ArrayList<V>();
+    for (String k : index) {
+      Element e = cache.get(k);
+      if (e != null) {
+        values.add((V) e.getObjectValue());
+      } else {
+        unindex(k);
+      }
+    }
+    return values;
+  }
+
+  /**
+   * Drop a key from the index, unless a put raced in after its entry was removed.
+   */
+  private void unindex(String key) {
+    index.remove(key);
+    if (cache.isKeyInCache(key)) {
+      index.add(key);
+    }
+  }
+
+  /**
+   * Keeps the index in step with the Ehcache region. Notifications are delivered on the
+   * thread that changed the cache, after the change.
+   */
+  private class IndexListener implements CacheEventListener {
+
+    public void notifyElementPut(Ehcache ehcache, Element element) throws CacheException {
+      index.add((String) element.getObjectKey());
+    }
+
+    public void notifyElementUpdated(Ehcache ehcache, Element element)
+        throws CacheException {
+      index.add((String) element.getObjectKey());
+    }
+
+    public void notifyElementRemoved(Ehcache ehcache, Element element)
+        throws CacheException {
+      unindex((String) element.getObjectKey());
+    }
+
+    public void notifyElementExpired(Ehcache ehcache, Element element) {
+      unindex((String) element.getObjectKey());
+    }
+
+    public void notifyElementEvicted(Ehcache ehcache, Element element) {
+      unindex((String) element.getObjectKey());
+    }
+
+    public void notifyRemoveAll(Ehcache ehcache) {
+      index.clear();
+      for (Object k : cache.getKeys()) {
+        index.add((String) k);
+      }
+    }
+
+    public void dispose() {
+      index.clear();
+    }
+
+    @Override
+    public Object clone() throws CloneNotSupportedException {
+      throw new CloneNotSupportedException();
+    }
+  }
+
+}
@@ -0,0 +1,110 @@
+/**
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.nakamura.memory;
+
+import org.sakaiproject.nakamura.api.memory.Cache;
+import org.sakaiproject.nakamura.api.memory.CacheScope;
+
+import java.util.List;
+
+/**
+ * A handle on a REQUEST or THREAD scoped cache that acts on the calling thread's cache on
+ * every call, so it can be resolved once and held in a field.
+ */
+public class ThreadBoundCache<V> implements Cache<V> {
+
+  private final String name;
+  private final CacheScope scope;
+  private final ThreadLocalCacheSlots slots;
+  private final int slot;
+
+  public ThreadBoundCache(String name, CacheScope scope, ThreadLocalCacheSlots slots) {
+    this.name = name;
+    this.scope = scope;
+    this.slots = slots;
+    this.slot = slots.allocateSlot();
+  }
+
+  private MapCacheImpl<V> current() {
+    return slots.getCache(slot, name);
+  }
+
+  /**
+   * {@inheritDoc}
+   * @see org.sakaiproject.nakamura.api.memory.Cache#put(java.lang.String, java.lang.Object)
+   */
+  public V put(String key, V payload) {
+    return current().put(key, payload);
+  }
+
+  /**
+   * {@inheritDoc}
+   * @see org.sakaiproject.nakamura.api.memory.Cache#containsKey(java.lang.String)
+   */
+  public boolean containsKey(String key) {
+    return current().containsKey(key);
+  }
+
+  /**
+   * {@inheritDoc}
+   * @see org.sakaiproject.nakamura.api.memory.Cache#get(java.lang.String)
+   */
+  public V get(String key) {
+    return current().get(key);
+  }
+
+  /**
+   * {@inheritDoc}
+   * @see org.sakaiproject.nakamura.api.memory.Cache#clear()
+   */
+  public void clear() {
+    current().clear();
+  }
+
+  /**
+   * {@inheritDoc}
+   * @see org.sakaiproject.nakamura.api.memory.Cache#remove(java.lang.String)
+   */
+  public void remove(String key) {
+    current().remove(key);
+  }
+
+  /**
+   * {@inheritDoc}
+   * @see org.sakaiproject.nakamura.api.memory.Cache#removeChildren(java.lang.String)
+   */
+  public void removeChildren(String key) {
+    current().removeChildren(key);
+  }
+
+  /**
+   * {@inheritDoc}
+   * @see org.sakaiproject.nakamura.api.memory.Cache#list()
+   */
+  public List<V> list() {
+    return current().list();
+  }
+
+  public void checkCompatableScope(CacheScope scope) {
+    if (!scope.equals(this.scope)) {
+      throw new IllegalStateException("The cache called " + name + " is a " + this.scope
+          + " cache and cant be re-used as a " + scope + " cache");
+    }
+  }
+
+}
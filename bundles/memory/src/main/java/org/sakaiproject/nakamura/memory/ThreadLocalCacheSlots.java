@@ -0,0 +1,88 @@
+/**
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.nakamura.memory;
+
+import org.sakaiproject.nakamura.api.memory.CacheScope;
+
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * The caches bound to each thread for one scope, indexed by a slot that each
+ * {@link ThreadBoundCache} is given when it is created, so finding the current thread's
+ * cache is one thread local lookup and an array index. When used in Threads there is a
+ * potential for memory leaks as perm space is not cleaned up. This will be caused by
+ * references to classloaders being in the caches, and keeping the classloaders open.
+ */
+public class ThreadLocalCacheSlots extends ThreadLocal<MapCacheImpl<?>[]> {
+
+  private final CacheScope scope;
+  private final AtomicInteger nextSlot = new AtomicInteger();
+
+  public ThreadLocalCacheSlots(CacheScope scope) {
+    this.scope = scope;
+  }
+
+  /**
+   * {@inheritDoc}
+   * @see java.lang.ThreadLocal#initialValue()
+   */
+  @Override
+  protected MapCacheImpl<?>[] initialValue() {
+    return new MapCacheImpl<?>[Math.max(8, nextSlot.get())];
+  }
+
+  /**
+   * @return a slot for a new cache.
+   */
+  int allocateSlot() {
+    return nextSlot.getAndIncrement();
+  }
+
+  /**
+   * @param slot
+   * @param name
+   * @return the cache in the slot for the current thread, created if the thread has none.
+   */
+  @SuppressWarnings("unchecked")
+  <V> MapCacheImpl<V> getCache(int slot, String name) {
+    MapCacheImpl<?>[] caches = get();
+    if (slot >= caches.length) {
+      caches = Arrays.copyOf(caches, Math.max(slot + 1, caches.length * 2));
+      set(caches);
+    }
+    MapCacheImpl<V> cache = (MapCacheImpl<V>) caches[slot];
+    if (cache == null) {
+      cache = new MapCacheImpl<V>(name, scope);
+      caches[slot] = cache;
+    }
+    return cache;
+  }
+
+  /**
+   * Clear every cache bound to the current thread and unbind them.
+   */
+  void unbind() {
+    for (MapCacheImpl<?> cache : get()) {
+      if (cache != null) {
+        cache.clear();
+      }
+    }
+    remove();
+  }
+}
@@ -0,0 +1,84 @@
+/**
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.nakamura.memory;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Counters for an {@link OffHeapTieredCacheImpl}.
+ */
+public class TieredCacheStats implements TieredCacheStatsMBean {
+
+  private final OffHeapStore store;
+  private final AtomicLong heapHits = new AtomicLong();
+  private final AtomicLong offHeapHits = new AtomicLong();
+  private final AtomicLong misses = new AtomicLong();
+  private final AtomicLong demotions = new AtomicLong();
+
+  TieredCacheStats(OffHeapStore store) {
+    this.store = store;
+  }
+
+  void heapHit() {
+    heapHits.incrementAndGet();
+  }
+
+  void offHeapHit() {
+    offHeapHits.incrementAndGet();
+  }
+
+  void miss() {
+    misses.incrementAndGet();
+  }
+
+  void demoted() {
+    demotions.incrementAndGet();
+  }
+
+  public long getHeapHits() {
+    return heapHits.get();
+  }
+
+  public long getOffHeapHits() {
+    return offHeapHits.get();
+  }
+
+  public long getMisses() {
+    return misses.get();
+  }
+
+  public long getDemotions() {
+    return demotions.get();
+  }
+
+  public long getOffHeapEvictions() {
+    return store.getEvictions();
+  }
+
+  public int getOffHeapEntries() {
+    return store.size();
+  }
+
+  public long getOffHeapBytes() {
+    return store.getUsed();
+  }
+
+  public long getOffHeapCapacity() {
+    return store.getCapacity();
+  }
+}
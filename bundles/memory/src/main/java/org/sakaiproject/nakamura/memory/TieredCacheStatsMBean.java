@@ -0,0 +1,64 @@
+/**
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.nakamura.memory;
+
+/**
+ * JMX view of the tiers of an {@link OffHeapTieredCacheImpl}.
+ */
+public interface TieredCacheStatsMBean {
+
+  /**
+   * @return gets answered from the heap tier.
+   */
+  long getHeapHits();
+
+  /**
+   * @return gets answered from the off heap tier.
+   */
+  long getOffHeapHits();
+
+  /**
+   * @return gets answered by neither tier.
+   */
+  long getMisses();
+
+  /**
+   * @return entries evicted from the heap and moved off heap.
+   */
+  long getDemotions();
+
+  /**
+   * @return entries evicted from the off heap tier to make room for others.
+   */
+  long getOffHeapEvictions();
+
+  /**
+   * @return the number of entries off heap.
+   */
+  int getOffHeapEntries();
+
+  /**
+   * @return the bytes used by entries off heap.
+   */
+  long getOffHeapBytes();
+
+  /**
+   * @return the bytes allocated to the off heap tier.
+   */
+  long getOffHeapCapacity();
+}
@@ -1,6 +1,8 @@
 package org.sakaiproject.nakamura.memory;
 
 import org.junit.Test;
+import org.sakaiproject.nakamura.api.memory.Cache;
+import org.sakaiproject.nakamura.api.memory.CacheScope;
 
 import java.io.BufferedReader;
 import java.io.ByteArrayInputStream;
@@ -10,6 +12,8 @@ import java.util.HashMap;
 import java.util.Map;
 
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
 
 public class CacheManagerServiceImplTest {
 
@@ -23,4 +27,37 @@ public class CacheManagerServiceImplTest {
     BufferedReader reader = new BufferedReader(new InputStreamReader(finishedConfig));
     assertEquals(reader.readLine(), "Howdy, kind Globe!");
   }
+
+  @Test
+  public void instanceCacheIsResolvedOnce() throws Exception {
+    CacheManagerServiceImpl cacheManagerService = new CacheManagerServiceImpl();
+    Cache<String> cache = cacheManagerService.getCache("resolved", CacheScope.INSTANCE);
+    assertSame(cache, cacheManagerService.getCache("resolved", CacheScope.INSTANCE));
+    assertNull(cache.put("a", "1"));
+    assertEquals("1", cache.put("a", "2"));
+    assertEquals("2", cache.get("a"));
+  }
+
+  @Test
+  public void requestCacheHandleFollowsTheThread() throws Exception {
+    final CacheManagerServiceImpl cacheManagerService = new CacheManagerServiceImpl();
+    final Cache<String> cache = cacheManagerService.getCache("handle", CacheScope.REQUEST);
+    assertSame(cache, cacheManagerService.getCache("handle", CacheScope.REQUEST));
+    cache.put("a", "main");
+    final String[] seen = new String[1];
+    Thread t = new Thread() {
+      @Override
+      public void run() {
+        seen[0] = cache.get("a");
+        cache.put("a", "other");
+        cacheManagerService.unbind(CacheScope.REQUEST);
+      }
+    };
+    t.start();
+    t.join();
+    assertNull(seen[0]);
+    assertEquals("main", cache.get("a"));
+    cacheManagerService.unbind(CacheScope.REQUEST);
+    assertNull(cache.get("a"));
+  }
 }
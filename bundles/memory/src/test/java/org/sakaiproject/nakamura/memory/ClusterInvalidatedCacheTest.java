@@ -0,0 +1,143 @@
+/**
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.nakamura.memory;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.sakaiproject.nakamura.api.memory.Cache;
+import org.sakaiproject.nakamura.api.memory.CacheScope;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+public class ClusterInvalidatedCacheTest {
+
+  private CacheManagerServiceImpl cacheManagerService;
+  private RecordingBus bus;
+
+  @Before
+  public void setUp() throws IOException {
+    cacheManagerService = new CacheManagerServiceImpl();
+    bus = new RecordingBus();
+    cacheManagerService.bindInvalidationBus(bus);
+  }
+
+  @Test
+  public void testFillIsNotPublished() {
+    Cache<String> cache = cacheManagerService.getCache("clusterTest",
+        CacheScope.CLUSTERINVALIDATED);
+    cache.put("a", "1");
+    assertTrue(bus.published.isEmpty());
+    cache.put("a", "2");
+    cache.remove("b");
+    cache.removeChildren("c");
+    cache.clear();
+    assertEquals("[key clusterTest a, key clusterTest b, children clusterTest c, all clusterTest]",
+        bus.published.toString());
+  }
+
+  @Test
+  public void testRemoteInvalidationIsNotPublished() {
+    Cache<String> cache = cacheManagerService.getCache("clusterTest2",
+        CacheScope.CLUSTERINVALIDATED);
+    cache.put("a", "1");
+    cache.put("a/b", "2");
+    cache.put("c", "3");
+    bus.listener.invalidate("clusterTest2", "c");
+    assertNull(cache.get("c"));
+    bus.listener.invalidateChildren("clusterTest2", "a");
+    assertNull(cache.get("a/b"));
+    cache.put("d", "4");
+    bus.listener.flush();
+    assertNull(cache.get("d"));
+    assertTrue(bus.published.isEmpty());
+  }
+
+  @Test
+  public void testInstanceCacheIsNotPublished() {
+    Cache<String> cache = cacheManagerService.getCache("instanceTest", CacheScope.INSTANCE);
+    cache.put("a", "1");
+    cache.put("a", "2");
+    cache.remove("a");
+    assertTrue(bus.published.isEmpty());
+  }
+
+  @Test
+  public void testBatchCoalesces() throws IOException {
+    InvalidationBatch batch = new InvalidationBatch(3);
+    batch.invalidate("one", "a");
+    batch.invalidate("one", "a");
+    batch.invalidateChildren("one", "a");
+    batch.invalidate("two", "a");
+    assertEquals(2, batch.size());
+    batch.invalidate("two", "b");
+    batch.invalidate("two", "c");
+    batch.invalidate("two", "d");
+    // the fourth key collapses two into a single invalidation of the whole cache.
+    assertEquals(2, batch.size());
+    batch.invalidate("two", "e");
+    assertEquals(2, batch.size());
+
+    RecordingBus received = new RecordingBus();
+    InvalidationBatch.fromBytes(batch.toBytes(), 3).apply(received);
+    assertEquals("[all two, children one a]", received.published.toString());
+  }
+
+  @Test
+  public void testBatchAddAll() {
+    InvalidationBatch batch = new InvalidationBatch(10);
+    batch.invalidate("one", "a");
+    InvalidationBatch other = new InvalidationBatch(10);
+    other.invalidate("one", "a");
+    other.invalidate("one", "b");
+    other.invalidateAll("two");
+    batch.addAll(other);
+    assertEquals(3, batch.size());
+  }
+
+  private static class RecordingBus implements InvalidationBus, InvalidationListener {
+    private List<String> published = new ArrayList<String>();
+    private InvalidationListener listener;
+
+    public void invalidate(String cacheName, String key) {
+      published.add("key " + cacheName + " " + key);
+    }
+
+    public void invalidateChildren(String cacheName, String key) {
+      published.add("children " + cacheName + " " + key);
+    }
+
+    public void invalidateAll(String cacheName) {
+      published.add("all " + cacheName);
+    }
+
+    public void flush() {
+      published.add("flush");
+    }
+
+    public void setListener(InvalidationListener listener) {
+      this.listener = listener;
+    }
+  }
+
+}
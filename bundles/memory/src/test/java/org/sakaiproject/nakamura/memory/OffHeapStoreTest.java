@@ -0,0 +1,119 @@
+/**
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.nakamura.memory;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+import org.sakaiproject.nakamura.api.lite.CacheHolder;
+
+import java.util.Calendar;
+import java.util.GregorianCalendar;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.TimeZone;
+
+public class OffHeapStoreTest {
+
+  private static final long FOREVER = Long.MAX_VALUE;
+
+  @Test
+  public void testPutGetRemove() {
+    OffHeapStore store = new OffHeapStore(16 * 1024);
+    store.put("a", new byte[] { 1, 2, 3 }, FOREVER);
+    assertTrue(store.containsKey("a"));
+    assertArrayEquals(new byte[] { 1, 2, 3 }, store.get("a"));
+    store.put("a", new byte[] { 4 }, FOREVER);
+    assertArrayEquals(new byte[] { 4 }, store.remove("a"));
+    assertNull(store.get("a"));
+    assertEquals(0, store.size());
+    assertEquals(0, store.getUsed());
+  }
+
+  @Test
+  public void testExpiry() {
+    OffHeapStore store = new OffHeapStore(16 * 1024);
+    store.put("a", new byte[] { 1 }, System.currentTimeMillis() - 1);
+    assertFalse(store.containsKey("a"));
+    assertNull(store.get("a"));
+  }
+
+  @Test
+  public void testOldestAreEvicted() {
+    // 16 segments of 64 bytes.
+    OffHeapStore store = new OffHeapStore(16 * 64);
+    for (int i = 0; i < 1000; i++) {
+      store.put("k" + i, new byte[20], FOREVER);
+    }
+    assertTrue(store.getEvictions() > 0);
+    assertTrue(store.getUsed() <= store.getCapacity());
+    assertTrue(store.containsKey("k999"));
+    assertFalse(store.containsKey("k0"));
+    assertFalse(store.put("big", new byte[65], FOREVER));
+  }
+
+  @Test
+  public void testRemoveChildren() {
+    OffHeapStore store = new OffHeapStore(16 * 1024);
+    store.put("/a", new byte[1], FOREVER);
+    store.put("/a/b", new byte[1], FOREVER);
+    store.put("/ab", new byte[1], FOREVER);
+    store.removeChildren("/a");
+    assertFalse(store.containsKey("/a"));
+    assertFalse(store.containsKey("/a/b"));
+    assertTrue(store.containsKey("/ab"));
+  }
+
+  @Test
+  public void testCodecRoundTrip() throws Exception {
+    Map<String, Object> properties = new HashMap<String, Object>();
+    properties.put("s", "value");
+    properties.put("i", 1);
+    properties.put("l", 2L);
+    properties.put("b", true);
+    properties.put("d", 1.5);
+    properties.put("a", new String[] { "x", "y" });
+    Calendar c = new GregorianCalendar(TimeZone.getTimeZone("GMT"));
+    c.setTimeInMillis(1000L);
+    properties.put("c", c);
+    properties.put("n", null);
+
+    CacheHolder holder = (CacheHolder) OffHeapCodec.decode(OffHeapCodec
+        .encode(new CacheHolder(properties)));
+    Map<String, Object> decoded = holder.get();
+    assertEquals("value", decoded.get("s"));
+    assertEquals(1, decoded.get("i"));
+    assertEquals(2L, decoded.get("l"));
+    assertEquals(true, decoded.get("b"));
+    assertEquals(1.5, decoded.get("d"));
+    assertArrayEquals(new String[] { "x", "y" }, (String[]) decoded.get("a"));
+    assertEquals(c, decoded.get("c"));
+    assertTrue(decoded.containsKey("n"));
+  }
+
+  @Test
+  public void testEmptyHolderStaysOnHeap() {
+    assertNull(OffHeapCodec.encode(new CacheHolder(null)));
+    assertNull(OffHeapCodec.encode(new Object()));
+  }
+
+}
@@ -0,0 +1,94 @@
+/**
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.nakamura.memory;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import net.sf.ehcache.Cache;
+import net.sf.ehcache.CacheManager;
+import net.sf.ehcache.Element;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.sakaiproject.nakamura.api.memory.CacheScope;
+
+public class OffHeapTieredCacheImplTest {
+
+  private static final String NAME = "tieredTest";
+
+  private CacheManager cacheManager;
+  private OffHeapTieredCacheImpl<String> cache;
+
+  @Before
+  public void setUp() {
+    cacheManager = new CacheManager();
+    // one entry on the heap, so each put demotes the previous key.
+    cacheManager.addCache(new Cache(NAME, 1, false, false, 60, 0));
+    cache = new OffHeapTieredCacheImpl<String>(cacheManager, NAME, CacheScope.INSTANCE,
+        1024L * 1024L);
+  }
+
+  @After
+  public void tearDown() {
+    cache.dispose();
+    cacheManager.shutdown();
+  }
+
+  @Test
+  public void testDemotionAndPromotion() {
+    cache.put("/a", "a");
+    cache.put("/b", "b");
+    assertEquals(1, cache.getStats().getDemotions());
+    assertFalse(cacheManager.getCache(NAME).isKeyInCache("/a"));
+    assertTrue(cache.containsKey("/a"));
+
+    assertEquals("a", cache.get("/a"));
+    assertEquals(1, cache.getStats().getOffHeapHits());
+    assertTrue(cacheManager.getCache(NAME).isKeyInCache("/a"));
+    assertEquals("b", cache.get("/b"));
+    assertEquals(2, cache.getStats().getOffHeapHits());
+
+    cache.remove("/a");
+    assertNull(cache.get("/a"));
+    assertEquals(1, cache.getStats().getMisses());
+  }
+
+  @Test
+  public void testPromotionKeepsExpiry() throws Exception {
+    cache.put("/a", "a");
+    long expires = cacheManager.getCache(NAME).getQuiet("/a").getExpirationTime();
+    Thread.sleep(10);
+    cache.put("/b", "b");
+
+    assertEquals("a", cache.get("/a"));
+    Element promoted = cacheManager.getCache(NAME).getQuiet("/a");
+    assertTrue(promoted.getExpirationTime() <= expires);
+  }
+
+  @Test
+  public void testPutReplacesDemotedValue() {
+    cache.put("/a", "a");
+    cache.put("/b", "b");
+    assertEquals("a", cache.put("/a", "a2"));
+    assertEquals("a2", cache.get("/a"));
+  }
+}
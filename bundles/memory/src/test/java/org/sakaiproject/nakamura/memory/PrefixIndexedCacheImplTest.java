@@ -0,0 +1,79 @@
+/**
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.nakamura.memory;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+import net.sf.ehcache.CacheManager;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.sakaiproject.nakamura.api.memory.CacheScope;
+
+import java.util.Collections;
+import java.util.List;
+
+public class PrefixIndexedCacheImplTest {
+
+  private CacheManager cacheManager;
+  private PrefixIndexedCacheImpl<String> cache;
+
+  @Before
+  public void setUp() {
+    cacheManager = new CacheManager();
+    cache = new PrefixIndexedCacheImpl<String>(cacheManager, "prefixTest", CacheScope.INSTANCE);
+  }
+
+  @After
+  public void tearDown() {
+    cacheManager.shutdown();
+  }
+
+  @Test
+  public void testRemoveChildren() {
+    cache.put("/a", "a");
+    cache.put("/a/b", "b");
+    cache.put("/a/b/c", "c");
+    cache.put("/ab", "ab");
+    cache.put("/a.b", "a.b");
+    cache.removeChildren("/a");
+    assertNull(cache.get("/a"));
+    assertNull(cache.get("/a/b"));
+    assertNull(cache.get("/a/b/c"));
+    assertEquals("ab", cache.get("/ab"));
+    assertEquals("a.b", cache.get("/a.b"));
+  }
+
+  @Test
+  public void testListFollowsRemovals() {
+    cache.put("/x", "x");
+    cache.put("/y", "y");
+    cache.put("/z", "z");
+    cache.remove("/y");
+    List<String> values = cache.list();
+    Collections.sort(values);
+    assertEquals("[x, z]", values.toString());
+    cache.clear();
+    assertEquals(0, cache.list().size());
+    cache.put("/w", "w");
+    assertEquals("[w]", cache.list().toString());
+  }
+
+}
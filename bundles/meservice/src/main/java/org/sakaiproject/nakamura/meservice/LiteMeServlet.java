@@ -17,12 +17,6 @@
  */
 package org.sakaiproject.nakamura.meservice;
 
-import static org.sakaiproject.nakamura.api.connections.ConnectionState.ACCEPTED;
-import static org.sakaiproject.nakamura.api.connections.ConnectionState.INVITED;
-import static org.sakaiproject.nakamura.api.connections.ConnectionState.PENDING;
-import static org.sakaiproject.nakamura.api.search.solr.SolrSearchConstants.PARAMS_ITEMS_PER_PAGE;
-
-import com.google.common.collect.ImmutableMap;
 import org.apache.felix.scr.annotations.Activate;
 import org.apache.felix.scr.annotations.Component;
 import org.apache.felix.scr.annotations.Modified;
@@ -30,7 +24,6 @@ import org.apache.felix.scr.annotations.Properties;
 import org.apache.felix.scr.annotations.Property;
 import org.apache.felix.scr.annotations.Reference;
 import org.apache.felix.scr.annotations.sling.SlingServlet;
-import org.apache.jackrabbit.util.ISO9075;
 import org.apache.sling.api.SlingHttpServletRequest;
 import org.apache.sling.api.SlingHttpServletResponse;
 import org.apache.sling.api.resource.ValueMap;
@@ -38,9 +31,6 @@ import org.apache.sling.api.servlets.SlingSafeMethodsServlet;
 import org.apache.sling.api.wrappers.ValueMapDecorator;
 import org.apache.sling.commons.json.JSONException;
 import org.apache.sling.commons.osgi.PropertiesUtil;
-import org.apache.solr.client.solrj.util.ClientUtils;
-import org.apache.solr.common.params.CommonParams;
-import org.sakaiproject.nakamura.api.connections.ConnectionConstants;
 import org.sakaiproject.nakamura.api.connections.ConnectionManager;
 import org.sakaiproject.nakamura.api.doc.BindingType;
 import org.sakaiproject.nakamura.api.doc.ServiceBinding;
@@ -56,21 +46,18 @@ import org.sakaiproject.nakamura.api.lite.authorizable.Authorizable;
 import org.sakaiproject.nakamura.api.lite.authorizable.AuthorizableManager;
 import org.sakaiproject.nakamura.api.lite.authorizable.Group;
 import org.sakaiproject.nakamura.api.message.LiteMessagingService;
+import org.sakaiproject.nakamura.api.message.MessageCountService;
 import org.sakaiproject.nakamura.api.message.MessagingException;
 import org.sakaiproject.nakamura.api.messagebucket.MessageBucketException;
 import org.sakaiproject.nakamura.api.messagebucket.MessageBucketService;
-import org.sakaiproject.nakamura.api.search.solr.Query;
-import org.sakaiproject.nakamura.api.search.solr.Result;
-import org.sakaiproject.nakamura.api.search.solr.SolrSearchException;
-import org.sakaiproject.nakamura.api.search.solr.SolrSearchResultSet;
-import org.sakaiproject.nakamura.api.search.solr.SolrSearchServiceFactory;
 import org.sakaiproject.nakamura.api.user.AuthorizableUtil;
 import org.sakaiproject.nakamura.api.user.BasicUserInfoService;
 import org.sakaiproject.nakamura.api.user.UserConstants;
 import org.sakaiproject.nakamura.util.ExtendedJSONWriter;
 import org.sakaiproject.nakamura.util.LitePersonalUtils;
 import org.sakaiproject.nakamura.util.PathUtils;
-import org.sakaiproject.nakamura.util.telemetry.TelemetryCounter;
+import org.sakaiproject.nakamura.util.telemetry.Counter;
+import org.sakaiproject.nakamura.util.telemetry.TelemetryRegistry;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -158,6 +145,8 @@ public class LiteMeServlet extends SlingSafeMethodsServlet {
 
   private static final long serialVersionUID = -3786472219389695181L;
   private static final Logger LOG = LoggerFactory.getLogger(LiteMeServlet.class);
+  private static final Counter REQUESTS = TelemetryRegistry.counter("meservice",
+      "LiteMeServlet", "/system/me");
   private static final String LOCALE_FIELD = "locale";
   private static final String TIMEZONE_FIELD = "timezone";
 
@@ -171,7 +160,7 @@ public class LiteMeServlet extends SlingSafeMethodsServlet {
   protected MessageBucketService messageBucketService;
 
   @Reference
-  protected SolrSearchServiceFactory searchServiceFactory;
+  protected transient MessageCountService messageCountService;
 
   @Reference
   protected BasicUserInfoService basicUserInfoService;
@@ -194,7 +183,7 @@ public class LiteMeServlet extends SlingSafeMethodsServlet {
   @Override
   protected void doGet(SlingHttpServletRequest request, SlingHttpServletResponse response)
       throws ServletException, IOException {
-    TelemetryCounter.incrementValue("meservice", "LiteMeServlet", "/system/me");
+    REQUESTS.increment();
     try {
       response.setContentType("application/json");
       response.setCharacterEncoding("UTF-8");
@@ -243,11 +232,11 @@ public class LiteMeServlet extends SlingSafeMethodsServlet {
 
       // Dump this user his number of unread messages.
       writer.key("messages");
-      writeMessageCounts(writer, session, au, request);
+      writeMessageCounts(writer, session, au);
 
       // Dump this user his number of contacts.
       writer.key("contacts");
-      writeContactCounts(writer, au, request);
+      writeContactCounts(writer, session, au);
 
       // Dump the groups for this user.
       writer.key("groups");
@@ -270,10 +259,6 @@ public class LiteMeServlet extends SlingSafeMethodsServlet {
       LOG.error("Failed to get a user his message counts in /system/me", e);
       response.sendError(HttpServletResponse.SC_INTERNAL_SERVER_ERROR,
           "Messaging error.");
-    } catch (SolrSearchException e) {
-      LOG.error("Failed to execute a Solr search in /system/me", e);
-      response.sendError(HttpServletResponse.SC_INTERNAL_SERVER_ERROR,
-          "Solr search error.");
     }
 
   }
@@ -329,50 +314,16 @@ public class LiteMeServlet extends SlingSafeMethodsServlet {
    * @param session
    * @param au
    * @throws JSONException
-   * @throws SolrSearchException
-   * @throws RepositoryException
+   * @throws MessagingException
    */
-  protected void writeContactCounts(ExtendedJSONWriter writer, Authorizable au,
-      SlingHttpServletRequest request) throws JSONException, SolrSearchException {
+  protected void writeContactCounts(ExtendedJSONWriter writer, Session session,
+      Authorizable au) throws JSONException, MessagingException {
     writer.object();
 
-    // We don't do queries for anonymous users. (Possible ddos hole).
-    String userID = au.getId();
-    if (UserConstants.ANON_USERID.equals(userID)) {
-      writer.endObject();
-      return;
-    }
-
-    // Get the path to the store for this user.
-    Map<String, Integer> contacts = new HashMap<String, Integer>();
-    contacts.put(ACCEPTED.toString().toLowerCase(), 0);
-    contacts.put(INVITED.toString().toLowerCase(), 0);
-    contacts.put(PENDING.toString().toLowerCase(), 0);
-    try {
-      // This could just use ConnectionUtils.getConnectionPathBase, but that util class is
-      // in the private package unfortunately.
-      String store = LitePersonalUtils.getHomePath(userID) + "/"
-          + ConnectionConstants.CONTACT_STORE_NAME;
-      store = ISO9075.encodePath(store);
-      String queryString = "path:" + ClientUtils.escapeQueryChars(store) + " AND resourceType:sakai/contact AND state:(ACCEPTED OR INVITED OR PENDING)";
-      Query query = new Query(queryString);
-      LOG.debug("Submitting Query {} ", query);
-      SolrSearchResultSet resultSet = searchServiceFactory.getSearchResultSet(
-          request, query, false);
-      Iterator<Result> resultIterator = resultSet.getResultSetIterator();
-      while (resultIterator.hasNext()) {
-        Result contact = resultIterator.next();
-        if (contact.getProperties().containsKey("state")) {
-          String state = ((String) contact.getProperties().get("state").iterator().next()).toLowerCase();
-          int count = 0;
-          if (contacts.containsKey(state)) {
-            count = contacts.get(state);
-          }
-          contacts.put(state, count + 1);
-        }
-      }
-    } finally {
-      for (Entry<String, Integer> entry : contacts.entrySet()) {
+    // Only the user can see his own contacts.
+    if (canSeeCounts(session, au)) {
+      for (Entry<String, Long> entry : messageCountService.getContactCounts(au.getId())
+          .entrySet()) {
         writer.key(entry.getKey());
         writer.value(entry.getValue());
       }
@@ -386,46 +337,36 @@ public class LiteMeServlet extends SlingSafeMethodsServlet {
    * @param writer
    *          The writer
    * @param session
-   *          A JCR session to perform queries with. This session needs read access on the
-   *          authorizable's message box.
+   *          The session of the current user, only the user himself (or an admin) can see
+   *          his message counts.
    * @param au
    *          An authorizable to look up the messages for.
    * @throws JSONException
-   * @throws RepositoryException
    * @throws MessagingException
-   * @throws SolrSearchException
    */
   protected void writeMessageCounts(ExtendedJSONWriter writer, Session session,
-      Authorizable au, SlingHttpServletRequest request) throws JSONException, MessagingException, SolrSearchException {
+      Authorizable au) throws JSONException, MessagingException {
     writer.object();
     writer.key("unread");
+    long count = 0;
+    if (canSeeCounts(session, au)) {
+      count = messageCountService.getUnreadCount(au.getId());
+    }
+    writer.value(count);
+    writer.endObject();
+  }
 
-    // We don't do queries for anonymous users. (Possible ddos hole).
+  /**
+   * The counts are kept with administrative rights, so only hand them out to the user
+   * they belong to. Anonymous never has any.
+   */
+  private boolean canSeeCounts(Session session, Authorizable au) {
     String userID = au.getId();
     if (UserConstants.ANON_USERID.equals(userID)) {
-      writer.value(0);
-      writer.endObject();
-      return;
-    }
-
-    long count = 0;
-    try {
-      String store = messagingService.getFullPathToStore(au.getId(), session);
-      store = ISO9075.encodePath(store);
-      String queryString = "messagestore:" + ClientUtils.escapeQueryChars(store) + " AND type:internal AND messagebox:inbox AND read:false";
-      final Map<String, Object> queryOptions = ImmutableMap.of(
-          PARAMS_ITEMS_PER_PAGE, (Object) "0",
-          CommonParams.START, "0"
-      );
-      Query query = new Query(queryString, queryOptions);
-      LOG.debug("Submitting Query {} ", query);
-      SolrSearchResultSet resultSet = searchServiceFactory.getSearchResultSet(
-          request, query, false);
-      count = resultSet.getSize();
-    } finally {
-      writer.value(count);
+      return false;
     }
-    writer.endObject();
+    return userID.equals(session.getUserId())
+        || UserConstants.ADMIN_USERID.equals(session.getUserId());
   }
 
   /**
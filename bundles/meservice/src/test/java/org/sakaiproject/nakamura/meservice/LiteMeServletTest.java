@@ -29,8 +29,8 @@ import org.mockito.Mock;
 import org.mockito.runners.MockitoJUnitRunner;
 import org.sakaiproject.nakamura.api.connections.ConnectionManager;
 import org.sakaiproject.nakamura.api.message.LiteMessagingService;
+import org.sakaiproject.nakamura.api.message.MessageCountService;
 import org.sakaiproject.nakamura.api.messagebucket.MessageBucketService;
-import org.sakaiproject.nakamura.api.search.solr.SolrSearchServiceFactory;
 import org.sakaiproject.nakamura.api.user.BasicUserInfoService;
 import org.sakaiproject.nakamura.meservice.LiteMeServlet;
 
@@ -52,7 +52,7 @@ public class LiteMeServletTest {
   MessageBucketService messageBucketService;
 
   @Mock
-  SolrSearchServiceFactory searchServiceFactory;
+  MessageCountService messageCountService;
 
   @Mock
   BasicUserInfoService basicUserInfoService;
@@ -63,7 +63,7 @@ public class LiteMeServletTest {
     meServlet.messagingService = messagingService;
     meServlet.connectionManager = connectionManager;
     meServlet.messageBucketService = messageBucketService;
-    meServlet.searchServiceFactory = searchServiceFactory;
+    meServlet.messageCountService = messageCountService;
     meServlet.basicUserInfoService = basicUserInfoService;
     
     meServlet.activate(Collections.emptyMap());
@@ -0,0 +1,67 @@
+/**
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.nakamura.api.message;
+
+import java.util.Map;
+
+/**
+ * Keeps per user counts of unread inbox messages and contacts so that frequently polled
+ * endpoints such as /system/me do not need to run a search on every request. The counts
+ * are stored in the user's private space, kept up to date from content events on the
+ * user's message and contact stores, and rebuilt from the search index when they are
+ * missing.
+ */
+public interface MessageCountService {
+
+  /**
+   * @param userId
+   *          The user to get the counts for.
+   * @return The number of unread internal messages in the user's inbox, keyed by
+   *         message category.
+   * @throws MessagingException
+   */
+  Map<String, Long> getUnreadCounts(String userId) throws MessagingException;
+
+  /**
+   * @param userId
+   *          The user to get the count for.
+   * @return The total number of unread internal messages in the user's inbox.
+   * @throws MessagingException
+   */
+  long getUnreadCount(String userId) throws MessagingException;
+
+  /**
+   * @param userId
+   *          The user to get the counts for.
+   * @return The number of contacts of the user keyed by the lower case connection state.
+   *         Only accepted, invited and pending contacts are counted.
+   * @throws MessagingException
+   */
+  Map<String, Long> getContactCounts(String userId) throws MessagingException;
+
+  /**
+   * Drops the stored counts for a user so they are rebuilt from the search index on the
+   * next request.
+   *
+   * @param userId
+   *          The user whose counts should be rebuilt.
+   * @throws MessagingException
+   */
+  void invalidate(String userId) throws MessagingException;
+
+}
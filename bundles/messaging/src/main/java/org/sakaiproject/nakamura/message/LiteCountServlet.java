@@ -46,6 +46,8 @@ import org.sakaiproject.nakamura.api.doc.ServiceSelector;
 import org.sakaiproject.nakamura.api.lite.Session;
 import org.sakaiproject.nakamura.api.lite.StorageClientUtils;
 import org.sakaiproject.nakamura.api.message.LiteMessagingService;
+import org.sakaiproject.nakamura.api.message.MessageConstants;
+import org.sakaiproject.nakamura.api.message.MessageCountService;
 import org.sakaiproject.nakamura.api.search.solr.Query;
 import org.sakaiproject.nakamura.api.search.solr.SolrQueryResponseWrapper;
 import org.sakaiproject.nakamura.api.search.solr.SolrSearchResultSet;
@@ -111,14 +113,23 @@ public class LiteCountServlet extends SlingSafeMethodsServlet {
   @Reference
   SolrSearchServiceFactory searchServiceFactory;
 
+  @Reference
+  protected transient MessageCountService messageCountService;
+
   @Override
   protected void doGet(SlingHttpServletRequest request,
       SlingHttpServletResponse response) throws ServletException, IOException {
     LOGGER.debug("In count servlet" );
 
-    Session session = StorageClientUtils.adaptToSession(request.getResourceResolver().adaptTo(javax.jcr.Session.class));
-
     try {
+      if (isUnreadInboxCount(request)) {
+        // The count the UI polls for is maintained by the count service, no need to search.
+        writeUnreadCounts(request, response);
+        return;
+      }
+
+      Session session = StorageClientUtils.adaptToSession(request.getResourceResolver().adaptTo(javax.jcr.Session.class));
+
       // We do the query on the user's messageStore.
       String messageStorePath = ClientUtils.escapeQueryChars(messagingService.getFullPathToStore(request.getRemoteUser(), session));
       // q=(messagestore:a\:208861/message/ AND type:internal AND messagebox:"inbox"
@@ -217,6 +228,58 @@ public class LiteCountServlet extends SlingSafeMethodsServlet {
     }
   }
 
+  /**
+   * @return true if the request asks for the unread inbox count, in total or grouped by
+   *         category, which is what the {@link MessageCountService} keeps.
+   */
+  private boolean isUnreadInboxCount(SlingHttpServletRequest request) {
+    if (request.getRequestParameter("filters") == null
+        || request.getRequestParameter("values") == null) {
+      return false;
+    }
+    String[] filters = request.getRequestParameter("filters").getString().split(",");
+    String[] values = request.getRequestParameter("values").getString().split(",");
+    if (filters.length != 2 || values.length != 2) {
+      return false;
+    }
+    Map<String, String> filterMap = new HashMap<String, String>();
+    for (int i = 0; i < filters.length; i++) {
+      filterMap.put(filters[i].replaceFirst("^sakai:", ""), values[i]);
+    }
+    if (!MessageConstants.BOX_INBOX.equals(filterMap.get("messagebox"))
+        || !"false".equals(filterMap.get("read"))) {
+      return false;
+    }
+    return request.getRequestParameter("groupedby") == null
+        || "category".equals(request.getRequestParameter("groupedby").getString()
+            .replaceFirst("^sakai:", ""));
+  }
+
+  private void writeUnreadCounts(SlingHttpServletRequest request,
+      SlingHttpServletResponse response) throws IOException, JSONException {
+    String userId = request.getRemoteUser();
+    response.setContentType("application/json");
+    response.setCharacterEncoding("UTF-8");
+    JSONWriter write = new JSONWriter(response.getWriter());
+    write.object();
+    write.key("count");
+    if (request.getRequestParameter("groupedby") == null) {
+      write.value(messageCountService.getUnreadCount(userId));
+    } else {
+      write.array();
+      for (Entry<String, Long> e : messageCountService.getUnreadCounts(userId).entrySet()) {
+        write.object();
+        write.key("group");
+        write.value(e.getKey());
+        write.key("count");
+        write.value(e.getValue());
+        write.endObject();
+      }
+      write.endArray();
+    }
+    write.endObject();
+  }
+
   @SuppressWarnings("unchecked")
   private Map<String, Long> getMapCount(SolrQueryResponseWrapper resultSet, String groupedBy) {
     Map<String, Long> mapCount = new HashMap<String, Long>();
@@ -0,0 +1,550 @@
+/**
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.nakamura.message;
+
+import static org.sakaiproject.nakamura.api.connections.ConnectionConstants.CONTACT_STORE_NAME;
+import static org.sakaiproject.nakamura.api.connections.ConnectionConstants.SAKAI_CONNECTION_STATE;
+import static org.sakaiproject.nakamura.api.message.MessageConstants.BOX_INBOX;
+import static org.sakaiproject.nakamura.api.message.MessageConstants.FOLDER_MESSAGES;
+import static org.sakaiproject.nakamura.api.message.MessageConstants.PROP_SAKAI_MESSAGEBOX;
+import static org.sakaiproject.nakamura.api.message.MessageConstants.PROP_SAKAI_READ;
+import static org.sakaiproject.nakamura.api.message.MessageConstants.PROP_SAKAI_TYPE;
+
+import com.google.common.collect.ImmutableSet;
+
+import org.apache.felix.scr.annotations.Component;
+import org.apache.felix.scr.annotations.Properties;
+import org.apache.felix.scr.annotations.Property;
+import org.apache.felix.scr.annotations.Reference;
+import org.apache.felix.scr.annotations.Service;
+import org.apache.solr.client.solrj.SolrQuery;
+import org.apache.solr.client.solrj.SolrServerException;
+import org.apache.solr.client.solrj.response.QueryResponse;
+import org.apache.solr.client.solrj.util.ClientUtils;
+import org.apache.solr.common.SolrDocument;
+import org.apache.solr.common.SolrDocumentList;
+import org.osgi.service.event.Event;
+import org.osgi.service.event.EventConstants;
+import org.osgi.service.event.EventHandler;
+import org.sakaiproject.nakamura.api.connections.ConnectionState;
+import org.sakaiproject.nakamura.api.lite.ClientPoolException;
+import org.sakaiproject.nakamura.api.lite.Repository;
+import org.sakaiproject.nakamura.api.lite.Session;
+import org.sakaiproject.nakamura.api.lite.StorageClientException;
+import org.sakaiproject.nakamura.api.lite.accesscontrol.AccessDeniedException;
+import org.sakaiproject.nakamura.api.lite.content.Content;
+import org.sakaiproject.nakamura.api.lite.content.ContentManager;
+import org.sakaiproject.nakamura.api.locking.LockManager;
+import org.sakaiproject.nakamura.api.locking.LockTimeoutException;
+import org.sakaiproject.nakamura.api.message.MessageCountService;
+import org.sakaiproject.nakamura.api.message.MessagingException;
+import org.sakaiproject.nakamura.api.solr.SolrServerService;
+import org.sakaiproject.nakamura.api.user.UserConstants;
+import org.sakaiproject.nakamura.util.LitePersonalUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.Set;
+
+/**
+ * Maintains unread message and contact counts per user in a content item under the
+ * user's private space. Each count is stored as the list of message or contact keys that
+ * make it up, so every content event on the message or contact store can be applied by
+ * looking at the current state of the single item that changed. That makes the updates
+ * exact and idempotent without needing the previous value of the item. Counts are only
+ * maintained for users who have asked for them; the first request for a user builds
+ * them from the search index. As the index lags behind the content, recent events for
+ * users without counts are kept for a while and replayed onto newly built counts.
+ */
+@Component(immediate = true, label = "Sakai Message Count Service", description = "Maintains unread message and contact counts per user.")
+@Service(value = { MessageCountService.class, EventHandler.class })
+@Properties(value = {
+    @Property(name = "service.vendor", value = "The Sakai Foundation"),
+    @Property(name = EventConstants.EVENT_TOPIC, value = {
+        "org/sakaiproject/nakamura/lite/content/ADDED",
+        "org/sakaiproject/nakamura/lite/content/UPDATED",
+        "org/sakaiproject/nakamura/lite/content/DELETE" }) })
+public class MessageCountServiceImpl implements MessageCountService, EventHandler {
+
+  private static final Logger LOGGER = LoggerFactory
+      .getLogger(MessageCountServiceImpl.class);
+
+  /**
+   * The name of the content item in the user's private space that holds the counts.
+   */
+  static final String COUNTS_NODE_NAME = "messagecounts";
+
+  static final String UNREAD_PREFIX = "unread_";
+
+  static final String CONTACTS_PREFIX = "contacts_";
+
+  static final String PROP_BUILT = "sakai:countsBuilt";
+
+  static final String PROP_CATEGORY = "sakai:category";
+
+  static final String DEFAULT_CATEGORY = "message";
+
+  private static final String UNREAD_QUERY = "messagestore:%s AND type:internal AND messagebox:inbox AND read:false";
+
+  private static final String CONTACTS_QUERY = "path:%s AND resourceType:sakai/contact AND state:(ACCEPTED OR INVITED OR PENDING)";
+
+  private static final Set<String> COUNTED_STATES = ImmutableSet.of(
+      ConnectionState.ACCEPTED.toString().toLowerCase(),
+      ConnectionState.INVITED.toString().toLowerCase(),
+      ConnectionState.PENDING.toString().toLowerCase());
+
+  private static final int PAGE_SIZE = 500;
+
+  /**
+   * How long events for users without counts are kept for replay, well beyond the delay
+   * of the indexing queue.
+   */
+  static final long PENDING_TTL = 60000L;
+
+  static final int MAX_PENDING = 10000;
+
+  /**
+   * Recent message and contact events by item path, oldest first.
+   */
+  private final Map<String, PendingUpdate> pending = new LinkedHashMap<String, PendingUpdate>();
+
+  @Reference
+  protected transient Repository repository;
+
+  @Reference
+  protected transient SolrServerService solrServerService;
+
+  @Reference
+  protected transient LockManager lockManager;
+
+  /**
+   * {@inheritDoc}
+   * @see org.sakaiproject.nakamura.api.message.MessageCountService#getUnreadCounts(java.lang.String)
+   */
+  public Map<String, Long> getUnreadCounts(String userId) throws MessagingException {
+    return getCounts(userId, UNREAD_PREFIX);
+  }
+
+  /**
+   * {@inheritDoc}
+   * @see org.sakaiproject.nakamura.api.message.MessageCountService#getUnreadCount(java.lang.String)
+   */
+  public long getUnreadCount(String userId) throws MessagingException {
+    long total = 0;
+    for (Long count : getUnreadCounts(userId).values()) {
+      total += count;
+    }
+    return total;
+  }
+
+  /**
+   * {@inheritDoc}
+   * @see org.sakaiproject.nakamura.api.message.MessageCountService#getContactCounts(java.lang.String)
+   */
+  public Map<String, Long> getContactCounts(String userId) throws MessagingException {
+    Map<String, Long> counts = new HashMap<String, Long>();
+    for (String state : COUNTED_STATES) {
+      counts.put(state, 0L);
+    }
+    counts.putAll(getCounts(userId, CONTACTS_PREFIX));
+    return counts;
+  }
+
+  /**
+   * {@inheritDoc}
+   * @see org.sakaiproject.nakamura.api.message.MessageCountService#invalidate(java.lang.String)
+   */
+  public void invalidate(String userId) throws MessagingException {
+    Session session = null;
+    String countsPath = getCountsPath(userId);
+    try {
+      session = repository.loginAdministrative();
+      lockManager.waitForLock(countsPath);
+      session.getContentManager().delete(countsPath);
+    } catch (LockTimeoutException e) {
+      throw new MessagingException("Unable to lock message counts for " + userId, e);
+    } catch (StorageClientException e) {
+      throw new MessagingException(e.getMessage(), e);
+    } catch (AccessDeniedException e) {
+      throw new MessagingException(e.getMessage(), e);
+    } finally {
+      lockManager.clearLocks();
+      logout(session);
+    }
+  }
+
+  /**
+   * {@inheritDoc}
+   * @see org.osgi.service.event.EventHandler#handleEvent(org.osgi.service.event.Event)
+   */
+  public void handleEvent(Event event) {
+    String path = (String) event.getProperty("path");
+    if (path == null || !path.startsWith(LitePersonalUtils.PATH_AUTHORIZABLE)) {
+      return;
+    }
+    int slash = path.indexOf('/');
+    if (slash < 0) {
+      return;
+    }
+    String userId = path.substring(LitePersonalUtils.PATH_AUTHORIZABLE.length(), slash);
+    String storePath = path.substring(slash + 1);
+    if (storePath.startsWith(FOLDER_MESSAGES + "/")) {
+      // messages live at a:user/message/<box>/<id>, anything deeper is an attachment
+      String key = storePath.substring(FOLDER_MESSAGES.length() + 1);
+      int boxSlash = key.indexOf('/');
+      if (boxSlash > 0 && key.indexOf('/', boxSlash + 1) < 0) {
+        update(userId, path, key, UNREAD_PREFIX);
+      }
+    } else if (storePath.startsWith(CONTACT_STORE_NAME + "/")) {
+      // contacts live at a:user/contacts/<contact>
+      String key = storePath.substring(CONTACT_STORE_NAME.length() + 1);
+      if (key.length() > 0 && key.indexOf('/') < 0) {
+        update(userId, path, key, CONTACTS_PREFIX);
+      }
+    }
+  }
+
+  /**
+   * Re-evaluates a single message or contact and moves its key to the bucket it belongs
+   * in now. Users without stored counts are skipped, they are built on first request and
+   * the event is replayed then.
+   */
+  private void update(String userId, String itemPath, String key, String prefix) {
+    // remembered before looking for the counts, so that counts saved after that look are
+    // built before the replay sees this event.
+    remember(new PendingUpdate(userId, itemPath, key, prefix));
+    Session session = null;
+    String countsPath = getCountsPath(userId);
+    try {
+      session = repository.loginAdministrative();
+      ContentManager contentManager = session.getContentManager();
+      if (!contentManager.exists(countsPath)) {
+        return;
+      }
+      lockManager.waitForLock(countsPath);
+      Content counts = contentManager.get(countsPath);
+      if (counts == null) {
+        return;
+      }
+      if (moveKey(counts, prefix, key, getBucket(contentManager.get(itemPath), prefix))) {
+        contentManager.update(counts);
+      }
+    } catch (LockTimeoutException e) {
+      LOGGER.warn("Unable to lock message counts for {}, dropping them", userId);
+      invalidateQuietly(session, countsPath);
+    } catch (StorageClientException e) {
+      LOGGER.warn("Failed to update message counts for {}: {}", userId, e.getMessage());
+      invalidateQuietly(session, countsPath);
+    } catch (AccessDeniedException e) {
+      LOGGER.warn("Failed to update message counts for {}: {}", userId, e.getMessage());
+    } finally {
+      lockManager.clearLocks();
+      logout(session);
+    }
+  }
+
+  /**
+   * @return the bucket an item with the given prefix is counted in, or null if it should
+   *         not be counted or no longer exists.
+   */
+  static String getBucket(Content item, String prefix) {
+    if (item == null) {
+      return null;
+    }
+    return UNREAD_PREFIX.equals(prefix) ? getUnreadBucket(item) : getContactBucket(item);
+  }
+
+  /**
+   * @return the category bucket an unread inbox message is counted in, or null if the
+   *         message should not be counted.
+   */
+  static String getUnreadBucket(Content message) {
+    if (!BOX_INBOX.equals(String.valueOf(message.getProperty(PROP_SAKAI_MESSAGEBOX)))
+        || !"internal".equals(String.valueOf(message.getProperty(PROP_SAKAI_TYPE)))
+        || !"false".equals(String.valueOf(message.getProperty(PROP_SAKAI_READ)))) {
+      return null;
+    }
+    Object category = message.getProperty(PROP_CATEGORY);
+    return UNREAD_PREFIX + (category == null ? DEFAULT_CATEGORY : String.valueOf(category));
+  }
+
+  /**
+   * @return the state bucket a contact is counted in, or null if the contact should not
+   *         be counted.
+   */
+  static String getContactBucket(Content contact) {
+    Object state = contact.getProperty(SAKAI_CONNECTION_STATE);
+    if (state == null) {
+      return null;
+    }
+    String lowerState = String.valueOf(state).toLowerCase();
+    return COUNTED_STATES.contains(lowerState) ? CONTACTS_PREFIX + lowerState : null;
+  }
+
+  /**
+   * Removes the key from every bucket with the given prefix and adds it to the target
+   * bucket.
+   *
+   * @return true if the counts changed.
+   */
+  static boolean moveKey(Content counts, String prefix, String key, String target) {
+    boolean changed = false;
+    boolean present = false;
+    Map<String, Object> properties = new HashMap<String, Object>(counts.getProperties());
+    for (Entry<String, Object> entry : properties.entrySet()) {
+      String name = entry.getKey();
+      if (!name.startsWith(prefix) || !(entry.getValue() instanceof String[])) {
+        continue;
+      }
+      List<String> keys = new ArrayList<String>(Arrays.asList((String[]) entry.getValue()));
+      if (name.equals(target)) {
+        present = keys.contains(key);
+      } else if (keys.remove(key)) {
+        counts.setProperty(name, keys.toArray(new String[keys.size()]));
+        changed = true;
+      }
+    }
+    if (target != null && !present) {
+      Object current = counts.getProperty(target);
+      List<String> keys = new ArrayList<String>();
+      if (current instanceof String[]) {
+        keys.addAll(Arrays.asList((String[]) current));
+      }
+      keys.add(key);
+      counts.setProperty(target, keys.toArray(new String[keys.size()]));
+      changed = true;
+    }
+    return changed;
+  }
+
+  private Map<String, Long> getCounts(String userId, String prefix) {
+    Map<String, Long> result = new HashMap<String, Long>();
+    // We don't count for anonymous users. (Possible ddos hole).
+    if (userId == null || UserConstants.ANON_USERID.equals(userId)) {
+      return result;
+    }
+    Content counts = getOrBuildCounts(userId);
+    for (Entry<String, Object> entry : counts.getProperties().entrySet()) {
+      String name = entry.getKey();
+      if (name.startsWith(prefix) && entry.getValue() instanceof String[]) {
+        int size = ((String[]) entry.getValue()).length;
+        if (size > 0) {
+          result.put(name.substring(prefix.length()), (long) size);
+        }
+      }
+    }
+    return result;
+  }
+
+  private Content getOrBuildCounts(String userId) {
+    Session session = null;
+    String countsPath = getCountsPath(userId);
+    try {
+      session = repository.loginAdministrative();
+      ContentManager contentManager = session.getContentManager();
+      Content counts = contentManager.get(countsPath);
+      if (counts != null) {
+        return counts;
+      }
+      lockManager.waitForLock(countsPath);
+      counts = contentManager.get(countsPath);
+      if (counts == null) {
+        counts = buildCounts(userId, countsPath);
+        contentManager.update(counts);
+        if (replay(contentManager, userId, counts)) {
+          contentManager.update(counts);
+        }
+        LOGGER.debug("Built message counts for {} ", userId);
+      }
+      return counts;
+    } catch (LockTimeoutException e) {
+      throw new MessagingException("Unable to lock message counts for " + userId, e);
+    } catch (StorageClientException e) {
+      throw new MessagingException(e.getMessage(), e);
+    } catch (AccessDeniedException e) {
+      throw new MessagingException(e.getMessage(), e);
+    } finally {
+      lockManager.clearLocks();
+      logout(session);
+    }
+  }
+
+  /**
+   * Builds the counts for a user from the search index.
+   */
+  protected Content buildCounts(String userId, String countsPath) {
+    Content counts = new Content(countsPath, null);
+    counts.setProperty(PROP_BUILT, System.currentTimeMillis());
+
+    String store = LitePersonalUtils.getHomePath(userId) + "/" + FOLDER_MESSAGES + "/";
+    Map<String, List<String>> buckets = new HashMap<String, List<String>>();
+    for (SolrDocument doc : query(String.format(UNREAD_QUERY,
+        ClientUtils.escapeQueryChars(store)), "category")) {
+      String path = String.valueOf(doc.getFirstValue("id"));
+      if (path.startsWith(store)) {
+        Object category = doc.getFirstValue("category");
+        addToBucket(buckets, UNREAD_PREFIX
+            + (category == null ? DEFAULT_CATEGORY : String.valueOf(category)),
+            path.substring(store.length()));
+      }
+    }
+
+    String contacts = LitePersonalUtils.getHomePath(userId) + "/" + CONTACT_STORE_NAME;
+    for (SolrDocument doc : query(String.format(CONTACTS_QUERY,
+        ClientUtils.escapeQueryChars(contacts)), "state")) {
+      String path = String.valueOf(doc.getFirstValue("id"));
+      Object state = doc.getFirstValue("state");
+      if (state != null && path.startsWith(contacts + "/")) {
+        addToBucket(buckets, CONTACTS_PREFIX + String.valueOf(state).toLowerCase(),
+            path.substring(contacts.length() + 1));
+      }
+    }
+
+    for (Entry<String, List<String>> bucket : buckets.entrySet()) {
+      List<String> keys = bucket.getValue();
+      counts.setProperty(bucket.getKey(), keys.toArray(new String[keys.size()]));
+    }
+    return counts;
+  }
+
+  /**
+   * Applies the recent events of a user to counts built from the index, which may not
+   * have seen them yet.
+   *
+   * @return true if the counts changed.
+   */
+  private boolean replay(ContentManager contentManager, String userId, Content counts)
+      throws StorageClientException, AccessDeniedException {
+    boolean changed = false;
+    for (PendingUpdate update : getPending(userId)) {
+      String bucket = getBucket(contentManager.get(update.itemPath), update.prefix);
+      changed = moveKey(counts, update.prefix, update.key, bucket) || changed;
+    }
+    return changed;
+  }
+
+  private void remember(PendingUpdate update) {
+    synchronized (pending) {
+      pending.remove(update.itemPath);
+      pending.put(update.itemPath, update);
+      expirePending(update.time);
+    }
+  }
+
+  private List<PendingUpdate> getPending(String userId) {
+    List<PendingUpdate> updates = new ArrayList<PendingUpdate>();
+    synchronized (pending) {
+      expirePending(System.currentTimeMillis());
+      for (PendingUpdate update : pending.values()) {
+        if (update.userId.equals(userId)) {
+          updates.add(update);
+        }
+      }
+    }
+    return updates;
+  }
+
+  private void expirePending(long now) {
+    Iterator<PendingUpdate> iterator = pending.values().iterator();
+    while (iterator.hasNext()) {
+      PendingUpdate oldest = iterator.next();
+      if (pending.size() <= MAX_PENDING && oldest.time > now - PENDING_TTL) {
+        break;
+      }
+      iterator.remove();
+    }
+  }
+
+  private List<SolrDocument> query(String queryString, String field) {
+    List<SolrDocument> docs = new ArrayList<SolrDocument>();
+    try {
+      long found = Long.MAX_VALUE;
+      for (int start = 0; start < found; start += PAGE_SIZE) {
+        SolrQuery solrQuery = new SolrQuery(queryString).setFields("id", field)
+            .setStart(start).setRows(PAGE_SIZE);
+        QueryResponse response = solrServerService.getServer().query(solrQuery);
+        SolrDocumentList results = response.getResults();
+        found = results.getNumFound();
+        docs.addAll(results);
+        if (results.isEmpty()) {
+          break;
+        }
+      }
+    } catch (SolrServerException e) {
+      throw new MessagingException("Unable to count messages: " + e.getMessage(), e);
+    }
+    return docs;
+  }
+
+  private void addToBucket(Map<String, List<String>> buckets, String bucket, String key) {
+    List<String> keys = buckets.get(bucket);
+    if (keys == null) {
+      keys = new ArrayList<String>();
+      buckets.put(bucket, keys);
+    }
+    keys.add(key);
+  }
+
+  private void invalidateQuietly(Session session, String countsPath) {
+    if (session == null) {
+      return;
+    }
+    try {
+      session.getContentManager().delete(countsPath);
+    } catch (Exception e) {
+      LOGGER.warn("Failed to drop message counts at {}: {}", countsPath, e.getMessage());
+    }
+  }
+
+  private void logout(Session session) {
+    if (session != null) {
+      try {
+        session.logout();
+      } catch (ClientPoolException e) {
+        LOGGER.warn(e.getMessage(), e);
+      }
+    }
+  }
+
+  static String getCountsPath(String userId) {
+    return LitePersonalUtils.getPrivatePath(userId) + "/" + COUNTS_NODE_NAME;
+  }
+
+  private static class PendingUpdate {
+    private final String userId;
+    private final String itemPath;
+    private final String key;
+    private final String prefix;
+    private final long time = System.currentTimeMillis();
+
+    private PendingUpdate(String userId, String itemPath, String key, String prefix) {
+      this.userId = userId;
+      this.itemPath = itemPath;
+      this.key = key;
+      this.prefix = prefix;
+    }
+  }
+}
@@ -22,6 +22,8 @@ import static org.junit.Assert.fail;
 import static org.mockito.Matchers.anyBoolean;
 import static org.mockito.Matchers.isA;
 import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.when;
 import static org.mockito.Mockito.withSettings;
 
@@ -29,6 +31,7 @@ import java.io.ByteArrayOutputStream;
 import java.io.PrintWriter;
 import java.util.ArrayList;
 import java.util.List;
+import com.google.common.collect.ImmutableMap;
 import org.apache.sling.api.SlingHttpServletRequest;
 import org.apache.sling.api.SlingHttpServletResponse;
 import org.apache.sling.api.request.RequestParameter;
@@ -44,6 +47,7 @@ import org.junit.Test;
 import org.sakaiproject.nakamura.api.lite.Session;
 import org.sakaiproject.nakamura.api.lite.SessionAdaptable;
 import org.sakaiproject.nakamura.api.message.LiteMessagingService;
+import org.sakaiproject.nakamura.api.message.MessageCountService;
 import org.sakaiproject.nakamura.api.search.solr.Query;
 import org.sakaiproject.nakamura.api.search.solr.SolrQueryResponseWrapper;
 import org.sakaiproject.nakamura.api.search.solr.SolrSearchResultSet;
@@ -57,6 +61,7 @@ public class LiteCountServletTest {
   private LiteCountServlet servlet;
   private LiteMessagingService messagingService;
   private SolrSearchServiceFactory searchFactory;
+  private MessageCountService messageCountService;
 
   @Before
   public void setUp() {
@@ -66,6 +71,9 @@ public class LiteCountServletTest {
 
     servlet.messagingService = messagingService;
     servlet.searchServiceFactory = searchFactory;
+
+    messageCountService = mock(MessageCountService.class);
+    servlet.messageCountService = messageCountService;
   }
 
   @After
@@ -147,4 +155,36 @@ public class LiteCountServletTest {
       }
     }
   }
+
+  @Test
+  public void testUnreadCountsComeFromCountService() throws Exception {
+    SlingHttpServletRequest request = mock(SlingHttpServletRequest.class);
+    SlingHttpServletResponse response = mock(SlingHttpServletResponse.class);
+    ByteArrayOutputStream baos = new ByteArrayOutputStream();
+    PrintWriter write = new PrintWriter(baos);
+    when(response.getWriter()).thenReturn(write);
+
+    RequestParameter filters = mock(RequestParameter.class);
+    when(filters.getString()).thenReturn("sakai:messagebox,sakai:read");
+    RequestParameter values = mock(RequestParameter.class);
+    when(values.getString()).thenReturn("inbox,false");
+    RequestParameter groupParam = mock(RequestParameter.class);
+    when(groupParam.getString()).thenReturn("sakai:category");
+    when(request.getRemoteUser()).thenReturn("alice");
+    when(request.getRequestParameter("filters")).thenReturn(filters);
+    when(request.getRequestParameter("values")).thenReturn(values);
+    when(request.getRequestParameter("groupedby")).thenReturn(groupParam);
+
+    when(messageCountService.getUnreadCounts("alice")).thenReturn(
+        ImmutableMap.of("message", 3L));
+    servlet.doGet(request, response);
+
+    write.flush();
+    JSONArray arr = new JSONObject(baos.toString("UTF-8")).getJSONArray("count");
+    assertEquals(1, arr.length());
+    assertEquals("message", arr.getJSONObject(0).getString("group"));
+    assertEquals(3, arr.getJSONObject(0).getInt("count"));
+    verify(searchFactory, never()).getSearchResultSet(isA(SlingHttpServletRequest.class),
+        isA(Query.class), anyBoolean());
+  }
 }
@@ -0,0 +1,182 @@
+/**
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.nakamura.message;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.Matchers.any;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import com.google.common.collect.ImmutableMap;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.osgi.service.event.Event;
+import org.sakaiproject.nakamura.api.lite.Repository;
+import org.sakaiproject.nakamura.api.lite.Session;
+import org.sakaiproject.nakamura.api.lite.content.Content;
+import org.sakaiproject.nakamura.api.lite.content.ContentManager;
+import org.sakaiproject.nakamura.api.locking.LockManager;
+import org.sakaiproject.nakamura.api.message.MessageConstants;
+import org.sakaiproject.nakamura.api.solr.SolrServerService;
+
+import java.util.Map;
+
+/**
+ *
+ */
+public class MessageCountServiceImplTest {
+
+  private static final String COUNTS_PATH = "a:alice/private/messagecounts";
+  private static final String MESSAGE_PATH = "a:alice/message/inbox/msg1";
+
+  private MessageCountServiceImpl service;
+  private ContentManager contentManager;
+  private Content counts;
+
+  @Before
+  public void setUp() throws Exception {
+    service = new MessageCountServiceImpl();
+    service.repository = mock(Repository.class);
+    service.lockManager = mock(LockManager.class);
+    service.solrServerService = mock(SolrServerService.class);
+
+    Session session = mock(Session.class);
+    contentManager = mock(ContentManager.class);
+    when(service.repository.loginAdministrative()).thenReturn(session);
+    when(session.getContentManager()).thenReturn(contentManager);
+
+    counts = new Content(COUNTS_PATH, null);
+    when(contentManager.exists(COUNTS_PATH)).thenReturn(true);
+    when(contentManager.get(COUNTS_PATH)).thenReturn(counts);
+  }
+
+  @Test
+  public void testUnreadMessageIsCountedOnce() throws Exception {
+    when(contentManager.get(MESSAGE_PATH)).thenReturn(message("false"));
+
+    service.handleEvent(contentEvent("UPDATED", MESSAGE_PATH));
+    service.handleEvent(contentEvent("UPDATED", MESSAGE_PATH));
+
+    Map<String, Long> unread = service.getUnreadCounts("alice");
+    assertEquals(1, unread.size());
+    assertEquals(Long.valueOf(1), unread.get("message"));
+    assertEquals(1, service.getUnreadCount("alice"));
+  }
+
+  @Test
+  public void testReadOrDeletedMessageIsRemoved() throws Exception {
+    when(contentManager.get(MESSAGE_PATH)).thenReturn(message("false"));
+    service.handleEvent(contentEvent("ADDED", MESSAGE_PATH));
+    assertEquals(1, service.getUnreadCount("alice"));
+
+    when(contentManager.get(MESSAGE_PATH)).thenReturn(message("true"));
+    service.handleEvent(contentEvent("UPDATED", MESSAGE_PATH));
+    assertEquals(0, service.getUnreadCount("alice"));
+
+    when(contentManager.get(MESSAGE_PATH)).thenReturn(message("false"));
+    service.handleEvent(contentEvent("UPDATED", MESSAGE_PATH));
+    assertEquals(1, service.getUnreadCount("alice"));
+
+    when(contentManager.get(MESSAGE_PATH)).thenReturn(null);
+    service.handleEvent(contentEvent("DELETE", MESSAGE_PATH));
+    assertEquals(0, service.getUnreadCount("alice"));
+  }
+
+  @Test
+  public void testContactStateChange() throws Exception {
+    String contactPath = "a:alice/contacts/bob";
+    Content contact = new Content(contactPath, null);
+    contact.setProperty("sakai:state", "PENDING");
+    when(contentManager.get(contactPath)).thenReturn(contact);
+    service.handleEvent(contentEvent("ADDED", contactPath));
+
+    Map<String, Long> contacts = service.getContactCounts("alice");
+    assertEquals(Long.valueOf(1), contacts.get("pending"));
+    assertEquals(Long.valueOf(0), contacts.get("accepted"));
+
+    contact.setProperty("sakai:state", "ACCEPTED");
+    service.handleEvent(contentEvent("UPDATED", contactPath));
+
+    contacts = service.getContactCounts("alice");
+    assertEquals(Long.valueOf(0), contacts.get("pending"));
+    assertEquals(Long.valueOf(1), contacts.get("accepted"));
+  }
+
+  @Test
+  public void testUsersWithoutCountsAreSkipped() throws Exception {
+    when(contentManager.exists(COUNTS_PATH)).thenReturn(false);
+    service.handleEvent(contentEvent("ADDED", MESSAGE_PATH));
+    verify(contentManager, never()).update(any(Content.class));
+  }
+
+  @Test
+  public void testEventBeforeBuildIsReplayed() throws Exception {
+    // the index has not seen the message yet when the counts are built.
+    service = new MessageCountServiceImpl() {
+      @Override
+      protected Content buildCounts(String userId, String countsPath) {
+        return new Content(countsPath, null);
+      }
+    };
+    service.repository = mock(Repository.class);
+    service.lockManager = mock(LockManager.class);
+    Session session = mock(Session.class);
+    when(service.repository.loginAdministrative()).thenReturn(session);
+    when(session.getContentManager()).thenReturn(contentManager);
+    when(contentManager.exists(COUNTS_PATH)).thenReturn(false);
+    when(contentManager.get(COUNTS_PATH)).thenReturn(null);
+    when(contentManager.get(MESSAGE_PATH)).thenReturn(message("false"));
+
+    service.handleEvent(contentEvent("ADDED", MESSAGE_PATH));
+    assertEquals(1, service.getUnreadCount("alice"));
+  }
+
+  @Test
+  public void testMoveKey() {
+    Content c = new Content(COUNTS_PATH, null);
+    assertTrue(MessageCountServiceImpl.moveKey(c, "unread_", "inbox/a", "unread_chat"));
+    assertFalse(MessageCountServiceImpl.moveKey(c, "unread_", "inbox/a", "unread_chat"));
+    assertTrue(MessageCountServiceImpl.moveKey(c, "unread_", "inbox/a", "unread_message"));
+    assertEquals(0, ((String[]) c.getProperty("unread_chat")).length);
+    assertEquals(1, ((String[]) c.getProperty("unread_message")).length);
+  }
+
+  @Test
+  public void testAnonymousHasNoCounts() throws Exception {
+    assertEquals(0, service.getUnreadCount("anonymous"));
+    verify(service.repository, never()).loginAdministrative();
+  }
+
+  private Content message(String read) {
+    Content message = new Content(MESSAGE_PATH, null);
+    message.setProperty(MessageConstants.PROP_SAKAI_MESSAGEBOX, MessageConstants.BOX_INBOX);
+    message.setProperty(MessageConstants.PROP_SAKAI_TYPE, "internal");
+    message.setProperty(MessageConstants.PROP_SAKAI_READ, Boolean.valueOf(read));
+    return message;
+  }
+
+  private Event contentEvent(String action, String path) {
+    return new Event("org/sakaiproject/nakamura/lite/content/" + action,
+        ImmutableMap.of("path", path));
+  }
+}
@@ -0,0 +1,218 @@
+/**
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.nakamura.presence;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInput;
+import java.io.DataInputStream;
+import java.io.DataOutput;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * A set of presence changes that travels as one message between nodes.
+ * <p>
+ * Locations and statuses are written once per batch in a table and referred to by index,
+ * since most users share a handful of each, and ticks are written relative to the tick
+ * the batch was made at. A keyframe carries every live user on the sending node rather
+ * than just the ones changed since the last batch. Not thread safe.
+ */
+final class PresenceBatch {
+
+  private static final byte VERSION = 1;
+  private static final byte SET = 0;
+  private static final byte CLEAR = 1;
+
+  private final int tick;
+  private final boolean keyframe;
+  private final List<String> uuids = new ArrayList<String>();
+  /**
+   * The record for each user, null where the user was cleared.
+   */
+  private final List<PresenceRecord> records = new ArrayList<PresenceRecord>();
+
+  /**
+   * @param tick
+   *          the tick the batch is made at, and the tick of any clear in it.
+   * @param keyframe
+   */
+  PresenceBatch(int tick, boolean keyframe) {
+    this.tick = tick;
+    this.keyframe = keyframe;
+  }
+
+  void set(String uuid, PresenceRecord record) {
+    uuids.add(uuid);
+    records.add(record);
+  }
+
+  void clear(String uuid) {
+    uuids.add(uuid);
+    records.add(null);
+  }
+
+  int size() {
+    return uuids.size();
+  }
+
+  boolean isEmpty() {
+    return uuids.isEmpty();
+  }
+
+  boolean isKeyframe() {
+    return keyframe;
+  }
+
+  /**
+   * Apply the batch to the engine of the receiving node.
+   *
+   * @param engine
+   * @param now
+   *          the current tick on the receiving node.
+   */
+  void apply(PresenceEngine engine, int now) {
+    for (int i = 0; i < uuids.size(); i++) {
+      PresenceRecord record = records.get(i);
+      if (record == null) {
+        engine.applyRemoteClear(uuids.get(i), tick);
+      } else {
+        engine.applyRemote(uuids.get(i), record.tick, now, record.location, record.status);
+      }
+    }
+  }
+
+  /**
+   * @return the batch as the body of a message.
+   * @throws IOException
+   */
+  byte[] toBytes() throws IOException {
+    Map<String, Integer> table = new LinkedHashMap<String, Integer>();
+    for (PresenceRecord record : records) {
+      if (record != null) {
+        intern(table, record.location);
+        intern(table, record.status);
+      }
+    }
+    ByteArrayOutputStream baos = new ByteArrayOutputStream();
+    DataOutputStream out = new DataOutputStream(baos);
+    out.writeByte(VERSION);
+    out.writeBoolean(keyframe);
+    out.writeInt(tick);
+    writeVarInt(out, table.size());
+    for (String s : table.keySet()) {
+      out.writeUTF(s);
+    }
+    writeVarInt(out, uuids.size());
+    for (int i = 0; i < uuids.size(); i++) {
+      PresenceRecord record = records.get(i);
+      out.writeUTF(uuids.get(i));
+      if (record == null) {
+        out.writeByte(CLEAR);
+      } else {
+        out.writeByte(SET);
+        // zigzag, a record can be ahead of the tick if it came from a node with a fast clock.
+        int delta = tick - record.tick;
+        writeVarInt(out, (delta << 1) ^ (delta >> 31));
+        writeVarInt(out, table.get(record.location));
+        writeVarInt(out, table.get(record.status));
+      }
+    }
+    out.flush();
+    return baos.toByteArray();
+  }
+
+  /**
+   * @param body
+   *          the body of a message.
+   * @return the batch the message carried.
+   * @throws IOException
+   *           if the body is not a batch.
+   */
+  static PresenceBatch fromBytes(byte[] body) throws IOException {
+    DataInputStream in = new DataInputStream(new ByteArrayInputStream(body));
+    byte version = in.readByte();
+    if (version != VERSION) {
+      throw new IOException("Unknown presence batch version " + version);
+    }
+    boolean keyframe = in.readBoolean();
+    PresenceBatch batch = new PresenceBatch(in.readInt(), keyframe);
+    int tableSize = readVarInt(in);
+    if (tableSize < 0 || tableSize > body.length) {
+      throw new IOException("Malformed presence batch");
+    }
+    String[] table = new String[tableSize];
+    for (int i = 0; i < table.length; i++) {
+      table[i] = in.readUTF();
+    }
+    int n = readVarInt(in);
+    for (int i = 0; i < n; i++) {
+      String uuid = in.readUTF();
+      byte op = in.readByte();
+      if (op == CLEAR) {
+        batch.clear(uuid);
+      } else if (op == SET) {
+        int zigzag = readVarInt(in);
+        int delta = (zigzag >>> 1) ^ -(zigzag & 1);
+        batch.set(uuid, new PresenceRecord(batch.tick - delta, lookup(table, readVarInt(in)),
+            lookup(table, readVarInt(in))));
+      } else {
+        throw new IOException("Unknown presence change " + op);
+      }
+    }
+    return batch;
+  }
+
+  private static void intern(Map<String, Integer> table, String s) {
+    if (!table.containsKey(s)) {
+      table.put(s, table.size());
+    }
+  }
+
+  private static String lookup(String[] table, int i) throws IOException {
+    if (i < 0 || i >= table.length) {
+      throw new IOException("Presence batch refers to entry " + i + " of " + table.length);
+    }
+    return table[i];
+  }
+
+  private static void writeVarInt(DataOutput out, int v) throws IOException {
+    while ((v & ~0x7F) != 0) {
+      out.writeByte((v & 0x7F) | 0x80);
+      v >>>= 7;
+    }
+    out.writeByte(v);
+  }
+
+  private static int readVarInt(DataInput in) throws IOException {
+    int v = 0;
+    for (int shift = 0; shift < 35; shift += 7) {
+      byte b = in.readByte();
+      v |= (b & 0x7F) << shift;
+      if ((b & 0x80) == 0) {
+        return v;
+      }
+    }
+    throw new IOException("Malformed presence batch");
+  }
+
+}
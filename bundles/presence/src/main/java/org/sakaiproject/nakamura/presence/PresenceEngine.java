@@ -0,0 +1,331 @@
+/**
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.nakamura.presence;
+
+import org.sakaiproject.nakamura.api.presence.PresenceStatus;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Holds the presence of users on this node, with an index of the users at each location.
+ * <p>
+ * Records are replaced with compare and set, so updates for different users never
+ * contend beyond the stripe of the map they fall in. The location index is maintained
+ * after each replace and re-checked against the record on removal, so a user is always
+ * indexed at the location of their current record; entries left behind by racing moves
+ * are removed when they are next seen.
+ * <p>
+ * Users changed by this node are remembered until drained, so that only the changes need
+ * be sent to the other nodes.
+ */
+final class PresenceEngine {
+
+  /**
+   * The location of a user who has not said where they are, never indexed.
+   */
+  static final String NO_LOCATION = "none";
+
+  /**
+   * The length of a tick, presence changes slowly so 20s resolution.
+   */
+  private static final long TICK = 20000L;
+
+  private static final int CONCURRENCY_LEVEL = 64;
+
+  /**
+   * How often expired records are swept, in ticks.
+   */
+  private static final int PURGE_INTERVAL = 3;
+
+  private final ConcurrentMap<String, PresenceRecord> users = new ConcurrentHashMap<String, PresenceRecord>(
+      1024, 0.75f, CONCURRENCY_LEVEL);
+
+  private final ConcurrentMap<String, Set<String>> locations = new ConcurrentHashMap<String, Set<String>>(
+      256, 0.75f, CONCURRENCY_LEVEL);
+
+  /**
+   * Users changed on this node since the last drain.
+   */
+  private final ConcurrentMap<String, Boolean> changed = new ConcurrentHashMap<String, Boolean>(
+      256, 0.75f, CONCURRENCY_LEVEL);
+
+  private final int ttl;
+
+  private final AtomicInteger nextPurge = new AtomicInteger();
+
+  /**
+   * @param ttl
+   *          the number of ticks a record lives for after its last change.
+   */
+  PresenceEngine(int ttl) {
+    this.ttl = ttl;
+  }
+
+  /**
+   * @return the current tick.
+   */
+  static int currentTick() {
+    return (int) (System.currentTimeMillis() / TICK);
+  }
+
+  /**
+   * Change the presence of a user on this node.
+   *
+   * @param uuid
+   *          the user id
+   * @param tick
+   *          the current tick
+   * @param location
+   *          the location, null if not provided in this update
+   * @param status
+   *          the status, null if not provided in this update
+   * @return true if an update was performed.
+   */
+  boolean update(String uuid, int tick, String location, String status) {
+    maybePurge(tick);
+    for (;;) {
+      PresenceRecord current = users.get(uuid);
+      boolean live = isLive(current, tick);
+      String newLocation = location != null ? location : live ? current.location : NO_LOCATION;
+      String newStatus = status != null ? status : live ? current.status : PresenceStatus.online.name();
+      if (live && current.matches(tick, newLocation, newStatus)) {
+        return false;
+      }
+      PresenceRecord next = new PresenceRecord(tick, newLocation, newStatus);
+      if (swap(uuid, current, next)) {
+        changed.put(uuid, Boolean.TRUE);
+        return true;
+      }
+    }
+  }
+
+  /**
+   * Remove a user on this node.
+   *
+   * @param uuid
+   */
+  void clear(String uuid) {
+    PresenceRecord current = users.remove(uuid);
+    if (current != null) {
+      unindex(uuid, current.location);
+      changed.put(uuid, Boolean.TRUE);
+    }
+  }
+
+  /**
+   * Apply the presence of a user sent by another node, unless this node holds a later one.
+   */
+  void applyRemote(String uuid, int tick, int now, String location, String status) {
+    if (tick <= now - ttl) {
+      return;
+    }
+    for (;;) {
+      PresenceRecord current = users.get(uuid);
+      if (current != null && (current.tick > tick || current.matches(tick, location, status))) {
+        return;
+      }
+      if (swap(uuid, current, new PresenceRecord(tick, location, status))) {
+        return;
+      }
+    }
+  }
+
+  /**
+   * Apply the removal of a user by another node, unless this node holds a later record.
+   */
+  void applyRemoteClear(String uuid, int tick) {
+    PresenceRecord current = users.get(uuid);
+    if (current != null && current.tick <= tick && users.remove(uuid, current)) {
+      unindex(uuid, current.location);
+    }
+  }
+
+  /**
+   * @return the live record of the user, or null if there is none.
+   */
+  PresenceRecord get(String uuid, int tick) {
+    PresenceRecord record = users.get(uuid);
+    return isLive(record, tick) ? record : null;
+  }
+
+  /**
+   * @return the record of the user, live or not, for sending to other nodes.
+   */
+  PresenceRecord getRecord(String uuid) {
+    return users.get(uuid);
+  }
+
+  /**
+   * @return a map of user id to status for the live users at the location.
+   */
+  Map<String, String> online(String location, int tick) {
+    Set<String> members = locations.get(location);
+    if (members == null) {
+      return Collections.emptyMap();
+    }
+    Map<String, String> online = new HashMap<String, String>();
+    for (String uuid : members) {
+      PresenceRecord record = users.get(uuid);
+      if (record == null || !location.equals(record.location)) {
+        // left behind by a move that raced with another.
+        unindex(uuid, location);
+      } else if (isLive(record, tick)) {
+        online.put(uuid, record.status);
+      }
+    }
+    return online;
+  }
+
+  /**
+   * @return the users changed on this node since the last drain, forgetting them.
+   */
+  List<String> drainChanged() {
+    List<String> drained = new ArrayList<String>(changed.size());
+    for (String uuid : changed.keySet()) {
+      if (changed.remove(uuid) != null) {
+        drained.add(uuid);
+      }
+    }
+    return drained;
+  }
+
+  /**
+   * Remember users as changed again, after their changes failed to reach the other nodes.
+   */
+  void markChanged(Collection<String> uuids) {
+    for (String uuid : uuids) {
+      changed.put(uuid, Boolean.TRUE);
+    }
+  }
+
+  /**
+   * @return the user ids of all the live records.
+   */
+  List<String> liveUsers(int tick) {
+    List<String> live = new ArrayList<String>(users.size());
+    for (Entry<String, PresenceRecord> e : users.entrySet()) {
+      if (isLive(e.getValue(), tick)) {
+        live.add(e.getKey());
+      }
+    }
+    return live;
+  }
+
+  /**
+   * @return the number of records held, live or not.
+   */
+  int size() {
+    return users.size();
+  }
+
+  /**
+   * Remove expired records and the locations nobody is at.
+   */
+  void purge(int tick) {
+    for (Entry<String, PresenceRecord> e : users.entrySet()) {
+      PresenceRecord record = e.getValue();
+      if (!isLive(record, tick) && users.remove(e.getKey(), record)) {
+        unindex(e.getKey(), record.location);
+      }
+    }
+    for (Entry<String, Set<String>> e : locations.entrySet()) {
+      Set<String> members = e.getValue();
+      if (members.isEmpty() && locations.remove(e.getKey(), members)) {
+        // an add may have found the set just before it was removed.
+        for (String uuid : members) {
+          index(uuid, e.getKey());
+        }
+      }
+    }
+  }
+
+  private void maybePurge(int tick) {
+    int next = nextPurge.get();
+    if (tick >= next && nextPurge.compareAndSet(next, tick + PURGE_INTERVAL)) {
+      purge(tick);
+    }
+  }
+
+  private boolean isLive(PresenceRecord record, int tick) {
+    return record != null && record.tick > tick - ttl;
+  }
+
+  /**
+   * Replace the record of a user and move them in the index if the location changed.
+   *
+   * @return false if the record was changed by another thread first.
+   */
+  private boolean swap(String uuid, PresenceRecord current, PresenceRecord next) {
+    if (current == null) {
+      if (users.putIfAbsent(uuid, next) != null) {
+        return false;
+      }
+    } else if (!users.replace(uuid, current, next)) {
+      return false;
+    }
+    if (current != null && !current.location.equals(next.location)) {
+      unindex(uuid, current.location);
+    }
+    index(uuid, next.location);
+    return true;
+  }
+
+  private void index(String uuid, String location) {
+    if (NO_LOCATION.equals(location)) {
+      return;
+    }
+    for (;;) {
+      Set<String> members = locations.get(location);
+      if (members == null) {
+        Set<String> newMembers = Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+        members = locations.putIfAbsent(location, newMembers);
+        if (members == null) {
+          members = newMembers;
+        }
+      }
+      members.add(uuid);
+      // the set may have been purged while it was being added to.
+      if (locations.get(location) == members) {
+        return;
+      }
+    }
+  }
+
+  private void unindex(String uuid, String location) {
+    Set<String> members = locations.get(location);
+    if (members != null) {
+      members.remove(uuid);
+      // the user may have moved back here since the record being replaced was read.
+      PresenceRecord record = users.get(uuid);
+      if (record != null && location.equals(record.location)) {
+        members.add(uuid);
+      }
+    }
+  }
+
+}
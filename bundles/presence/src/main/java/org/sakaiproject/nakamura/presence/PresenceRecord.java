@@ -0,0 +1,52 @@
+/**
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.nakamura.presence;
+
+/**
+ * The presence of one user. Records are immutable and replaced whole, so a reader never
+ * needs to parse or lock anything to get a consistent status and location.
+ */
+final class PresenceRecord {
+
+  /**
+   * The time of the last change, in presence ticks.
+   */
+  final int tick;
+  /**
+   * The location, "none" if the user has not said.
+   */
+  final String location;
+  /**
+   * The status, free text or the name of a PresenceStatus.
+   */
+  final String status;
+
+  PresenceRecord(int tick, String location, String status) {
+    this.tick = tick;
+    this.location = location;
+    this.status = status;
+  }
+
+  /**
+   * @return true if the record says the same as the given values.
+   */
+  boolean matches(int tick, String location, String status) {
+    return this.tick == tick && this.location.equals(location) && this.status.equals(status);
+  }
+
+}
@@ -17,28 +17,31 @@
  */
 package org.sakaiproject.nakamura.presence;
 
-import com.google.common.collect.ImmutableMap;
 import com.google.common.collect.Maps;
 
 import org.apache.commons.lang.StringUtils;
+import org.apache.felix.scr.annotations.Activate;
 import org.apache.felix.scr.annotations.Component;
+import org.apache.felix.scr.annotations.Deactivate;
 import org.apache.felix.scr.annotations.Properties;
 import org.apache.felix.scr.annotations.Property;
 import org.apache.felix.scr.annotations.Reference;
+import org.apache.felix.scr.annotations.ReferenceCardinality;
+import org.apache.felix.scr.annotations.ReferencePolicy;
 import org.apache.felix.scr.annotations.Service;
-import org.sakaiproject.nakamura.api.memory.Cache;
-import org.sakaiproject.nakamura.api.memory.CacheManagerService;
-import org.sakaiproject.nakamura.api.memory.CacheScope;
+import org.apache.sling.commons.osgi.PropertiesUtil;
+import org.sakaiproject.nakamura.api.activemq.ConnectionFactoryService;
 import org.sakaiproject.nakamura.api.presence.PresenceService;
 import org.sakaiproject.nakamura.api.presence.PresenceStatus;
-import org.slf4j.Logger;
-import org.slf4j.LoggerFactory;
 
 import java.util.List;
 import java.util.Map;
-import java.util.Map.Entry;
-import java.util.concurrent.ConcurrentHashMap;
 
+/**
+ * Holds presence in memory on each node in a {@link PresenceEngine}. When a JMS
+ * connection factory is available the nodes of a cluster exchange their changes in
+ * batches through {@link PresenceSync}, otherwise presence is local to the node.
+ */
 @Component(immediate = true,label = "Sakai Presence Service", description = "Service for getting info about the presence status and locations of current users", name = "org.sakaiproject.nakamura.api.presence.PresenceService")
 @Service(value = PresenceService.class)
 @Properties(value = {
@@ -46,38 +49,74 @@ import java.util.concurrent.ConcurrentHashMap;
     @Property(name = "service.vendor", value = { "The Sakai Foundation" }) })
 public class PresenceServiceImpl implements PresenceService {
 
-  private Logger LOGGER = LoggerFactory.getLogger(PresenceServiceImpl.class);
-
-  private static final String LOCATION_CACHE = "presence.location";
-  private static final String USER_STATUS_CACHE = "presence.status";
-  private static final long PRESENCE_TTL = 5L * 60L * 1000L; // 5 minutes
-  // private static final int USER_ELEMENT = 0;
+  private static final int PRESENCE_TTL = 15; // 5 minutes in 20s ticks
   private static final int TIMESTAMP_ELEMENT = 1;
   private static final int LOCATION_ELEMENT = 2;
   private static final int STATUS_ELEMENT = 3;
-  private static final int STATUS_SIZE = 4;
 
-  private Cache<String> userStatusCache;
-  private Cache<Map<String, String>> locationCache;
+  public static final String DEFAULT_SYNC_TOPIC = "org/sakaiproject/nakamura/presence/sync";
+  @Property(value = DEFAULT_SYNC_TOPIC)
+  static final String SYNC_TOPIC = "presence.sync.topic";
+
+  public static final int DEFAULT_SYNC_INTERVAL = 2000;
+  @Property(intValue = DEFAULT_SYNC_INTERVAL)
+  static final String SYNC_INTERVAL = "presence.sync.interval";
+
+  public static final int DEFAULT_SYNC_KEYFRAME = 30;
+  @Property(intValue = DEFAULT_SYNC_KEYFRAME)
+  static final String SYNC_KEYFRAME = "presence.sync.keyframe";
 
-  @Reference
-  protected transient CacheManagerService cacheManagerService;
+  private final PresenceEngine engine = new PresenceEngine(PRESENCE_TTL);
 
-  protected void bindCacheManagerService(CacheManagerService cacheManagerService) {
-    this.cacheManagerService = cacheManagerService;
-    // the caches must be replicating in the cluster.
-    locationCache = cacheManagerService.getCache(LOCATION_CACHE,
-        CacheScope.CLUSTERREPLICATED);
-    userStatusCache = cacheManagerService.getCache(USER_STATUS_CACHE,
-        CacheScope.CLUSTERREPLICATED);
+  @Reference(cardinality = ReferenceCardinality.OPTIONAL_UNARY, policy = ReferencePolicy.DYNAMIC)
+  protected transient ConnectionFactoryService connFactoryService;
+
+  private boolean active;
+  private String syncTopic = DEFAULT_SYNC_TOPIC;
+  private long syncInterval = DEFAULT_SYNC_INTERVAL;
+  private int syncKeyframe = DEFAULT_SYNC_KEYFRAME;
+  private PresenceSync sync;
+
+  @Activate
+  protected synchronized void activate(Map<String, Object> properties) {
+    syncTopic = PropertiesUtil.toString(properties.get(SYNC_TOPIC), DEFAULT_SYNC_TOPIC);
+    syncInterval = PropertiesUtil.toInteger(properties.get(SYNC_INTERVAL), DEFAULT_SYNC_INTERVAL);
+    syncKeyframe = PropertiesUtil.toInteger(properties.get(SYNC_KEYFRAME), DEFAULT_SYNC_KEYFRAME);
+    active = true;
+    startSync();
   }
 
-  protected void unbindCacheManagerService(
-      CacheManagerService cacheManagerService) {
-    if (this.cacheManagerService == cacheManagerService) {
-      locationCache = null;
-      userStatusCache = null;
-      this.cacheManagerService = null;
+  @Deactivate
+  protected synchronized void deactivate(Map<String, Object> properties) {
+    active = false;
+    stopSync();
+  }
+
+  protected synchronized void bindConnFactoryService(ConnectionFactoryService connFactoryService) {
+    this.connFactoryService = connFactoryService;
+    startSync();
+  }
+
+  protected synchronized void unbindConnFactoryService(
+      ConnectionFactoryService connFactoryService) {
+    if (this.connFactoryService == connFactoryService) {
+      stopSync();
+      this.connFactoryService = null;
+    }
+  }
+
+  private void startSync() {
+    if (active && connFactoryService != null && sync == null) {
+      sync = new PresenceSync(engine, connFactoryService, syncTopic, syncInterval,
+          syncKeyframe);
+      sync.start();
+    }
+  }
+
+  private void stopSync() {
+    if (sync != null) {
+      sync.stop();
+      sync = null;
     }
   }
 
@@ -87,7 +126,7 @@ public class PresenceServiceImpl implements PresenceService {
    *      java.lang.String)
    */
   public void setStatus(String uuid, String status) {
-    updateLocationCache(uuid, getTimeStamp(), null, status);
+    engine.update(uuid, getTimeStamp(), null, status);
   }
 
   /**
@@ -95,31 +134,7 @@ public class PresenceServiceImpl implements PresenceService {
    * @see org.sakaiproject.nakamura.api.presence.PresenceService#clear(java.lang.String)
    */
   public void clear(String uuid) {
-    // see if there is a current status to clear
-    String[] currentStatus = getCurrentStatus(uuid);
-    if (currentStatus != null) {
-      if (userStatusCache != null) {
-        // clear the user from the status cache
-        if (userStatusCache.containsKey(uuid)) {
-          userStatusCache.remove(uuid);
-        }
-      }
-      // try to find the location and clear the user from that
-      String location = null;
-      if (currentStatus.length > LOCATION_ELEMENT) {
-        location = currentStatus[LOCATION_ELEMENT];
-      }
-      if (location != null && locationCache != null) {
-        // found the location so clear the user from within this cache
-        Map<String, String> locationInstanceCache = locationCache.get(location);
-        if (locationInstanceCache != null) {
-          if (locationInstanceCache.containsKey(uuid)) {
-            locationInstanceCache.remove(uuid);
-            locationCache.put(location, locationInstanceCache);
-          }
-        }
-      }
-    }
+    engine.clear(uuid);
   }
 
   /**
@@ -128,16 +143,8 @@ public class PresenceServiceImpl implements PresenceService {
    */
   public String getStatus(String uuid) {
     // TODO should the default status really be offline if not set? -AZ
-    String result = PresenceStatus.offline.name();
-    String[] currentStatus = getCurrentStatus(uuid);
-    if (currentStatus != null) {
-      if (currentStatus.length > STATUS_ELEMENT) {
-        result = currentStatus[STATUS_ELEMENT];
-      } else {
-        result = PresenceStatus.online.name();
-      }
-    }
-    return result;
+    PresenceRecord record = engine.get(uuid, getTimeStamp());
+    return record == null ? PresenceStatus.offline.name() : record.status;
   }
 
   /**
@@ -145,37 +152,21 @@ public class PresenceServiceImpl implements PresenceService {
    * @see org.sakaiproject.nakamura.api.presence.PresenceService#getLocation(java.lang.String)
    */
   public String getLocation(String uuid) {
-    String location = "none";
-    String[] currentStatus = getCurrentStatus(uuid);
-    if (currentStatus != null) {
-      if (currentStatus.length > LOCATION_ELEMENT) {
-        location = currentStatus[LOCATION_ELEMENT];
-      }
-    }
-    return location;
+    PresenceRecord record = engine.get(uuid, getTimeStamp());
+    return record == null ? PresenceEngine.NO_LOCATION : record.location;
   }
   
 
   public String[] getCurrentStatus(String uuid) {
-    String[] result = null;
-    if (userStatusCache != null) {
-      String currentStatus = userStatusCache.get(uuid);
-      long timeout = getTimeStamp() - PRESENCE_TTL;
-      // load the current status or the defaults.
-      if (currentStatus != null) {
-        String[] locationStatus = StringUtils.split(currentStatus, ":",
-            STATUS_SIZE);
-        if (locationStatus.length > TIMESTAMP_ELEMENT) {
-          // timed out ?
-          long lastTs = Long.parseLong(locationStatus[TIMESTAMP_ELEMENT]);
-          if (lastTs > timeout) {
-            result = locationStatus;
-          }
-        }
-      }
-    } else {
-      LOGGER.warn("User status cache is null, check the cacheManager");
+    PresenceRecord record = engine.get(uuid, getTimeStamp());
+    if (record == null) {
+      return null;
     }
+    String[] result = new String[STATUS_ELEMENT + 1];
+    result[0] = uuid;
+    result[TIMESTAMP_ELEMENT] = String.valueOf(record.tick);
+    result[LOCATION_ELEMENT] = record.location;
+    result[STATUS_ELEMENT] = record.status;
     return result;
   }
 
@@ -186,9 +177,11 @@ public class PresenceServiceImpl implements PresenceService {
    *      java.util.List)
    */
   public Map<String, String> online(List<String> connections) {
+    int now = getTimeStamp();
     Map<String, String> online = Maps.newHashMap();
     for (String uuid : connections) {
-      online.put(uuid, getStatus(uuid));
+      PresenceRecord record = engine.get(uuid, now);
+      online.put(uuid, record == null ? PresenceStatus.offline.name() : record.status);
     }
     return online;
   }
@@ -199,23 +192,7 @@ public class PresenceServiceImpl implements PresenceService {
    * @see org.sakaiproject.nakamura.api.presence.PresenceService#online(java.lang.String)
    */
   public Map<String, String> online(String location) {
-    if (locationCache != null) {
-      Map<String, String> locationInstanceCache = locationCache.get(location);
-      if (locationInstanceCache != null) {
-        Map<String, String> onlineMap = Maps.newHashMap();
-        for (Entry<String, String> e : locationInstanceCache.entrySet()) {
-          String[] currentStatus = getCurrentStatus(e.getKey());
-          if (currentStatus != null
-              && location.equals(currentStatus[LOCATION_ELEMENT])) {
-            onlineMap.put(e.getKey(), currentStatus[STATUS_ELEMENT]);
-          }
-        }
-        return onlineMap;
-      }
-    } else {
-      LOGGER.warn("Location cache is null, check the cacheManager");
-    }
-    return ImmutableMap.of();
+    return engine.online(location, getTimeStamp());
   }
 
   /**
@@ -225,107 +202,20 @@ public class PresenceServiceImpl implements PresenceService {
    *      java.lang.String)
    */
   public void ping(String uuid, String location) {
-    long now = getTimeStamp();
     if (StringUtils.isEmpty(location)) {
-      location = "none";
+      location = PresenceEngine.NO_LOCATION;
     }
     if (StringUtils.isEmpty(uuid)) {
       uuid = "none";
     }
-    if (updateLocationCache(uuid, now, location, null)) {
-      // need to update
-      if (!"none".equals(location) && locationCache != null) {
-        Map<String, String> locationInstanceCache = locationCache.get(location);
-        if (locationInstanceCache == null) {
-          synchronized (locationCache) {
-            locationInstanceCache = locationCache.get(location);
-            if (locationInstanceCache == null) {
-              locationInstanceCache = new ConcurrentHashMap<String, String>();
-              locationCache.put(location, locationInstanceCache);
-            }
-          }
-        }
-
-        String userKey = getLocationKey(uuid, location);
-        if (!locationInstanceCache.containsKey(uuid)) {
-          locationInstanceCache.put(uuid, userKey);
-        }
-      }
-    }
-  }
-
-  /**
-   * @return
-   */
-  private long getTimeStamp() {
-    long now = System.currentTimeMillis();
-    // make now slow changing, 20s resolution
-    return now / 20000;
-  }
-
-  /**
-   * Update the users location cache.
-   * 
-   * @param uuid
-   *          the user id
-   * @param now
-   *          the timestamp
-   * @param location
-   *          the location, null if not provided in this update
-   * @param status
-   *          the status, null if not provided in this update
-   * @return true if an update was performed.
-   */
-  private boolean updateLocationCache(String uuid, long now, String location,
-      String status) {
-    boolean update = false;
-    if (userStatusCache != null) {
-      String currentStatus = userStatusCache.get(uuid);
-      // load the current status or the defaults.
-      String[] locationStatus = new String[] { uuid, String.valueOf(now - 1),
-          "none", "online" };
-      if (currentStatus != null) {
-        locationStatus = StringUtils.split(currentStatus, ":", STATUS_SIZE);
-
-      }
-      // compare with non null current versions.
-      String[] ls = new String[] { uuid, String.valueOf(now), location, status };
-
-      for (int i = 0; i < locationStatus.length; i++) {
-        if (ls[i] != null) {
-          if (!locationStatus[i].equals(ls[i])) {
-            update = true;
-          }
-        }
-      }
-
-      if (update) {
-        // set any null values to what they were previously
-        for (int i = 0; i < locationStatus.length; i++) {
-          if (ls[i] == null) {
-            ls[i] = locationStatus[i];
-          }
-        }
-        String newStatus = ':' + StringUtils.join(ls, ':');
-        if (!newStatus.equals(currentStatus)) {
-          userStatusCache.put(uuid, newStatus);
-        } else {
-          update = false;
-        }
-      }
-    } else {
-      LOGGER.warn("User status cache is null, check the cacheManager");
-    }
-    return update;
+    engine.update(uuid, getTimeStamp(), location, null);
   }
 
   /**
-   * @param uuid
-   * @param location
    * @return
    */
-  private String getLocationKey(String uuid, String location) {
-    return uuid + ":" + location;
+  private int getTimeStamp() {
+    return PresenceEngine.currentTick();
   }
 
 }
@@ -0,0 +1,281 @@
+/**
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.nakamura.presence;
+
+import org.sakaiproject.nakamura.api.activemq.ConnectionFactoryService;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+import javax.jms.BytesMessage;
+import javax.jms.Connection;
+import javax.jms.DeliveryMode;
+import javax.jms.ExceptionListener;
+import javax.jms.JMSException;
+import javax.jms.Message;
+import javax.jms.MessageConsumer;
+import javax.jms.MessageListener;
+import javax.jms.MessageProducer;
+import javax.jms.Session;
+import javax.jms.Topic;
+
+/**
+ * Keeps the presence engines of the nodes in a cluster in step over a JMS topic.
+ * <p>
+ * A single thread sends the users changed on this node as one {@link PresenceBatch} every
+ * interval, so a burst of pings costs one message rather than one per ping. Every
+ * keyframeEvery intervals, and whenever the connection is made again, the thread sends a
+ * keyframe of every live user instead, so a node that missed a batch is corrected within
+ * a bounded time. A node that connects asks the others for a keyframe so it does not
+ * start out empty.
+ */
+final class PresenceSync implements MessageListener, ExceptionListener {
+
+  private static final Logger LOGGER = LoggerFactory.getLogger(PresenceSync.class);
+
+  /**
+   * How long to wait before trying the broker again after failing to connect.
+   */
+  private static final long RECONNECT_DELAY = 5000L;
+
+  /**
+   * The most users sent in one message, keyframes are split across messages.
+   */
+  private static final int MAX_BATCH_SIZE = 5000;
+
+  static final String PROP_NODE = "node";
+  static final String PROP_KEYFRAME_REQUEST = "keyframeRequest";
+
+  private final PresenceEngine engine;
+  private final ConnectionFactoryService connFactoryService;
+  private final String topicName;
+  private final long interval;
+  private final int keyframeEvery;
+  private final String nodeId = UUID.randomUUID().toString();
+
+  /**
+   * Set when another node asks for a keyframe.
+   */
+  private volatile boolean keyframeRequested;
+
+  /*
+   * The connection and everything on it belongs to the sender thread.
+   */
+  private ScheduledExecutorService sender;
+  private Connection connection;
+  private Session producerSession;
+  private MessageProducer producer;
+  private long nextConnect;
+  private boolean connected;
+  private int sinceKeyframe;
+
+  PresenceSync(PresenceEngine engine, ConnectionFactoryService connFactoryService,
+      String topicName, long interval, int keyframeEvery) {
+    this.engine = engine;
+    this.connFactoryService = connFactoryService;
+    this.topicName = topicName;
+    this.interval = interval;
+    this.keyframeEvery = keyframeEvery;
+  }
+
+  void start() {
+    sender = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+      public Thread newThread(Runnable r) {
+        Thread t = new Thread(r, "Presence Sync");
+        t.setDaemon(true);
+        return t;
+      }
+    });
+    sender.scheduleWithFixedDelay(new Runnable() {
+      public void run() {
+        sync();
+      }
+    }, 0, interval, TimeUnit.MILLISECONDS);
+  }
+
+  void stop() {
+    sender.shutdown();
+    try {
+      sender.awaitTermination(5, TimeUnit.SECONDS);
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+    // the sender has stopped, so the connection can be used from here.
+    disconnect();
+  }
+
+  /**
+   * Send the changes made on this node, called on the sender thread only.
+   */
+  void sync() {
+    boolean reconnected = !connected;
+    if (!connect()) {
+      return;
+    }
+    int now = PresenceEngine.currentTick();
+    boolean keyframe = reconnected || keyframeRequested || ++sinceKeyframe >= keyframeEvery;
+    List<String> changed = engine.drainChanged();
+    Set<String> uuids = new LinkedHashSet<String>(changed);
+    if (keyframe) {
+      keyframeRequested = false;
+      sinceKeyframe = 0;
+      uuids.addAll(engine.liveUsers(now));
+    }
+    if (uuids.isEmpty() && !reconnected) {
+      return;
+    }
+    List<PresenceBatch> batches = new ArrayList<PresenceBatch>();
+    PresenceBatch batch = new PresenceBatch(now, keyframe);
+    batches.add(batch);
+    for (String uuid : uuids) {
+      if (batch.size() == MAX_BATCH_SIZE) {
+        batch = new PresenceBatch(now, keyframe);
+        batches.add(batch);
+      }
+      PresenceRecord record = engine.getRecord(uuid);
+      if (record == null) {
+        batch.clear(uuid);
+      } else {
+        batch.set(uuid, record);
+      }
+    }
+    try {
+      for (PresenceBatch b : batches) {
+        BytesMessage message = producerSession.createBytesMessage();
+        message.writeBytes(b.toBytes());
+        message.setStringProperty(PROP_NODE, nodeId);
+        // a node that has just joined knows nothing, so ask the others to catch it up.
+        message.setBooleanProperty(PROP_KEYFRAME_REQUEST, reconnected);
+        producer.send(message);
+      }
+    } catch (JMSException e) {
+      LOGGER.warn("Failed to send {} presence changes, will retry: {} ", uuids.size(),
+          e.getMessage());
+      engine.markChanged(changed);
+      disconnect();
+    } catch (IOException e) {
+      // writing to a byte array does not fail.
+      LOGGER.error(e.getMessage(), e);
+    }
+  }
+
+  /**
+   * Make sure there is a connection.
+   *
+   * @return true if connected.
+   */
+  private boolean connect() {
+    if (connected) {
+      return true;
+    }
+    if (System.currentTimeMillis() < nextConnect) {
+      return false;
+    }
+    try {
+      connection = connFactoryService.getDefaultConnectionFactory().createConnection();
+      connection.setExceptionListener(this);
+      Session consumerSession = connection.createSession(false, Session.AUTO_ACKNOWLEDGE);
+      Topic topic = consumerSession.createTopic(topicName);
+      MessageConsumer consumer = consumerSession.createConsumer(topic, null, true);
+      consumer.setMessageListener(this);
+      producerSession = connection.createSession(false, Session.AUTO_ACKNOWLEDGE);
+      producer = producerSession.createProducer(topic);
+      producer.setDeliveryMode(DeliveryMode.NON_PERSISTENT);
+      connection.start();
+    } catch (JMSException e) {
+      LOGGER.warn("Unable to connect presence sync to {}: {} ", topicName, e.getMessage());
+      disconnect();
+      nextConnect = System.currentTimeMillis() + RECONNECT_DELAY;
+      return false;
+    }
+    connected = true;
+    LOGGER.info("Presence sync connected to {} as {} ", topicName, nodeId);
+    return true;
+  }
+
+  private void disconnect() {
+    if (connection != null) {
+      try {
+        connection.close();
+      } catch (JMSException e) {
+        LOGGER.debug(e.getMessage(), e);
+      }
+    }
+    connected = false;
+    connection = null;
+    producerSession = null;
+    producer = null;
+  }
+
+  /**
+   * {@inheritDoc}
+   *
+   * @see javax.jms.ExceptionListener#onException(javax.jms.JMSException)
+   */
+  public void onException(JMSException e) {
+    LOGGER.warn("Presence sync lost its connection: {} ", e.getMessage());
+    try {
+      sender.execute(new Runnable() {
+        public void run() {
+          disconnect();
+        }
+      });
+    } catch (RuntimeException re) {
+      LOGGER.debug("Sender has stopped, {} ", re.getMessage());
+    }
+  }
+
+  /**
+   * {@inheritDoc}
+   *
+   * @see javax.jms.MessageListener#onMessage(javax.jms.Message)
+   */
+  public void onMessage(Message message) {
+    if (!(message instanceof BytesMessage)) {
+      return;
+    }
+    try {
+      String node = message.getStringProperty(PROP_NODE);
+      if (node == null || nodeId.equals(node)) {
+        return;
+      }
+      if (message.getBooleanProperty(PROP_KEYFRAME_REQUEST)) {
+        keyframeRequested = true;
+      }
+      BytesMessage bytesMessage = (BytesMessage) message;
+      byte[] body = new byte[(int) bytesMessage.getBodyLength()];
+      bytesMessage.readBytes(body);
+      PresenceBatch.fromBytes(body).apply(engine, PresenceEngine.currentTick());
+    } catch (JMSException e) {
+      LOGGER.warn("Unreadable presence changes: {} ", e.getMessage());
+    } catch (IOException e) {
+      LOGGER.warn("Unreadable presence changes: {} ", e.getMessage());
+    }
+  }
+
+}
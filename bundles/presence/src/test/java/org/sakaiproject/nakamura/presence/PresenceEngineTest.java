@@ -0,0 +1,171 @@
+/**
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.nakamura.presence;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+
+/**
+ *
+ */
+public class PresenceEngineTest {
+
+  private static final int TTL = 15;
+
+  @Test
+  public void testMoveBetweenLocations() {
+    PresenceEngine engine = new PresenceEngine(TTL);
+    assertTrue(engine.update("ieb", 100, "a", null));
+    assertFalse(engine.update("ieb", 100, "a", null));
+    assertEquals("online", engine.online("a", 100).get("ieb"));
+
+    assertTrue(engine.update("ieb", 100, "b", null));
+    assertTrue(engine.online("a", 100).isEmpty());
+    assertEquals("online", engine.online("b", 100).get("ieb"));
+
+    assertTrue(engine.update("ieb", 101, null, "busy"));
+    assertEquals("busy", engine.online("b", 101).get("ieb"));
+
+    engine.clear("ieb");
+    assertNull(engine.get("ieb", 101));
+    assertTrue(engine.online("b", 101).isEmpty());
+  }
+
+  @Test
+  public void testExpiry() {
+    PresenceEngine engine = new PresenceEngine(TTL);
+    engine.update("ieb", 100, "a", "away");
+    assertEquals("away", engine.get("ieb", 100 + TTL - 1).status);
+    assertNull(engine.get("ieb", 100 + TTL));
+    assertTrue(engine.online("a", 100 + TTL).isEmpty());
+
+    // an expired record does not lend its values to the next update.
+    engine.update("ieb", 100 + TTL, null, null);
+    PresenceRecord record = engine.get("ieb", 100 + TTL);
+    assertEquals(PresenceEngine.NO_LOCATION, record.location);
+    assertEquals("online", record.status);
+
+    engine.purge(200);
+    assertEquals(0, engine.size());
+  }
+
+  @Test
+  public void testRemoteChanges() {
+    PresenceEngine engine = new PresenceEngine(TTL);
+    engine.update("ieb", 100, "a", null);
+    engine.drainChanged();
+
+    // older than what is held, ignored.
+    engine.applyRemote("ieb", 99, 100, "b", "busy");
+    assertEquals("a", engine.get("ieb", 100).location);
+
+    engine.applyRemote("ieb", 101, 101, "b", "busy");
+    assertEquals("busy", engine.online("b", 101).get("ieb"));
+    assertTrue(engine.online("a", 101).isEmpty());
+
+    engine.applyRemoteClear("ieb", 100);
+    assertEquals("b", engine.get("ieb", 101).location);
+    engine.applyRemoteClear("ieb", 101);
+    assertNull(engine.get("ieb", 101));
+
+    // changes from other nodes are not sent on again.
+    assertTrue(engine.drainChanged().isEmpty());
+  }
+
+  @Test
+  public void testBatchRoundTrip() throws Exception {
+    PresenceEngine source = new PresenceEngine(TTL);
+    source.update("ieb", 100, "a", "online");
+    source.update("zach", 98, "a", "foo:bar");
+    source.update("nico", 100, "b", null);
+    source.update("gone", 100, "b", null);
+    source.drainChanged();
+    source.clear("gone");
+
+    PresenceBatch batch = new PresenceBatch(100, false);
+    for (String uuid : new String[] { "ieb", "zach", "nico", "gone" }) {
+      PresenceRecord record = source.getRecord(uuid);
+      if (record == null) {
+        batch.clear(uuid);
+      } else {
+        batch.set(uuid, record);
+      }
+    }
+
+    PresenceEngine target = new PresenceEngine(TTL);
+    target.update("gone", 99, "b", null);
+    PresenceBatch received = PresenceBatch.fromBytes(batch.toBytes());
+    assertEquals(4, received.size());
+    assertFalse(received.isKeyframe());
+    received.apply(target, 100);
+
+    Map<String, String> a = target.online("a", 100);
+    assertEquals(2, a.size());
+    assertEquals("foo:bar", a.get("zach"));
+    assertEquals(98, target.get("zach", 100).tick);
+    assertEquals("online", target.online("b", 100).get("nico"));
+    assertNull(target.get("gone", 100));
+  }
+
+  @Test
+  public void testConcurrentMoves() throws Exception {
+    final PresenceEngine engine = new PresenceEngine(TTL);
+    final CountDownLatch start = new CountDownLatch(1);
+    List<Thread> threads = new ArrayList<Thread>();
+    for (int t = 0; t < 8; t++) {
+      final int seed = t;
+      Thread thread = new Thread() {
+        public void run() {
+          try {
+            start.await();
+          } catch (InterruptedException e) {
+            return;
+          }
+          for (int i = 0; i < 20000; i++) {
+            engine.update("user" + (i % 10), 100, "location" + ((i + seed) % 3), null);
+          }
+        }
+      };
+      thread.start();
+      threads.add(thread);
+    }
+    start.countDown();
+    for (Thread thread : threads) {
+      thread.join();
+    }
+    // every user is found at exactly the location of their record.
+    int found = 0;
+    for (int l = 0; l < 3; l++) {
+      for (String uuid : engine.online("location" + l, 100).keySet()) {
+        assertEquals("location" + l, engine.get(uuid, 100).location);
+        found++;
+      }
+    }
+    assertEquals(10, found);
+  }
+
+}
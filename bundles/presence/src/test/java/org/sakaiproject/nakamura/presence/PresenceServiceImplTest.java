@@ -17,25 +17,16 @@
  */
 package org.sakaiproject.nakamura.presence;
 
-import static org.easymock.EasyMock.createMock;
-import static org.easymock.EasyMock.expect;
-import static org.easymock.EasyMock.replay;
-import static org.easymock.EasyMock.verify;
 import static org.junit.Assert.assertEquals;
 
 import com.google.common.collect.Lists;
 
 import junit.framework.Assert;
 
-import org.junit.After;
 import org.junit.Before;
 import org.junit.Test;
-import org.sakaiproject.nakamura.api.memory.Cache;
-import org.sakaiproject.nakamura.api.memory.CacheManagerService;
-import org.sakaiproject.nakamura.api.memory.CacheScope;
 import org.sakaiproject.nakamura.api.presence.PresenceService;
 import org.sakaiproject.nakamura.api.presence.PresenceStatus;
-import org.sakaiproject.nakamura.memory.MapCacheImpl;
 
 import java.util.List;
 import java.util.Map;
@@ -45,42 +36,14 @@ import java.util.Map;
  */
 public class PresenceServiceImplTest {
 
-  private CacheManagerService cacheManagerService;
   private PresenceServiceImpl presenceService;
-  private Cache<Object> presenceLocationCache;
-  private Cache<Object> presenceStatusCache;
 
   /**
    * @throws java.lang.Exception
    */
   @Before
   public void setUp() throws Exception {
-
-    presenceLocationCache = new MapCacheImpl<Object>("testlocation", CacheScope.INSTANCE);
-    presenceStatusCache = new MapCacheImpl<Object>("teststatus", CacheScope.INSTANCE);
-
-    cacheManagerService = createMock(CacheManagerService.class);
-    expect(
-        cacheManagerService.getCache("presence.location",
-            CacheScope.CLUSTERREPLICATED)).andReturn(presenceLocationCache)
-        .anyTimes();
-    expect(
-        cacheManagerService.getCache("presence.status",
-            CacheScope.CLUSTERREPLICATED)).andReturn(presenceStatusCache)
-        .anyTimes();
-    replay(cacheManagerService);
-
     presenceService = new PresenceServiceImpl();
-    presenceService.bindCacheManagerService(cacheManagerService);
-  }
-
-  /**
-   * @throws java.lang.Exception
-   */
-  @After
-  public void tearDown() throws Exception {
-    presenceService.unbindCacheManagerService(cacheManagerService);
-    verify(cacheManagerService);
   }
 
   @Test
@@ -0,0 +1,273 @@
+/**
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.nakamura.profile;
+
+import com.google.common.collect.Maps;
+
+import org.apache.sling.api.resource.ValueMap;
+import org.apache.sling.api.wrappers.ValueMapDecorator;
+
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Materialized profiles, so reading a profile doesn't walk the profile tree or call the
+ * profile providers every time.
+ * <p>
+ * The local part of a profile is kept flattened, per reader as the sections a reader
+ * can see depend on their access, until anything under the profile changes or it is
+ * older than the local TTL. Only the readers who read a profile most recently are kept,
+ * so a popular profile holds a bounded number of copies. Provider sections are kept per
+ * section, shared by all readers, and are refreshed when they are older than the TTL of
+ * their provider. A section that can't be refreshed in time is served from the last data
+ * the provider gave for it.
+ * <p>
+ * Profiles are looked up without a lock and stamped with a use count. Only adding a
+ * profile takes a lock, to drop the least recently used ones over the limit.
+ */
+class ProfileCache {
+
+  /**
+   * The local part of a profile as one reader sees it.
+   */
+  static class LocalProfile {
+    final Map<String, Object> document;
+    final List<ProvidedSection> sections;
+    final long created = System.currentTimeMillis();
+
+    LocalProfile(Map<String, Object> document, List<ProvidedSection> sections) {
+      this.document = document;
+      this.sections = sections;
+    }
+
+    /**
+     * @return a copy of the document that the caller can change.
+     */
+    ValueMap copyDocument() {
+      return copy(document);
+    }
+
+    @SuppressWarnings("unchecked")
+    private static ValueMap copy(Map<String, Object> map) {
+      ValueMap copy = new ValueMapDecorator(new HashMap<String, Object>(map.size()));
+      for (Entry<String, Object> e : map.entrySet()) {
+        if (e.getValue() instanceof Map) {
+          copy.put(e.getKey(), copy((Map<String, Object>) e.getValue()));
+        } else {
+          copy.put(e.getKey(), e.getValue());
+        }
+      }
+      return copy;
+    }
+  }
+
+  /**
+   * A section of a profile that comes from a provider.
+   */
+  static class ProvidedSection {
+    /** the path of the section content */
+    final String path;
+    /** the path of the section relative to the profile, used to find its settings */
+    final String relativePath;
+    final String provider;
+    /** the keys of the section in the document, empty for the whole profile */
+    final String[] keys;
+
+    ProvidedSection(String path, String relativePath, String provider, String[] keys) {
+      this.path = path;
+      this.relativePath = relativePath;
+      this.provider = provider;
+      this.keys = keys;
+    }
+  }
+
+  /**
+   * What a provider last gave for a section.
+   */
+  static class ProvidedData {
+    final Map<String, Object> data;
+    final long fetched = System.currentTimeMillis();
+
+    ProvidedData(Map<String, Object> data) {
+      this.data = data;
+    }
+  }
+
+  private static class CachedProfile {
+    /** guarded by itself */
+    final Map<String, LocalProfile> byReader;
+    final ConcurrentMap<String, ProvidedData> provided = Maps.newConcurrentMap();
+    /** when the profile was last used, from {@link ProfileCache#clock} */
+    volatile long used;
+
+    CachedProfile(final int maxReaders) {
+      byReader = new LinkedHashMap<String, LocalProfile>(16, 0.75f, true) {
+        private static final long serialVersionUID = 1L;
+
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, LocalProfile> eldest) {
+          return size() > maxReaders;
+        }
+      };
+    }
+  }
+
+  private final ConcurrentMap<String, CachedProfile> profiles = Maps.newConcurrentMap();
+  /** guards adding profiles and evicting them */
+  private final Object evictionLock = new Object();
+  private final AtomicLong clock = new AtomicLong();
+  private final int maxProfiles;
+  private final int maxReaders;
+  private final long localTtl;
+
+  /**
+   * Incremented on every invalidation so a profile read while it was changing is not left
+   * in the cache.
+   */
+  private final AtomicLong generation = new AtomicLong();
+
+  /**
+   * @param maxProfiles
+   *          the number of profiles to keep.
+   * @param maxReaders
+   *          the number of readers to keep the local part of each profile for.
+   * @param localTtl
+   *          how long to keep the local part of a profile, in ms.
+   */
+  ProfileCache(int maxProfiles, int maxReaders, long localTtl) {
+    this.maxProfiles = maxProfiles;
+    this.maxReaders = maxReaders;
+    this.localTtl = localTtl;
+  }
+
+  long getGeneration() {
+    return generation.get();
+  }
+
+  LocalProfile getLocal(String profilePath, String reader) {
+    CachedProfile profile = get(profilePath, false);
+    if (profile == null) {
+      return null;
+    }
+    synchronized (profile.byReader) {
+      LocalProfile local = profile.byReader.get(reader);
+      if (local != null && System.currentTimeMillis() - local.created > localTtl) {
+        profile.byReader.remove(reader);
+        return null;
+      }
+      return local;
+    }
+  }
+
+  /**
+   * Keep the local part of a profile, unless something was invalidated since
+   * <code>startGeneration</code>.
+   */
+  void putLocal(String profilePath, String reader, LocalProfile local,
+      long startGeneration) {
+    CachedProfile profile = get(profilePath, true);
+    synchronized (profile.byReader) {
+      profile.byReader.put(reader, local);
+    }
+    if (generation.get() != startGeneration) {
+      // something was invalidated while we were loading, it may have been this profile.
+      profile = get(profilePath, false);
+      if (profile != null) {
+        synchronized (profile.byReader) {
+          profile.byReader.remove(reader);
+        }
+      }
+    }
+  }
+
+  ProvidedData getProvided(String profilePath, String sectionPath) {
+    CachedProfile profile = get(profilePath, false);
+    return profile == null ? null : profile.provided.get(sectionPath);
+  }
+
+  void putProvided(String profilePath, String sectionPath, ProvidedData data) {
+    get(profilePath, true).provided.put(sectionPath, data);
+  }
+
+  /**
+   * Drop the local part of a profile for every reader, and its provided sections too if
+   * the whole profile is gone.
+   */
+  void invalidate(String profilePath, boolean removed) {
+    generation.incrementAndGet();
+    if (removed) {
+      profiles.remove(profilePath);
+    } else {
+      CachedProfile profile = get(profilePath, false);
+      if (profile != null) {
+        synchronized (profile.byReader) {
+          profile.byReader.clear();
+        }
+      }
+    }
+  }
+
+  void clear() {
+    generation.incrementAndGet();
+    profiles.clear();
+  }
+
+  private CachedProfile get(String profilePath, boolean create) {
+    CachedProfile profile = profiles.get(profilePath);
+    if (profile == null && create) {
+      synchronized (evictionLock) {
+        profile = profiles.get(profilePath);
+        if (profile == null) {
+          profile = new CachedProfile(maxReaders);
+          profile.used = clock.incrementAndGet();
+          profiles.put(profilePath, profile);
+          evictLeastRecentlyUsed();
+          return profile;
+        }
+      }
+    }
+    if (profile != null) {
+      profile.used = clock.incrementAndGet();
+    }
+    return profile;
+  }
+
+  /**
+   * Drop the least recently used profiles over the limit. This scans every profile, but
+   * only runs when a profile is added to a full cache, which follows loading it.
+   */
+  private void evictLeastRecentlyUsed() {
+    while (profiles.size() > maxProfiles) {
+      Map.Entry<String, CachedProfile> eldest = null;
+      for (Map.Entry<String, CachedProfile> e : profiles.entrySet()) {
+        if (eldest == null || e.getValue().used < eldest.getValue().used) {
+          eldest = e;
+        }
+      }
+      if (eldest == null) {
+        return;
+      }
+      profiles.remove(eldest.getKey(), eldest.getValue());
+    }
+  }
+}
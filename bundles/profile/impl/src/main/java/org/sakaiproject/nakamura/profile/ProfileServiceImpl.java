@@ -24,7 +24,9 @@ import static org.sakaiproject.nakamura.api.user.UserConstants.GROUP_TITLE_PROPE
 
 import org.apache.felix.scr.annotations.Activate;
 import org.apache.felix.scr.annotations.Component;
+import org.apache.felix.scr.annotations.Deactivate;
 import org.apache.felix.scr.annotations.Modified;
+import org.apache.felix.scr.annotations.Properties;
 import org.apache.felix.scr.annotations.Property;
 import org.apache.felix.scr.annotations.Reference;
 import org.apache.felix.scr.annotations.ReferenceCardinality;
@@ -36,6 +38,9 @@ import org.apache.sling.api.wrappers.ValueMapDecorator;
 import org.apache.sling.commons.json.JSONException;
 import org.apache.sling.commons.json.JSONObject;
 import org.apache.sling.commons.osgi.PropertiesUtil;
+import org.osgi.service.event.Event;
+import org.osgi.service.event.EventConstants;
+import org.osgi.service.event.EventHandler;
 import org.sakaiproject.nakamura.api.lite.StorageClientException;
 import org.sakaiproject.nakamura.api.lite.StorageClientUtils;
 import org.sakaiproject.nakamura.api.lite.accesscontrol.AccessControlManager;
@@ -51,6 +56,9 @@ import org.sakaiproject.nakamura.api.profile.ProfileService;
 import org.sakaiproject.nakamura.api.profile.ProviderSettings;
 import org.sakaiproject.nakamura.api.resource.lite.LiteJsonImporter;
 import org.sakaiproject.nakamura.api.user.BasicUserInfoService;
+import org.sakaiproject.nakamura.profile.ProfileCache.LocalProfile;
+import org.sakaiproject.nakamura.profile.ProfileCache.ProvidedData;
+import org.sakaiproject.nakamura.profile.ProfileCache.ProvidedSection;
 import org.sakaiproject.nakamura.util.LitePersonalUtils;
 import org.sakaiproject.nakamura.util.PathUtils;
 import org.slf4j.Logger;
@@ -61,9 +69,19 @@ import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Map.Entry;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.Callable;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import javax.jcr.RepositoryException;
 import javax.jcr.Session;
@@ -72,9 +90,13 @@ import javax.jcr.Session;
  *
  */
 @Component(immediate = true, metatype = true, specVersion="1.1")
-@Service
+@Service(value = { ProfileService.class, EventHandler.class })
+@Properties(value = { @Property(name = EventConstants.EVENT_TOPIC, value = {
+    "org/sakaiproject/nakamura/lite/content/ADDED",
+    "org/sakaiproject/nakamura/lite/content/UPDATED",
+    "org/sakaiproject/nakamura/lite/content/DELETE" }, propertyPrivate = true) })
 @Reference(name = "ProfileProviders", referenceInterface = ProfileProvider.class, policy = ReferencePolicy.DYNAMIC, cardinality = ReferenceCardinality.OPTIONAL_MULTIPLE, strategy = ReferenceStrategy.EVENT, bind = "bindProfileProvider", unbind = "unbindProfileProvider")
-public class ProfileServiceImpl implements ProfileService {
+public class ProfileServiceImpl implements ProfileService, EventHandler {
 
   private Map<String, ProfileProvider> providers = new ConcurrentHashMap<String, ProfileProvider>();
   private ProviderSettingsFactory providerSettingsFactory = new ProviderSettingsFactory();
@@ -88,6 +110,43 @@ public class ProfileServiceImpl implements ProfileService {
   static final String SCAN_PROVIDER = "should-scan-for-providers";
   private Boolean shouldScanForProviders;
 
+  @Property(longValue = 5000)
+  static final String PROVIDER_TIMEOUT = "sakai.profile.provider.timeout";
+  /**
+   * How long a request waits for all the providers of a profile, in ms.
+   */
+  private long providerTimeout = 5000;
+
+  @Property(longValue = 300)
+  static final String PROVIDER_TTL = "sakai.profile.provider.ttl";
+  /**
+   * How long provided data is used before asking the provider again, in ms.
+   */
+  private long providerTtl = 300000;
+
+  @Property(value = {}, cardinality = 9999999)
+  static final String PROVIDER_TTLS = "sakai.profile.provider.ttls";
+  /**
+   * TTLs for single providers, in ms, configured as name=seconds.
+   */
+  private Map<String, Long> providerTtls = new HashMap<String, Long>();
+
+  @Property(intValue = 8)
+  static final String PROVIDER_THREADS = "sakai.profile.provider.threads";
+
+  @Property(longValue = 300)
+  static final String CACHE_TTL = "sakai.profile.cache.ttl";
+
+  @Property(intValue = 1000)
+  static final String CACHE_MAX_PROFILES = "sakai.profile.cache.max.profiles";
+
+  @Property(intValue = 32)
+  static final String CACHE_MAX_READERS = "sakai.profile.cache.max.readers";
+
+  private ProfileCache profileCache = new ProfileCache(1000, 32, 300000);
+
+  private volatile ExecutorService providerExecutor = newProviderExecutor(8);
+
   @Reference
   private BasicUserInfoService basicUserInfoService;
 
@@ -95,6 +154,60 @@ public class ProfileServiceImpl implements ProfileService {
   protected void activate(Map<?, ?> props) {
     emailLocation = PropertiesUtil.toString(props.get(EMAIL_LOCATION), null);
     shouldScanForProviders = PropertiesUtil.toBoolean(props.get(SCAN_PROVIDER), false);
+    providerTimeout = PropertiesUtil.toLong(props.get(PROVIDER_TIMEOUT), 5000);
+    providerTtl = PropertiesUtil.toLong(props.get(PROVIDER_TTL), 300) * 1000L;
+    Map<String, Long> ttls = new HashMap<String, Long>();
+    for (String ttl : PropertiesUtil.toStringArray(props.get(PROVIDER_TTLS), new String[0])) {
+      String[] nv = ttl.split("=", 2);
+      if (nv.length == 2) {
+        try {
+          ttls.put(nv[0].trim(), Long.parseLong(nv[1].trim()) * 1000L);
+        } catch (NumberFormatException e) {
+          LOG.warn("Ignoring profile provider TTL {} ", ttl);
+        }
+      }
+    }
+    providerTtls = ttls;
+    profileCache = new ProfileCache(PropertiesUtil.toInteger(props.get(CACHE_MAX_PROFILES),
+        1000), PropertiesUtil.toInteger(props.get(CACHE_MAX_READERS), 32),
+        PropertiesUtil.toLong(props.get(CACHE_TTL), 300) * 1000L);
+
+    int threads = PropertiesUtil.toInteger(props.get(PROVIDER_THREADS), 8);
+    ExecutorService oldExecutor = providerExecutor;
+    providerExecutor = newProviderExecutor(threads);
+    if (oldExecutor != null) {
+      oldExecutor.shutdown();
+    }
+  }
+
+  @Deactivate
+  protected void deactivate(Map<?, ?> props) {
+    if (providerExecutor != null) {
+      providerExecutor.shutdownNow();
+      providerExecutor = null;
+    }
+    profileCache.clear();
+  }
+
+  /**
+   * Provider calls run on their own threads so a request can stop waiting for them. When
+   * all the threads are busy and the queue is full further calls are rejected and the
+   * request makes do with what is cached.
+   */
+  private ExecutorService newProviderExecutor(int threads) {
+    final AtomicInteger threadNumber = new AtomicInteger();
+    ThreadPoolExecutor executor = new ThreadPoolExecutor(threads, threads, 60,
+        TimeUnit.SECONDS, new ArrayBlockingQueue<Runnable>(threads * 16),
+        new ThreadFactory() {
+          public Thread newThread(Runnable r) {
+            Thread thread = new Thread(r, "Profile Provider "
+                + threadNumber.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+          }
+        });
+    executor.allowCoreThreadTimeOut(true);
+    return executor;
   }
 
   public String getEmailLocation() {
@@ -175,13 +288,20 @@ public class ProfileServiceImpl implements ProfileService {
       return new ValueMapDecorator(basicUserInfoService.getProperties(authorizable));
     }
     String profilePath = LitePersonalUtils.getProfilePath(authorizable.getId());
-    org.sakaiproject.nakamura.api.lite.Session sparseSession = StorageClientUtils.adaptToSession(session);
-    ContentManager contentManager = sparseSession.getContentManager();
-    ValueMap profileMap = new ValueMapDecorator(new HashMap<String, Object>());
-    
-    if (contentManager.exists(profilePath)) {
-      Content profileContent = contentManager.get(profilePath);
-      profileMap.putAll(getResolvedProfileMap(authorizable, profileContent, session));
+    ValueMap profileMap;
+    LocalProfile local = getCachedLocal(profilePath, session);
+    if (local != null) {
+      // materialized already, no need to go to the content store.
+      profileMap = resolve(local, profilePath, session);
+    } else {
+      org.sakaiproject.nakamura.api.lite.Session sparseSession = StorageClientUtils.adaptToSession(session);
+      ContentManager contentManager = sparseSession.getContentManager();
+      profileMap = new ValueMapDecorator(new HashMap<String, Object>());
+
+      if (contentManager.exists(profilePath)) {
+        Content profileContent = contentManager.get(profilePath);
+        profileMap.putAll(getResolvedProfileMap(authorizable, profileContent, session));
+      }
     }
 
     profileMap.putAll(basicUserInfoService.getProperties(authorizable));
@@ -195,129 +315,299 @@ public class ProfileServiceImpl implements ProfileService {
    * @see org.sakaiproject.nakamura.api.profile.ProfileService#getProfileMap(javax.jcr.Node)
    */
   public ValueMap getResolvedProfileMap(Authorizable authorizable, Content profileContent, Session jcrSession) throws RepositoryException {
-    // Get the data from our external providers.
-    Map<String, Future<Map<String, Object>>> providedNodeData = new HashMap<String, Future<Map<String, Object>>>();
-    if (shouldScanForProviders) {
-      Map<String, List<ProviderSettings>> providersMap = scanForProviders(profileContent, jcrSession);
-      for (Entry<String, List<ProviderSettings>> e : providersMap.entrySet()) {
-        ProfileProvider pp = providers.get(e.getKey());
-        if (pp != null) {
-          providedNodeData.putAll(pp.getProvidedMap(e.getValue()));
-        }
+    String profilePath = profileContent.getPath();
+    LocalProfile local = getCachedLocal(profilePath, jcrSession);
+    if (local == null) {
+      long startGeneration = profileCache.getGeneration();
+      local = materialize(profileContent, jcrSession);
+      if (jcrSession != null && jcrSession.getUserID() != null) {
+        profileCache.putLocal(profilePath, jcrSession.getUserID(), local, startGeneration);
       }
     }
-    try {
-      // Return it as a ValueMap.
-      ValueMap map = new ValueMapDecorator(new HashMap<String, Object>());
-      handleNode(profileContent, providedNodeData, map);
-      final String resourceType = (String) profileContent
-          .getProperty("sling:resourceType");
-      if (ProfileConstants.USER_PROFILE_RT.equals(resourceType)) {
-        map.put("userid", PathUtils.getAuthorizableId(profileContent.getPath()));
-      } else if (ProfileConstants.GROUP_PROFILE_RT.equals(resourceType)) {
-        map.put("groupid", PathUtils.getAuthorizableId(profileContent.getPath()));
-      }
-      return map;
-    } catch (InterruptedException e) {
-      throw new RuntimeException(e.getMessage(),e);
-    } catch (ExecutionException e) {
-      throw new RuntimeException(e.getMessage(),e);
+    return resolve(local, profilePath, jcrSession);
+  }
+
+  /**
+   * @return the local part of a profile as the user of the session last saw it, or null.
+   */
+  private LocalProfile getCachedLocal(String profilePath, Session session) {
+    if (session == null || session.getUserID() == null) {
+      return null;
     }
+    return profileCache.getLocal(profilePath, session.getUserID());
   }
 
   /**
-   * Fills the provided map with the JCR info and the external information.
+   * Flattens the profile content tree into a document, noting the sections that are
+   * marked as external on the way.
    *
    * @param profileContent
-   *          The node that should be merged with the external info. The entire nodetree
-   *          will be checked.
-   * @param baseMap
-   *          The map that contains the external information.
-   * @param map
-   *          The map that should be filled.
+   *          The top node of a profile.
+   * @param jcrSession
+   * @return the local part of the profile.
    * @throws RepositoryException
-   * @throws InterruptedException
-   * @throws ExecutionException
    */
-  protected void handleNode(Content profileContent, Map<String, Future<Map<String, Object>>> baseMap,
-      Map<String, Object> map) throws RepositoryException, InterruptedException,
-      ExecutionException {
-    // If our map contains this node, that means one of the providers had some information
-    // for it. We will use this provider.
-    if (!baseMap.isEmpty() && baseMap.containsKey(profileContent.getPath())) {
-      map.putAll(baseMap.get(profileContent.getPath()).get());
-    } else {
+  private LocalProfile materialize(Content profileContent, Session jcrSession)
+      throws RepositoryException {
+    Map<String, Object> document = new HashMap<String, Object>();
+    List<ProvidedSection> sections = new ArrayList<ProvidedSection>();
+    materialize("", new String[0], profileContent, document, sections,
+        shouldScanForProviders, jcrSession);
+    final String resourceType = (String) profileContent
+        .getProperty("sling:resourceType");
+    if (ProfileConstants.USER_PROFILE_RT.equals(resourceType)) {
+      document.put("userid", PathUtils.getAuthorizableId(profileContent.getPath()));
+    } else if (ProfileConstants.GROUP_PROFILE_RT.equals(resourceType)) {
+      document.put("groupid", PathUtils.getAuthorizableId(profileContent.getPath()));
+    }
+    return new LocalProfile(document, sections);
+  }
 
-      // The node wasn't found in the baseMap.
-      // We just dump the Sparse properties excluding any system properties.
-      for ( Entry<String, Object> e : profileContent.getProperties().entrySet()) {
-        String k = e.getKey();
-        if ( !k.startsWith("_") &&  !k.startsWith(":") ) {
-          map.put(k,e.getValue());
+  /**
+   * Fills the map with the Sparse properties of the content and its children. A node
+   * marked as external is still filled in, so there is something to show if its provider
+   * can't be reached.
+   *
+   * @param path
+   *          the path of the content relative to the profile.
+   * @param keys
+   *          the keys of the content in the document.
+   * @param scan
+   *          true if external nodes should be looked for.
+   * @throws RepositoryException
+   */
+  private void materialize(String path, String[] keys, Content content,
+      Map<String, Object> map, List<ProvidedSection> sections, boolean scan,
+      Session jcrSession) throws RepositoryException {
+    if (scan) {
+      ProviderSettings settings = providerSettingsFactory.newProviderSettings(path,
+          content, jcrSession);
+      if (settings != null) {
+        if (settings.getProvider() != null) {
+          sections.add(new ProvidedSection(content.getPath(), path, settings.getProvider(),
+              keys));
         }
+        // providers cover the whole subtree of the node.
+        scan = false;
       }
-      map.put("_path", PathUtils.translateAuthorizablePath(profileContent.getPath()));
-
-      // We loop over the child nodes, but each node get checked against the baseMap
-      // again.
-      for (Content childProfile : profileContent.listChildren()) {
-        ValueMap childMap = new ValueMapDecorator(new HashMap<String, Object>());
-        handleNode(childProfile, baseMap, childMap);
-        map.put(StorageClientUtils.getObjectName(childProfile.getPath()), childMap);
+    }
+
+    // We just dump the Sparse properties excluding any system properties.
+    for (Entry<String, Object> e : content.getProperties().entrySet()) {
+      String k = e.getKey();
+      if (!k.startsWith("_") && !k.startsWith(":")) {
+        map.put(k, e.getValue());
       }
     }
+    map.put("_path", PathUtils.translateAuthorizablePath(content.getPath()));
+
+    for (Content child : content.listChildren()) {
+      String name = StorageClientUtils.getObjectName(child.getPath());
+      String[] childKeys = new String[keys.length + 1];
+      System.arraycopy(keys, 0, childKeys, 0, keys.length);
+      childKeys[keys.length] = name;
+      Map<String, Object> childMap = new HashMap<String, Object>();
+      materialize(StorageClientUtils.newPath(path, name), childKeys, child, childMap,
+          sections, scan, jcrSession);
+      map.put(name, childMap);
+    }
   }
 
-
-
   /**
-   * Loops over an entire profile and checks if some of the nodes are marked as external.
-   * If there is a node found that has it's sakai:source property set to external, we'll
-   * look for a ProfileProvider that matches that path.
+   * Fills in the provided sections of a local profile, from the cache where it is fresh
+   * enough and from the providers otherwise.
    *
-   * @param profileContent
-   *          The top node of a profile.
-   * @param jcrSession 
-   * @return
-   * @throws RepositoryException
+   * @return a copy of the profile document with the provided sections in place.
    */
-  private Map<String, List<ProviderSettings>> scanForProviders(Content profileContent, Session jcrSession)
-      throws RepositoryException {
-    Map<String, List<ProviderSettings>> providerMap = new HashMap<String, List<ProviderSettings>>();
-    if (!shouldScanForProviders){
-      return providerMap;
+  private ValueMap resolve(LocalProfile local, String profilePath, Session jcrSession) {
+    ValueMap map = local.copyDocument();
+    if (local.sections.isEmpty()) {
+      return map;
     }
-    return scanForProviders("", profileContent, providerMap, jcrSession);
+    long now = System.currentTimeMillis();
+    Map<String, List<ProvidedSection>> toFetch = new HashMap<String, List<ProvidedSection>>();
+    for (ProvidedSection section : local.sections) {
+      if (!providers.containsKey(section.provider)) {
+        // no provider, the local data is all there is.
+        continue;
+      }
+      ProvidedData cached = profileCache.getProvided(profilePath, section.path);
+      if (cached != null && now - cached.fetched < getProviderTtl(section.provider)) {
+        place(map, section, cached.data);
+      } else {
+        List<ProvidedSection> sections = toFetch.get(section.provider);
+        if (sections == null) {
+          sections = new ArrayList<ProvidedSection>();
+          toFetch.put(section.provider, sections);
+        }
+        sections.add(section);
+      }
+    }
+    if (!toFetch.isEmpty()) {
+      fetch(toFetch, profilePath, map, jcrSession, now + providerTimeout);
+    }
+    return map;
   }
 
   /**
-   * @param path
-   * @param profileContent
-   * @param providerMap
-   * @param jcrSession 
-   * @return
-   * @throws RepositoryException
+   * Asks every provider for its sections at the same time and waits for them until the
+   * deadline. A section the provider doesn't give in time is filled in from the last data
+   * it gave for it, or left as it is in the local profile.
    */
-  private Map<String, List<ProviderSettings>> scanForProviders(String path, Content profileContent,
-      Map<String, List<ProviderSettings>> providerMap, Session jcrSession) throws RepositoryException {
-    ProviderSettings settings = providerSettingsFactory.newProviderSettings(path, profileContent, jcrSession);
-    if (settings == null) {
-      for (Content childProfileContent : profileContent.listChildren()) {
-        scanForProviders(StorageClientUtils.newPath(path, StorageClientUtils.getObjectName(childProfileContent.getPath())), childProfileContent, providerMap, jcrSession);
+  private void fetch(Map<String, List<ProvidedSection>> toFetch, String profilePath,
+      ValueMap map, Session jcrSession, long deadline) {
+    Map<String, Future<Map<String, ? extends Future<Map<String, Object>>>>> calls = new HashMap<String, Future<Map<String, ? extends Future<Map<String, Object>>>>>();
+    // deactivate or a reconfiguration may replace the executor while this runs.
+    ExecutorService executor = providerExecutor;
+    for (Entry<String, List<ProvidedSection>> e : toFetch.entrySet()) {
+      final ProfileProvider pp = providers.get(e.getKey());
+      final List<ProviderSettings> settings = getProviderSettings(e.getValue(), jcrSession);
+      if (pp == null || settings.isEmpty()) {
+        continue;
       }
-    } else {
+      FutureTask<Map<String, ? extends Future<Map<String, Object>>>> call = new FutureTask<Map<String, ? extends Future<Map<String, Object>>>>(
+          new Callable<Map<String, ? extends Future<Map<String, Object>>>>() {
+            public Map<String, ? extends Future<Map<String, Object>>> call() {
+              return pp.getProvidedMap(settings);
+            }
+          });
+      boolean queued = false;
+      if (executor != null && !executor.isShutdown()) {
+        try {
+          executor.execute(call);
+          queued = true;
+        } catch (RejectedExecutionException ex) {
+          if (!executor.isShutdown()) {
+            LOG.warn("Too many profile provider calls waiting, not calling {} ", e.getKey());
+            continue;
+          }
+        }
+      }
+      if (!queued) {
+        // the executor has gone, so the provider is asked on this thread.
+        call.run();
+      }
+      calls.put(e.getKey(), call);
+    }
 
-      List<ProviderSettings> l = providerMap.get(settings.getProvider());
+    for (Entry<String, List<ProvidedSection>> e : toFetch.entrySet()) {
+      Map<String, ? extends Future<Map<String, Object>>> provided = null;
+      Future<Map<String, ? extends Future<Map<String, Object>>>> call = calls.get(e.getKey());
+      if (call != null) {
+        provided = waitFor(call, deadline, e.getKey());
+      }
+      for (ProvidedSection section : e.getValue()) {
+        Map<String, Object> data = null;
+        Future<Map<String, Object>> sectionData = provided == null ? null : provided
+            .get(section.path);
+        if (sectionData != null) {
+          data = waitFor(sectionData, deadline, e.getKey());
+          if (data != null) {
+            profileCache.putProvided(profilePath, section.path, new ProvidedData(data));
+          }
+        }
+        if (data == null) {
+          ProvidedData stale = profileCache.getProvided(profilePath, section.path);
+          if (stale != null) {
+            data = stale.data;
+          }
+        }
+        if (data != null) {
+          place(map, section, data);
+        }
+      }
+    }
+  }
 
-      if (l == null) {
-        l = new ArrayList<ProviderSettings>();
-        providerMap.put(settings.getProvider(), l);
+  private <T> T waitFor(Future<T> future, long deadline, String provider) {
+    try {
+      return future.get(Math.max(0, deadline - System.currentTimeMillis()),
+          TimeUnit.MILLISECONDS);
+    } catch (TimeoutException e) {
+      LOG.warn("Profile provider {} did not answer in time ", provider);
+    } catch (ExecutionException e) {
+      LOG.warn("Profile provider {} failed: {} ", provider, e.getMessage());
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+    return null;
+  }
+
+  /**
+   * The settings of a provider keep hold of the session, so they are made again for the
+   * session of each request that calls the provider.
+   */
+  private List<ProviderSettings> getProviderSettings(List<ProvidedSection> sections,
+      Session jcrSession) {
+    List<ProviderSettings> settings = new ArrayList<ProviderSettings>();
+    try {
+      ContentManager contentManager = StorageClientUtils.adaptToSession(jcrSession)
+          .getContentManager();
+      for (ProvidedSection section : sections) {
+        Content content = contentManager.get(section.path);
+        if (content != null) {
+          ProviderSettings s = providerSettingsFactory.newProviderSettings(
+              section.relativePath, content, jcrSession);
+          if (s != null) {
+            settings.add(s);
+          }
+        }
       }
-      l.add(settings);
+    } catch (StorageClientException e) {
+      LOG.warn(e.getMessage(), e);
+    } catch (AccessDeniedException e) {
+      LOG.warn(e.getMessage(), e);
+    } catch (RepositoryException e) {
+      LOG.warn(e.getMessage(), e);
+    }
+    return settings;
+  }
+
+  /**
+   * Puts what a provider gave for a section in place of the local data of the section.
+   */
+  @SuppressWarnings("unchecked")
+  private void place(ValueMap map, ProvidedSection section, Map<String, Object> data) {
+    if (section.keys.length == 0) {
+      map.clear();
+      map.putAll(data);
+      return;
     }
-    return providerMap;
+    Map<String, Object> parent = map;
+    for (int i = 0; i < section.keys.length - 1; i++) {
+      parent = (Map<String, Object>) parent.get(section.keys[i]);
+    }
+    parent.put(section.keys[section.keys.length - 1], new ValueMapDecorator(
+        new HashMap<String, Object>(data)));
+  }
+
+  private long getProviderTtl(String provider) {
+    Long ttl = providerTtls.get(provider);
+    return ttl == null ? providerTtl : ttl;
   }
 
+  /**
+   * {@inheritDoc}
+   *
+   * @see org.osgi.service.event.EventHandler#handleEvent(org.osgi.service.event.Event)
+   */
+  public void handleEvent(Event event) {
+    String path = (String) event.getProperty("path");
+    if (path == null || !path.startsWith(LitePersonalUtils.PATH_AUTHORIZABLE)) {
+      return;
+    }
+    int slash = path.indexOf('/');
+    String authorizableId = slash < 0 ? path.substring(LitePersonalUtils.PATH_AUTHORIZABLE
+        .length()) : path.substring(LitePersonalUtils.PATH_AUTHORIZABLE.length(), slash);
+    String profilePath = LitePersonalUtils.getProfilePath(authorizableId);
+    boolean deleted = event.getTopic().endsWith("DELETE");
+    if (path.equals(profilePath) || path.startsWith(profilePath + "/")) {
+      profileCache.invalidate(profilePath, deleted && path.equals(profilePath));
+    } else if (deleted && profilePath.startsWith(path + "/")) {
+      // the home or public folder with the profile in it.
+      profileCache.invalidate(profilePath, true);
+    }
+  }
 
   protected void bindProfileProvider(ProfileProvider provider,
       Map<String, Object> properties) {
@@ -0,0 +1,123 @@
+/**
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.nakamura.profile;
+
+import junit.framework.Assert;
+
+import org.apache.sling.api.resource.ValueMap;
+import org.junit.Test;
+import org.sakaiproject.nakamura.profile.ProfileCache.LocalProfile;
+import org.sakaiproject.nakamura.profile.ProfileCache.ProvidedData;
+import org.sakaiproject.nakamura.profile.ProfileCache.ProvidedSection;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ *
+ */
+public class ProfileCacheTest {
+
+  private static final String PROFILE = "a:ieb/public/authprofile";
+
+  private LocalProfile newLocal() {
+    Map<String, Object> aboutme = new HashMap<String, Object>();
+    aboutme.put("about", "me");
+    Map<String, Object> document = new HashMap<String, Object>();
+    document.put("userid", "ieb");
+    document.put("aboutme", aboutme);
+    return new LocalProfile(document, new ArrayList<ProvidedSection>());
+  }
+
+  @Test
+  public void testLocalPerReader() {
+    ProfileCache cache = new ProfileCache(10, 10, 60000);
+    LocalProfile local = newLocal();
+    cache.putLocal(PROFILE, "ieb", local, cache.getGeneration());
+    Assert.assertSame(local, cache.getLocal(PROFILE, "ieb"));
+    Assert.assertNull(cache.getLocal(PROFILE, "anotheruser"));
+  }
+
+  @Test
+  @SuppressWarnings("unchecked")
+  public void testCopyDocument() {
+    LocalProfile local = newLocal();
+    ValueMap copy = local.copyDocument();
+    ((Map<String, Object>) copy.get("aboutme")).put("about", "changed");
+    copy.put("userid", "changed");
+    Assert.assertEquals("ieb", local.document.get("userid"));
+    Assert.assertEquals("me", ((Map<String, Object>) local.copyDocument().get("aboutme")).get("about"));
+  }
+
+  @Test
+  public void testInvalidateKeepsProvided() {
+    ProfileCache cache = new ProfileCache(10, 10, 60000);
+    cache.putLocal(PROFILE, "ieb", newLocal(), cache.getGeneration());
+    ProvidedData data = new ProvidedData(new HashMap<String, Object>());
+    cache.putProvided(PROFILE, PROFILE + "/ldap", data);
+
+    cache.invalidate(PROFILE, false);
+    Assert.assertNull(cache.getLocal(PROFILE, "ieb"));
+    Assert.assertSame(data, cache.getProvided(PROFILE, PROFILE + "/ldap"));
+
+    cache.invalidate(PROFILE, true);
+    Assert.assertNull(cache.getProvided(PROFILE, PROFILE + "/ldap"));
+  }
+
+  @Test
+  public void testInvalidatedWhileLoading() {
+    ProfileCache cache = new ProfileCache(10, 10, 60000);
+    long generation = cache.getGeneration();
+    cache.invalidate(PROFILE, false);
+    cache.putLocal(PROFILE, "ieb", newLocal(), generation);
+    Assert.assertNull(cache.getLocal(PROFILE, "ieb"));
+  }
+
+  @Test
+  public void testLocalExpires() throws Exception {
+    ProfileCache cache = new ProfileCache(10, 10, 0);
+    cache.putLocal(PROFILE, "ieb", newLocal(), cache.getGeneration());
+    Thread.sleep(5);
+    Assert.assertNull(cache.getLocal(PROFILE, "ieb"));
+  }
+
+  @Test
+  public void testEvictLeastRecentlyUsed() {
+    ProfileCache cache = new ProfileCache(2, 10, 60000);
+    cache.putLocal("a:1/public/authprofile", "ieb", newLocal(), cache.getGeneration());
+    cache.putLocal("a:2/public/authprofile", "ieb", newLocal(), cache.getGeneration());
+    Assert.assertNotNull(cache.getLocal("a:1/public/authprofile", "ieb"));
+    cache.putLocal("a:3/public/authprofile", "ieb", newLocal(), cache.getGeneration());
+    Assert.assertNotNull(cache.getLocal("a:1/public/authprofile", "ieb"));
+    Assert.assertNull(cache.getLocal("a:2/public/authprofile", "ieb"));
+    Assert.assertNotNull(cache.getLocal("a:3/public/authprofile", "ieb"));
+  }
+
+  @Test
+  public void testEvictLeastRecentReader() {
+    ProfileCache cache = new ProfileCache(10, 2, 60000);
+    cache.putLocal(PROFILE, "ieb", newLocal(), cache.getGeneration());
+    cache.putLocal(PROFILE, "nico", newLocal(), cache.getGeneration());
+    Assert.assertNotNull(cache.getLocal(PROFILE, "ieb"));
+    cache.putLocal(PROFILE, "zach", newLocal(), cache.getGeneration());
+    Assert.assertNotNull(cache.getLocal(PROFILE, "ieb"));
+    Assert.assertNull(cache.getLocal(PROFILE, "nico"));
+    Assert.assertNotNull(cache.getLocal(PROFILE, "zach"));
+  }
+}
@@ -10,4 +10,20 @@ public interface DeletedPathsService {
    * query.
    */
   List<String> getDeletedPaths();
+
+  /**
+   * Get a filter query that excludes the deleted paths and everything below them, or null
+   * if there is nothing to exclude or too much to exclude in a query. The same filter is
+   * returned until another path is deleted or the index commits, so it can be cached.
+   * When this is null but {@link #getDeletedPaths()} is not empty, results must be
+   * checked with {@link #isDeleted(String)} instead.
+   */
+  String getDeletedPathsFilter();
+
+  /**
+   * @param path
+   * @return true if the path, or one of its ancestors, was deleted since the last Solr
+   *         commit.
+   */
+  boolean isDeleted(String path);
 }
\ No newline at end of file
@@ -0,0 +1,38 @@
+/**
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.nakamura.api.search;
+
+import org.sakaiproject.nakamura.api.lite.StorageClientException;
+import org.sakaiproject.nakamura.api.lite.accesscontrol.AccessDeniedException;
+import org.sakaiproject.nakamura.api.lite.authorizable.AuthorizableManager;
+
+public interface PrincipalSetService {
+
+  /**
+   * Get the Solr filter query that restricts results to documents a user can read, ie
+   * <code>readers:(...)</code> over the user and every group the user is a member of.
+   * The principals are sorted so the same membership always produces the same filter,
+   * which lets Solr reuse its cached filter. Filters are cached per user and
+   * invalidated when the user or one of the groups changes.
+   *
+   * @param userId the user to get the filter for.
+   * @param authorizableManager used to resolve the user's groups on a cache miss.
+   */
+  String getReadersFilter(String userId, AuthorizableManager authorizableManager)
+      throws StorageClientException, AccessDeniedException;
+}
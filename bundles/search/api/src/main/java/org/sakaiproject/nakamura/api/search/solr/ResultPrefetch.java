@@ -0,0 +1,163 @@
+/**
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.nakamura.api.search.solr;
+
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+
+import org.apache.sling.api.SlingHttpServletRequest;
+import org.sakaiproject.nakamura.api.lite.Session;
+import org.sakaiproject.nakamura.api.lite.StorageClientException;
+import org.sakaiproject.nakamura.api.lite.StorageClientUtils;
+import org.sakaiproject.nakamura.api.lite.accesscontrol.AccessDeniedException;
+import org.sakaiproject.nakamura.api.lite.authorizable.Authorizable;
+import org.sakaiproject.nakamura.api.lite.content.Content;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Loads the content and authorizables a page of search results refers to, and keeps them
+ * for the rest of the request, so a batch processor and the helpers it calls read each of
+ * them from storage once however many results refer to it.
+ * <p>
+ * The prefetch for a request is shared, get it with {@link #forRequest(SlingHttpServletRequest)}.
+ * It is meant for writing results out, anything that changes content should read it
+ * itself. Content and authorizables the user can't read are kept as missing.
+ */
+public class ResultPrefetch {
+
+  private static final Logger LOGGER = LoggerFactory.getLogger(ResultPrefetch.class);
+
+  private static final String REQUEST_ATTRIBUTE = ResultPrefetch.class.getName();
+
+  private final Session session;
+  private final Map<String, Content> contents = Maps.newHashMap();
+  private final Map<String, Authorizable> authorizables = Maps.newHashMap();
+
+  public ResultPrefetch(Session session) {
+    this.session = session;
+  }
+
+  /**
+   * @return the prefetch for the request, made on first use with the session of the
+   *         request.
+   */
+  public static ResultPrefetch forRequest(SlingHttpServletRequest request) {
+    ResultPrefetch prefetch = (ResultPrefetch) request.getAttribute(REQUEST_ATTRIBUTE);
+    if (prefetch == null) {
+      prefetch = new ResultPrefetch(StorageClientUtils.adaptToSession(request
+          .getResourceResolver().adaptTo(javax.jcr.Session.class)));
+      request.setAttribute(REQUEST_ATTRIBUTE, prefetch);
+    }
+    return prefetch;
+  }
+
+  /**
+   * Takes the rest of the results off the iterator, so what they refer to can be
+   * prefetched before any of them is written.
+   */
+  public List<Result> page(Iterator<Result> iterator) {
+    return Lists.newArrayList(iterator);
+  }
+
+  /**
+   * Loads the content at the path of every result.
+   */
+  public void prefetchResults(Collection<Result> results) {
+    List<String> paths = Lists.newArrayListWithCapacity(results.size());
+    for (Result result : results) {
+      paths.add(result.getPath());
+    }
+    prefetchContent(paths);
+  }
+
+  /**
+   * Loads all the content that isn't loaded yet. Content that fails to load is left for
+   * {@link #getContent(String)} to report.
+   */
+  public void prefetchContent(Collection<String> paths) {
+    for (String path : paths) {
+      try {
+        getContent(path);
+      } catch (StorageClientException e) {
+        LOGGER.debug("Failed to prefetch {}: {}", path, e.getMessage());
+      }
+    }
+  }
+
+  /**
+   * @return the content at the path, or null if there is none or the user can't read it.
+   * @throws StorageClientException
+   */
+  public Content getContent(String path) throws StorageClientException {
+    if (path == null) {
+      return null;
+    }
+    if (contents.containsKey(path)) {
+      return contents.get(path);
+    }
+    Content content = null;
+    try {
+      content = session.getContentManager().get(path);
+    } catch (AccessDeniedException e) {
+      LOGGER.debug("Can't read {}: {}", path, e.getMessage());
+    }
+    contents.put(path, content);
+    return content;
+  }
+
+  /**
+   * Loads all the authorizables that aren't loaded yet. Authorizables that fail to load
+   * are left for {@link #getAuthorizable(String)} to report.
+   */
+  public void prefetchAuthorizables(Collection<String> ids) {
+    for (String id : ids) {
+      try {
+        getAuthorizable(id);
+      } catch (StorageClientException e) {
+        LOGGER.debug("Failed to prefetch {}: {}", id, e.getMessage());
+      }
+    }
+  }
+
+  /**
+   * @return the authorizable, or null if there is none or the user can't read it.
+   * @throws StorageClientException
+   */
+  public Authorizable getAuthorizable(String id) throws StorageClientException {
+    if (id == null) {
+      return null;
+    }
+    if (authorizables.containsKey(id)) {
+      return authorizables.get(id);
+    }
+    Authorizable authorizable = null;
+    try {
+      authorizable = session.getAuthorizableManager().findAuthorizable(id);
+    } catch (AccessDeniedException e) {
+      LOGGER.debug("Can't read {}: {}", id, e.getMessage());
+    }
+    authorizables.put(id, authorizable);
+    return authorizable;
+  }
+}
@@ -0,0 +1,140 @@
+/*
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.nakamura.search;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map.Entry;
+import java.util.Set;
+import java.util.TreeMap;
+
+/**
+ * A set of deleted paths held as prefixes. A path that is already covered by itself or an
+ * ancestor is not added, and adding a path drops any descendants it now covers, so the
+ * set only ever holds the roots of what was deleted. Paths are split on '/'. Not thread
+ * safe.
+ */
+class DeletedPathSet {
+
+  /**
+   * The prefixes, sorted so the descendants of a path are a contiguous range, mapped to
+   * the order they were added in.
+   */
+  private final TreeMap<String, Long> prefixes = new TreeMap<String, Long>();
+  private long added;
+
+  /**
+   * @param path
+   * @return true if the set changed, false if the path was already covered.
+   */
+  boolean add(String path) {
+    path = normalize(path);
+    if (covers(path)) {
+      return false;
+    }
+    String children = childPrefix(path);
+    // '0' follows '/', so this is every path below this one.
+    prefixes.subMap(children, children.substring(0, children.length() - 1) + '0').clear();
+    prefixes.put(path, added++);
+    return true;
+  }
+
+  /**
+   * @param path
+   * @return true if the path or one of its ancestors is in the set.
+   */
+  boolean covers(String path) {
+    return covers(prefixes.keySet(), path);
+  }
+
+  /**
+   * @param prefixes
+   *          a snapshot of the prefixes.
+   * @param path
+   * @return true if the path or one of its ancestors is in the prefixes.
+   */
+  static boolean covers(Set<String> prefixes, String path) {
+    if (prefixes.isEmpty()) {
+      return false;
+    }
+    String p = normalize(path);
+    for (;;) {
+      if (prefixes.contains(p)) {
+        return true;
+      }
+      int i = p.lastIndexOf('/');
+      if (i < 0 || p.length() == 1) {
+        return false;
+      }
+      p = (i == 0) ? "/" : p.substring(0, i);
+    }
+  }
+
+  void clear() {
+    prefixes.clear();
+    added = 0;
+  }
+
+  int size() {
+    return prefixes.size();
+  }
+
+  boolean isEmpty() {
+    return prefixes.isEmpty();
+  }
+
+  /**
+   * @return a copy of the prefixes, in no particular order.
+   */
+  Set<String> getPrefixes() {
+    return new HashSet<String>(prefixes.keySet());
+  }
+
+  /**
+   * @return the prefixes in the order they were added.
+   */
+  List<String> getPaths() {
+    List<Entry<String, Long>> entries = new ArrayList<Entry<String, Long>>(
+        prefixes.entrySet());
+    Collections.sort(entries, new Comparator<Entry<String, Long>>() {
+      public int compare(Entry<String, Long> o1, Entry<String, Long> o2) {
+        return o1.getValue().compareTo(o2.getValue());
+      }
+    });
+    List<String> paths = new ArrayList<String>(entries.size());
+    for (Entry<String, Long> e : entries) {
+      paths.add(e.getKey());
+    }
+    return paths;
+  }
+
+  private static String normalize(String path) {
+    if (path.length() > 1 && path.endsWith("/")) {
+      return path.substring(0, path.length() - 1);
+    }
+    return path;
+  }
+
+  private static String childPrefix(String path) {
+    return "/".equals(path) ? path : path + "/";
+  }
+
+}
@@ -18,34 +18,35 @@
 package org.sakaiproject.nakamura.search;
 
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
 
+import org.apache.commons.lang.StringUtils;
+import org.apache.felix.scr.annotations.Activate;
 import org.apache.felix.scr.annotations.Component;
+import org.apache.felix.scr.annotations.Modified;
 import org.apache.felix.scr.annotations.Property;
-import org.apache.felix.scr.annotations.Reference;
 import org.apache.felix.scr.annotations.Service;
 import org.apache.sling.commons.osgi.PropertiesUtil;
 import org.osgi.service.event.Event;
 import org.osgi.service.event.EventHandler;
-import org.sakaiproject.nakamura.api.cluster.ClusterServer;
-import org.sakaiproject.nakamura.api.cluster.ClusterTrackingService;
-import org.sakaiproject.nakamura.api.memory.Cache;
-import org.sakaiproject.nakamura.api.memory.CacheManagerService;
-import org.sakaiproject.nakamura.api.memory.CacheScope;
 import org.sakaiproject.nakamura.api.search.DeletedPathsService;
 import org.sakaiproject.nakamura.api.search.SearchUtil;
 import org.sakaiproject.nakamura.api.search.solr.Query;
 
 /**
- * Manage a cache of deleted paths as signaled by content deletion events. The cache is
- * cleared when an index commit event is received.
+ * Tracks the paths deleted since the last index commit, as signaled by content deletion
+ * events. The paths are cleared when an index commit event is received.
  * <p>
- * A cache is managed per machine but shared with the cluster. This is to cut down on
- * overwriting a centrally managed but unsynchronized cache. Each machine should have only
- * one version of this service actively managing that machines cache so it should always
- * work with the authoritative state.
+ * Deleted paths are held in memory as a {@link DeletedPathSet} of prefixes, so deleting a
+ * tree costs one entry however many of its children were deleted first. Every change
+ * starts a new generation. The list of paths and the filter query are built at most once
+ * per generation, when first asked for, so searches between deletes share the same
+ * filter string and Solr can serve it from its filter cache.
  */
-@Component
+@Component(metatype = true)
 @Service
 @Property(name = "event.topics", value = {
     "org/sakaiproject/nakamura/lite/content/DELETE",
@@ -53,30 +54,51 @@ import org.sakaiproject.nakamura.api.search.solr.Query;
     "org/sakaiproject/nakamura/solr/SOFT_COMMIT"
 })
 public class DeletedPathsServiceImpl implements EventHandler, DeletedPathsService {
-  public static final String DELETED_PATH_CACHE = "deletedPathQueue";
 
-  @Reference
-  private CacheManagerService cacheManagerService;
-
-  @Reference
-  private ClusterTrackingService clusterTrackingService;
-
-  public DeletedPathsServiceImpl() {
-  }
-
-  protected DeletedPathsServiceImpl(CacheManagerService cacheManagerService,
-      ClusterTrackingService clusterTrackingService) {
-    this.cacheManagerService = cacheManagerService;
-    this.clusterTrackingService = clusterTrackingService;
-  }
+  /**
+   * The most prefixes put in a filter query. Each prefix is two clauses, and Solr rejects
+   * queries with more than 1024 clauses by default. Beyond this the deleted paths are
+   * removed from the results instead.
+   */
+  public static final int DEFAULT_MAX_FILTER_PATHS = 500;
+  @Property(intValue = DEFAULT_MAX_FILTER_PATHS)
+  static final String MAX_FILTER_PATHS = "filter.max.paths";
 
   /**
-   * Get an instance of the cache used to track paths that have been marked as
-   * deleted since the last Solr commit.  This cache is shared by all nodes in a
-   * cluster, acting as a sort of shared memory.
+   * What was deleted as of one generation.
    */
-  private Cache<String> getDeletedPathCache() {
-    return cacheManagerService.getCache(DELETED_PATH_CACHE, CacheScope.CLUSTERREPLICATED);
+  private static final class Snapshot {
+    private final long generation;
+    private final Set<String> prefixes;
+    private final List<String> paths;
+    private final String filter;
+
+    private Snapshot(long generation, Set<String> prefixes, List<String> paths,
+        String filter) {
+      this.generation = generation;
+      this.prefixes = prefixes;
+      this.paths = paths;
+      this.filter = filter;
+    }
+  }
+
+  private static final List<String> NO_PATHS = Collections.emptyList();
+
+  private final DeletedPathSet deletedPaths = new DeletedPathSet();
+  private volatile long generation;
+  private volatile boolean empty = true;
+  private volatile Snapshot snapshot = new Snapshot(0, Collections.<String> emptySet(),
+      NO_PATHS, null);
+  private int maxFilterPaths = DEFAULT_MAX_FILTER_PATHS;
+
+  @Activate
+  @Modified
+  protected void activate(Map<?, ?> properties) {
+    synchronized (this) {
+      maxFilterPaths = PropertiesUtil.toInteger(properties.get(MAX_FILTER_PATHS),
+          DEFAULT_MAX_FILTER_PATHS);
+      generation++;
+    }
   }
 
   /**
@@ -85,40 +107,53 @@ public class DeletedPathsServiceImpl implements EventHandler, DeletedPathsServic
    * @param path the path that was deleted
    */
   private synchronized void storeDeletedPath(String path) {
-    Cache<String> cache = getDeletedPathCache();
-    String myId = clusterTrackingService.getCurrentServerId();
-
-    // add the new path to the last position
-    int pathCount = PropertiesUtil.toInteger(cache.get("pathCount@" + myId), 0);
-    cache.put("path[" + pathCount + "]@" + myId,
-        SearchUtil.escapeString(path, Query.SOLR));
-    cache.put("pathCount@" + myId, String.valueOf(pathCount + 1));
-
-    // clean out any paths that start with the path we've just added
-    for (int idx = 0; idx < pathCount; idx++) {
-      String key = "path[" + idx + "]@" + myId;
-      String cachedPath = cache.get(key);
-      // check for null in case a previous pass deleted the element. we don't do garbage
-      // collection because the list is expected to be too short lived.
-      if (cachedPath != null && !cachedPath.equals(path) && cachedPath.startsWith(path)) {
-        cache.remove(key);
-      }
+    if (deletedPaths.add(path)) {
+      empty = false;
+      generation++;
     }
   }
 
   /**
-   * Clear the list of deleted nodes for this node.
+   * Clear the deleted paths, the index has caught up with them.
    */
   private synchronized void clearDeletedPaths() {
-    Cache<String> cache = getDeletedPathCache();
-    String myId = clusterTrackingService.getCurrentServerId();
-
-    int pathCount = PropertiesUtil.toInteger(cache.get("pathCount@" + myId), 0);
-    for (int idx = 0; idx < pathCount; idx++) {
-      cache.remove("path[" + idx + "]@" + myId);
+    if (!deletedPaths.isEmpty()) {
+      deletedPaths.clear();
+      empty = true;
+      generation++;
     }
+  }
 
-    cache.put("pathCount@" + myId, Integer.toString(0));
+  /**
+   * @return what has been deleted as of the current generation.
+   */
+  private Snapshot getSnapshot() {
+    Snapshot s = snapshot;
+    if (s.generation == generation) {
+      return s;
+    }
+    synchronized (this) {
+      if (snapshot.generation != generation) {
+        List<String> paths = new ArrayList<String>(deletedPaths.size());
+        for (String path : deletedPaths.getPaths()) {
+          paths.add(SearchUtil.escapeString(path, Query.SOLR));
+        }
+        String filter = null;
+        if (!paths.isEmpty() && paths.size() <= maxFilterPaths) {
+          // the path field holds whole paths, so the descendants need a prefix match.
+          StringBuilder sb = new StringBuilder("-path:(");
+          for (String path : paths) {
+            sb.append(path).append(" OR ").append(path);
+            sb.append(path.endsWith("/") ? "*" : "/*").append(" OR ");
+          }
+          sb.setLength(sb.length() - 4);
+          filter = sb.append(')').toString();
+        }
+        snapshot = new Snapshot(generation, deletedPaths.getPrefixes(),
+            Collections.unmodifiableList(paths), filter);
+      }
+      return snapshot;
+    }
   }
 
   // ---------- DeletedPathsService interface ----------------------------------
@@ -129,23 +164,36 @@ public class DeletedPathsServiceImpl implements EventHandler, DeletedPathsServic
    */
   @Override
   public List<String> getDeletedPaths() {
-    List<String> deletedPaths = new ArrayList<String>();
-    Cache<String> cache = getDeletedPathCache();
-
-    for (ClusterServer server : clusterTrackingService.getAllServers()) {
-      String serverId = server.getServerId();
-      int pathCount = PropertiesUtil.toInteger(cache.get("pathCount@" + serverId), 0);
-
-      for (int idx = 0; idx < pathCount; idx++) {
-        String path = (String)cache.get("path[" + idx + "]@" + serverId);
+    if (empty) {
+      return NO_PATHS;
+    }
+    return getSnapshot().paths;
+  }
 
-        if (path != null) {
-          deletedPaths.add(SearchUtil.escapeString(path, Query.SOLR));
-        }
-      }
+  /**
+   * {@inheritDoc}
+   *
+   * @see org.sakaiproject.nakamura.api.search.DeletedPathsService#getDeletedPathsFilter()
+   */
+  @Override
+  public String getDeletedPathsFilter() {
+    if (empty) {
+      return null;
     }
+    return getSnapshot().filter;
+  }
 
-    return deletedPaths;
+  /**
+   * {@inheritDoc}
+   *
+   * @see org.sakaiproject.nakamura.api.search.DeletedPathsService#isDeleted(java.lang.String)
+   */
+  @Override
+  public boolean isDeleted(String path) {
+    if (empty || StringUtils.isEmpty(path)) {
+      return false;
+    }
+    return DeletedPathSet.covers(getSnapshot().prefixes, path);
   }
 
   // ---------- EventHandler interface -----------------------------------------
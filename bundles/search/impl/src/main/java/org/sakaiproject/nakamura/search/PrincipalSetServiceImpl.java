@@ -0,0 +1,177 @@
+/*
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.nakamura.search;
+
+import com.google.common.collect.Sets;
+
+import org.apache.commons.lang.StringUtils;
+import org.apache.felix.scr.annotations.Component;
+import org.apache.felix.scr.annotations.Property;
+import org.apache.felix.scr.annotations.Reference;
+import org.apache.felix.scr.annotations.Service;
+import org.osgi.service.event.Event;
+import org.osgi.service.event.EventHandler;
+import org.sakaiproject.nakamura.api.lite.ClientPoolException;
+import org.sakaiproject.nakamura.api.lite.Repository;
+import org.sakaiproject.nakamura.api.lite.Session;
+import org.sakaiproject.nakamura.api.lite.StorageClientException;
+import org.sakaiproject.nakamura.api.lite.accesscontrol.AccessDeniedException;
+import org.sakaiproject.nakamura.api.lite.authorizable.Authorizable;
+import org.sakaiproject.nakamura.api.lite.authorizable.AuthorizableManager;
+import org.sakaiproject.nakamura.api.lite.authorizable.Group;
+import org.sakaiproject.nakamura.api.memory.Cache;
+import org.sakaiproject.nakamura.api.memory.CacheManagerService;
+import org.sakaiproject.nakamura.api.memory.CacheScope;
+import org.sakaiproject.nakamura.api.search.PrincipalSetService;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.Iterator;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Cache the readers filter query for each user. Building the filter means loading every
+ * group the user is a member of, which is expensive for users in many groups, and the
+ * principals are sorted so the filter is identical between requests and hits the Solr
+ * filter cache.
+ * <p>
+ * Changing a group's membership updates the members as well as the group, so updating
+ * or deleting a user removes its entry. Any other change to a group, eg being deleted or
+ * added to another group, can change the filter of members cached on any node, so it
+ * clears the whole cache. The cache is cluster invalidated so both reach the other
+ * nodes.
+ */
+@Component
+@Service
+@Property(name = "event.topics", value = {
+    "org/sakaiproject/nakamura/lite/authorizables/UPDATED",
+    "org/sakaiproject/nakamura/lite/authorizables/DELETE"
+})
+public class PrincipalSetServiceImpl implements EventHandler, PrincipalSetService {
+  private static final Logger LOGGER = LoggerFactory
+      .getLogger(PrincipalSetServiceImpl.class);
+
+  public static final String PRINCIPAL_SET_CACHE = "readerPrincipalSets";
+
+  @Reference
+  private CacheManagerService cacheManagerService;
+
+  @Reference
+  private Repository repository;
+
+  /**
+   * Incremented on every invalidation so a filter computed while its user was being
+   * invalidated is not left in the cache.
+   */
+  private final AtomicLong generation = new AtomicLong();
+
+  public PrincipalSetServiceImpl() {
+  }
+
+  protected PrincipalSetServiceImpl(CacheManagerService cacheManagerService,
+      Repository repository) {
+    this.cacheManagerService = cacheManagerService;
+    this.repository = repository;
+  }
+
+  private Cache<String> getPrincipalSetCache() {
+    return cacheManagerService.getCache(PRINCIPAL_SET_CACHE, CacheScope.CLUSTERINVALIDATED);
+  }
+
+  // ---------- PrincipalSetService interface ----------------------------------
+  /**
+   * {@inheritDoc}
+   *
+   * @see org.sakaiproject.nakamura.api.search.PrincipalSetService#getReadersFilter(java.lang.String, org.sakaiproject.nakamura.api.lite.authorizable.AuthorizableManager)
+   */
+  public String getReadersFilter(String userId, AuthorizableManager authorizableManager)
+      throws StorageClientException, AccessDeniedException {
+    Cache<String> cache = getPrincipalSetCache();
+    String filter = cache.get(userId);
+    if (filter != null) {
+      return filter;
+    }
+    long startGeneration = generation.get();
+    Set<String> readers = Sets.newTreeSet();
+    Authorizable user = authorizableManager.findAuthorizable(userId);
+    if (user != null) {
+      for (Iterator<Group> gi = user.memberOf(authorizableManager); gi.hasNext();) {
+        readers.add(gi.next().getId());
+      }
+    }
+    readers.add(userId);
+    filter = "readers:(" + StringUtils.join(readers, " OR ") + ")";
+    cache.put(userId, filter);
+    if (generation.get() != startGeneration) {
+      // something was invalidated while we were loading, it may have been this user.
+      cache.remove(userId);
+    }
+    return filter;
+  }
+
+  /**
+   * Remove the cached filter of a user, or every cached filter if the authorizable is a
+   * group or can't be found.
+   */
+  private void invalidate(String authorizableId, boolean deleted) {
+    generation.incrementAndGet();
+    Cache<String> cache = getPrincipalSetCache();
+    if (!deleted && isUser(authorizableId)) {
+      cache.remove(authorizableId);
+    } else {
+      cache.clear();
+    }
+  }
+
+  /**
+   * @return true if the authorizable is known to be a user.
+   */
+  private boolean isUser(String authorizableId) {
+    Session session = null;
+    try {
+      session = repository.loginAdministrative();
+      Authorizable authorizable = session.getAuthorizableManager().findAuthorizable(
+          authorizableId);
+      return authorizable != null && !(authorizable instanceof Group);
+    } catch (StorageClientException e) {
+      LOGGER.warn("Unable to load {}, clearing every reader filter: {}", authorizableId,
+          e.getMessage());
+    } catch (AccessDeniedException e) {
+      LOGGER.warn("Unable to load {}, clearing every reader filter: {}", authorizableId,
+          e.getMessage());
+    } finally {
+      if (session != null) {
+        try {
+          session.logout();
+        } catch (ClientPoolException e) {
+          LOGGER.warn(e.getMessage(), e);
+        }
+      }
+    }
+    return false;
+  }
+
+  // ---------- EventHandler interface -----------------------------------------
+  public void handleEvent(Event event) {
+    String authorizableId = (String) event.getProperty("path");
+    if (authorizableId != null) {
+      invalidate(authorizableId, event.getTopic().endsWith("/DELETE"));
+    }
+  }
+}
@@ -0,0 +1,314 @@
+/**
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.nakamura.search.solr;
+
+import static org.sakaiproject.nakamura.api.search.solr.SolrSearchConstants.SAKAI_BATCHRESULTPROCESSOR;
+import static org.sakaiproject.nakamura.api.search.solr.SolrSearchConstants.SAKAI_PROPERTY_PROVIDER;
+import static org.sakaiproject.nakamura.api.search.solr.SolrSearchConstants.SAKAI_QUERY_TEMPLATE;
+import static org.sakaiproject.nakamura.api.search.solr.SolrSearchConstants.SAKAI_QUERY_TEMPLATE_DEFAULTS;
+import static org.sakaiproject.nakamura.api.search.solr.SolrSearchConstants.SAKAI_QUERY_TEMPLATE_OPTIONS;
+import static org.sakaiproject.nakamura.api.search.solr.SolrSearchConstants.SAKAI_RESULTPROCESSOR;
+import static org.sakaiproject.nakamura.api.search.solr.SolrSearchConstants.SAKAI_SEARCHRESPONSEDECORATOR;
+import static org.sakaiproject.nakamura.api.search.solr.SolrSearchConstants.SEARCH_PATH_PREFIX;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.Maps;
+
+import org.apache.felix.scr.annotations.Component;
+import org.apache.felix.scr.annotations.Properties;
+import org.apache.felix.scr.annotations.Property;
+import org.apache.felix.scr.annotations.Reference;
+import org.apache.felix.scr.annotations.Service;
+import org.apache.sling.api.SlingConstants;
+import org.osgi.service.event.Event;
+import org.osgi.service.event.EventConstants;
+import org.osgi.service.event.EventHandler;
+import org.sakaiproject.nakamura.api.search.solr.Query;
+import org.sakaiproject.nakamura.api.templates.CompiledTemplate;
+import org.sakaiproject.nakamura.api.templates.TemplateService;
+import org.sakaiproject.nakamura.util.JcrUtils;
+
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.jcr.Node;
+import javax.jcr.PropertyIterator;
+import javax.jcr.RepositoryException;
+import javax.jcr.Value;
+
+/**
+ * Holds the search template nodes under /var in a parsed form so that a search request
+ * does not have to read the node, its defaults and options children and re-parse every
+ * template. Entries are keyed by the path of the search node and dropped when the node
+ * or anything below it changes, or when the node or one of its parents is added or
+ * removed.
+ */
+@Component
+@Service(value = { QueryTemplateCache.class, EventHandler.class })
+@Properties(value = { @Property(name = EventConstants.EVENT_TOPIC, value = {
+    SlingConstants.TOPIC_RESOURCE_ADDED, SlingConstants.TOPIC_RESOURCE_CHANGED,
+    SlingConstants.TOPIC_RESOURCE_REMOVED }) })
+public class QueryTemplateCache implements EventHandler {
+
+  @Reference
+  private TemplateService templateService;
+
+  private final ConcurrentMap<String, CompiledQuery> compiledQueries = Maps
+      .newConcurrentMap();
+
+  /**
+   * Incremented on every invalidation so a template compiled from a node that changed
+   * while it was being read is not left in the cache.
+   */
+  private final AtomicLong generation = new AtomicLong();
+
+  public QueryTemplateCache() {
+  }
+
+  protected QueryTemplateCache(TemplateService templateService) {
+    this.templateService = templateService;
+  }
+
+  /**
+   * Get the compiled form of a search template node, compiling it if it has not been
+   * seen since it last changed.
+   *
+   * @param queryNode
+   *          the search template node, which must have a sakai:query-template property.
+   * @return the compiled query.
+   * @throws RepositoryException
+   */
+  public CompiledQuery getCompiledQuery(Node queryNode) throws RepositoryException {
+    String path = queryNode.getPath();
+    CompiledQuery compiledQuery = compiledQueries.get(path);
+    if (compiledQuery != null) {
+      return compiledQuery;
+    }
+    long startGeneration = generation.get();
+    compiledQuery = compile(queryNode);
+    if (startGeneration == generation.get()) {
+      compiledQueries.put(path, compiledQuery);
+    }
+    return compiledQuery;
+  }
+
+  /**
+   * {@inheritDoc}
+   *
+   * @see org.osgi.service.event.EventHandler#handleEvent(org.osgi.service.event.Event)
+   */
+  public void handleEvent(Event event) {
+    String path = (String) event.getProperty(SlingConstants.PROPERTY_PATH);
+    if (path == null || !path.startsWith(SEARCH_PATH_PREFIX)) {
+      return;
+    }
+    generation.incrementAndGet();
+    // a changed parent leaves the template as it was, an added or removed one is a move
+    // or delete of the whole tree
+    boolean subtree = !SlingConstants.TOPIC_RESOURCE_CHANGED.equals(event.getTopic());
+    for (String key : compiledQueries.keySet()) {
+      // the node itself, one of its defaults or options children, or a parent
+      if (key.equals(path) || path.startsWith(key + "/")
+          || (subtree && key.startsWith(path + "/"))) {
+        compiledQueries.remove(key);
+      }
+    }
+  }
+
+  private CompiledQuery compile(Node queryNode) throws RepositoryException {
+    // check the resource type and set the query type appropriately
+    // default to using solr for queries
+    String queryType = Query.SOLR;
+    if (queryNode.hasProperty("sling:resourceType")
+        && "sakai/sparse-search".equals(queryNode.getProperty("sling:resourceType")
+            .getString())) {
+      queryType = Query.SPARSE;
+    }
+
+    String[] propertyProviderNames = null;
+    if (queryNode.hasProperty(SAKAI_PROPERTY_PROVIDER)) {
+      propertyProviderNames = getStringArrayProp(queryNode, SAKAI_PROPERTY_PROVIDER);
+    }
+
+    ImmutableMap.Builder<String, String> defaults = ImmutableMap.builder();
+    if (queryNode.hasNode(SAKAI_QUERY_TEMPLATE_DEFAULTS)) {
+      PropertyIterator defaultProps = queryNode.getNode(SAKAI_QUERY_TEMPLATE_DEFAULTS)
+          .getProperties();
+      while (defaultProps.hasNext()) {
+        javax.jcr.Property prop = defaultProps.nextProperty();
+        String key = prop.getName();
+        if (!key.startsWith("jcr:") && !prop.isMultiple()) {
+          defaults.put(key, prop.getString());
+        }
+      }
+    }
+
+    CompiledTemplate queryTemplate = templateService.compileTemplate(queryNode.getProperty(
+        SAKAI_QUERY_TEMPLATE).getString());
+
+    ImmutableMap.Builder<String, List<CompiledTemplate>> options = ImmutableMap.builder();
+    ImmutableMap.Builder<String, Boolean> multipleOptions = ImmutableMap.builder();
+    if (queryNode.hasNode(SAKAI_QUERY_TEMPLATE_OPTIONS)) {
+      PropertyIterator queryOptions = queryNode.getNode(SAKAI_QUERY_TEMPLATE_OPTIONS)
+          .getProperties();
+      while (queryOptions.hasNext()) {
+        javax.jcr.Property prop = queryOptions.nextProperty();
+        String key = prop.getName();
+        if (!JcrUtils.isJCRProperty(key)) {
+          ImmutableList.Builder<CompiledTemplate> templates = ImmutableList.builder();
+          if (prop.isMultiple()) {
+            for (Value val : prop.getValues()) {
+              templates.add(templateService.compileTemplate(val.getString()));
+            }
+          } else {
+            templates.add(templateService.compileTemplate(prop.getString()));
+          }
+          options.put(key, templates.build());
+          multipleOptions.put(key, prop.isMultiple());
+        }
+      }
+    }
+
+    String batchProcessorName = null;
+    if (queryNode.hasProperty(SAKAI_BATCHRESULTPROCESSOR)) {
+      batchProcessorName = queryNode.getProperty(SAKAI_BATCHRESULTPROCESSOR).getString();
+    }
+    String resultProcessorName = null;
+    if (queryNode.hasProperty(SAKAI_RESULTPROCESSOR)) {
+      resultProcessorName = queryNode.getProperty(SAKAI_RESULTPROCESSOR).getString();
+    }
+    String[] decoratorNames = null;
+    if (queryNode.hasProperty(SAKAI_SEARCHRESPONSEDECORATOR)) {
+      decoratorNames = getStringArrayProp(queryNode, SAKAI_SEARCHRESPONSEDECORATOR);
+    }
+
+    return new CompiledQuery(queryNode.getPath(), queryType, propertyProviderNames,
+        defaults.build(), queryTemplate, options.build(), multipleOptions.build(),
+        batchProcessorName, resultProcessorName, decoratorNames);
+  }
+
+  private String[] getStringArrayProp(Node queryNode, String propName)
+      throws RepositoryException {
+    javax.jcr.Property prop = queryNode.getProperty(propName);
+    if (prop.isMultiple()) {
+      Value[] vals = prop.getValues();
+      String[] strings = new String[vals.length];
+      for (int i = 0; i < vals.length; i++) {
+        strings[i] = vals[i].getString();
+      }
+      return strings;
+    } else {
+      return new String[] { prop.getString() };
+    }
+  }
+
+  /**
+   * The parts of a search template node needed to run a search. Instances are shared
+   * between requests and must not be modified.
+   */
+  public static final class CompiledQuery {
+    private final String path;
+    private final String queryType;
+    private final String[] propertyProviderNames;
+    private final Map<String, String> defaults;
+    private final CompiledTemplate queryTemplate;
+    private final Map<String, List<CompiledTemplate>> options;
+    private final Map<String, Boolean> multipleOptions;
+    private final String batchProcessorName;
+    private final String resultProcessorName;
+    private final String[] decoratorNames;
+
+    CompiledQuery(String path, String queryType, String[] propertyProviderNames,
+        Map<String, String> defaults, CompiledTemplate queryTemplate,
+        Map<String, List<CompiledTemplate>> options, Map<String, Boolean> multipleOptions,
+        String batchProcessorName, String resultProcessorName, String[] decoratorNames) {
+      this.path = path;
+      this.queryType = queryType;
+      this.propertyProviderNames = propertyProviderNames;
+      this.defaults = defaults;
+      this.queryTemplate = queryTemplate;
+      this.options = options;
+      this.multipleOptions = multipleOptions;
+      this.batchProcessorName = batchProcessorName;
+      this.resultProcessorName = resultProcessorName;
+      this.decoratorNames = decoratorNames;
+    }
+
+    public String getPath() {
+      return path;
+    }
+
+    public String getQueryType() {
+      return queryType;
+    }
+
+    /**
+     * @return the names of the property providers, or null if none are set.
+     */
+    public String[] getPropertyProviderNames() {
+      return propertyProviderNames;
+    }
+
+    /**
+     * @return the single valued, non jcr: properties of sakai:query-template-defaults.
+     */
+    public Map<String, String> getDefaults() {
+      return defaults;
+    }
+
+    public CompiledTemplate getQueryTemplate() {
+      return queryTemplate;
+    }
+
+    /**
+     * @return the non JCR properties of sakai:query-template-options, each as a list of
+     *         the compiled values.
+     */
+    public Map<String, List<CompiledTemplate>> getOptions() {
+      return options;
+    }
+
+    public boolean isMultipleOption(String key) {
+      return Boolean.TRUE.equals(multipleOptions.get(key));
+    }
+
+    /**
+     * @return the sakai:batchresultprocessor name, or null if none is set.
+     */
+    public String getBatchProcessorName() {
+      return batchProcessorName;
+    }
+
+    /**
+     * @return the sakai:resultprocessor name, or null if none is set.
+     */
+    public String getResultProcessorName() {
+      return resultProcessorName;
+    }
+
+    /**
+     * @return the sakai:searchresponsedecorator names, or null if none are set.
+     */
+    public String[] getDecoratorNames() {
+      return decoratorNames;
+    }
+  }
+}
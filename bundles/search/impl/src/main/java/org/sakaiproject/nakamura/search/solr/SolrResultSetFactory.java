@@ -40,11 +40,9 @@ import org.sakaiproject.nakamura.api.lite.Session;
 import org.sakaiproject.nakamura.api.lite.StorageClientException;
 import org.sakaiproject.nakamura.api.lite.StorageClientUtils;
 import org.sakaiproject.nakamura.api.lite.accesscontrol.AccessDeniedException;
-import org.sakaiproject.nakamura.api.lite.authorizable.Authorizable;
-import org.sakaiproject.nakamura.api.lite.authorizable.AuthorizableManager;
-import org.sakaiproject.nakamura.api.lite.authorizable.Group;
 import org.sakaiproject.nakamura.api.lite.authorizable.User;
 import org.sakaiproject.nakamura.api.search.DeletedPathsService;
+import org.sakaiproject.nakamura.api.search.PrincipalSetService;
 import org.sakaiproject.nakamura.api.search.SearchUtil;
 import org.sakaiproject.nakamura.api.search.solr.Query;
 import org.sakaiproject.nakamura.api.search.solr.ResultSetFactory;
@@ -52,17 +50,17 @@ import org.sakaiproject.nakamura.api.search.solr.SolrSearchException;
 import org.sakaiproject.nakamura.api.search.solr.SolrSearchResultSet;
 import org.sakaiproject.nakamura.api.search.solr.SolrSearchUtil;
 import org.sakaiproject.nakamura.api.solr.SolrServerService;
-import org.sakaiproject.nakamura.util.telemetry.TelemetryCounter;
+import org.sakaiproject.nakamura.util.telemetry.Counter;
+import org.sakaiproject.nakamura.util.telemetry.Histogram;
+import org.sakaiproject.nakamura.util.telemetry.TelemetryRegistry;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.io.UnsupportedEncodingException;
 import java.net.URLDecoder;
-import java.util.Iterator;
 import java.util.Map;
 import java.util.Map.Entry;
 import java.util.Set;
-import java.util.List;
 
 /**
  *
@@ -86,6 +84,12 @@ public class SolrResultSetFactory implements ResultSetFactory {
 
   private static final Logger LOGGER = LoggerFactory.getLogger(SolrResultSetFactory.class);
   private static final Logger SLOW_QUERY_LOGGER = LoggerFactory.getLogger(SlowQueryLogger.class);
+  private static final Histogram QUERY_TIME = TelemetryRegistry.histogram("search",
+      "SolrResultSetFactory", "queryTime");
+  private static final Counter SLOW_QUERIES = TelemetryRegistry.counter("search",
+      "SolrResultSetFactory", "SLOW");
+  private static final Counter VERY_SLOW_QUERIES = TelemetryRegistry.counter("search",
+      "SolrResultSetFactory", "VERYSLOW");
 
   @Reference
   private SolrServerService solrSearchService;
@@ -93,6 +97,9 @@ public class SolrResultSetFactory implements ResultSetFactory {
   @Reference
   private DeletedPathsService deletedPathsService;
 
+  @Reference
+  private PrincipalSetService principalSetService;
+
   private int defaultMaxResults = 100; // set to 100 to allow testing
   private long slowQueryThreshold;
   private long verySlowQueryThreshold;
@@ -155,14 +162,8 @@ public class SolrResultSetFactory implements ResultSetFactory {
       } else {
         Session session = StorageClientUtils.adaptToSession(request.getResourceResolver().adaptTo(javax.jcr.Session.class));
         if (!User.ADMIN_USER.equals(session.getUserId())) {
-          AuthorizableManager am = session.getAuthorizableManager();
-          Authorizable user = am.findAuthorizable(session.getUserId());
-          Set<String> readers = Sets.newHashSet();
-          for (Iterator<Group> gi = user.memberOf(am); gi.hasNext();) {
-            readers.add(gi.next().getId());
-          }
-          readers.add(session.getUserId());
-          filterQueries.add("readers:(" + StringUtils.join(readers," OR ") + ")");
+          filterQueries.add(principalSetService.getReadersFilter(session.getUserId(),
+              session.getAuthorizableManager()));
         }
       }
 
@@ -170,11 +171,14 @@ public class SolrResultSetFactory implements ResultSetFactory {
       // some things on the server that the UI doesn't want (e.g. collection groups)
       filterQueries.add("-exclude:true");
 
-      // filter out deleted items
-      List<String> deletedPaths = deletedPathsService.getDeletedPaths();
-      if (!deletedPaths.isEmpty()) {
-        // these are escaped as they are collected
-        filterQueries.add("-path:(" + StringUtils.join(deletedPaths, " OR ") + ")");
+      // filter out deleted items, with one filter per generation of deleted paths so
+      // solr can cache it, or afterwards if there are too many to filter.
+      String deletedPathsFilter = deletedPathsService.getDeletedPathsFilter();
+      boolean removeDeleted = false;
+      if (deletedPathsFilter != null) {
+        filterQueries.add(deletedPathsFilter);
+      } else {
+        removeDeleted = !deletedPathsService.getDeletedPaths().isEmpty();
       }
       // save filterQuery changes
       queryOptions.put(CommonParams.FQ, filterQueries);
@@ -191,17 +195,19 @@ public class SolrResultSetFactory implements ResultSetFactory {
       long tquery = System.currentTimeMillis();
       QueryResponse response = solrServer.query(solrQuery, queryMethod);
       tquery = System.currentTimeMillis() - tquery;
+      QUERY_TIME.record(tquery);
       try {
         if ( tquery > verySlowQueryThreshold ) {
           SLOW_QUERY_LOGGER.error("Very slow solr query {} ms {} ",tquery, URLDecoder.decode(solrQuery.toString(),"UTF-8"));
-          TelemetryCounter.incrementValue("search","VERYSLOW",request.getResource().getPath());
+          VERY_SLOW_QUERIES.increment();
         } else if ( tquery > slowQueryThreshold ) {
           SLOW_QUERY_LOGGER.warn("Slow solr query {} ms {} ",tquery, URLDecoder.decode(solrQuery.toString(),"UTF-8"));
-          TelemetryCounter.incrementValue("search", "SLOW", request.getResource().getPath());
+          SLOW_QUERIES.increment();
         }
       } catch (UnsupportedEncodingException e) {
       }
-      SolrSearchResultSetImpl rs = new SolrSearchResultSetImpl(response);
+      SolrSearchResultSetImpl rs = new SolrSearchResultSetImpl(response,
+          removeDeleted ? deletedPathsService : null);
       if ( LOGGER.isDebugEnabled()) {
         LOGGER.debug("Got {} hits in {} ms", rs.getSize(), response.getElapsedTime());
       }
@@ -24,6 +24,7 @@ import org.apache.solr.client.solrj.response.QueryResponse;
 import org.apache.solr.common.SolrDocument;
 import org.apache.solr.common.SolrDocumentList;
 import org.apache.solr.common.util.NamedList;
+import org.sakaiproject.nakamura.api.search.DeletedPathsService;
 import org.sakaiproject.nakamura.api.search.solr.Result;
 import org.sakaiproject.nakamura.api.search.solr.SolrQueryResponseWrapper;
 import org.sakaiproject.nakamura.api.search.solr.SolrSearchResultSet;
@@ -31,6 +32,7 @@ import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.util.ArrayList;
+import java.util.Collection;
 import java.util.Collections;
 import java.util.Comparator;
 import java.util.HashMap;
@@ -43,11 +45,24 @@ public class SolrSearchResultSetImpl implements SolrSearchResultSet, SolrQueryRe
   private static final Logger LOGGER = LoggerFactory.getLogger(SolrSearchResultSetImpl.class);
 
   private final QueryResponse queryResponse;
+  private final DeletedPathsService deletedPaths;
   private SolrDocumentList responseList;
 
   public SolrSearchResultSetImpl(QueryResponse queryResponse) {
+    this(queryResponse, null);
+  }
+
+  /**
+   * @param queryResponse
+   * @param deletedPaths
+   *          if not null, documents at deleted paths are removed from the results, for
+   *          when they could not be filtered in the query.
+   */
+  public SolrSearchResultSetImpl(QueryResponse queryResponse,
+      DeletedPathsService deletedPaths) {
     LOGGER.debug("new SolrSearchResultSetImpl(QueryResponse {})", queryResponse);
     this.queryResponse = queryResponse;
+    this.deletedPaths = deletedPaths;
   }
 
   public Iterator<Result> getResultSetIterator() {
@@ -155,6 +170,28 @@ public class SolrSearchResultSetImpl implements SolrSearchResultSet, SolrQueryRe
           }
         }
       }
+      if (deletedPaths != null) {
+        removeDeleted();
+      }
+    }
+  }
+
+  private void removeDeleted() {
+    int removed = 0;
+    for (Iterator<SolrDocument> i = responseList.iterator(); i.hasNext();) {
+      Collection<Object> paths = i.next().getFieldValues("path");
+      if (paths != null) {
+        for (Object path : paths) {
+          if (deletedPaths.isDeleted(String.valueOf(path))) {
+            i.remove();
+            removed++;
+            break;
+          }
+        }
+      }
+    }
+    if (removed > 0) {
+      responseList.setNumFound(Math.max(0, responseList.getNumFound() - removed));
     }
   }
 
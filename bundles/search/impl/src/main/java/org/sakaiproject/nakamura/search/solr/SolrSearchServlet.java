@@ -22,13 +22,7 @@ import static org.sakaiproject.nakamura.api.search.solr.SolrSearchConstants.FACE
 import static org.sakaiproject.nakamura.api.search.solr.SolrSearchConstants.JSON_RESULTS;
 import static org.sakaiproject.nakamura.api.search.solr.SolrSearchConstants.PARAMS_ITEMS_PER_PAGE;
 import static org.sakaiproject.nakamura.api.search.solr.SolrSearchConstants.PARAMS_PAGE;
-import static org.sakaiproject.nakamura.api.search.solr.SolrSearchConstants.SAKAI_BATCHRESULTPROCESSOR;
-import static org.sakaiproject.nakamura.api.search.solr.SolrSearchConstants.SAKAI_PROPERTY_PROVIDER;
 import static org.sakaiproject.nakamura.api.search.solr.SolrSearchConstants.SAKAI_QUERY_TEMPLATE;
-import static org.sakaiproject.nakamura.api.search.solr.SolrSearchConstants.SAKAI_QUERY_TEMPLATE_DEFAULTS;
-import static org.sakaiproject.nakamura.api.search.solr.SolrSearchConstants.SAKAI_QUERY_TEMPLATE_OPTIONS;
-import static org.sakaiproject.nakamura.api.search.solr.SolrSearchConstants.SAKAI_RESULTPROCESSOR;
-import static org.sakaiproject.nakamura.api.search.solr.SolrSearchConstants.SAKAI_SEARCHRESPONSEDECORATOR;
 import static org.sakaiproject.nakamura.api.search.solr.SolrSearchConstants.SEARCH_PATH_PREFIX;
 import static org.sakaiproject.nakamura.api.search.solr.SolrSearchConstants.TIDY;
 import static org.sakaiproject.nakamura.api.search.solr.SolrSearchConstants.TOTAL;
@@ -66,11 +60,12 @@ import org.sakaiproject.nakamura.api.search.solr.SolrSearchPropertyProvider;
 import org.sakaiproject.nakamura.api.search.solr.SolrSearchResultProcessor;
 import org.sakaiproject.nakamura.api.search.solr.SolrSearchResultSet;
 import org.sakaiproject.nakamura.api.search.solr.SolrSearchUtil;
+import org.sakaiproject.nakamura.api.templates.CompiledTemplate;
 import org.sakaiproject.nakamura.api.templates.TemplateService;
 import org.sakaiproject.nakamura.util.ExtendedJSONWriter;
-import org.sakaiproject.nakamura.util.JcrUtils;
 import org.sakaiproject.nakamura.util.LitePersonalUtils;
-import org.sakaiproject.nakamura.util.telemetry.TelemetryCounter;
+import org.sakaiproject.nakamura.search.solr.QueryTemplateCache.CompiledQuery;
+import org.sakaiproject.nakamura.util.telemetry.TelemetryRegistry;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -84,9 +79,7 @@ import java.util.Map.Entry;
 import java.util.Set;
 
 import javax.jcr.Node;
-import javax.jcr.PropertyIterator;
 import javax.jcr.RepositoryException;
-import javax.jcr.Value;
 import javax.servlet.ServletException;
 import javax.servlet.http.HttpServletResponse;
 
@@ -178,6 +171,9 @@ public class SolrSearchServlet extends SlingSafeMethodsServlet {
   @Reference
   private transient TemplateService templateService;
 
+  @Reference
+  private transient QueryTemplateCache queryTemplateCache;
+
   @Override
   protected void doGet(SlingHttpServletRequest request, SlingHttpServletResponse response)
       throws ServletException, IOException {
@@ -189,13 +185,14 @@ public class SolrSearchServlet extends SlingSafeMethodsServlet {
                 + SEARCH_PATH_PREFIX);
         return;
       }
-      TelemetryCounter.incrementValue("search", "SolrSearchServlet", resource.getPath());
+      TelemetryRegistry.counter("search", "SolrSearchServlet", resource.getPath()).increment();
       Node node = resource.adaptTo(Node.class);
       if (node != null && node.hasProperty(SAKAI_QUERY_TEMPLATE)) {
+        CompiledQuery compiledQuery = queryTemplateCache.getCompiledQuery(node);
         // KERN-1147 Respond better when all parameters haven't been provided for a query
         Query query;
         try {
-          query = processQuery(request, node);
+          query = processQuery(request, compiledQuery);
         } catch (MissingParameterException e) {
           response.sendError(HttpServletResponse.SC_BAD_REQUEST, e.getMessage());
           return;
@@ -223,9 +220,9 @@ public class SolrSearchServlet extends SlingSafeMethodsServlet {
         boolean useBatch = false;
         // Get the
         SolrSearchBatchResultProcessor searchBatchProcessor = defaultSearchBatchProcessor;
-        if (node.hasProperty(SAKAI_BATCHRESULTPROCESSOR)) {
-          searchBatchProcessor = searchBatchResultProcessorTracker.getByName(node.getProperty(
-              SAKAI_BATCHRESULTPROCESSOR).getString());
+        if (compiledQuery.getBatchProcessorName() != null) {
+          searchBatchProcessor = searchBatchResultProcessorTracker.getByName(compiledQuery
+              .getBatchProcessorName());
           useBatch = true;
           if (searchBatchProcessor == null) {
             searchBatchProcessor = defaultSearchBatchProcessor;
@@ -233,9 +230,9 @@ public class SolrSearchServlet extends SlingSafeMethodsServlet {
         }
 
         SolrSearchResultProcessor searchProcessor = defaultSearchProcessor;
-        if (node.hasProperty(SAKAI_RESULTPROCESSOR)) {
-          searchProcessor = searchResultProcessorTracker.getByName(node.getProperty(SAKAI_RESULTPROCESSOR)
-              .getString());
+        if (compiledQuery.getResultProcessorName() != null) {
+          searchProcessor = searchResultProcessorTracker.getByName(compiledQuery
+              .getResultProcessorName());
           if (searchProcessor == null) {
             searchProcessor = defaultSearchProcessor;
           }
@@ -294,9 +291,8 @@ public class SolrSearchServlet extends SlingSafeMethodsServlet {
         write.key(TOTAL);
         write.value(rs.getSize());
 
-        if ( node.hasProperty(SAKAI_SEARCHRESPONSEDECORATOR)) {
-          String[] decoratorNames = getStringArrayProp(node, SAKAI_SEARCHRESPONSEDECORATOR);
-          for ( String name : decoratorNames ) {
+        if ( compiledQuery.getDecoratorNames() != null) {
+          for ( String name : compiledQuery.getDecoratorNames() ) {
             SearchResponseDecorator decorator = searchResponseDecoratorTracker.getByName(name);
             if ( decorator != null ) {
               decorator.decorateSearchResponse(request, write);
@@ -321,37 +317,18 @@ public class SolrSearchServlet extends SlingSafeMethodsServlet {
    *
    * @param request
    *          the request.
-   * @param queryTemplate
-   *          the query template.
-   * @param propertyProviderName
+   * @param compiledQuery
+   *          the compiled search template.
    * @return A processed query template
    * @throws MissingParameterException
    */
-  protected Query processQuery(SlingHttpServletRequest request, Node queryNode)
-      throws RepositoryException, MissingParameterException, JSONException {
-    // check the resource type and set the query type appropriately
-    // default to using solr for queries
-    javax.jcr.Property resourceType = queryNode.getProperty("sling:resourceType");
-    String queryType;
-    if ("sakai/sparse-search".equals(resourceType.getString())) {
-      queryType = Query.SPARSE;
-    } else {
-      queryType = Query.SOLR;
-    }
-
-    String[] propertyProviderNames = null;
-    if (queryNode.hasProperty(SAKAI_PROPERTY_PROVIDER)) {
-      propertyProviderNames = getStringArrayProp(queryNode, SAKAI_PROPERTY_PROVIDER);
-    }
-    PropertyIterator defaultValues = null;
-    if (queryNode.hasNode(SAKAI_QUERY_TEMPLATE_DEFAULTS)) {
-      Node defaults = queryNode.getNode(SAKAI_QUERY_TEMPLATE_DEFAULTS);
-      defaultValues = defaults.getProperties();
-    }
-    Map<String, String> propertiesMap = loadProperties(request, propertyProviderNames,
-        defaultValues, queryType);
+  protected Query processQuery(SlingHttpServletRequest request, CompiledQuery compiledQuery)
+      throws MissingParameterException {
+    String queryType = compiledQuery.getQueryType();
+    Map<String, String> propertiesMap = loadProperties(request,
+        compiledQuery.getPropertyProviderNames(), compiledQuery.getDefaults(), queryType);
 
-    String queryTemplate = queryNode.getProperty(SAKAI_QUERY_TEMPLATE).getString();
+    CompiledTemplate queryTemplate = compiledQuery.getQueryTemplate();
 
     // process the query string before checking for missing terms to a) give processors a
     // chance to set things and b) catch any missing terms added by the processors.
@@ -360,63 +337,54 @@ public class SolrSearchServlet extends SlingSafeMethodsServlet {
     // expand home directory references to full path; eg. ~user => a:user
     queryString = SearchUtil.expandHomeDirectory(queryString);
 
-    // check for any missing terms & process the query template
-    Collection<String> missingTerms = templateService.missingTerms(queryString);
+    // check for any missing terms & process the query template. Only templates with
+    // directives have to be checked after they are rendered, the markers of any other
+    // template are known when it is compiled.
+    Collection<String> missingTerms;
+    if (queryTemplate.isConditional()) {
+      missingTerms = templateService.missingTerms(queryString);
+    } else {
+      missingTerms = templateService.missingTerms(propertiesMap, queryTemplate);
+    }
     if (!missingTerms.isEmpty()) {
       throw new MissingParameterException(
           "Your request is missing parameters for the template: "
               + StringUtils.join(missingTerms, ", "));
     }
 
-    // collect query options
-    PropertyIterator queryOptions = null;
-    if (queryNode.hasNode(SAKAI_QUERY_TEMPLATE_OPTIONS)) {
-      Node queryOptionsNode = queryNode.getNode(SAKAI_QUERY_TEMPLATE_OPTIONS);
-      queryOptions = queryOptionsNode.getProperties();
-    }
-
     // process the options as templates and check for missing params
-    Map<String, Object> options = processOptions(propertiesMap, queryOptions, queryType);
+    Map<String, Object> options = processOptions(propertiesMap, compiledQuery, queryType);
 
-    return new Query(queryNode.getPath(), queryType, queryString, options);
+    return new Query(compiledQuery.getPath(), queryType, queryString, options);
   }
 
   /**
    * @param propertiesMap
-   * @param queryOptions
+   * @param compiledQuery
    * @return
-   * @throws JSONException
    * @throws MissingParameterException
    */
   private Map<String, Object> processOptions(Map<String, String> propertiesMap,
-      PropertyIterator queryOptions, String queryType) throws RepositoryException,
-      MissingParameterException {
+      CompiledQuery compiledQuery, String queryType) throws MissingParameterException {
     Set<String> missingTerms = Sets.newHashSet();
     Map<String, Object> options = Maps.newHashMap();
-    if (queryOptions != null) {
-      while (queryOptions.hasNext()) {
-        javax.jcr.Property prop = queryOptions.nextProperty();
-        String key = prop.getName();
-
-        if (!JcrUtils.isJCRProperty(key)) {
-          if (prop.isMultiple()) {
-            Set<String> processedVals = Sets.newHashSet();
-            Value[] vals = prop.getValues();
-            for (Value val : vals) {
-              String processedVal = processValue(key, val.getString(), propertiesMap,
-                  queryType, missingTerms);
-              processedVals.add(processedVal);
-            }
-            if (!processedVals.isEmpty()) {
-              options.put(key, processedVals);
-            }
-          } else {
-            String val = prop.getString();
-            String processedVal = processValue(key, val, propertiesMap, queryType,
-                missingTerms);
-            options.put(key, processedVal);
-          }
+    for (Entry<String, List<CompiledTemplate>> option : compiledQuery.getOptions()
+        .entrySet()) {
+      String key = option.getKey();
+      if (compiledQuery.isMultipleOption(key)) {
+        Set<String> processedVals = Sets.newHashSet();
+        for (CompiledTemplate val : option.getValue()) {
+          String processedVal = processValue(key, val, propertiesMap, queryType,
+              missingTerms);
+          processedVals.add(processedVal);
+        }
+        if (!processedVals.isEmpty()) {
+          options.put(key, processedVals);
         }
+      } else {
+        String processedVal = processValue(key, option.getValue().get(0), propertiesMap,
+            queryType, missingTerms);
+        options.put(key, processedVal);
       }
     }
 
@@ -439,8 +407,8 @@ public class SolrSearchServlet extends SlingSafeMethodsServlet {
    * @param missingTerms
    * @return
    */
-  private String processValue(String key, String val, Map<String, String> propertiesMap,
-      String queryType, Set<String> missingTerms) {
+  private String processValue(String key, CompiledTemplate val,
+      Map<String, String> propertiesMap, String queryType, Set<String> missingTerms) {
     missingTerms.addAll(templateService.missingTerms(propertiesMap, val));
     String processedVal = templateService.evaluateTemplate(propertiesMap, val);
     if ("sort".equals(key)) {
@@ -460,10 +428,9 @@ public class SolrSearchServlet extends SlingSafeMethodsServlet {
    * @param request
    * @param propertyProviderName
    * @return
-   * @throws RepositoryException
    */
   private Map<String, String> loadProperties(SlingHttpServletRequest request,
-      String[] propertyProviderNames, PropertyIterator defaultProps, String queryType) throws RepositoryException {
+      String[] propertyProviderNames, Map<String, String> defaultProps, String queryType) {
     Map<String, String> propertiesMap = new HashMap<String, String>();
 
     // 0. load authorizable (user) information
@@ -474,14 +441,9 @@ public class SolrSearchServlet extends SlingSafeMethodsServlet {
     propertiesMap.put("_userId", ClientUtils.escapeQueryChars(userId));
 
     // 1. load in properties from the query template node so defaults can be set
-    if (defaultProps != null) {
-      while (defaultProps.hasNext()) {
-        javax.jcr.Property prop = defaultProps.nextProperty();
-        String key = prop.getName();
-        if (!key.startsWith("jcr:") && !propertiesMap.containsKey(key) && !prop.isMultiple()) {
-          String val = prop.getString();
-          propertiesMap.put(key, val);
-        }
+    for (Entry<String, String> defaultProp : defaultProps.entrySet()) {
+      if (!propertiesMap.containsKey(defaultProp.getKey())) {
+        propertiesMap.put(defaultProp.getKey(), defaultProp.getValue());
       }
     }
 
@@ -535,23 +497,6 @@ public class SolrSearchServlet extends SlingSafeMethodsServlet {
     return false;
   }
 
-  private String[] getStringArrayProp(Node queryNode, String propName) throws RepositoryException {
-    String[] propertyProviderNames;
-    javax.jcr.Property propProv = queryNode.getProperty(propName);
-    if (propProv.isMultiple()) {
-      Value[] propProvVals = propProv.getValues();
-      propertyProviderNames = new String[propProvVals.length];
-
-      for (int i = 0; i < propProvVals.length; i++) {
-        propertyProviderNames[i] = propProvVals[i].getString();
-      }
-    } else {
-      propertyProviderNames = new String[1];
-      propertyProviderNames[0] = propProv.getString();
-    }
-    return propertyProviderNames;
-  }
-
   private void writeFacetFields(SolrSearchResultSet rs, ExtendedJSONWriter writer) throws JSONException {
     if (rs.getFacetFields() != null) {
       List<FacetField> fields = rs.getFacetFields();
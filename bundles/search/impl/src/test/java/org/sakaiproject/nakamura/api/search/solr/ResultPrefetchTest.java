@@ -0,0 +1,123 @@
+/**
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.nakamura.api.search.solr;
+
+import static junit.framework.Assert.assertEquals;
+import static junit.framework.Assert.assertNull;
+import static junit.framework.Assert.assertSame;
+import static junit.framework.Assert.fail;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.mockito.Mock;
+import org.mockito.runners.MockitoJUnitRunner;
+import org.sakaiproject.nakamura.api.lite.Session;
+import org.sakaiproject.nakamura.api.lite.StorageClientException;
+import org.sakaiproject.nakamura.api.lite.accesscontrol.AccessDeniedException;
+import org.sakaiproject.nakamura.api.lite.accesscontrol.Security;
+import org.sakaiproject.nakamura.api.lite.authorizable.Authorizable;
+import org.sakaiproject.nakamura.api.lite.authorizable.AuthorizableManager;
+import org.sakaiproject.nakamura.api.lite.content.Content;
+import org.sakaiproject.nakamura.api.lite.content.ContentManager;
+
+import java.util.List;
+
+/**
+ *
+ */
+@RunWith(MockitoJUnitRunner.class)
+public class ResultPrefetchTest {
+
+  @Mock
+  private Session session;
+  @Mock
+  private ContentManager contentManager;
+  @Mock
+  private AuthorizableManager authorizableManager;
+
+  private ResultPrefetch prefetch;
+
+  @Before
+  public void setUp() throws Exception {
+    when(session.getContentManager()).thenReturn(contentManager);
+    when(session.getAuthorizableManager()).thenReturn(authorizableManager);
+    prefetch = new ResultPrefetch(session);
+  }
+
+  private Result result(String path) {
+    Result result = mock(Result.class);
+    when(result.getPath()).thenReturn(path);
+    return result;
+  }
+
+  @Test
+  public void testReadsEachPathOnce() throws Exception {
+    Content a = new Content("a", ImmutableMap.of("resourceId", (Object) "r"));
+    when(contentManager.get("a")).thenReturn(a);
+
+    List<Result> page = prefetch.page(ImmutableList.of(result("a"), result("a"),
+        result("b")).iterator());
+    assertEquals(3, page.size());
+    prefetch.prefetchResults(page);
+
+    assertSame(a, prefetch.getContent("a"));
+    assertNull(prefetch.getContent("b"));
+    verify(contentManager, times(1)).get("a");
+    verify(contentManager, times(1)).get("b");
+  }
+
+  @Test
+  public void testDeniedIsMissing() throws Exception {
+    when(contentManager.get("secret")).thenThrow(new AccessDeniedException(
+        Security.ZONE_CONTENT, "secret", "", "ieb"));
+    prefetch.prefetchContent(ImmutableList.of("secret"));
+    assertNull(prefetch.getContent("secret"));
+    verify(contentManager, times(1)).get("secret");
+  }
+
+  @Test
+  public void testFailureLeftToGet() throws Exception {
+    when(contentManager.get("broken")).thenThrow(new StorageClientException("broken"));
+    prefetch.prefetchContent(ImmutableList.of("broken"));
+    try {
+      prefetch.getContent("broken");
+      fail();
+    } catch (StorageClientException e) {
+      // expected
+    }
+  }
+
+  @Test
+  public void testReadsEachAuthorizableOnce() throws Exception {
+    Authorizable ieb = mock(Authorizable.class);
+    when(authorizableManager.findAuthorizable("ieb")).thenReturn(ieb);
+    prefetch.prefetchAuthorizables(ImmutableList.of("ieb", "ieb", "nobody"));
+    assertSame(ieb, prefetch.getAuthorizable("ieb"));
+    assertNull(prefetch.getAuthorizable("nobody"));
+    verify(authorizableManager, times(1)).findAuthorizable("ieb");
+    verify(authorizableManager, times(1)).findAuthorizable("nobody");
+  }
+}
@@ -18,23 +18,15 @@
 package org.sakaiproject.nakamura.search;
 
 import static junit.framework.Assert.assertEquals;
-import static org.mockito.Matchers.any;
-import static org.mockito.Matchers.anyString;
-import static org.mockito.Mockito.when;
+import static junit.framework.Assert.assertFalse;
+import static junit.framework.Assert.assertNull;
+import static junit.framework.Assert.assertSame;
+import static junit.framework.Assert.assertTrue;
 
 import java.util.List;
 import org.junit.Before;
 import org.junit.Test;
-import org.junit.runner.RunWith;
-import org.mockito.Mock;
-import org.mockito.runners.MockitoJUnitRunner;
 import org.osgi.service.event.Event;
-import org.sakaiproject.nakamura.api.cluster.ClusterServer;
-import org.sakaiproject.nakamura.api.cluster.ClusterTrackingService;
-import org.sakaiproject.nakamura.api.memory.Cache;
-import org.sakaiproject.nakamura.api.memory.CacheManagerService;
-import org.sakaiproject.nakamura.api.memory.CacheScope;
-import org.sakaiproject.nakamura.memory.MapCacheImpl;
 
 import com.google.common.collect.ImmutableMap;
 import com.google.common.collect.Lists;
@@ -42,37 +34,13 @@ import com.google.common.collect.Lists;
 /**
  *
  */
-@RunWith(MockitoJUnitRunner.class)
 public class DeletedPathsServiceImplTest {
 
-  @Mock
-  private CacheManagerService cacheManagerService;
-  @Mock
-  private ClusterTrackingService clusterTrackingService;
-  @Mock
-  private ClusterServer clusterServer;
-
   private DeletedPathsServiceImpl service;
 
   @Before
   public void setUp() {
-    // setup cluster server
-    when(clusterServer.getServerId()).thenReturn(
-        DeletedPathsServiceImplTest.class.getName());
-
-    // setup cluster tracking service
-    when(clusterTrackingService.getCurrentServerId()).thenReturn(
-        DeletedPathsServiceImplTest.class.getName());
-    when(clusterTrackingService.getAllServers()).thenReturn(
-        Lists.newArrayList(clusterServer));
-
-    // setup cache manager service
-    Cache<Object> cache = new MapCacheImpl<Object>(
-        DeletedPathsServiceImpl.DELETED_PATH_CACHE, CacheScope.CLUSTERREPLICATED);
-    when(cacheManagerService.getCache(anyString(), any(CacheScope.class))).thenReturn(
-        cache);
-
-    service = new DeletedPathsServiceImpl(cacheManagerService, clusterTrackingService);
+    service = new DeletedPathsServiceImpl();
   }
 
   @Test
@@ -134,4 +102,54 @@ public class DeletedPathsServiceImplTest {
 
     assertEquals(keeperPaths, service.getDeletedPaths());
   }
+
+  @Test
+  public void testSiblingPrefixIsKept() throws Exception {
+    delete("/first/second");
+    delete("/first");
+    delete("/firstly");
+    delete("/first/third");
+    assertEquals(Lists.newArrayList("/first", "/firstly"), service.getDeletedPaths());
+    assertTrue(service.isDeleted("/first/second/child"));
+    assertTrue(service.isDeleted("/firstly"));
+    assertFalse(service.isDeleted("/firs"));
+    assertFalse(service.isDeleted("/other"));
+  }
+
+  @Test
+  public void testFilterPerGeneration() throws Exception {
+    assertNull(service.getDeletedPathsFilter());
+    delete("/a:b");
+    String filter = service.getDeletedPathsFilter();
+    assertEquals("-path:(/a\\:b OR /a\\:b/*)", filter);
+    assertSame(filter, service.getDeletedPathsFilter());
+
+    // nothing new, the same filter.
+    delete("/a:b/c");
+    assertSame(filter, service.getDeletedPathsFilter());
+
+    delete("/d");
+    assertEquals("-path:(/a\\:b OR /a\\:b/* OR /d OR /d/*)", service.getDeletedPathsFilter());
+
+    service.handleEvent(new Event("org/sakaiproject/nakamura/solr/COMMIT", ImmutableMap.of()));
+    assertNull(service.getDeletedPathsFilter());
+    assertFalse(service.isDeleted("/d"));
+  }
+
+  @Test
+  public void testTooManyToFilter() throws Exception {
+    service.activate(ImmutableMap.of(DeletedPathsServiceImpl.MAX_FILTER_PATHS, 2));
+    delete("/a");
+    delete("/b");
+    assertTrue(service.getDeletedPathsFilter() != null);
+    delete("/c");
+    assertNull(service.getDeletedPathsFilter());
+    assertEquals(3, service.getDeletedPaths().size());
+    assertTrue(service.isDeleted("/c/d"));
+  }
+
+  private void delete(String path) {
+    service.handleEvent(new Event("org/sakaiproject/nakamura/lite/content/DELETE",
+        ImmutableMap.of("path", path)));
+  }
 }
@@ -0,0 +1,151 @@
+/*
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.nakamura.search;
+
+import static junit.framework.Assert.assertEquals;
+import static junit.framework.Assert.assertNull;
+import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.anyString;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.mockito.Mock;
+import org.mockito.runners.MockitoJUnitRunner;
+import org.osgi.service.event.Event;
+import org.sakaiproject.nakamura.api.lite.Repository;
+import org.sakaiproject.nakamura.api.lite.Session;
+import org.sakaiproject.nakamura.api.lite.authorizable.AuthorizableManager;
+import org.sakaiproject.nakamura.api.lite.authorizable.Group;
+import org.sakaiproject.nakamura.api.lite.authorizable.User;
+import org.sakaiproject.nakamura.api.memory.Cache;
+import org.sakaiproject.nakamura.api.memory.CacheManagerService;
+import org.sakaiproject.nakamura.api.memory.CacheScope;
+import org.sakaiproject.nakamura.memory.MapCacheImpl;
+
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.Lists;
+
+/**
+ *
+ */
+@RunWith(MockitoJUnitRunner.class)
+public class PrincipalSetServiceImplTest {
+
+  @Mock
+  private CacheManagerService cacheManagerService;
+  @Mock
+  private Repository repository;
+  @Mock
+  private Session session;
+  @Mock
+  private AuthorizableManager authorizableManager;
+  @Mock
+  private User user;
+  @Mock
+  private User otherUser;
+  @Mock
+  private Group zebras;
+  @Mock
+  private Group aardvarks;
+  @Mock
+  private Group giraffes;
+
+  private Cache<Object> cache;
+  private PrincipalSetServiceImpl service;
+
+  @Before
+  public void setUp() throws Exception {
+    cache = new MapCacheImpl<Object>(
+        PrincipalSetServiceImpl.PRINCIPAL_SET_CACHE, CacheScope.CLUSTERINVALIDATED);
+    when(cacheManagerService.getCache(anyString(), any(CacheScope.class))).thenReturn(
+        cache);
+
+    when(zebras.getId()).thenReturn("zebras");
+    when(aardvarks.getId()).thenReturn("aardvarks");
+    when(authorizableManager.findAuthorizable("user1")).thenReturn(user);
+    when(authorizableManager.findAuthorizable("user2")).thenReturn(otherUser);
+    when(authorizableManager.findAuthorizable("zebras")).thenReturn(zebras);
+    when(authorizableManager.findAuthorizable("giraffes")).thenReturn(giraffes);
+    when(repository.loginAdministrative()).thenReturn(session);
+    when(session.getAuthorizableManager()).thenReturn(authorizableManager);
+    when(user.memberOf(authorizableManager)).thenReturn(
+        Lists.newArrayList(zebras, aardvarks).iterator(),
+        Lists.newArrayList(aardvarks, zebras).iterator(),
+        Lists.newArrayList(aardvarks).iterator());
+
+    service = new PrincipalSetServiceImpl(cacheManagerService, repository);
+  }
+
+  @Test
+  public void testFilterIsSortedAndCached() throws Exception {
+    assertEquals("readers:(aardvarks OR user1 OR zebras)",
+        service.getReadersFilter("user1", authorizableManager));
+    assertEquals("readers:(aardvarks OR user1 OR zebras)",
+        service.getReadersFilter("user1", authorizableManager));
+    verify(user, times(1)).memberOf(authorizableManager);
+  }
+
+  @Test
+  public void testUserUpdateInvalidates() throws Exception {
+    service.getReadersFilter("user1", authorizableManager);
+    service.handleEvent(new Event("org/sakaiproject/nakamura/lite/authorizables/UPDATED",
+        ImmutableMap.of("path", "user1")));
+    assertEquals("readers:(aardvarks OR user1 OR zebras)",
+        service.getReadersFilter("user1", authorizableManager));
+    verify(user, times(2)).memberOf(authorizableManager);
+  }
+
+  @Test
+  public void testGroupDeleteInvalidatesMembers() throws Exception {
+    service.getReadersFilter("user1", authorizableManager);
+    service.handleEvent(new Event("org/sakaiproject/nakamura/lite/authorizables/DELETE",
+        ImmutableMap.of("path", "zebras")));
+    service.getReadersFilter("user1", authorizableManager);
+    service.handleEvent(new Event("org/sakaiproject/nakamura/lite/authorizables/DELETE",
+        ImmutableMap.of("path", "zebras")));
+    assertEquals("readers:(aardvarks OR user1)",
+        service.getReadersFilter("user1", authorizableManager));
+    verify(user, times(3)).memberOf(authorizableManager);
+  }
+
+  @Test
+  public void testOtherUserDoesNotInvalidate() throws Exception {
+    service.getReadersFilter("user1", authorizableManager);
+    service.handleEvent(new Event("org/sakaiproject/nakamura/lite/authorizables/UPDATED",
+        ImmutableMap.of("path", "user2")));
+    service.getReadersFilter("user1", authorizableManager);
+    verify(user, times(1)).memberOf(authorizableManager);
+    verify(session).logout();
+  }
+
+  @Test
+  public void testGroupUpdateClearsEveryFilter() throws Exception {
+    // a filter this node didn't build, eg one built before a restart.
+    cache.put("user2", "readers:(giraffes OR user2)");
+    service.getReadersFilter("user1", authorizableManager);
+    service.handleEvent(new Event("org/sakaiproject/nakamura/lite/authorizables/UPDATED",
+        ImmutableMap.of("path", "giraffes")));
+    assertNull(cache.get("user2"));
+    service.getReadersFilter("user1", authorizableManager);
+    verify(user, times(2)).memberOf(authorizableManager);
+  }
+}
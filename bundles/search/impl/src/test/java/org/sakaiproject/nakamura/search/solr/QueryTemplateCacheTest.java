@@ -0,0 +1,131 @@
+/**
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.nakamura.search.solr;
+
+import static junit.framework.Assert.assertEquals;
+import static junit.framework.Assert.assertNotSame;
+import static junit.framework.Assert.assertNull;
+import static junit.framework.Assert.assertSame;
+import static org.mockito.Matchers.anyString;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import com.google.common.collect.ImmutableMap;
+
+import org.apache.sling.api.SlingConstants;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.mockito.Mock;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.runners.MockitoJUnitRunner;
+import org.mockito.stubbing.Answer;
+import org.osgi.service.event.Event;
+import org.sakaiproject.nakamura.api.search.solr.Query;
+import org.sakaiproject.nakamura.api.search.solr.SolrSearchConstants;
+import org.sakaiproject.nakamura.api.templates.CompiledTemplate;
+import org.sakaiproject.nakamura.api.templates.TemplateService;
+import org.sakaiproject.nakamura.search.solr.QueryTemplateCache.CompiledQuery;
+
+import java.util.Collections;
+
+import javax.jcr.Node;
+import javax.jcr.Property;
+
+/**
+ *
+ */
+@RunWith(MockitoJUnitRunner.class)
+public class QueryTemplateCacheTest {
+
+  @Mock
+  private TemplateService templateService;
+  @Mock
+  private Node queryNode;
+  @Mock
+  private Property queryTemplate;
+  @Mock
+  private Property resourceType;
+
+  private QueryTemplateCache cache;
+
+  @Before
+  public void setUp() throws Exception {
+    when(queryNode.getPath()).thenReturn("/var/search/pool/files");
+    when(queryNode.hasProperty(SolrSearchConstants.SAKAI_QUERY_TEMPLATE)).thenReturn(true);
+    when(queryNode.getProperty(SolrSearchConstants.SAKAI_QUERY_TEMPLATE)).thenReturn(
+        queryTemplate);
+    when(queryTemplate.getString()).thenReturn("manager:${group}");
+    when(queryNode.hasProperty("sling:resourceType")).thenReturn(true);
+    when(queryNode.getProperty("sling:resourceType")).thenReturn(resourceType);
+    when(resourceType.getString()).thenReturn("sakai/sparse-search");
+    when(templateService.compileTemplate(anyString())).thenAnswer(
+        new Answer<CompiledTemplate>() {
+          public CompiledTemplate answer(InvocationOnMock invocation) throws Throwable {
+            String template = (String) invocation.getArguments()[0];
+            return new CompiledTemplate(template, Collections.singletonList("group"),
+                false, template);
+          }
+        });
+
+    cache = new QueryTemplateCache(templateService);
+  }
+
+  @Test
+  public void testCompilesOnce() throws Exception {
+    CompiledQuery compiled = cache.getCompiledQuery(queryNode);
+    assertEquals(Query.SPARSE, compiled.getQueryType());
+    assertEquals("manager:${group}", compiled.getQueryTemplate().getSource());
+    assertNull(compiled.getBatchProcessorName());
+    assertEquals(0, compiled.getOptions().size());
+
+    assertSame(compiled, cache.getCompiledQuery(queryNode));
+    verify(templateService, times(1)).compileTemplate(anyString());
+  }
+
+  @Test
+  public void testInvalidatedByChangesToTheNodeAndItsChildren() throws Exception {
+    CompiledQuery compiled = cache.getCompiledQuery(queryNode);
+
+    cache.handleEvent(changed("/var/search/pool"));
+    cache.handleEvent(changed("/var/search/pool/files2"));
+    cache.handleEvent(changed("/var/search/pool/filesystem"));
+    assertSame(compiled, cache.getCompiledQuery(queryNode));
+
+    cache.handleEvent(changed("/var/search/pool/files/sakai:query-template-options"));
+    CompiledQuery recompiled = cache.getCompiledQuery(queryNode);
+    assertNotSame(compiled, recompiled);
+
+    cache.handleEvent(changed("/var/search/pool/files"));
+    assertNotSame(recompiled, cache.getCompiledQuery(queryNode));
+  }
+
+  @Test
+  public void testInvalidatedByRemovingAParent() throws Exception {
+    CompiledQuery compiled = cache.getCompiledQuery(queryNode);
+    cache.handleEvent(new Event(SlingConstants.TOPIC_RESOURCE_REMOVED, ImmutableMap.of(
+        SlingConstants.PROPERTY_PATH, "/var/search")));
+    assertNotSame(compiled, cache.getCompiledQuery(queryNode));
+  }
+
+  private Event changed(String path) {
+    return new Event(SlingConstants.TOPIC_RESOURCE_CHANGED, ImmutableMap.of(
+        SlingConstants.PROPERTY_PATH, path));
+  }
+}
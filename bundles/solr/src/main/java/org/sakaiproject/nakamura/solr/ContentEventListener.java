@@ -99,20 +99,50 @@ public class ContentEventListener implements EventHandler, TopicIndexer,
 
 	private static final boolean DEFAULT_NEAR_REAL_TIME = false;
 
+	private static final int DEFAULT_INDEXER_THREADS = 1;
+
+	private static final String DEFAULT_REDO_LOG_FORMAT = MappedRedoLogFormat.NAME;
+
+	private static final long DEFAULT_REDO_LOG_SYNC_INTERVAL = 1000;
+
+	private static final int REDO_LOG_SEGMENT_SIZE = 1024 * 1024 + 64 * 1024;
+
 
 	private static final String BATCHED_INDEX_SIZE = "batched-index-size";
 
 	private static final String BATCH_DELAY = "batch-delay";
 
+	/**
+	 * The number of threads used to build documents for the events in a batch.
+	 * Each path only appears once in a batch, so documents for different paths
+	 * can be built in parallel, the whole batch is then written to solr at
+	 * once.
+	 */
+	private static final String INDEXER_THREADS = "indexer-threads";
+
+	/**
+	 * The format new redo log files are written in, "text" for the original
+	 * line based format or "mapped" for length prefixed, crc checked binary
+	 * records in memory mapped segments. Existing files in either format are
+	 * always readable.
+	 */
+	private static final String REDO_LOG_FORMAT = "redo-log-format";
+
+	/**
+	 * For the mapped format, the maximum time in ms between syncs of the redo
+	 * log to disk. Events saved within the interval share one sync.
+	 */
+	private static final String REDO_LOG_SYNC_INTERVAL = "redo-log-sync-interval";
+
 	@Property(value={
-			"name=;batch-delay=5000;batched-index-size=100;near-real-time=false",
-			"name=high;batch-delay=50;batched-index-size=10;near-real-time=true"
+			"name=;batch-delay=5000;batched-index-size=100;near-real-time=false;indexer-threads=4;redo-log-format=mapped",
+			"name=high;batch-delay=50;batched-index-size=10;near-real-time=true;indexer-threads=2;redo-log-format=mapped"
 	})
 	private static final String PROP_QUEUE_CONFIG = "queue-config";
 
 	private static final String[] QUEUE_DEFAULT = {
-		"name=;batch-delay=5000;batched-index-size=100;near-real-time=false",
-		"name=high;batch-delay=50;batched-index-size=10;near-real-time=true"
+		"name=;batch-delay=5000;batched-index-size=100;near-real-time=false;indexer-threads=4;redo-log-format=mapped",
+		"name=high;batch-delay=50;batched-index-size=10;near-real-time=true;indexer-threads=2;redo-log-format=mapped"
 	};
 
 	@Reference
@@ -170,10 +200,26 @@ public class ContentEventListener implements EventHandler, TopicIndexer,
 
 			long batchDelay = Utils.toLong(config.get(BATCH_DELAY),
 					DEFAULT_BATCH_DELAY);
+			int indexerThreads = Utils.toInt(config.get(INDEXER_THREADS),
+					DEFAULT_INDEXER_THREADS);
+			String redoLogFormatName = Utils.toString(
+					config.get(REDO_LOG_FORMAT), DEFAULT_REDO_LOG_FORMAT);
+			RedoLogFormat redoLogFormat;
+			if (MappedRedoLogFormat.NAME.equals(redoLogFormatName)) {
+				redoLogFormat = new MappedRedoLogFormat(REDO_LOG_SEGMENT_SIZE,
+						Utils.toLong(config.get(REDO_LOG_SYNC_INTERVAL),
+								DEFAULT_REDO_LOG_SYNC_INTERVAL));
+			} else if (TextRedoLogFormat.NAME.equals(redoLogFormatName)) {
+				redoLogFormat = new TextRedoLogFormat();
+			} else {
+				throw new IllegalArgumentException("Invalid configuraton "
+						+ queueConfig + " unknown " + REDO_LOG_FORMAT + " "
+						+ redoLogFormatName);
+			}
 			String name = Utils.toString(config.get(QUEUE_NAME), DEFAULT_QUEUE_NAME);
 			qm.put(name, new QueueManager(this,
 					solrServerService.getSolrHome(), name, nearRealTime,
-					batchedIndexSize, batchDelay));
+					batchedIndexSize, batchDelay, indexerThreads, redoLogFormat));
 
 		}
 		List<QueueManager> qmlist = Lists.newArrayList(qm.values());
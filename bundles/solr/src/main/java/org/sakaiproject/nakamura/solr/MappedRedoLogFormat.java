@@ -0,0 +1,430 @@
+/**
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.nakamura.solr;
+
+import org.osgi.service.event.Event;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.lang.reflect.Method;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileChannel.MapMode;
+import java.nio.charset.Charset;
+import java.util.Dictionary;
+import java.util.Hashtable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.zip.CRC32;
+
+/**
+ * A binary redo log format. Each file is a preallocated segment that is memory
+ * mapped by both the writer and the reader, so appending an event is a copy
+ * into the mapping rather than a write syscall. The file starts with a magic
+ * number and version, followed by records of the form
+ * 
+ * <pre>
+ * [int payload length][int crc32 of payload][payload]
+ * </pre>
+ * 
+ * A length of 0 is unwritten space and a length of -1 is the end of log
+ * marker. Stores to a mapping made by one thread are not ordered for another,
+ * so while a segment is open for writing the writer publishes the end of the
+ * last complete record through a volatile, and a reader of that segment in
+ * the same JVM does not read past it. The mapping is forced to disk at most
+ * once per sync interval, all the events appended in that interval share the
+ * sync. Segments are unmapped as soon as they are closed or remapped rather
+ * than left to the garbage collector.
+ */
+class MappedRedoLogFormat implements RedoLogFormat {
+
+	static final String NAME = "mapped";
+
+	private static final int MAGIC = 0x4E4B524C; // NKRL
+	private static final int VERSION = 1;
+	private static final int FILE_HEADER_SIZE = 8;
+	private static final int RECORD_HEADER_SIZE = 8;
+	private static final int END_MARKER = -1;
+	private static final Charset UTF8 = Charset.forName("UTF-8");
+
+	private static final Logger LOGGER = LoggerFactory
+			.getLogger(MappedRedoLogFormat.class);
+
+	/**
+	 * The end of the last complete record of each segment open for writing in
+	 * this JVM, by absolute file.
+	 */
+	private static final ConcurrentMap<File, AtomicInteger> WRITE_POSITIONS = new ConcurrentHashMap<File, AtomicInteger>();
+
+	private int segmentSize;
+	private long syncInterval;
+
+	/**
+	 * @param segmentSize
+	 *            the size each new file is preallocated to, files grow if a
+	 *            record does not fit.
+	 * @param syncInterval
+	 *            the maximum time in ms between forcing appended records to
+	 *            disk, 0 forces every append.
+	 */
+	MappedRedoLogFormat(int segmentSize, long syncInterval) {
+		this.segmentSize = Math.max(segmentSize, 4096);
+		this.syncInterval = syncInterval;
+	}
+
+	public String getName() {
+		return NAME;
+	}
+
+	public RedoLogWriter openWriter(File file) throws IOException {
+		return new MappedRedoLogWriter(file);
+	}
+
+	public boolean canRead(File file) throws IOException {
+		if (file.length() < FILE_HEADER_SIZE) {
+			return false;
+		}
+		RandomAccessFile raf = new RandomAccessFile(file, "r");
+		try {
+			return raf.readInt() == MAGIC;
+		} finally {
+			raf.close();
+		}
+	}
+
+	public RedoLogReader openReader(File file) throws IOException {
+		return new MappedRedoLogReader(file);
+	}
+
+	private class MappedRedoLogWriter implements RedoLogWriter {
+
+		private RandomAccessFile raf;
+		private FileChannel channel;
+		private MappedByteBuffer buffer;
+		private int position;
+		private boolean dirty;
+		private long lastSync;
+		private ByteArrayOutputStream recordBuffer = new ByteArrayOutputStream(
+				1024);
+		private DataOutputStream recordOutput = new DataOutputStream(
+				recordBuffer);
+
+		private File file;
+		private AtomicInteger published = new AtomicInteger(FILE_HEADER_SIZE);
+
+		private MappedRedoLogWriter(File file) throws IOException {
+			this.file = file.getAbsoluteFile();
+			// registered before the file appears, so any reader in this JVM
+			// finds it.
+			WRITE_POSITIONS.put(this.file, published);
+			// The segment is preallocated and given its header outside the log
+			// directory so that a reader never sees a file without a header.
+			File logDirectory = file.getParentFile();
+			File tmp = new File(logDirectory.getParentFile(), "."
+					+ logDirectory.getName() + "-" + file.getName());
+			raf = new RandomAccessFile(tmp, "rw");
+			try {
+				raf.setLength(segmentSize);
+				raf.writeInt(MAGIC);
+				raf.writeInt(VERSION);
+				if (!tmp.renameTo(file)) {
+					throw new IOException("Failed to move new redo log " + tmp
+							+ " to " + file);
+				}
+				channel = raf.getChannel();
+				buffer = channel.map(MapMode.READ_WRITE, 0, segmentSize);
+			} catch (IOException e) {
+				WRITE_POSITIONS.remove(this.file, published);
+				raf.close();
+				if (tmp.exists() && !tmp.delete()) {
+					tmp.deleteOnExit();
+				}
+				throw e;
+			}
+			position = FILE_HEADER_SIZE;
+			lastSync = System.currentTimeMillis();
+		}
+
+		public void append(Event event) throws IOException {
+			recordBuffer.reset();
+			String[] properties = event.getPropertyNames();
+			writeString(event.getTopic());
+			recordOutput.writeInt(properties.length);
+			for (String p : properties) {
+				writeString(p);
+				writeString(String.valueOf(event.getProperty(p)));
+			}
+			recordOutput.flush();
+			byte[] payload = recordBuffer.toByteArray();
+			// leave room for the end marker.
+			ensureCapacity(position + RECORD_HEADER_SIZE + payload.length + 4);
+			CRC32 crc = new CRC32();
+			crc.update(payload);
+			buffer.putInt(position + 4, (int) crc.getValue());
+			buffer.position(position + RECORD_HEADER_SIZE);
+			buffer.put(payload);
+			buffer.putInt(position, payload.length);
+			position += RECORD_HEADER_SIZE + payload.length;
+			// publish the record
+			published.set(position);
+			dirty = true;
+			if (System.currentTimeMillis() - lastSync >= syncInterval) {
+				sync();
+			}
+		}
+
+		private void writeString(String s) throws IOException {
+			byte[] b = s.getBytes(UTF8);
+			recordOutput.writeInt(b.length);
+			recordOutput.write(b);
+		}
+
+		private void ensureCapacity(int required) throws IOException {
+			if (required > buffer.capacity()) {
+				int newSize = Math.max(buffer.capacity() * 2, required);
+				buffer.force();
+				raf.setLength(newSize);
+				MappedByteBuffer old = buffer;
+				buffer = channel.map(MapMode.READ_WRITE, 0, newSize);
+				unmap(old);
+			}
+		}
+
+		public long length() {
+			return position;
+		}
+
+		public void sync() throws IOException {
+			if (dirty) {
+				buffer.force();
+				dirty = false;
+			}
+			lastSync = System.currentTimeMillis();
+		}
+
+		public void close() throws IOException {
+			try {
+				ensureCapacity(position + 4);
+				buffer.putInt(position, END_MARKER);
+				position += 4;
+				published.set(position);
+				dirty = true;
+				sync();
+			} finally {
+				WRITE_POSITIONS.remove(file, published);
+				unmap(buffer);
+				buffer = null;
+				channel.close();
+				raf.close();
+			}
+		}
+	}
+
+	private static class MappedRedoLogReader implements RedoLogReader {
+
+		private RandomAccessFile raf;
+		private FileChannel channel;
+		private MappedByteBuffer buffer;
+		private File file;
+		private int position;
+		private int records;
+		private boolean finished;
+		/**
+		 * The writers published position if the segment was open for writing
+		 * when the reader was opened, null if it had been closed.
+		 */
+		private AtomicInteger published;
+
+		private MappedRedoLogReader(File file) throws IOException {
+			this.file = file;
+			published = WRITE_POSITIONS.get(file.getAbsoluteFile());
+			raf = new RandomAccessFile(file, "r");
+			try {
+				channel = raf.getChannel();
+				buffer = channel.map(MapMode.READ_ONLY, 0, channel.size());
+				if (buffer.capacity() < FILE_HEADER_SIZE
+						|| buffer.getInt(0) != MAGIC) {
+					throw new IOException("Not a mapped redo log " + file);
+				}
+				if (buffer.getInt(4) != VERSION) {
+					throw new IOException("Unsupported redo log version "
+							+ buffer.getInt(4) + " in " + file);
+				}
+			} catch (IOException e) {
+				raf.close();
+				throw e;
+			}
+			position = FILE_HEADER_SIZE;
+		}
+
+		public Event read() throws IOException {
+			if (finished || !readable(position + 4)) {
+				return null;
+			}
+			int length = buffer.getInt(position);
+			if (length == 0) {
+				return null;
+			}
+			if (length == END_MARKER) {
+				position += 4;
+				records++;
+				finished = true;
+				return null;
+			}
+			if (length < 0
+					|| !readable(position + RECORD_HEADER_SIZE + length)) {
+				// there is no way to find the next record.
+				finished = true;
+				throw new IOException("Corrupt record length " + length
+						+ " at " + position + " in " + file
+						+ ", skipping the rest of the file");
+			}
+			int crc = buffer.getInt(position + 4);
+			byte[] payload = new byte[length];
+			buffer.position(position + RECORD_HEADER_SIZE);
+			buffer.get(payload);
+			CRC32 check = new CRC32();
+			check.update(payload);
+			if ((int) check.getValue() != crc) {
+				// the record was complete when it was published, so it is
+				// corrupt rather than partly visible.
+				position += RECORD_HEADER_SIZE + length;
+				records++;
+				throw new IOException("CRC check failed for record " + records
+						+ " in " + file + ", record skipped");
+			}
+			position += RECORD_HEADER_SIZE + length;
+			records++;
+			return decode(payload);
+		}
+
+		/**
+		 * Check the required length has been published by the writer, and make
+		 * sure the mapping covers it, remapping if the writer has grown the
+		 * file. Reading the published position orders the reads of the
+		 * mapping after the writers stores to it.
+		 */
+		private boolean readable(int required) throws IOException {
+			if (published != null && required > published.get()) {
+				return false;
+			}
+			if (required <= buffer.capacity()) {
+				return true;
+			}
+			long size = channel.size();
+			if (size >= required) {
+				MappedByteBuffer old = buffer;
+				buffer = channel.map(MapMode.READ_ONLY, 0, size);
+				unmap(old);
+				return true;
+			}
+			return false;
+		}
+
+		private Event decode(byte[] payload) throws IOException {
+			try {
+				ByteBuffer record = ByteBuffer.wrap(payload);
+				String topic = readString(record);
+				int n = record.getInt();
+				Dictionary<String, Object> dict = new Hashtable<String, Object>();
+				for (int i = 0; i < n; i++) {
+					String name = readString(record);
+					dict.put(name, readString(record));
+				}
+				return new Event(topic, dict);
+			} catch (RuntimeException e) {
+				throw new IOException("Undecodable record " + records + " in "
+						+ file + " cause: " + e.getMessage());
+			}
+		}
+
+		private String readString(ByteBuffer record) {
+			int length = record.getInt();
+			String s = new String(record.array(), record.position(), length,
+					UTF8);
+			record.position(record.position() + length);
+			return s;
+		}
+
+		public boolean isFinished() {
+			return finished;
+		}
+
+		public int getPosition() {
+			return records;
+		}
+
+		public void skip(int n) throws IOException {
+			for (int i = 0; i < n && !finished; i++) {
+				if (!readable(position + 4)) {
+					return;
+				}
+				int length = buffer.getInt(position);
+				if (length == 0) {
+					return;
+				}
+				if (length == END_MARKER) {
+					position += 4;
+					finished = true;
+				} else {
+					position += RECORD_HEADER_SIZE + length;
+				}
+				records++;
+			}
+		}
+
+		public void close() throws IOException {
+			unmap(buffer);
+			buffer = null;
+			channel.close();
+			raf.close();
+		}
+	}
+
+	/**
+	 * Release a mapping now rather than when it is garbage collected, so that
+	 * retired segments don't hold address space and file handles. Falls back
+	 * to the garbage collector on JVMs without a buffer cleaner.
+	 */
+	static void unmap(MappedByteBuffer buffer) {
+		if (buffer == null) {
+			return;
+		}
+		try {
+			Method cleanerMethod = buffer.getClass().getMethod("cleaner");
+			cleanerMethod.setAccessible(true);
+			Object cleaner = cleanerMethod.invoke(buffer);
+			if (cleaner != null) {
+				Method clean = cleaner.getClass().getMethod("clean");
+				clean.setAccessible(true);
+				clean.invoke(cleaner);
+			}
+		} catch (Exception e) {
+			LOGGER.debug("Unable to unmap redo log segment, left to the GC: {}",
+					e.getMessage());
+		}
+	}
+
+}
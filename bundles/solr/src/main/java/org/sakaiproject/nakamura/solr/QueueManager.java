@@ -16,8 +16,18 @@ import java.util.Dictionary;
 import java.util.Hashtable;
 import java.util.List;
 import java.util.Map;
-import java.util.Map.Entry;
 import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import org.apache.commons.lang.StringUtils;
 import org.apache.solr.client.solrj.SolrServer;
@@ -42,9 +52,21 @@ import com.google.common.collect.Sets;
 
 public class QueueManager implements Runnable {
 
-	private static final String END = "--end--";
   private static final String UTF8 = "UTF8";
 
+	/**
+	 * Redo log files are rolled over once they are larger than this.
+	 */
+	private static final long MAX_REDO_LOG_SIZE = 1024 * 1024;
+
+	/**
+	 * The formats that redo log files are read with, in the order they are
+	 * tried, the text format reads anything.
+	 */
+	private static final RedoLogFormat[] READ_FORMATS = new RedoLogFormat[] {
+			new MappedRedoLogFormat((int) MAX_REDO_LOG_SIZE, 0),
+			new TextRedoLogFormat() };
+
 	private static final Logger LOGGER = LoggerFactory
 			.getLogger(QueueManager.class);
 	private File logDirectory;
@@ -56,15 +78,23 @@ public class QueueManager implements Runnable {
 	private boolean nearRealTime;
 	private long nread;
 	private long nwrite;
-	private BufferedReader eventReader;
+	private RedoLogReader eventReader;
 	private File currentInFile;
 	private Object waitingForFileLock = new Object();
 	private boolean running = false;
 	private int lineNo;
 	private File currentFile;
-	private FileWriter eventWriter;
+	private RedoLogWriter eventWriter;
+	private RedoLogFormat redoLogFormat;
 	protected int batchedIndexSize;
 	protected long batchDelay;
+	protected int indexerThreads;
+
+	/**
+	 * Worker pool that builds documents for the events in a batch, only
+	 * created when more than one indexer thread is configured.
+	 */
+	private ExecutorService indexerPool;
 
 	private Thread queueDispatcher;
 
@@ -77,6 +107,14 @@ public class QueueManager implements Runnable {
 	public QueueManager(QueueManagerDriver queueManagerDriver,
 			String queueHome, String queueName, boolean nearRealTime,
 			int batchedIndexSize, long batchDelay) throws IOException {
+		this(queueManagerDriver, queueHome, queueName, nearRealTime,
+				batchedIndexSize, batchDelay, 1, new TextRedoLogFormat());
+	}
+
+	public QueueManager(QueueManagerDriver queueManagerDriver,
+			String queueHome, String queueName, boolean nearRealTime,
+			int batchedIndexSize, long batchDelay, int indexerThreads,
+			RedoLogFormat redoLogFormat) throws IOException {
 		if (queueName == null || queueName.equals("")) {
 			this.queueName = "";
 		} else {
@@ -93,6 +131,8 @@ public class QueueManager implements Runnable {
 		this.nearRealTime = nearRealTime;
 		this.batchDelay = batchDelay;
 		this.batchedIndexSize = batchedIndexSize;
+		this.indexerThreads = Math.max(1, indexerThreads);
+		this.redoLogFormat = redoLogFormat;
 		this.queueManagerDriver = queueManagerDriver;
 		loadPosition();
 		running = false;
@@ -101,6 +141,24 @@ public class QueueManager implements Runnable {
 	public synchronized void start() {
 		if (!running) {
 			running = true;
+			if (indexerThreads > 1) {
+				final AtomicInteger threadNumber = new AtomicInteger();
+				// the queue is bounded by the batch size, the dispatcher
+				// never has more than one batch outstanding.
+				indexerPool = new ThreadPoolExecutor(indexerThreads,
+						indexerThreads, 60L, TimeUnit.SECONDS,
+						new ArrayBlockingQueue<Runnable>(Math.max(
+								indexerThreads, batchedIndexSize)),
+						new ThreadFactory() {
+							public Thread newThread(Runnable r) {
+								Thread t = new Thread(r, "IndexQueueWorker"
+										+ queueName + "-"
+										+ threadNumber.incrementAndGet());
+								t.setDaemon(true);
+								return t;
+							}
+						}, new ThreadPoolExecutor.AbortPolicy());
+			}
 			queueDispatcher = new Thread(this);
 			queueDispatcher.setName("IndexQueueManager" + queueName);
 			queueDispatcher.start();
@@ -114,6 +172,10 @@ public class QueueManager implements Runnable {
 			closeWriter();
 			running = false;
 			notifyReader();
+			if (indexerPool != null) {
+				indexerPool.shutdown();
+				indexerPool = null;
+			}
 		}
 
 	}
@@ -139,8 +201,6 @@ public class QueueManager implements Runnable {
 				  LOGGER.debug("Writer closing {} ", currentFile.getName());
         }
 				nwrite++;
-				eventWriter.append(END);
-				eventWriter.flush();
 				eventWriter.close();
 				eventWriter = null;
 				currentFile = null;
@@ -155,10 +215,9 @@ public class QueueManager implements Runnable {
 	public void saveEvent(Event event) throws IOException {
 		synchronized (eventWriterSync) {
 			LOGGER.debug("Save Event {} ", event);
-			if (currentFile != null && currentFile.length() > 1024 * 1024) {
+			if (eventWriter != null && eventWriter.length() > MAX_REDO_LOG_SIZE) {
 				LOGGER.info("Closed Event Redo Log {} ", currentFile);
 				nwrite++;
-				eventWriter.append(END);
 				eventWriter.close();
 				eventWriter = null;
 				currentFile = null;
@@ -168,27 +227,29 @@ public class QueueManager implements Runnable {
 						.currentTimeMillis()));
 			}
 			if (eventWriter == null) {
-				eventWriter = new FileWriter(currentFile);
-				LOGGER.info("Opened Event Redo Log {} ", currentFile);
+				eventWriter = redoLogFormat.openWriter(currentFile);
+				LOGGER.info("Opened {} Event Redo Log {} ",
+						redoLogFormat.getName(), currentFile);
 			}
-			String[] properties = event.getPropertyNames();
-			String[] op = new String[properties.length * 2 + 1];
-			op[0] = URLEncoder.encode(event.getTopic(), UTF8);
-			int i = 1;
-			for (String p : properties) {
-				op[i] = URLEncoder.encode(p, UTF8);
-				i++;
-				op[i] = URLEncoder.encode(String.valueOf(event.getProperty(p)), UTF8);
-				i++;
-			}
-			eventWriter.append(StringUtils.join(op, ',')).append('\n');
+			eventWriter.append(event);
 			nwrite++;
-			eventWriter.flush();
 		}
 		notifyReader();
 	}
 
 
+	/**
+	 * Forces events written since the last sync to disk, called once per batch
+	 * so that all the events saved while a batch is processed share one sync.
+	 */
+	private void syncWriter() throws IOException {
+		synchronized (eventWriterSync) {
+			if (eventWriter != null) {
+				eventWriter.sync();
+			}
+		}
+	}
+
 	private void fireCommitEvent(String topic) {
 		Dictionary<String, Object> props = new Hashtable<String, Object>();
 
@@ -201,8 +262,8 @@ public class QueueManager implements Runnable {
 	private void batchedEventRun() {
 		int backoff = 0;
 		while (running) {
-			RepositorySession repositorySession = null;
 			try {
+				syncWriter();
 				begin();
 				Event loadEvent = null;
 				try {
@@ -262,85 +323,12 @@ public class QueueManager implements Runnable {
 				SolrServer service = queueManagerDriver.getSolrServerService()
 						.getUpdateServer();
 				try {
-					boolean needsCommit = false;
-					for (Entry<String, Event> ev : events.entrySet()) {
-						Event event = ev.getValue();
-						String topic = event.getTopic();
-						Collection<IndexingHandler> contentIndexHandlers = queueManagerDriver
-								.getTopicHandler(topic);
-						if (contentIndexHandlers != null) {
-							for (IndexingHandler contentIndexHandler : contentIndexHandlers) {
-								/**
-								 * getDeleteQueries and getDocuments must be
-								 * called for all registered indexing handlers.
-								 * There is the chance that updating a document
-								 * will cause another document to be deleted and
-								 * this is the only way the indexing handler has
-								 * to interact in that. e.g. sakai:excludeSearch
-								 * gets set to true; that doc needs to be
-								 * deleted.
-								 */
-								String path = "undefined";
-								Collection<SolrInputDocument> docs = null;
-								try {
-									path = (String) event.getProperty("path");
-									LOGGER.debug(
-											"Got Handler {} for event {} {}",
-											new Object[] { contentIndexHandler,
-													event, path });
-									if ( repositorySession == null ) {
-										repositorySession = getRepositorySession();
-									}
-									Collection<String> deleteQueries = contentIndexHandler
-									.getDeleteQueries(
-											repositorySession, event); 
-									if ( deleteQueries != null ) {
-										for (String deleteQuery : deleteQueries ) {
-											if (service != null) {
-												LOGGER.debug(
-														"Added delete Query {} ",
-														deleteQuery);
-												try {
-													service.deleteByQuery(deleteQuery);
-													needsCommit = true;
-												} catch (SolrServerException e) {
-													LOGGER.info(
-															" Failed to delete {}  cause :{}",
-															deleteQuery,
-															e.getMessage());
-												}
-											}
-										}
-									}
-									docs = contentIndexHandler.getDocuments(
-											repositorySession, event);
-
-									if (service != null && docs != null && docs.size() > 0) {
-                    LOGGER.debug("Adding Docs {} ",
-                        docs);
-                    service.add(docs);
-                    needsCommit = true;
-									}
-								} catch (Exception e) {
-									 if ( e instanceof SolrServerException && e.getCause() instanceof ConnectException ) {
-										throw (SolrServerException)e;
-								     }
-									 LOGGER.error(
-											"{} Failed to process event {}, {} cause follows, event ignored for "
-													+ "this processor, please fix issue to remove this message (dont delete "
-													+ "this log message from the code) ",
-											new Object[] { contentIndexHandler,
-													event, path });
-									LOGGER.error(e.getMessage(), e);
-									if (docs != null) {
-										for (SolrInputDocument d : docs) {
-											LOGGER.error("Failed Doc {} ", d);
-										}
-									}
-								}
-							}
-						}
-					}
+					// build the documents for each path in the worker pool,
+					// then write the batch to solr in as few round trips as
+					// the order of the events allows.
+					List<IndexOperation> operations = buildOperations(Lists
+							.newArrayList(events.values()));
+					boolean needsCommit = writeOperations(service, operations);
 					if (needsCommit) {
 						LOGGER.info(
 								"Processed {} events in a batch, max {}, TTL {}, queue at {}:{}  ",
@@ -409,17 +397,261 @@ public class QueueManager implements Runnable {
 				} else {
 					LOGGER.debug("Closing Down Indexer Event Queue");
 				}
+			}
+		}
+		LOGGER.info("QueueManager {} shutting down ",queueName);
+	}
+
+	/**
+	 * Builds the delete queries and documents for a batch of events. Each path
+	 * only appears once in a batch and batches are processed one after the
+	 * other, so building the documents for different paths in parallel does
+	 * not change the order in which updates to a single path reach the index.
+	 * 
+	 * @param events
+	 *            the events in the batch, in redo log order.
+	 * @return the operations for the batch, in the same order as the events.
+	 */
+	private List<IndexOperation> buildOperations(List<Event> events)
+			throws InterruptedException, ExecutionException {
+		if (events.size() == 0) {
+			return Collections.emptyList();
+		}
+		ExecutorService pool = indexerPool;
+		if (pool == null || indexerThreads <= 1 || events.size() == 1) {
+			return new IndexOperationBuilder(events).call();
+		}
+		int partitionSize = (events.size() + indexerThreads - 1)
+				/ indexerThreads;
+		List<Future<List<IndexOperation>>> futures = Lists.newArrayList();
+		for (List<Event> partition : Lists.partition(events, partitionSize)) {
+			IndexOperationBuilder builder = new IndexOperationBuilder(partition);
+			try {
+				futures.add(pool.submit(builder));
+			} catch (RejectedExecutionException e) {
+				// the pool is full or has been shut down, build this
+				// partition on the queue thread.
+				FutureTask<List<IndexOperation>> inline = new FutureTask<List<IndexOperation>>(
+						builder);
+				inline.run();
+				futures.add(inline);
+			}
+		}
+		List<IndexOperation> operations = Lists
+				.newArrayListWithCapacity(events.size());
+		for (Future<List<IndexOperation>> f : futures) {
+			operations.addAll(f.get());
+		}
+		return operations;
+	}
+
+	/**
+	 * Sends a batch of operations to solr in event order. Consecutive delete
+	 * queries are sent in one request and consecutive documents in one add,
+	 * the pending documents are sent before any delete query that follows
+	 * them so a delete is never undone by an earlier add in the same batch.
+	 * 
+	 * @return true if the index was changed and needs a commit.
+	 */
+	private boolean writeOperations(SolrServer service,
+			List<IndexOperation> operations) throws SolrServerException,
+			IOException {
+		if (service == null || operations.size() == 0) {
+			return false;
+		}
+		boolean needsCommit = false;
+		List<IndexOperation> segment = Lists.newArrayList();
+		boolean segmentHasDocs = false;
+		for (IndexOperation operation : operations) {
+			if (segmentHasDocs && operation.deleteQueries.size() > 0) {
+				needsCommit = writeSegment(service, segment) || needsCommit;
+				segment.clear();
+				segmentHasDocs = false;
+			}
+			segment.add(operation);
+			segmentHasDocs = segmentHasDocs || operation.docs.size() > 0;
+		}
+		return writeSegment(service, segment) || needsCommit;
+	}
+
+	/**
+	 * Sends the delete queries of a run of operations in one request followed
+	 * by their documents in one request. If the batched add fails for any
+	 * reason other than the server being unavailable, the documents are sent
+	 * again one operation at a time so that a single bad document does not
+	 * cause the rest of the run to be lost.
+	 */
+	private boolean writeSegment(SolrServer service,
+			List<IndexOperation> operations) throws SolrServerException,
+			IOException {
+		boolean needsCommit = false;
+		UpdateRequest deleteRequest = new UpdateRequest();
+		List<SolrInputDocument> docs = Lists.newArrayList();
+		for (IndexOperation operation : operations) {
+			for (String deleteQuery : operation.deleteQueries) {
+				LOGGER.debug("Added delete Query {} ", deleteQuery);
+				deleteRequest.deleteByQuery(deleteQuery);
+			}
+			docs.addAll(operation.docs);
+		}
+		if (deleteRequest.getDeleteQuery() != null) {
+			try {
+				deleteRequest.process(service);
+				needsCommit = true;
+			} catch (SolrServerException e) {
+				if (e.getCause() instanceof ConnectException) {
+					throw e;
+				}
+				LOGGER.info(" Failed to delete {}  cause :{}",
+						deleteRequest.getDeleteQuery(), e.getMessage());
+			}
+		}
+		if (docs.size() > 0) {
+			try {
+				LOGGER.debug("Adding {} Docs ", docs.size());
+				service.add(docs);
+				needsCommit = true;
+			} catch (SolrServerException e) {
+				if (e.getCause() instanceof ConnectException) {
+					throw e;
+				}
+				LOGGER.warn("Batched add of {} documents failed, retrying each event, cause: {}",
+						docs.size(), e.getMessage());
+				needsCommit = writeEachOperation(service, operations) || needsCommit;
+			} catch (SolrException e) {
+				LOGGER.warn("Batched add of {} documents failed, retrying each event, cause: {}",
+						docs.size(), e.getMessage());
+				needsCommit = writeEachOperation(service, operations) || needsCommit;
+			}
+		}
+		return needsCommit;
+	}
+
+	private boolean writeEachOperation(SolrServer service,
+			List<IndexOperation> operations) throws SolrServerException {
+		boolean needsCommit = false;
+		for (IndexOperation operation : operations) {
+			if (operation.docs.size() == 0) {
+				continue;
+			}
+			try {
+				service.add(operation.docs);
+				needsCommit = true;
+			} catch (Exception e) {
+				if (e instanceof SolrServerException
+						&& e.getCause() instanceof ConnectException) {
+					throw (SolrServerException) e;
+				}
+				LOGGER.error(
+						"Failed to index event {}, event ignored, please fix issue to remove this message ",
+						operation.event);
+				LOGGER.error(e.getMessage(), e);
+				for (SolrInputDocument d : operation.docs) {
+					LOGGER.error("Failed Doc {} ", d);
+				}
+			}
+		}
+		return needsCommit;
+	}
+
+	/**
+	 * The delete queries and documents produced by all the indexing handlers
+	 * for a single event.
+	 */
+	private static class IndexOperation {
+		private final Event event;
+		private final List<String> deleteQueries = Lists.newArrayList();
+		private final List<SolrInputDocument> docs = Lists.newArrayList();
+
+		private IndexOperation(Event event) {
+			this.event = event;
+		}
+	}
+
+	/**
+	 * Runs all the indexing handlers for a list of events against a single
+	 * repository session. Sessions are not thread safe, so each builder logs
+	 * in for itself.
+	 */
+	private class IndexOperationBuilder implements
+			Callable<List<IndexOperation>> {
+
+		private List<Event> events;
+
+		private IndexOperationBuilder(List<Event> events) {
+			this.events = events;
+		}
+
+		public List<IndexOperation> call() {
+			List<IndexOperation> operations = Lists
+					.newArrayListWithCapacity(events.size());
+			RepositorySession repositorySession = null;
+			try {
+				for (Event event : events) {
+					IndexOperation operation = new IndexOperation(event);
+					operations.add(operation);
+					Collection<IndexingHandler> contentIndexHandlers = queueManagerDriver
+							.getTopicHandler(event.getTopic());
+					if (contentIndexHandlers == null) {
+						continue;
+					}
+					for (IndexingHandler contentIndexHandler : contentIndexHandlers) {
+						/**
+						 * getDeleteQueries and getDocuments must be called for
+						 * all registered indexing handlers. There is the chance
+						 * that updating a document will cause another document
+						 * to be deleted and this is the only way the indexing
+						 * handler has to interact in that. e.g.
+						 * sakai:excludeSearch gets set to true; that doc needs
+						 * to be deleted.
+						 */
+						String path = "undefined";
+						Collection<SolrInputDocument> docs = null;
+						try {
+							path = (String) event.getProperty("path");
+							LOGGER.debug("Got Handler {} for event {} {}",
+									new Object[] { contentIndexHandler, event,
+											path });
+							if (repositorySession == null) {
+								repositorySession = getRepositorySession();
+							}
+							Collection<String> deleteQueries = contentIndexHandler
+									.getDeleteQueries(repositorySession, event);
+							docs = contentIndexHandler.getDocuments(
+									repositorySession, event);
+							if (deleteQueries != null) {
+								operation.deleteQueries.addAll(deleteQueries);
+							}
+							if (docs != null) {
+								operation.docs.addAll(docs);
+							}
+						} catch (Exception e) {
+							LOGGER.error(
+									"{} Failed to process event {}, {} cause follows, event ignored for "
+											+ "this processor, please fix issue to remove this message (dont delete "
+											+ "this log message from the code) ",
+									new Object[] { contentIndexHandler, event,
+											path });
+							LOGGER.error(e.getMessage(), e);
+							if (docs != null) {
+								for (SolrInputDocument d : docs) {
+									LOGGER.error("Failed Doc {} ", d);
+								}
+							}
+						}
+					}
+				}
 			} finally {
 				try {
-					if ( repositorySession != null ) {
+					if (repositorySession != null) {
 						repositorySession.logout();
 					}
 				} catch (Exception e) {
 					LOGGER.warn(e.getMessage(), e);
 				}
 			}
+			return operations;
 		}
-		LOGGER.info("QueueManager {} shutting down ",queueName);
 	}
 
 	private RepositorySession getRepositorySession()
@@ -546,48 +778,39 @@ public class QueueManager implements Runnable {
 
 	private Event readEvent() throws IOException {
 		if (getBatchTTL() > 0) {
-			String line = nextEvent();
-			if (line != null) {
-				String[] parts = StringUtils.split(line, ',');
-				if (parts.length > 0) {
-					Dictionary<String, Object> dict = new Hashtable<String, Object>();
-					for (int i = 1; i < parts.length; i += 2) {
-						dict.put(URLDecoder.decode(parts[i], UTF8),
-								URLDecoder.decode(parts[i + 1], UTF8));
-					}
-					return new Event(URLDecoder.decode(parts[0], UTF8), dict);
-				}
-			}
+			return nextEvent();
 		}
 		return null;
 	}
 
-	private String nextEvent() throws IOException {
-		String line = null;
+	private Event nextEvent() throws IOException {
+		Event event = null;
 		int possibleEnd = 0;
 		if (checkReaderOpen()) {
-			while (line == null || END.equals(line)) {
-				if (END.equals(line)) {
+			while (event == null) {
+				if (eventReader.isFinished()) {
 					LOGGER.debug("At End of file {}", currentInFile);
 					if (!nextReader()) {
 						return null;
 					}
 				}
-				line = eventReader.readLine();
-
-				if (line != null) {
+				int position = lineNo;
+				try {
+					event = eventReader.read();
+				} finally {
+					lineNo = eventReader.getPosition();
+					nread += lineNo - position;
+				}
+				if (event != null) {
 					possibleEnd = 0;
-					nread++;
-					lineNo++;
 					if ((nread % 10000) == 0) {
 						LOGGER.info("Event Redo Log has processed {} events",
 								nread);
 					}
-				} else {
-					// if we get null from a buffered reader that means end of
-					// file, but there was
-					// no end statement
-					// so we need to check if this really is the end of file
+				} else if (!eventReader.isFinished()) {
+					// no complete record available, but there was no end
+					// marker so we need to check if this really is the end of
+					// file.
 					if (possibleEnd != 0 || getBatchTTL() > 0) {
 						if (possibleEnd == 0) {
 							// even though the writer wrote something, we still
@@ -637,7 +860,9 @@ public class QueueManager implements Runnable {
 								possibleEnd = 4; // try once more
 							} else {
 								// a new file, try and open that
-								nextReader();
+								if (!nextReader()) {
+									return null;
+								}
 								possibleEnd = 4;
 							}
 						} else if (possibleEnd == 4) {
@@ -653,7 +878,7 @@ public class QueueManager implements Runnable {
 				}
 			}
 		}
-		return line;
+		return event;
 	}
 
 	private boolean nextReader() throws IOException {
@@ -694,10 +919,8 @@ public class QueueManager implements Runnable {
 			if (eventReader != null) {
 				eventReader.close();
 			}
-			eventReader = new BufferedReader(new FileReader(file));
-			for (int i = 0; i < line; i++) {
-				eventReader.readLine();
-			}
+			eventReader = openReader(file);
+			eventReader.skip(line);
 		}
 	}
 
@@ -738,12 +961,21 @@ public class QueueManager implements Runnable {
 		}
 		if (eventReader == null) {
 			LOGGER.info("Opening New Reader {} ", currentInFile);
-			eventReader = new BufferedReader(new FileReader(currentInFile));
+			eventReader = openReader(currentInFile);
 			lineNo = 0;
 		}
 		return true;
 	}
 
+	private RedoLogReader openReader(File file) throws IOException {
+		for (RedoLogFormat format : READ_FORMATS) {
+			if (format.canRead(file)) {
+				return format.openReader(file);
+			}
+		}
+		throw new IOException("No redo log format can read " + file);
+	}
+
 	private void waitForWriter() throws IOException {
     // just incase we have to wait for a while for the lock, get the
     // last modified now,
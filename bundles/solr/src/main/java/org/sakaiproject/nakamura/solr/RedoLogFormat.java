@@ -0,0 +1,64 @@
+/**
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.nakamura.solr;
+
+import java.io.File;
+import java.io.IOException;
+
+/**
+ * The on disk format of the index queue redo log. A redo log directory may
+ * contain files written in more than one format, eg after the format has been
+ * changed in configuration, so readers are selected per file with
+ * {@link #canRead(File)}.
+ */
+interface RedoLogFormat {
+
+	/**
+	 * @return the name of the format as used in the queue configuration.
+	 */
+	String getName();
+
+	/**
+	 * Create a new redo log file and open it for writing.
+	 * 
+	 * @param file
+	 *            the file to create, must not exist.
+	 * @return a writer positioned at the start of the file.
+	 * @throws IOException
+	 */
+	RedoLogWriter openWriter(File file) throws IOException;
+
+	/**
+	 * @param file
+	 *            an existing redo log file.
+	 * @return true if this format can read the file.
+	 * @throws IOException
+	 */
+	boolean canRead(File file) throws IOException;
+
+	/**
+	 * Open a redo log file for reading.
+	 * 
+	 * @param file
+	 *            the file to read.
+	 * @return a reader positioned at the first record.
+	 * @throws IOException
+	 */
+	RedoLogReader openReader(File file) throws IOException;
+
+}
@@ -0,0 +1,65 @@
+/**
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.nakamura.solr;
+
+import org.osgi.service.event.Event;
+
+import java.io.IOException;
+
+/**
+ * Reads events back from a single redo log file, possibly while the file is
+ * still being written.
+ */
+interface RedoLogReader {
+
+	/**
+	 * Read the next event.
+	 * 
+	 * @return the next event or null if there is no complete record available
+	 *         yet or the end of log marker has been reached.
+	 * @throws IOException
+	 *             if the record at the current position is unreadable, the
+	 *             record is skipped so the next read will move on.
+	 */
+	Event read() throws IOException;
+
+	/**
+	 * @return true once the end of log marker has been read, no more events
+	 *         will be appended to this file.
+	 */
+	boolean isFinished();
+
+	/**
+	 * @return the number of records, including unreadable records and the end
+	 *         of log marker, consumed so far. This is the position saved in
+	 *         the queue position file.
+	 */
+	int getPosition();
+
+	/**
+	 * Skip records, used to restore a saved position.
+	 * 
+	 * @param records
+	 *            the number of records to skip.
+	 * @throws IOException
+	 */
+	void skip(int records) throws IOException;
+
+	void close() throws IOException;
+
+}
@@ -0,0 +1,62 @@
+/**
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.nakamura.solr;
+
+import org.osgi.service.event.Event;
+
+import java.io.IOException;
+
+/**
+ * Appends events to a single redo log file. Writers are not thread safe, the
+ * QueueManager serializes access.
+ */
+interface RedoLogWriter {
+
+	/**
+	 * Append an event to the log, once this returns the event is visible to a
+	 * reader of the same file.
+	 * 
+	 * @param event
+	 * @throws IOException
+	 */
+	void append(Event event) throws IOException;
+
+	/**
+	 * @return the number of bytes written to the file so far, tracked by the
+	 *         writer rather than asking the file system.
+	 */
+	long length();
+
+	/**
+	 * Force any records appended since the last sync to disk. Implementations
+	 * may batch syncs so that many appends share one, this forces the
+	 * outstanding ones.
+	 * 
+	 * @throws IOException
+	 */
+	void sync() throws IOException;
+
+	/**
+	 * Write the end of log marker, sync and close the file. No more events may
+	 * be appended.
+	 * 
+	 * @throws IOException
+	 */
+	void close() throws IOException;
+
+}
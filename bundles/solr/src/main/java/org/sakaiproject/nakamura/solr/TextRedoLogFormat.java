@@ -0,0 +1,161 @@
+/**
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.nakamura.solr;
+
+import org.apache.commons.lang.StringUtils;
+import org.osgi.service.event.Event;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.net.URLDecoder;
+import java.net.URLEncoder;
+import java.util.Dictionary;
+import java.util.Hashtable;
+
+/**
+ * The original redo log format, one line per event containing the URL encoded
+ * topic followed by URL encoded property name value pairs, comma separated.
+ * Every file that is not in another format is assumed to be in this format.
+ */
+class TextRedoLogFormat implements RedoLogFormat {
+
+	static final String NAME = "text";
+
+	private static final String END = "--end--";
+	private static final String UTF8 = "UTF8";
+
+	public String getName() {
+		return NAME;
+	}
+
+	public RedoLogWriter openWriter(File file) throws IOException {
+		return new TextRedoLogWriter(file);
+	}
+
+	public boolean canRead(File file) {
+		return true;
+	}
+
+	public RedoLogReader openReader(File file) throws IOException {
+		return new TextRedoLogReader(file);
+	}
+
+	private static class TextRedoLogWriter implements RedoLogWriter {
+
+		private FileWriter eventWriter;
+		private long length;
+
+		private TextRedoLogWriter(File file) throws IOException {
+			eventWriter = new FileWriter(file);
+		}
+
+		public void append(Event event) throws IOException {
+			String[] properties = event.getPropertyNames();
+			String[] op = new String[properties.length * 2 + 1];
+			op[0] = URLEncoder.encode(event.getTopic(), UTF8);
+			int i = 1;
+			for (String p : properties) {
+				op[i] = URLEncoder.encode(p, UTF8);
+				i++;
+				op[i] = URLEncoder.encode(String.valueOf(event.getProperty(p)),
+						UTF8);
+				i++;
+			}
+			// URL encoding leaves only ascii, so chars are bytes.
+			String line = StringUtils.join(op, ',');
+			eventWriter.append(line).append('\n');
+			length += line.length() + 1;
+			eventWriter.flush();
+		}
+
+		public long length() {
+			return length;
+		}
+
+		public void sync() throws IOException {
+			eventWriter.flush();
+		}
+
+		public void close() throws IOException {
+			eventWriter.append(END);
+			eventWriter.flush();
+			eventWriter.close();
+		}
+	}
+
+	private static class TextRedoLogReader implements RedoLogReader {
+
+		private BufferedReader eventReader;
+		private int position;
+		private boolean finished;
+
+		private TextRedoLogReader(File file) throws IOException {
+			eventReader = new BufferedReader(new FileReader(file));
+		}
+
+		public Event read() throws IOException {
+			if (finished) {
+				return null;
+			}
+			String line = eventReader.readLine();
+			if (line == null) {
+				return null;
+			}
+			position++;
+			if (END.equals(line)) {
+				finished = true;
+				return null;
+			}
+			try {
+				String[] parts = StringUtils.split(line, ',');
+				Dictionary<String, Object> dict = new Hashtable<String, Object>();
+				for (int i = 1; i < parts.length; i += 2) {
+					dict.put(URLDecoder.decode(parts[i], UTF8),
+							URLDecoder.decode(parts[i + 1], UTF8));
+				}
+				return new Event(URLDecoder.decode(parts[0], UTF8), dict);
+			} catch (RuntimeException e) {
+				throw new IOException("Unreadable redo log line " + position
+						+ " " + line + " cause: " + e.getMessage());
+			}
+		}
+
+		public boolean isFinished() {
+			return finished;
+		}
+
+		public int getPosition() {
+			return position;
+		}
+
+		public void skip(int records) throws IOException {
+			for (int i = 0; i < records; i++) {
+				eventReader.readLine();
+				position++;
+			}
+		}
+
+		public void close() throws IOException {
+			eventReader.close();
+		}
+	}
+
+}
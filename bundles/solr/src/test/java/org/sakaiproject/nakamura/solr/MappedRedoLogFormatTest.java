@@ -0,0 +1,153 @@
+/**
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.nakamura.solr;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.osgi.service.event.Event;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.Dictionary;
+import java.util.Hashtable;
+
+public class MappedRedoLogFormatTest {
+
+	private File logDirectory;
+	private MappedRedoLogFormat format;
+
+	@Before
+	public void before() {
+		logDirectory = new File("target/mappedRedoLogTest/indexq-"
+				+ System.currentTimeMillis());
+		logDirectory.mkdirs();
+		format = new MappedRedoLogFormat(4096, 1000);
+	}
+
+	private Event event(int i) {
+		Dictionary<String, Object> props = new Hashtable<String, Object>();
+		props.put("path", "/a/path/" + i);
+		props.put("field", "value \u00e9," + i);
+		return new Event("org/sakaiproject/nakamura/lite/content/UPDATED", props);
+	}
+
+	@Test
+	public void testWriteRead() throws IOException {
+		File f = new File(logDirectory, "1");
+		RedoLogWriter writer = format.openWriter(f);
+		assertTrue(format.canRead(f));
+
+		RedoLogReader reader = format.openReader(f);
+		assertNull(reader.read());
+		assertFalse(reader.isFinished());
+
+		// enough events to make the segment grow.
+		for (int i = 0; i < 200; i++) {
+			writer.append(event(i));
+		}
+		for (int i = 0; i < 100; i++) {
+			Event e = reader.read();
+			assertEquals("/a/path/" + i, e.getProperty("path"));
+			assertEquals("value \u00e9," + i, e.getProperty("field"));
+		}
+		writer.close();
+		for (int i = 100; i < 200; i++) {
+			assertEquals("/a/path/" + i, reader.read().getProperty("path"));
+		}
+		assertNull(reader.read());
+		assertTrue(reader.isFinished());
+		assertEquals(201, reader.getPosition());
+		reader.close();
+
+		reader = format.openReader(f);
+		reader.skip(150);
+		assertEquals(150, reader.getPosition());
+		assertEquals("/a/path/150", reader.read().getProperty("path"));
+		reader.close();
+	}
+
+	@Test
+	public void testCorruptRecordSkipped() throws IOException {
+		File f = new File(logDirectory, "2");
+		RedoLogWriter writer = format.openWriter(f);
+		writer.append(event(0));
+		writer.append(event(1));
+		writer.close();
+
+		// flip a byte in the payload of the first record.
+		RandomAccessFile raf = new RandomAccessFile(f, "rw");
+		raf.seek(8 + 8 + 4);
+		int b = raf.read();
+		raf.seek(8 + 8 + 4);
+		raf.write(b ^ 0xff);
+		raf.close();
+
+		RedoLogReader reader = format.openReader(f);
+		try {
+			for (int i = 0; i < 5; i++) {
+				assertNull(reader.read());
+			}
+			fail("Corrupt record should have been reported");
+		} catch (IOException e) {
+			// expected
+		}
+		assertEquals(1, reader.getPosition());
+		assertEquals("/a/path/1", reader.read().getProperty("path"));
+		reader.close();
+	}
+
+	@Test
+	public void testUnpublishedRecordNotRead() throws IOException {
+		File f = new File(logDirectory, "4");
+		RedoLogWriter writer = format.openWriter(f);
+		writer.append(event(0));
+		writer.sync();
+
+		// a record that is still being written, its length is visible but
+		// the writer has not published it.
+		RandomAccessFile raf = new RandomAccessFile(f, "rw");
+		raf.seek(writer.length());
+		raf.writeInt(16);
+		raf.close();
+
+		RedoLogReader reader = format.openReader(f);
+		assertEquals("/a/path/0", reader.read().getProperty("path"));
+		for (int i = 0; i < 5; i++) {
+			assertNull(reader.read());
+		}
+		assertFalse(reader.isFinished());
+		reader.close();
+		writer.close();
+	}
+
+	@Test
+	public void testTextFilesAreNotMapped() throws IOException {
+		File f = new File(logDirectory, "3");
+		RedoLogWriter writer = new TextRedoLogFormat().openWriter(f);
+		writer.append(event(0));
+		writer.close();
+		assertFalse(format.canRead(f));
+	}
+}
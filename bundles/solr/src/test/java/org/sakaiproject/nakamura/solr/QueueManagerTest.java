@@ -158,8 +158,8 @@ public class QueueManagerTest {
 
     /*
       implements a callback object for handling calls to add(Collection<SolrInputDoc>)
-      it will count the number of times add(...) has been called and will throw a ConnectException once
-        during the batch
+      it will count the number of times add(...) has been called and will throw a ConnectException on
+        the first batched add
      */
     final CallCountingAnswer addDocsAnswer = new CallCountingAnswer() {
       int count = 0;
@@ -173,7 +173,7 @@ public class QueueManagerTest {
       public Object answer(InvocationOnMock invocationOnMock) throws Throwable {
         ++count;
 
-        if (count == 6) {
+        if (count == 1) {
           throw new SolrServerException(new ConnectException("try again"));
         }
 
@@ -187,14 +187,14 @@ public class QueueManagerTest {
     // load up 10 events
     fireEvents(10);
 
-    // create a thread that will stop QueueManager after SolrServer.add(...) has been called 10 times
+    // create a thread that will stop QueueManager after the failed batch has been retried
     (new Thread (new Runnable () {
 
       @Override
       public void run() {
         int internalCount = 0;
 
-        while (addDocsAnswer.getCallCount() < 11 && internalCount < 20) {
+        while (addDocsAnswer.getCallCount() < 2 && internalCount < 20) {
           try {
             Thread.sleep(500);
           } catch (InterruptedException e) {
@@ -228,4 +228,63 @@ public class QueueManagerTest {
     int size = response.getResults().size();
     assertEquals (10, size);
   }
+
+  @Test
+  public void testParallelIndexersIndexEveryPathInOneAdd() throws Exception {
+    qMgr = new QueueManager(qMgrDrvr, "target/queueManagerTest/parallelIndexQueues", "parallelQueue", true, 25, 5000, 4,
+        new MappedRedoLogFormat(64 * 1024, 1000));
+    final QueueManager qm = qMgr;
+
+    final CallCountingAnswer addDocsAnswer = new CallCountingAnswer() {
+      int count = 0;
+
+      @Override
+      public int getCallCount() {
+        return count;
+      }
+
+      @Override
+      public Object answer(InvocationOnMock invocationOnMock) throws Throwable {
+        ++count;
+        return invocationOnMock.callRealMethod();
+      }
+    };
+    doAnswer(addDocsAnswer).when(serverSpy).add(any(Collection.class));
+
+    fireEvents(25);
+
+    (new Thread (new Runnable () {
+
+      @Override
+      public void run() {
+        int internalCount = 0;
+
+        while (addDocsAnswer.getCallCount() < 1 && internalCount < 20) {
+          try {
+            Thread.sleep(500);
+          } catch (InterruptedException e) {
+          }
+          internalCount++;
+        }
+        try {
+          qm.stop();
+        } catch (IOException e) {
+
+        }
+      }
+    })).start();
+
+    qm.start();
+    qm.getQueueDispatcher().join();
+
+    ModifiableSolrParams params = new ModifiableSolrParams();
+    params.set("q","*:*");
+    params.set("rows", "100");
+
+    QueryResponse response = server.query(params);
+
+    // all 25 paths were built by the worker pool and sent in a single add
+    assertEquals (1, addDocsAnswer.getCallCount());
+    assertTrue (response.getResults().size() >= 25);
+  }
 }
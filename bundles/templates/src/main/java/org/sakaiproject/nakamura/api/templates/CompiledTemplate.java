@@ -0,0 +1,81 @@
+/**
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.nakamura.api.templates;
+
+import java.util.List;
+
+/**
+ * A template that has been parsed by a {@link TemplateService}. The parsed form is
+ * opaque and only meaningful to the service that compiled it.
+ */
+public final class CompiledTemplate {
+
+  private final String source;
+  private final List<String> terms;
+  private final boolean conditional;
+  private final Object compiled;
+
+  /**
+   * @param source the template text.
+   * @param terms the keys of the ${param} variable markers in the template, in order.
+   * @param conditional true if the template contains directives or escapes, so the
+   *          markers in the template are not necessarily the ones rendered.
+   * @param compiled the parsed form of the template.
+   */
+  public CompiledTemplate(String source, List<String> terms, boolean conditional,
+      Object compiled) {
+    this.source = source;
+    this.terms = terms;
+    this.conditional = conditional;
+    this.compiled = compiled;
+  }
+
+  /**
+   * @return the template text.
+   */
+  public String getSource() {
+    return source;
+  }
+
+  /**
+   * @return the keys of the ${param} variable markers in the template.
+   */
+  public List<String> getTerms() {
+    return terms;
+  }
+
+  /**
+   * @return true if the template contains directives or escapes that decide what is rendered, in
+   *         which case the rendered output has to be checked for unresolved markers.
+   */
+  public boolean isConditional() {
+    return conditional;
+  }
+
+  /**
+   * @return the parsed form of the template.
+   */
+  public Object getCompiled() {
+    return compiled;
+  }
+
+  @Override
+  public String toString() {
+    return source;
+  }
+}
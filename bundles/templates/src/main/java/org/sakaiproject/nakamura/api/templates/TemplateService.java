@@ -35,6 +35,24 @@ public interface TemplateService {
 
   String evaluateTemplate(Map<String, ? extends Object> parameters, Reader templateReader);
 
+  /**
+   * Parse a template once so that it can be evaluated many times without being parsed
+   * again.
+   *
+   * @param template Template to compile
+   * @return an immutable, thread safe compiled form of the template.
+   */
+  CompiledTemplate compileTemplate(String template);
+
+  /**
+   * Evaluate a template that was compiled with {@link #compileTemplate(String)}.
+   *
+   * @param parameters Parameters to evaluate the template with
+   * @param template The compiled template
+   * @return the evaluated template.
+   */
+  String evaluateTemplate(Map<String, ? extends Object> parameters, CompiledTemplate template);
+
   /**
    * Checks for unresolved variable markers in a processed template. Looks for ${param}
    * but does not look for $param.
@@ -55,4 +73,15 @@ public interface TemplateService {
    */
   Collection<String> missingTerms(Map<String, ? extends Object> parameters,
       String template);
+
+  /**
+   * Checks a compiled template for variable markers that the parameters can not provide
+   * a value for, without scanning the template again.
+   *
+   * @param parameters Parameters to verify with
+   * @param template Compiled template to check
+   * @return Collection of keys that were not resolvable.
+   */
+  Collection<String> missingTerms(Map<String, ? extends Object> parameters,
+      CompiledTemplate template);
 }
@@ -23,9 +23,14 @@ import org.apache.felix.scr.annotations.Component;
 import org.apache.felix.scr.annotations.Reference;
 import org.apache.felix.scr.annotations.Service;
 import org.apache.sling.api.request.RequestParameter;
+import org.apache.velocity.Template;
 import org.apache.velocity.VelocityContext;
-import org.apache.velocity.app.VelocityEngine;
+import org.apache.velocity.exception.ParseErrorException;
+import org.apache.velocity.runtime.RuntimeConstants;
+import org.apache.velocity.runtime.RuntimeInstance;
+import org.apache.velocity.runtime.parser.ParseException;
 import org.osgi.service.component.ComponentContext;
+import org.sakaiproject.nakamura.api.templates.CompiledTemplate;
 import org.sakaiproject.nakamura.api.templates.TemplateNodeSource;
 import org.sakaiproject.nakamura.api.templates.TemplateService;
 import org.slf4j.Logger;
@@ -39,6 +44,7 @@ import java.util.ArrayList;
 import java.util.Collection;
 import java.util.Collections;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
 import java.util.Map.Entry;
 
@@ -52,7 +58,9 @@ public class VelocityTemplateService implements TemplateService, TemplateNodeSou
   private static final Logger LOGGER = LoggerFactory
       .getLogger(VelocityTemplateService.class);
 
-  private VelocityEngine velocityEngine;
+  private static final String LOG_TAG = "templateprocessing";
+
+  private RuntimeInstance runtimeInstance;
 
   @Reference
   protected Repository repository;
@@ -67,14 +75,39 @@ public class VelocityTemplateService implements TemplateService, TemplateNodeSou
     // combine template with parameter map
     StringWriter templateWriter = new StringWriter();
     try {
-      velocityEngine.evaluate(context, templateWriter, "templateprocessing",
-          templateReader);
+      runtimeInstance.evaluate(context, templateWriter, LOG_TAG, templateReader);
     } catch (IOException e) {
       LOGGER.error(e.getMessage(), e);
     }
     return templateWriter.toString();
   }
 
+  public CompiledTemplate compileTemplate(String template) {
+    Template compiled = new Template();
+    compiled.setName(LOG_TAG);
+    compiled.setRuntimeServices(runtimeInstance);
+    try {
+      compiled.setData(runtimeInstance.parse(new StringReader(template), LOG_TAG));
+    } catch (ParseException e) {
+      throw new ParseErrorException(e);
+    }
+    compiled.initDocument();
+    List<String> terms = Collections.unmodifiableList(new ArrayList<String>(
+        missingTerms(template)));
+    // directives and escapes mean the rendered output is not just the template with
+    // its markers replaced
+    boolean conditional = template.indexOf('#') > -1 || template.indexOf('\\') > -1;
+    return new CompiledTemplate(template, terms, conditional, compiled);
+  }
+
+  public String evaluateTemplate(Map<String, ? extends Object> parameters,
+      CompiledTemplate template) {
+    VelocityContext context = new VelocityContext(sanitize(parameters));
+    StringWriter templateWriter = new StringWriter();
+    ((Template) template.getCompiled()).merge(context, templateWriter);
+    return templateWriter.toString();
+  }
+
   private Map<String,String> sanitize(Map<String, ? extends Object> parameters) {
     Map<String,String> rv = new HashMap<String,String>();
     for (Entry<String, ? extends Object> param : parameters.entrySet()) {
@@ -138,18 +171,29 @@ public class VelocityTemplateService implements TemplateService, TemplateNodeSou
     return missingTerms;
   }
 
+  public Collection<String> missingTerms(Map<String, ? extends Object> parameters,
+      CompiledTemplate template) {
+    Collection<String> missingTerms = new ArrayList<String>();
+    for (String key : template.getTerms()) {
+      if (parameters.get(key) == null) {
+        missingTerms.add(key);
+      }
+    }
+    return missingTerms;
+  }
+
   protected void activate(ComponentContext ctx) throws Exception {
-    velocityEngine = new VelocityEngine();
-    velocityEngine.setProperty(VelocityEngine.RUNTIME_LOG_LOGSYSTEM, new VelocityLogger(
+    runtimeInstance = new RuntimeInstance();
+    runtimeInstance.setProperty(RuntimeConstants.RUNTIME_LOG_LOGSYSTEM, new VelocityLogger(
         this.getClass()));
 
-    velocityEngine.setProperty(VelocityEngine.RESOURCE_LOADER, "jcr");
-    velocityEngine.setProperty("jcr.resource.loader.class",
+    runtimeInstance.setProperty(RuntimeConstants.RESOURCE_LOADER, "jcr");
+    runtimeInstance.setProperty("jcr.resource.loader.class",
         JcrResourceLoader.class.getName());
     ExtendedProperties configuration = new ExtendedProperties();
     configuration.addProperty("jcr.resource.loader.resourceSource", this);
-    velocityEngine.setExtendedProperties(configuration);
-    velocityEngine.init();
+    runtimeInstance.setConfiguration(configuration);
+    runtimeInstance.init();
   }
 
   public Node getNode() {
@@ -19,6 +19,11 @@ package org.sakaiproject.nakamura.auth.trusted;
 
 import org.sakaiproject.nakamura.api.auth.trusted.ExpiringSecretKeyData;
 
+import java.security.InvalidKeyException;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+
+import javax.crypto.Mac;
 import javax.crypto.SecretKey;
 import javax.crypto.spec.SecretKeySpec;
 
@@ -30,6 +35,10 @@ public class ExpiringSecretKey {
   private long expires;
   private SecretKey secretKey;
   private ExpiringSecretKeyData secretKeyData;
+  /**
+   * Macs initialised with this key, one per thread since a Mac is not thread safe.
+   */
+  private final ThreadLocal<Mac> macs = new ThreadLocal<Mac>();
 
   /**
    * @param b a byte array defining the secret key
@@ -76,4 +85,33 @@ public class ExpiringSecretKey {
   public String getServerId() {
     return secretKeyData.getServerId();
   }
+
+  /**
+   * @return a Mac initialised with this key, for use by the current thread only. Saves
+   *         looking up and initialising a Mac on every use.
+   * @throws NoSuchAlgorithmException
+   * @throws InvalidKeyException
+   */
+  public Mac getMac() throws NoSuchAlgorithmException, InvalidKeyException {
+    Mac mac = macs.get();
+    if (mac == null) {
+      mac = Mac.getInstance(secretKey.getAlgorithm());
+      mac.init(secretKey);
+      macs.set(mac);
+    } else {
+      mac.reset();
+    }
+    return mac;
+  }
+
+  /**
+   * @param expiringSecretKeyData
+   * @return true if this key was built from the same key data.
+   */
+  public boolean isFor(ExpiringSecretKeyData expiringSecretKeyData) {
+    return secretKeyData == expiringSecretKeyData
+        || (expires == expiringSecretKeyData.getExpires()
+            && getServerId().equals(expiringSecretKeyData.getServerId())
+            && Arrays.equals(secretKey.getEncoded(), expiringSecretKeyData.getEncoded()));
+  }
 }
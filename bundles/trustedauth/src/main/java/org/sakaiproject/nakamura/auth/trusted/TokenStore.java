@@ -39,6 +39,10 @@ import java.io.UnsupportedEncodingException;
 import java.security.InvalidKeyException;
 import java.security.NoSuchAlgorithmException;
 import java.security.SecureRandom;
+import java.util.Iterator;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicReference;
 
 import javax.crypto.Mac;
 import javax.crypto.SecretKey;
@@ -47,6 +51,10 @@ import javax.crypto.spec.SecretKeySpec;
 /**
  * A Token Storage class that maintains a local ring buffer of keys for encoding and uses
  * a cluster replicated cache for keys to be shared with other servers in the cluster.
+ * <p>
+ * The ring buffer is immutable and replaced atomically when a key is rotated, so that
+ * finding the active key needs no lock. Cookies that have been verified are remembered
+ * for a short time so that most requests do not recompute the HMAC.
  */
 public class TokenStore {
 
@@ -125,13 +133,12 @@ public class TokenStore {
         SecureCookieException {
       String cookiePayload = String.valueOf(secretKeyId) + String.valueOf(expires) + "@"
           + encodeField(userId) + "@" + tokenType+ "@" + serverId;
-      Mac m = Mac.getInstance(HMAC_SHA1);
       ExpiringSecretKey expiringSecretKey = TokenStore.this.getSecretKey(serverId,
           secretKeyId);
       if (expiringSecretKey == null) {
         throw new SecureCookieException("Key serverId=["+serverId+"]: KeyId=["+secretKeyId+"] not found ", false);
       }
-      m.init(TokenStore.this.getSecretKey(serverId, secretKeyId).getSecretKey());
+      Mac m = expiringSecretKey.getMac();
       m.update(cookiePayload.getBytes(UTF_8));
       String cookieValue = encodeField(m.doFinal());
       return cookieValue + "@" + cookiePayload;
@@ -143,6 +150,10 @@ public class TokenStore {
      * @throws SecureCookieException
      */
     public String[] decode(String value) throws SecureCookieException {
+      VerifiedCookie verifiedCookie = verifiedCookies.get(value);
+      if (verifiedCookie != null && System.currentTimeMillis() < verifiedCookie.validUntil) {
+        return verifiedCookie.token.clone();
+      }
       String[] parts = StringUtils.split(value, "@");
       if (parts != null && parts.length == 5) {
         this.secretKeyId = Integer.parseInt(parts[1].substring(0, 1));
@@ -165,8 +176,10 @@ public class TokenStore {
               LOG.info("Decoding with server:{} keyno:{} secret:{} user:{} cookeiTime:{} cookie:{}",new Object[]{serverId, secretKeyId, encodeField(secretKey.getEncoded()), userId, cookieTime, value} );
             }
             String hmac = encode(cookieTime, userId, this.tokenType);
-            if (value.equals(hmac)) {
-              return new String[]{userId, tokenType};
+            if (constantTimeEquals(value, hmac)) {
+              String[] token = new String[]{userId, tokenType};
+              verified(value, token, cookieTime);
+              return token.clone();
             }
           } catch (ArrayIndexOutOfBoundsException e) {
             LOG.error(e.getMessage(), e);
@@ -193,6 +206,35 @@ public class TokenStore {
 
   }
 
+  /**
+   * A ring of secret keys and the position of the active key. Never modified once
+   * published, a rotation publishes a new ring.
+   */
+  private static final class KeyRing {
+    private final ExpiringSecretKey[] keys;
+    private final int activeKeyId;
+    private final long nextUpdate;
+
+    private KeyRing(ExpiringSecretKey[] keys, int activeKeyId, long nextUpdate) {
+      this.keys = keys;
+      this.activeKeyId = activeKeyId;
+      this.nextUpdate = nextUpdate;
+    }
+  }
+
+  /**
+   * A cookie value whose HMAC has been checked.
+   */
+  private static final class VerifiedCookie {
+    private final String[] token;
+    private final long validUntil;
+
+    private VerifiedCookie(String[] token, long validUntil) {
+      this.token = token;
+      this.validUntil = validUntil;
+    }
+  }
+
   public static final Logger LOG = LoggerFactory.getLogger(TokenStore.class);
 
   /**
@@ -210,23 +252,40 @@ public class TokenStore {
   private static final String UTF_8 = "UTF-8";
 
   private static final String DEFAULT_TOKEN_FILE = "sling/cookie-tokens.bin";
+  /**
+   * The number of keys in the ring.
+   */
+  private static final int KEY_RING_SIZE = 5;
+  /**
+   * The most cookies remembered as verified.
+   */
+  private static final int MAX_VERIFIED_COOKIES = 10000;
+  /**
+   * How long a cookie is remembered as verified (in ms), bounding how long a cookie
+   * signed with a key that has since been removed is still accepted.
+   */
+  private static final long VERIFIED_COOKIE_TTL = 60000L;
   /**
    * The ttl of the cookie before it becomes invalid (in ms)
    */
   private long ttl = 20L * 60000L; // 20 minutes
 
   /**
-   * The time when a new token should be created.
+   * A ring of tokens used to encypt, null until loaded.
    */
-  private long nextUpdate = System.currentTimeMillis();
+  private final AtomicReference<KeyRing> keyRing = new AtomicReference<KeyRing>();
   /**
-   * The location of the current token.
+   * Held while the ring is loaded or rotated, never while it is read.
    */
-  private int secretKeyId = 0;
+  private final Object rotationLock = new Object();
   /**
-   * A ring of tokens used to encypt.
+   * Keys of other servers, by cache key, so that their Macs are reused.
    */
-  private ExpiringSecretKey[] secretKeyRingBuffer;
+  private final ConcurrentMap<String, ExpiringSecretKey> remoteKeys = new ConcurrentHashMap<String, ExpiringSecretKey>();
+  /**
+   * Cookie values that have been verified.
+   */
+  private final ConcurrentMap<String, VerifiedCookie> verifiedCookies = new ConcurrentHashMap<String, VerifiedCookie>();
   /**
    * A secure random used for generating new tokens.
    */
@@ -309,44 +368,65 @@ public class TokenStore {
    *
    * @return the current token.
    */
-  synchronized SecureCookie getActiveToken() {
-    if (secretKeyRingBuffer == null) {
-      loadLocalSecretKeys();
-    }
-    if (System.currentTimeMillis() > nextUpdate
-        || hasExpired(secretKeyRingBuffer[secretKeyId]) ) {
-      // cycle so that during a typical ttl the tokens get completely refreshed.
-      nextUpdate = System.currentTimeMillis() + ttl / 2;
-      byte[] b = new byte[20];
-      random.nextBytes(b);
-
-      // the key will last 2x ttl so far longer than the cookie. There are 5 tokens, to
-      // the key expires before
-      // being replaced, this is important in a clustered environment.
-      ExpiringSecretKey expiringSecretKey = new ExpiringSecretKey(b, HMAC_SHA1, System
-          .currentTimeMillis()
-          + (ttl * 2), serverId);
-      int nextToken = secretKeyId + 1;
-      if (nextToken == secretKeyRingBuffer.length) {
-        nextToken = 0;
-      }
-      secretKeyRingBuffer[nextToken] = expiringSecretKey;
-      LOG.debug("Added SecretKey {} at {} ", encodeField(expiringSecretKey.getSecretKey().getEncoded()), nextToken);
-      if ( debugCookies ) {
-        dumpSecretKeyRingBuffer(secretKeyRingBuffer);
+  SecureCookie getActiveToken() {
+    KeyRing ring = keyRing.get();
+    if (ring == null || needsRotation(ring)) {
+      synchronized (rotationLock) {
+        ring = keyRing.get();
+        if (ring == null) {
+          ring = loadLocalSecretKeys();
+          keyRing.set(ring);
+        }
+        if (needsRotation(ring)) {
+          ring = rotate(ring);
+          keyRing.set(ring);
+          saveLocalSecretKeys(ring);
+        }
       }
-      getServerKeyCache().put(getCacheKey(serverId, nextToken),
-          expiringSecretKey.getSecretKeyData());
-      secretKeyId = nextToken;
-      saveLocalSecretKeys();
     }
-    return new SecureCookie(serverId, secretKeyId);
+    return new SecureCookie(serverId, ring.activeKeyId);
   }
 
-  private void dumpSecretKeyRingBuffer(ExpiringSecretKey[] secretKeyRingBuffer) {
+  private boolean needsRotation(KeyRing ring) {
+    return System.currentTimeMillis() > ring.nextUpdate
+        || hasExpired(ring.keys[ring.activeKeyId]);
+  }
+
+  /**
+   * @return a new ring with a new active key in the next slot.
+   */
+  private KeyRing rotate(KeyRing ring) {
+    // cycle so that during a typical ttl the tokens get completely refreshed.
+    long nextUpdate = System.currentTimeMillis() + ttl / 2;
+    byte[] b = new byte[20];
+    random.nextBytes(b);
+
+    // the key will last 2x ttl so far longer than the cookie. There are 5 tokens, to
+    // the key expires before
+    // being replaced, this is important in a clustered environment.
+    ExpiringSecretKey expiringSecretKey = new ExpiringSecretKey(b, HMAC_SHA1, System
+        .currentTimeMillis()
+        + (ttl * 2), serverId);
+    int nextToken = ring.activeKeyId + 1;
+    if (nextToken == ring.keys.length) {
+      nextToken = 0;
+    }
+    ExpiringSecretKey[] keys = ring.keys.clone();
+    keys[nextToken] = expiringSecretKey;
+    KeyRing newRing = new KeyRing(keys, nextToken, nextUpdate);
+    LOG.debug("Added SecretKey {} at {} ", encodeField(expiringSecretKey.getSecretKey().getEncoded()), nextToken);
+    if ( debugCookies ) {
+      dumpSecretKeyRingBuffer(newRing);
+    }
+    getServerKeyCache().put(getCacheKey(serverId, nextToken),
+        expiringSecretKey.getSecretKeyData());
+    return newRing;
+  }
+
+  private void dumpSecretKeyRingBuffer(KeyRing ring) {
     StringBuilder sb  = new StringBuilder();
     int i = 0;
-    for ( ExpiringSecretKey e : secretKeyRingBuffer ) {
+    for ( ExpiringSecretKey e : ring.keys ) {
       if ( e == null ) {
         sb.append(i).append(", Expires in:").append(-1).append(", Key:").append("empty").append("\n");        
       } else {
@@ -355,7 +435,7 @@ public class TokenStore {
         sb.append(", Server:").append(e.getServerId()).append("\n");
       }
     }
-    LOG.info("Secret Key Ring Buffer, Active ID is {}\n{}",secretKeyId,sb.toString());
+    LOG.info("Secret Key Ring Buffer, Active ID is {}\n{}",ring.activeKeyId,sb.toString());
   }
 
   /**
@@ -379,7 +459,7 @@ public class TokenStore {
    * Save all the secureKeys to file
    */
   @edu.umd.cs.findbugs.annotations.SuppressWarnings(value="RV_RETURN_VALUE_IGNORED_BAD_PRACTICE",justification="Could be injected from annother bundle")
-  private void saveLocalSecretKeys() {
+  private void saveLocalSecretKeys(KeyRing ring) {
     FileOutputStream fout = null;
     DataOutputStream keyOutputStream = null;
     try {
@@ -390,16 +470,16 @@ public class TokenStore {
       }
       fout = new FileOutputStream(tmpTokenFile);
       keyOutputStream = new DataOutputStream(fout);
-      keyOutputStream.writeInt(secretKeyId);
-      keyOutputStream.writeLong(nextUpdate);
-      for (int i = 0; i < secretKeyRingBuffer.length; i++) {
-        if (secretKeyRingBuffer[i] == null) {
+      keyOutputStream.writeInt(ring.activeKeyId);
+      keyOutputStream.writeLong(ring.nextUpdate);
+      for (int i = 0; i < ring.keys.length; i++) {
+        if (ring.keys[i] == null) {
           keyOutputStream.writeInt(0);
         } else {
           keyOutputStream.writeInt(1);
-          keyOutputStream.writeLong(secretKeyRingBuffer[i].getExpires());
-          keyOutputStream.writeUTF(secretKeyRingBuffer[i].getServerId());
-          byte[] b = secretKeyRingBuffer[i].getSecretKey().getEncoded();
+          keyOutputStream.writeLong(ring.keys[i].getExpires());
+          keyOutputStream.writeUTF(ring.keys[i].getServerId());
+          byte[] b = ring.keys[i].getSecretKey().getEncoded();
           keyOutputStream.writeInt(b.length);
           keyOutputStream.write(b);
         }
@@ -424,9 +504,10 @@ public class TokenStore {
   }
 
   /**
-   *
+   * @return the ring saved in the token file, or an empty ring if there is none.
    */
-  private void loadLocalSecretKeys() {
+  private KeyRing loadLocalSecretKeys() {
+    KeyRing ring = null;
     FileInputStream fin = null;
     DataInputStream keyInputStream = null;
     try {
@@ -434,7 +515,7 @@ public class TokenStore {
       keyInputStream = new DataInputStream(fin);
       int newCurrentToken = keyInputStream.readInt();
       long newNextUpdate = keyInputStream.readLong();
-      ExpiringSecretKey[] newKeys = new ExpiringSecretKey[5];
+      ExpiringSecretKey[] newKeys = new ExpiringSecretKey[KEY_RING_SIZE];
       for (int i = 0; i < newKeys.length; i++) {
         int isNull = keyInputStream.readInt();
         if (isNull == 1) {
@@ -454,10 +535,8 @@ public class TokenStore {
         }
       }
       keyInputStream.close();
-      nextUpdate = newNextUpdate;
-      secretKeyId = newCurrentToken;
-      secretKeyRingBuffer = newKeys;
-      
+      ring = new KeyRing(newKeys, newCurrentToken, newNextUpdate);
+
     } catch (IOException e) {
       LOG.error("Failed to load cookie keys " + e.getMessage());
     } finally {
@@ -470,14 +549,13 @@ public class TokenStore {
       } catch (Exception e) {
       }
     }
-    if (secretKeyRingBuffer == null) {
-      secretKeyRingBuffer = new ExpiringSecretKey[5];
-      nextUpdate = System.currentTimeMillis();
-      secretKeyId = 0;
+    if (ring == null) {
+      ring = new KeyRing(new ExpiringSecretKey[KEY_RING_SIZE], 0, System.currentTimeMillis());
     }
     if ( debugCookies ) {
-      dumpSecretKeyRingBuffer(secretKeyRingBuffer);
+      dumpSecretKeyRingBuffer(ring);
     }
+    return ring;
   }
 
   /**
@@ -502,10 +580,15 @@ public class TokenStore {
    */
   private ExpiringSecretKey getSecretKey(String serverId, int keyNumber) {
     LOG.debug("Looking key {} in {} ", serverId, keyNumber);
-    if ( secretKeyRingBuffer[keyNumber] != null ) {
-      if ( serverId.equals(secretKeyRingBuffer[keyNumber].getServerId())) {
-        LOG.debug("Found Key {} will expire at {}", keyNumber, secretKeyRingBuffer[keyNumber].getExpires());
-        return secretKeyRingBuffer[keyNumber];
+    KeyRing ring = keyRing.get();
+    if ( ring == null || keyNumber < 0 || keyNumber >= ring.keys.length ) {
+      return null;
+    }
+    ExpiringSecretKey localKey = ring.keys[keyNumber];
+    if ( localKey != null ) {
+      if ( serverId.equals(localKey.getServerId())) {
+        LOG.debug("Found Key {} will expire at {}", keyNumber, localKey.getExpires());
+        return localKey;
       }
     }
     String cacheKey = getCacheKey(serverId, keyNumber);
@@ -513,16 +596,22 @@ public class TokenStore {
 
     LOG.debug("Looking for off server key {} in {} ", cacheKey, keyCache);
     // load tokens for the server up
-    if (keyCache.containsKey(cacheKey)) {
-      ExpiringSecretKeyData cachedServerKeyData = keyCache.get(cacheKey);
+    ExpiringSecretKeyData cachedServerKeyData = keyCache.get(cacheKey);
+    if (cachedServerKeyData != null) {
       LOG.debug("Got Cache Key {} as  {} ", cacheKey, cachedServerKeyData);
       if ( System.currentTimeMillis() < cachedServerKeyData.getExpires()) {
           LOG.debug("Got Key is valid using {} as  {} ", cacheKey, cachedServerKeyData);
-         return new ExpiringSecretKey(cachedServerKeyData);
+         ExpiringSecretKey remoteKey = remoteKeys.get(cacheKey);
+         if ( remoteKey == null || !remoteKey.isFor(cachedServerKeyData) ) {
+           remoteKey = new ExpiringSecretKey(cachedServerKeyData);
+           remoteKeys.put(cacheKey, remoteKey);
+         }
+         return remoteKey;
       } else if ( System.currentTimeMillis() < cachedServerKeyData.getExpires() + 600000L  ){
           LOG.debug("Got Key is Not valid {}, ", cacheKey, cachedServerKeyData);
       } else {
 	  keyCache.remove(cacheKey);
+	  remoteKeys.remove(cacheKey);
           LOG.debug("Got Key is Not valid and old removing {}, ", cacheKey, cachedServerKeyData);
        }
     } else {
@@ -538,6 +627,40 @@ public class TokenStore {
   public SecureCookie getSecureCookie() {
     return new SecureCookie();
   }
+
+  /**
+   * Remember a verified cookie until it expires or for the verified cookie ttl, whichever
+   * is sooner. When full, expired entries are dropped, and if that is not enough all are.
+   */
+  private void verified(String value, String[] token, long cookieTime) {
+    long now = System.currentTimeMillis();
+    if (verifiedCookies.size() >= MAX_VERIFIED_COOKIES) {
+      for (Iterator<VerifiedCookie> i = verifiedCookies.values().iterator(); i.hasNext();) {
+        if (now >= i.next().validUntil) {
+          i.remove();
+        }
+      }
+      if (verifiedCookies.size() >= MAX_VERIFIED_COOKIES) {
+        verifiedCookies.clear();
+      }
+    }
+    verifiedCookies.put(value, new VerifiedCookie(token, Math.min(cookieTime, now + VERIFIED_COOKIE_TTL)));
+  }
+
+  /**
+   * Compare two strings in a time that depends only on their length, so that the time
+   * taken does not reveal how much of a forged HMAC was correct.
+   */
+  private boolean constantTimeEquals(String a, String b) {
+    if (a.length() != b.length()) {
+      return false;
+    }
+    int diff = 0;
+    for (int i = 0; i < a.length(); i++) {
+      diff |= a.charAt(i) ^ b.charAt(i);
+    }
+    return diff == 0;
+  }
   
   
   /**
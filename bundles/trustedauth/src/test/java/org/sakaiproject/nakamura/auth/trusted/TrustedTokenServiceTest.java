@@ -43,6 +43,7 @@ import java.security.InvalidKeyException;
 import java.security.NoSuchAlgorithmException;
 import java.security.Principal;
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.Hashtable;
 import java.util.List;
 
@@ -250,6 +251,55 @@ public class TrustedTokenServiceTest {
     verify();
   }
 
+  @Test
+  public void testCookieEncodingTampered() {
+    ComponentContext context = configureForCookie();
+    replay();
+    trustedTokenService.activate(context);
+    String cookie = trustedTokenService.encodeCookie("ieb", TrustedTokenTypes.AUTHENTICATED_TRUST);
+    // once verified, a cookie is remembered, a changed one must still be checked.
+    Assert.assertNotNull(trustedTokenService.decodeCookie(cookie));
+    String[] parts = StringUtils.split(cookie, "@");
+    String forged = parts[0] + "@" + parts[1] + "@"
+        + StringUtils.split(trustedTokenService.encodeCookie("admin", TrustedTokenTypes.AUTHENTICATED_TRUST), "@")[2]
+        + "@" + parts[3] + "@" + parts[4];
+    Assert.assertNull(trustedTokenService.decodeCookie(forged));
+    Assert.assertArrayEquals(new String[]{"ieb", TrustedTokenTypes.AUTHENTICATED_TRUST}, trustedTokenService.decodeCookie(cookie));
+    verify();
+  }
+
+  @Test
+  public void testCookieEncodingConcurrent() throws InterruptedException {
+    ComponentContext context = configureForCookieFast();
+    replay();
+    trustedTokenService.activate(context);
+    final List<String> failures = Collections.synchronizedList(new ArrayList<String>());
+    Thread[] threads = new Thread[4];
+    for (int t = 0; t < threads.length; t++) {
+      final String user = "user" + t;
+      threads[t] = new Thread() {
+        @Override
+        public void run() {
+          // keys rotate every 50ms while the threads encode and decode.
+          long end = System.currentTimeMillis() + 300L;
+          while (System.currentTimeMillis() < end) {
+            String cookie = trustedTokenService.encodeCookie(user, TrustedTokenTypes.AUTHENTICATED_TRUST);
+            String[] token = trustedTokenService.decodeCookie(cookie);
+            if (token == null || !user.equals(token[0])) {
+              failures.add(cookie);
+            }
+          }
+        }
+      };
+      threads[t].start();
+    }
+    for (Thread thread : threads) {
+      thread.join();
+    }
+    Assert.assertEquals(failures.toString(), 0, failures.size());
+    verify();
+  }
+
   @Test
   public void testCookieRefresh() throws InterruptedException {
     ComponentContext context = configureForCookieFast();
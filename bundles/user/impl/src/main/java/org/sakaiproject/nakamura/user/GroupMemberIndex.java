@@ -0,0 +1,327 @@
+/**
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.nakamura.user;
+
+import com.google.common.collect.Maps;
+import com.google.common.collect.Sets;
+
+import org.apache.felix.scr.annotations.Activate;
+import org.apache.felix.scr.annotations.Component;
+import org.apache.felix.scr.annotations.Modified;
+import org.apache.felix.scr.annotations.Properties;
+import org.apache.felix.scr.annotations.Property;
+import org.apache.felix.scr.annotations.Reference;
+import org.apache.felix.scr.annotations.Service;
+import org.apache.sling.commons.osgi.PropertiesUtil;
+import org.osgi.service.event.Event;
+import org.osgi.service.event.EventConstants;
+import org.osgi.service.event.EventHandler;
+import org.sakaiproject.nakamura.api.lite.ClientPoolException;
+import org.sakaiproject.nakamura.api.lite.Repository;
+import org.sakaiproject.nakamura.api.lite.Session;
+import org.sakaiproject.nakamura.api.lite.StorageClientException;
+import org.sakaiproject.nakamura.api.lite.StorageClientUtils;
+import org.sakaiproject.nakamura.api.lite.accesscontrol.AccessDeniedException;
+import org.sakaiproject.nakamura.api.lite.authorizable.Authorizable;
+import org.sakaiproject.nakamura.api.lite.authorizable.AuthorizableManager;
+import org.sakaiproject.nakamura.api.lite.authorizable.Group;
+import org.sakaiproject.nakamura.api.user.UserConstants;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Keeps the direct members of groups sorted by name so a page of members can be served
+ * without loading every member of the group. The index of a group is built with an
+ * administrative session the first time it is asked for, and is checked against the
+ * membership of the group on every request so only added members are loaded after a
+ * change. Members that are updated or deleted are reloaded the next time the index is
+ * used. Members the caller can't read are filtered out when the page is loaded.
+ */
+@Component(metatype = true)
+@Service(value = { GroupMemberIndex.class, EventHandler.class })
+@Properties(value = { @Property(name = EventConstants.EVENT_TOPIC, value = {
+    "org/sakaiproject/nakamura/lite/authorizables/UPDATED",
+    "org/sakaiproject/nakamura/lite/authorizables/DELETE" }, propertyPrivate = true) })
+public class GroupMemberIndex implements EventHandler {
+
+  private static final Logger LOGGER = LoggerFactory.getLogger(GroupMemberIndex.class);
+
+  public static final int DEFAULT_MAX_GROUPS = 200;
+  @Property(intValue = DEFAULT_MAX_GROUPS)
+  public static final String MAX_GROUPS = "group.member.index.max.groups";
+
+  /**
+   * Which of the members of a group to list.
+   */
+  public enum Members {
+    /** the members that are not managers */
+    MEMBERS,
+    /** the members that are managers */
+    MANAGERS,
+    /** members and managers */
+    EVERYONE
+  }
+
+  @Reference
+  protected Repository repository;
+
+  private Map<String, GroupIndex> groups = newGroupMap(DEFAULT_MAX_GROUPS);
+
+  public GroupMemberIndex() {
+  }
+
+  protected GroupMemberIndex(Repository repository) {
+    this.repository = repository;
+  }
+
+  @Activate
+  @Modified
+  protected void modified(Map<?, ?> properties) {
+    groups = newGroupMap(PropertiesUtil.toInteger(properties.get(MAX_GROUPS),
+        DEFAULT_MAX_GROUPS));
+  }
+
+  /**
+   * Get the sorted members of a group.
+   *
+   * @param group
+   *          the group, as loaded for this request.
+   * @param which
+   *          the members to list.
+   * @return the members, which don't change after they are returned.
+   * @throws StorageClientException
+   * @throws AccessDeniedException
+   */
+  public MemberList getMembers(Group group, Members which) throws StorageClientException,
+      AccessDeniedException {
+    Map<String, GroupIndex> groups = this.groups;
+    GroupIndex index;
+    synchronized (groups) {
+      index = groups.get(group.getId());
+      if (index == null) {
+        index = new GroupIndex();
+        groups.put(group.getId(), index);
+      }
+    }
+    return index.refresh(group).get(which);
+  }
+
+  // ---------- EventHandler interface -----------------------------------------
+  /**
+   * {@inheritDoc}
+   *
+   * Marks an updated or deleted authorizable to be reloaded in every index it is in, and
+   * drops the index of a deleted group.
+   *
+   * @see org.osgi.service.event.EventHandler#handleEvent(org.osgi.service.event.Event)
+   */
+  public void handleEvent(Event event) {
+    String authorizableId = (String) event.getProperty("path");
+    if (authorizableId == null) {
+      return;
+    }
+    Map<String, GroupIndex> groups = this.groups;
+    List<GroupIndex> indexes;
+    synchronized (groups) {
+      if (event.getTopic().endsWith("DELETE")) {
+        groups.remove(authorizableId);
+      }
+      indexes = new ArrayList<GroupIndex>(groups.values());
+    }
+    for (GroupIndex index : indexes) {
+      index.invalidate(authorizableId);
+    }
+  }
+
+  private static Map<String, GroupIndex> newGroupMap(final int maxGroups) {
+    return new LinkedHashMap<String, GroupIndex>(16, 0.75f, true) {
+      private static final long serialVersionUID = 1L;
+
+      @Override
+      protected boolean removeEldestEntry(Map.Entry<String, GroupIndex> eldest) {
+        return size() > maxGroups;
+      }
+    };
+  }
+
+  /**
+   * Get's the name for an authorizable on what the list should be sorted.
+   * sakai:group-title for Groups, lastName for Users, followed by the ID to keep the
+   * keys unique.
+   */
+  static String getSortKey(Authorizable member) {
+    String name;
+    if (member instanceof Group) {
+      name = (String) member.getProperty("sakai:group-title");
+    } else {
+      name = (String) member.getProperty("lastName");
+    }
+    return name + member.getId();
+  }
+
+  /**
+   * The members of one group, updated from the membership of the group each time it is
+   * used.
+   */
+  private class GroupIndex {
+    private String[] members = new String[0];
+    private String[] managers = new String[0];
+    /**
+     * Member ID to sort key, or to null if the member doesn't exist.
+     */
+    private final Map<String, String> sortKeys = Maps.newHashMap();
+    /**
+     * The IDs in sortKeys as of the last refresh, so events don't wait for a refresh.
+     */
+    private volatile Set<String> indexedIds = Collections.emptySet();
+    private final Set<String> stale = Sets.newSetFromMap(Maps
+        .<String, Boolean> newConcurrentMap());
+    private Map<Members, MemberList> lists;
+
+    synchronized Map<Members, MemberList> refresh(Group group)
+        throws StorageClientException, AccessDeniedException {
+      String[] newMembers = group.getMembers();
+      String[] newManagers = StorageClientUtils.nonNullStringArray((String[]) group
+          .getProperty(UserConstants.PROP_GROUP_MANAGERS));
+      if (lists != null && stale.isEmpty() && Arrays.equals(members, newMembers)
+          && Arrays.equals(managers, newManagers)) {
+        return lists;
+      }
+      Set<String> staleIds = Sets.newHashSet(stale);
+      stale.removeAll(staleIds);
+
+      Set<String> memberIds = Sets.newHashSet(newMembers);
+      sortKeys.keySet().retainAll(memberIds);
+      List<String> toLoad = new ArrayList<String>();
+      for (String memberId : memberIds) {
+        if (staleIds.contains(memberId) || !sortKeys.containsKey(memberId)) {
+          toLoad.add(memberId);
+        }
+      }
+      if (!toLoad.isEmpty()) {
+        load(toLoad);
+        LOGGER.debug("Loaded {} members of {} ", toLoad.size(), group.getId());
+      }
+      indexedIds = Collections.unmodifiableSet(Sets.newHashSet(sortKeys.keySet()));
+      members = newMembers;
+      managers = newManagers;
+
+      Set<String> managerIds = Sets.newHashSet(newManagers);
+      List<String[]> memberEntries = new ArrayList<String[]>();
+      List<String[]> managerEntries = new ArrayList<String[]>();
+      for (Map.Entry<String, String> e : sortKeys.entrySet()) {
+        if (e.getValue() != null) {
+          String[] entry = new String[] { e.getValue(), e.getKey() };
+          if (managerIds.contains(e.getKey())) {
+            managerEntries.add(entry);
+          } else {
+            memberEntries.add(entry);
+          }
+        }
+      }
+      List<String[]> everyoneEntries = new ArrayList<String[]>(memberEntries);
+      everyoneEntries.addAll(managerEntries);
+      Map<Members, MemberList> newLists = Maps.newEnumMap(Members.class);
+      newLists.put(Members.MEMBERS, new MemberList(memberEntries));
+      newLists.put(Members.MANAGERS, new MemberList(managerEntries));
+      newLists.put(Members.EVERYONE, new MemberList(everyoneEntries));
+      lists = newLists;
+      return lists;
+    }
+
+    void invalidate(String authorizableId) {
+      if (indexedIds.contains(authorizableId)) {
+        stale.add(authorizableId);
+      }
+    }
+
+    private void load(List<String> memberIds) throws StorageClientException,
+        AccessDeniedException {
+      Session adminSession = repository.loginAdministrative();
+      try {
+        AuthorizableManager authorizableManager = adminSession.getAuthorizableManager();
+        for (String memberId : memberIds) {
+          Authorizable member = authorizableManager.findAuthorizable(memberId);
+          sortKeys.put(memberId, member == null ? null : getSortKey(member));
+        }
+      } finally {
+        try {
+          adminSession.logout();
+        } catch (ClientPoolException e) {
+          LOGGER.warn(e.getMessage(), e);
+        }
+      }
+    }
+  }
+
+  /**
+   * Member IDs in the order of their sort keys.
+   */
+  public static class MemberList {
+    private final String[] sortKeys;
+    private final String[] ids;
+
+    MemberList(List<String[]> entries) {
+      Collections.sort(entries, new java.util.Comparator<String[]>() {
+        public int compare(String[] o1, String[] o2) {
+          return o1[0].compareTo(o2[0]);
+        }
+      });
+      sortKeys = new String[entries.size()];
+      ids = new String[entries.size()];
+      for (int i = 0; i < sortKeys.length; i++) {
+        sortKeys[i] = entries.get(i)[0];
+        ids[i] = entries.get(i)[1];
+      }
+    }
+
+    public int size() {
+      return ids.length;
+    }
+
+    public String getId(int position, boolean descending) {
+      return ids[descending ? ids.length - 1 - position : position];
+    }
+
+    public String getSortKey(int position, boolean descending) {
+      return sortKeys[descending ? sortKeys.length - 1 - position : position];
+    }
+
+    /**
+     * @param sortKey
+     *          the sort key of the last member of the previous page.
+     * @return the position of the first member after <code>sortKey</code> in the given
+     *         order.
+     */
+    public int positionAfter(String sortKey, boolean descending) {
+      int i = Arrays.binarySearch(sortKeys, sortKey);
+      if (descending) {
+        return i >= 0 ? sortKeys.length - i : sortKeys.length + i + 1;
+      }
+      return i >= 0 ? i + 1 : -i - 1;
+    }
+  }
+}
@@ -33,6 +33,7 @@ import org.sakaiproject.nakamura.api.doc.ServiceBinding;
 import org.sakaiproject.nakamura.api.doc.ServiceDocumentation;
 import org.sakaiproject.nakamura.api.doc.ServiceExtension;
 import org.sakaiproject.nakamura.api.doc.ServiceMethod;
+import org.sakaiproject.nakamura.api.doc.ServiceParameter;
 import org.sakaiproject.nakamura.api.doc.ServiceResponse;
 import org.sakaiproject.nakamura.api.doc.ServiceSelector;
 import org.sakaiproject.nakamura.api.lite.Session;
@@ -43,21 +44,17 @@ import org.sakaiproject.nakamura.api.lite.authorizable.Authorizable;
 import org.sakaiproject.nakamura.api.lite.authorizable.AuthorizableManager;
 import org.sakaiproject.nakamura.api.lite.authorizable.Group;
 import org.sakaiproject.nakamura.api.user.BasicUserInfoService;
-import org.sakaiproject.nakamura.api.user.UserConstants;
+import org.sakaiproject.nakamura.user.GroupMemberIndex;
+import org.sakaiproject.nakamura.user.GroupMemberIndex.MemberList;
+import org.sakaiproject.nakamura.user.GroupMemberIndex.Members;
 import org.sakaiproject.nakamura.util.ExtendedJSONWriter;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.io.IOException;
 import java.util.Arrays;
-import java.util.Collections;
-import java.util.Comparator;
-import java.util.Iterator;
 import java.util.List;
-import java.util.Map.Entry;
-import java.util.TreeMap;
 
-import javax.jcr.RepositoryException;
 import javax.servlet.ServletException;
 import javax.servlet.http.HttpServletResponse;
 
@@ -79,6 +76,7 @@ import javax.servlet.http.HttpServletResponse;
         @ServiceSelector(name = "members", description = "Binds to the members selector."),
         @ServiceSelector(name = "managers", description = "Binds to the managers selector."),
         @ServiceSelector(name = "everyone", description = "Binds to the everyone selector (members + managers)."),
+        @ServiceSelector(name = "paged", description = "Wraps the members in an object with the total number of members and, if there are more, the 'next' value to pass as the after parameter for the next page. The total is an upper bound, as it includes members the current user cannot see."),
         @ServiceSelector(name = "detailed", description = "Binds to the details selector.")
       },
       extensions = @ServiceExtension(name = "json", description = "javascript object notation")
@@ -88,6 +86,12 @@ import javax.servlet.http.HttpServletResponse;
     @ServiceMethod(
       name = "GET",
       description = "Create an external repository document.",
+      parameters = {
+        @ServiceParameter(name = "items", description = "The number of members per page, 25 by default."),
+        @ServiceParameter(name = "page", description = "The page to return, starting at 0."),
+        @ServiceParameter(name = "after", description = "Return the page after this 'next' value from the previous page, rather than by page number. This avoids reading the members on the earlier pages."),
+        @ServiceParameter(name = "sortOrder", description = "ascending (the default) or descending.")
+      },
       response = {
         @ServiceResponse(code = 200, description = "All processing finished successfully."),
         @ServiceResponse(code = 204, description = "Group doesn't exist."),
@@ -109,8 +113,12 @@ public class LiteGroupMemberServlet extends SlingSafeMethodsServlet {
 
   static final String ITEMS = "items";
   static final String PAGE = "page";
+  static final String AFTER = "after";
+  @Reference
+  protected BasicUserInfoService basicUserInfoService;
+
   @Reference
-  private BasicUserInfoService basicUserInfoService;
+  protected GroupMemberIndex groupMemberIndex;
 
   /**
    * {@inheritDoc}
@@ -139,32 +147,27 @@ public class LiteGroupMemberServlet extends SlingSafeMethodsServlet {
     List<String> selectors = Arrays.asList(request.getRequestPathInfo().getSelectors());
     ExtendedJSONWriter writer = new ExtendedJSONWriter(response.getWriter());
     writer.setTidy(selectors.contains("tidy"));
+    boolean paged = selectors.contains("paged");
 
-    // Get the sorting order, default is ascending or the natural sorting order (which is
-    // null for a TreeMap.)
-    Comparator<String> comparator = null;
-    String order = "ascending";
+    // Get the sorting order, default is ascending.
+    boolean descending = false;
     if (request.getRequestParameter("sortOrder") != null) {
-      order = request.getRequestParameter("sortOrder").getString();
-      if (order.equals("descending")) {
-        comparator = Collections.reverseOrder();
-      }
+      descending = "descending".equals(request.getRequestParameter("sortOrder").getString());
     }
 
     try {
       response.setContentType("application/json");
-      TreeMap<String, Authorizable> map = null;
+      MemberList members = null;
       if (selectors.contains("everyone")) {
-        map = getMembers(request, group, comparator);
-        map.putAll(getManagers(request, group, comparator));
+        members = groupMemberIndex.getMembers(group, Members.EVERYONE);
       } else if (selectors.contains("managers")) {
-        map = getManagers(request, group, comparator);
+        members = groupMemberIndex.getMembers(group, Members.MANAGERS);
       } else {
         // Members is the default.
-        map = getMembers(request, group, comparator);
+        members = groupMemberIndex.getMembers(group, Members.MEMBERS);
       }
 
-      // Do some paging.
+      // Do some paging, either from the member after the one given or by page number.
       long items = (request.getParameter(ITEMS) != null) ? Long.parseLong(request
           .getParameter(ITEMS)) : 25;
       long page = (request.getParameter(PAGE) != null) ? Long.parseLong(request
@@ -175,25 +178,62 @@ public class LiteGroupMemberServlet extends SlingSafeMethodsServlet {
       if (items < 0) {
         items = 25;
       }
-      Iterator<Entry<String, Authorizable>> iterator = getInPlaceIterator(request, map,
-          items, page);
+      int position = 0;
+      long skip = 0;
+      String after = request.getParameter(AFTER);
+      if (after != null) {
+        position = members.positionAfter(after, descending);
+      } else {
+        // pages are counted in members the current user can see.
+        skip = items * page;
+      }
 
-      // Write the whole lot out.
+      // Load the members as the current user, skipping any they cannot see.
+      Session session = StorageClientUtils.adaptToSession(request.getResourceResolver()
+          .adaptTo(javax.jcr.Session.class));
+      AuthorizableManager authorizableManager = session.getAuthorizableManager();
+
+      if (paged) {
+        writer.object();
+        // every member, including any the current user cannot see.
+        writer.key("total");
+        writer.value(members.size());
+        writer.key("results");
+      }
       writer.array();
       int i = 0;
-      while (iterator.hasNext() && i < items) {
-        Entry<String, Authorizable> entry = iterator.next();
-        Authorizable au = entry.getValue();
+      while (position < members.size() && i < items) {
+        String memberId = members.getId(position, descending);
+        position++;
+        Authorizable au = null;
+        try {
+          au = authorizableManager.findAuthorizable(memberId);
+        } catch (AccessDeniedException e) {
+          // this means a group has a member we're not allowed to see
+          // that's normal, and we'll just skip over it. (KERN-2302)
+          continue;
+        }
+        if (au == null) {
+          continue;
+        }
+        if (skip > 0) {
+          skip--;
+          continue;
+        }
         ValueMap profile = new ValueMapDecorator(basicUserInfoService.getProperties(au));
-        if (profile != null) {
-          writer.valueMap(profile);
-          i++;
-        } /*else {
-          // profile wasn't found.  safe to ignore and not include the group
-          logger.info("Profile not found for " + au.getId());
-        }*/
+        writer.valueMap(profile);
+        i++;
       }
       writer.endArray();
+      if (paged) {
+        // the last member read, written or not. With none read there is nothing to
+        // continue after, eg when no items were asked for.
+        if (position > 0 && position < members.size()) {
+          writer.key("next");
+          writer.value(members.getSortKey(position - 1, descending));
+        }
+        writer.endObject();
+      }
 
     } catch (JSONException e) {
       logger.error(e.getMessage(),e);
@@ -210,141 +250,8 @@ public class LiteGroupMemberServlet extends SlingSafeMethodsServlet {
       response.sendError(HttpServletResponse.SC_FORBIDDEN,
       "Failed to get members.");
       return;
-    }/* catch (RepositoryException e) {
-      logger.error(e.getMessage(),e);
-      response.sendError(HttpServletResponse.SC_INTERNAL_SERVER_ERROR,
-      "Failed to get members.");
-      return;
-    }*/
-
-  }
-
-  /**
-   * @param request
-   * @param map
-   * @return
-   */
-  private Iterator<Entry<String, Authorizable>> getInPlaceIterator(
-      SlingHttpServletRequest request, TreeMap<String, Authorizable> map,
-      long items, long page) {
-    Iterator<Entry<String, Authorizable>> iterator = map.entrySet().iterator();
-    long skipNum = items * page;
-
-    while (skipNum > 0) {
-      iterator.next();
-      skipNum--;
-    }
-
-    return iterator;
-  }
-
-  /**
-   * @param request
-   * @param group
-   * @param writer
-   * @throws RepositoryException
-   * @throws JSONException
-   * @throws StorageClientException
-   * @throws AccessDeniedException
-   */
-  protected TreeMap<String, Authorizable> getMembers(SlingHttpServletRequest request,
-      Group group, Comparator<String> comparator) throws
-      JSONException, AccessDeniedException, StorageClientException {
-    TreeMap<String, Authorizable> map = new TreeMap<String, Authorizable>(comparator);
-
-    Session session = StorageClientUtils.adaptToSession(request.getResourceResolver().adaptTo(javax.jcr.Session.class));
-    AuthorizableManager authorizableManager = session.getAuthorizableManager();
-
-    // Only the direct members are required.
-    String[] members = group.getMembers();
-    List<String> managers = Arrays.asList(StorageClientUtils.nonNullStringArray((String[]) group.getProperty(UserConstants.PROP_GROUP_MANAGERS)));
-    for ( String memberName : members) {
-      Authorizable member = null;
-      try {
-        member = authorizableManager.findAuthorizable(memberName);
-      } catch (AccessDeniedException e) {
-        // this means a group has a member we're not allowed to see
-        // that's normal, and we'll just skip over it. (KERN-2302)
-        continue;
-      }
-      // filter this out if it is a manager member
-      if (member != null && !managers.contains(memberName)) {
-        String name = getName(member);
-        map.put(name, member);
-      }
     }
-    return map;
-  }
-
-  /**
-   * KERN-1026 changed the results of this to be the authz's that are members of the
-   * managers group associated to a group rather than the group managers associated to the
-   * group.
-   * <p>
-   * <del>Get the managers for a group. These should be stored in the
-   * {@link UserConstants#PROP_GROUP_MANAGERS}.</del>
-   *
-   * @param request
-   * @param group
-   * @param writer
-   * @throws RepositoryException
-   * @throws JSONException
-   * @throws StorageClientException
-   * @throws AccessDeniedException
-   */
-  protected TreeMap<String, Authorizable> getManagers(SlingHttpServletRequest request,
-      Group group, Comparator<String> comparator) throws
-      JSONException, StorageClientException, AccessDeniedException {
-    TreeMap<String, Authorizable> map = new TreeMap<String, Authorizable>(comparator);
-
-    // KERN-949 will probably change this.
-    // note above was made before this was changed to retrieving members of the managers
-    // group and may not apply.
-    Session session = StorageClientUtils.adaptToSession(request.getResourceResolver().adaptTo(javax.jcr.Session.class));
-    AuthorizableManager authorizableManager = session.getAuthorizableManager();
 
-    String[] members = group.getMembers();
-    List<String> managers = Arrays.asList(StorageClientUtils.nonNullStringArray((String[]) group.getProperty(UserConstants.PROP_GROUP_MANAGERS)));
-    for  (String memberName : members) {
-      Authorizable mau = null;
-      try {
-        mau = authorizableManager.findAuthorizable(memberName);
-      } catch (AccessDeniedException e) {
-        // this means a group has a member we're not allowed to see
-        // that's normal, and we'll just skip over it. (KERN-2302)
-        continue;
-      }
-      if (mau != null && managers.contains(memberName)) {
-        String name = getName(mau);
-        map.put(name, mau);
-      }
-    }
-    return map;
-
-  }
-
-  /**
-   * Get's the name for an authorizable on what the list should be sorted.
-   * sakai:group-title for Groups, lastName for Users.
-   *
-   * @param member
-   *          The authorizable to get a name for.
-   * @return The name.
-   * @throws RepositoryException
-   */
-  private String getName(Authorizable member)  {
-    logger.debug("getName(Authorizable {})", member);
-    if (member == null) {
-      throw new IllegalArgumentException("Authorizable member == null");
-    }
-    String name = member.getId();
-    if (member instanceof Group) {
-      name = (String) member.getProperty("sakai:group-title");
-    } else {
-      name = (String) member.getProperty("lastName");
-    }
-    // We need to add the ID to keep the keys unique. (ieb, ???? name depends on member, so this does not keep the name unique)
-    return name + member.getId();
   }
 
 }
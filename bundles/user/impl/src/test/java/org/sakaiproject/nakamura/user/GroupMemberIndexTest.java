@@ -0,0 +1,127 @@
+/**
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.nakamura.user;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import com.google.common.collect.ImmutableMap;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.osgi.service.event.Event;
+import org.sakaiproject.nakamura.api.lite.Repository;
+import org.sakaiproject.nakamura.api.lite.Session;
+import org.sakaiproject.nakamura.api.lite.authorizable.Authorizable;
+import org.sakaiproject.nakamura.api.lite.authorizable.AuthorizableManager;
+import org.sakaiproject.nakamura.api.lite.authorizable.Group;
+import org.sakaiproject.nakamura.api.user.UserConstants;
+import org.sakaiproject.nakamura.lite.BaseMemoryRepository;
+import org.sakaiproject.nakamura.user.GroupMemberIndex.MemberList;
+import org.sakaiproject.nakamura.user.GroupMemberIndex.Members;
+
+import java.util.HashMap;
+import java.util.Map;
+
+public class GroupMemberIndexTest {
+  private Repository repository;
+  private AuthorizableManager authorizableManager;
+  private GroupMemberIndex index;
+
+  @Before
+  public void before() throws Exception {
+    repository = (Repository) new BaseMemoryRepository().getRepository();
+    Session adminSession = repository.loginAdministrative();
+    authorizableManager = adminSession.getAuthorizableManager();
+    createUser("ieb", "Boston");
+    createUser("zach", "Adams");
+    createUser("ctm", "Marks");
+    createUser("mgr", "Carter");
+    assertTrue(authorizableManager.createGroup("g-course", "Course",
+        ImmutableMap.of(UserConstants.PROP_GROUP_MANAGERS, (Object) new String[] { "mgr" })));
+    Group group = getGroup();
+    group.addMember("ieb");
+    group.addMember("zach");
+    group.addMember("ctm");
+    group.addMember("mgr");
+    authorizableManager.updateAuthorizable(group);
+    index = new GroupMemberIndex(repository);
+  }
+
+  private void createUser(String id, String lastName) throws Exception {
+    Map<String, Object> userProps = new HashMap<String, Object>();
+    userProps.put("lastName", lastName);
+    assertTrue(authorizableManager.createUser(id, id, "password", userProps));
+  }
+
+  private Group getGroup() throws Exception {
+    return (Group) authorizableManager.findAuthorizable("g-course");
+  }
+
+  private String ids(MemberList members, boolean descending) {
+    StringBuilder sb = new StringBuilder();
+    for (int i = 0; i < members.size(); i++) {
+      sb.append(members.getId(i, descending)).append(' ');
+    }
+    return sb.toString().trim();
+  }
+
+  @Test
+  public void testSortedByName() throws Exception {
+    assertEquals("zach ieb ctm", ids(index.getMembers(getGroup(), Members.MEMBERS), false));
+    assertEquals("ctm ieb zach", ids(index.getMembers(getGroup(), Members.MEMBERS), true));
+    assertEquals("mgr", ids(index.getMembers(getGroup(), Members.MANAGERS), false));
+    assertEquals("zach ieb mgr ctm", ids(index.getMembers(getGroup(), Members.EVERYONE),
+        false));
+  }
+
+  @Test
+  public void testPositionAfter() throws Exception {
+    MemberList members = index.getMembers(getGroup(), Members.EVERYONE);
+    assertEquals(2, members.positionAfter(members.getSortKey(1, false), false));
+    assertEquals(2, members.positionAfter(members.getSortKey(1, true), true));
+    // a member that has gone since the previous page
+    assertEquals(2, members.positionAfter("Bostonx", false));
+    assertEquals(2, members.positionAfter("Bostonx", true));
+    assertEquals(4, members.positionAfter("Zzz", false));
+  }
+
+  @Test
+  public void testMembershipChange() throws Exception {
+    index.getMembers(getGroup(), Members.MEMBERS);
+    createUser("aaron", "Brown");
+    Group group = getGroup();
+    group.addMember("aaron");
+    group.removeMember("zach");
+    authorizableManager.updateAuthorizable(group);
+    assertEquals("ieb aaron ctm", ids(index.getMembers(getGroup(), Members.MEMBERS), false));
+  }
+
+  @Test
+  public void testMemberUpdated() throws Exception {
+    index.getMembers(getGroup(), Members.MEMBERS);
+    Authorizable zach = authorizableManager.findAuthorizable("zach");
+    zach.setProperty("lastName", "Zimmer");
+    authorizableManager.updateAuthorizable(zach);
+    // the index isn't reloaded until it hears about the change
+    assertEquals("zach ieb ctm", ids(index.getMembers(getGroup(), Members.MEMBERS), false));
+    index.handleEvent(new Event("org/sakaiproject/nakamura/lite/authorizables/UPDATED",
+        ImmutableMap.of("path", "zach")));
+    assertEquals("ieb ctm zach", ids(index.getMembers(getGroup(), Members.MEMBERS), false));
+  }
+}
@@ -0,0 +1,159 @@
+/**
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.nakamura.user.lite.servlet;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.mockito.Matchers.anyInt;
+import static org.mockito.Matchers.anyString;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import com.google.common.collect.ImmutableMap;
+
+import org.apache.sling.api.SlingHttpServletRequest;
+import org.apache.sling.api.SlingHttpServletResponse;
+import org.apache.sling.api.request.RequestPathInfo;
+import org.apache.sling.api.resource.Resource;
+import org.apache.sling.api.resource.ResourceResolver;
+import org.apache.sling.commons.json.JSONObject;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.mockito.Mock;
+import org.mockito.Mockito;
+import org.mockito.runners.MockitoJUnitRunner;
+import org.sakaiproject.nakamura.api.lite.Session;
+import org.sakaiproject.nakamura.api.lite.SessionAdaptable;
+import org.sakaiproject.nakamura.api.lite.accesscontrol.AccessDeniedException;
+import org.sakaiproject.nakamura.api.lite.authorizable.Authorizable;
+import org.sakaiproject.nakamura.api.lite.authorizable.AuthorizableManager;
+import org.sakaiproject.nakamura.api.lite.authorizable.Group;
+import org.sakaiproject.nakamura.api.lite.authorizable.User;
+import org.sakaiproject.nakamura.api.user.BasicUserInfoService;
+import org.sakaiproject.nakamura.user.GroupMemberIndex;
+import org.sakaiproject.nakamura.user.GroupMemberIndex.MemberList;
+import org.sakaiproject.nakamura.user.GroupMemberIndex.Members;
+
+import java.io.PrintWriter;
+import java.io.StringWriter;
+
+@RunWith(MockitoJUnitRunner.class)
+public class LiteGroupMemberServletTest {
+  @Mock
+  private SlingHttpServletRequest request;
+  @Mock
+  private SlingHttpServletResponse response;
+  @Mock
+  private ResourceResolver resourceResolver;
+  @Mock
+  private Resource resource;
+  @Mock
+  private RequestPathInfo requestPathInfo;
+  @Mock
+  private Session session;
+  @Mock
+  private AuthorizableManager authorizableManager;
+  @Mock
+  private Group group;
+  @Mock
+  private MemberList members;
+  @Mock
+  private GroupMemberIndex groupMemberIndex;
+  @Mock
+  private BasicUserInfoService basicUserInfoService;
+
+  private StringWriter output;
+  private LiteGroupMemberServlet servlet;
+
+  @Before
+  public void before() throws Exception {
+    when(request.getResource()).thenReturn(resource);
+    when(resource.adaptTo(Authorizable.class)).thenReturn(group);
+    when(request.getRequestPathInfo()).thenReturn(requestPathInfo);
+    when(requestPathInfo.getSelectors()).thenReturn(new String[] { "members", "paged" });
+    javax.jcr.Session jcrSession = Mockito.mock(javax.jcr.Session.class, Mockito
+        .withSettings().extraInterfaces(SessionAdaptable.class));
+    when(((SessionAdaptable) jcrSession).getSession()).thenReturn(session);
+    when(resourceResolver.adaptTo(javax.jcr.Session.class)).thenReturn(jcrSession);
+    when(request.getResourceResolver()).thenReturn(resourceResolver);
+    when(session.getAuthorizableManager()).thenReturn(authorizableManager);
+    output = new StringWriter();
+    when(response.getWriter()).thenReturn(new PrintWriter(output));
+
+    when(groupMemberIndex.getMembers(group, Members.MEMBERS)).thenReturn(members);
+    String[] ids = { "alice", "bob", "carol" };
+    when(members.size()).thenReturn(ids.length);
+    for (int i = 0; i < ids.length; i++) {
+      when(members.getId(i, false)).thenReturn(ids[i]);
+      when(members.getSortKey(i, false)).thenReturn("key-" + ids[i]);
+    }
+    when(members.getSortKey(-1, false)).thenThrow(new ArrayIndexOutOfBoundsException(-1));
+
+    servlet = new LiteGroupMemberServlet();
+    servlet.groupMemberIndex = groupMemberIndex;
+    servlet.basicUserInfoService = basicUserInfoService;
+  }
+
+  private void visible(String id) throws Exception {
+    User user = mock(User.class);
+    when(authorizableManager.findAuthorizable(id)).thenReturn(user);
+    when(basicUserInfoService.getProperties(user)).thenReturn(
+        ImmutableMap.<String, Object> of("userid", id));
+  }
+
+  private JSONObject get() throws Exception {
+    servlet.doGet(request, response);
+    verify(response, never()).sendError(anyInt(), anyString());
+    return new JSONObject(output.toString());
+  }
+
+  @Test
+  public void testNoItems() throws Exception {
+    when(request.getParameter(LiteGroupMemberServlet.ITEMS)).thenReturn("0");
+    JSONObject json = get();
+    assertEquals(3, json.getInt("total"));
+    assertEquals(0, json.getJSONArray("results").length());
+    assertFalse(json.has("next"));
+  }
+
+  @Test
+  public void testEveryMemberFilteredOut() throws Exception {
+    when(request.getParameter(LiteGroupMemberServlet.ITEMS)).thenReturn("2");
+    when(authorizableManager.findAuthorizable("alice")).thenThrow(
+        new AccessDeniedException("Authorizable", "alice", "", "ieb"));
+    JSONObject json = get();
+    assertEquals(3, json.getInt("total"));
+    assertEquals(0, json.getJSONArray("results").length());
+    assertFalse(json.has("next"));
+  }
+
+  @Test
+  public void testNextIsTheLastMemberRead() throws Exception {
+    visible("bob");
+    visible("carol");
+    when(request.getParameter(LiteGroupMemberServlet.ITEMS)).thenReturn("1");
+    when(authorizableManager.findAuthorizable("alice")).thenThrow(
+        new AccessDeniedException("Authorizable", "alice", "", "ieb"));
+    JSONObject json = get();
+    assertEquals("bob", json.getJSONArray("results").getJSONObject(0).getString("userid"));
+    assertEquals("key-bob", json.getString("next"));
+  }
+}
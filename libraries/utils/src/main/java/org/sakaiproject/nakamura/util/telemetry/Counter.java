@@ -0,0 +1,83 @@
+/**
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.nakamura.util.telemetry;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A counter that can be incremented from many threads without them contending on a
+ * single value. Each thread adds to one of a number of cells, spread out so they do not
+ * share a cache line, and reading the counter sums the cells. Reads are not atomic with
+ * respect to concurrent updates, which is fine for telemetry.
+ */
+public final class Counter {
+
+  /**
+   * Longs per cell, so that neighbouring cells sit on different cache lines.
+   */
+  private static final int PAD = 8;
+
+  private static final int CELLS = cellCount();
+
+  private final AtomicLongArray cells = new AtomicLongArray(CELLS * PAD);
+
+  Counter() {
+  }
+
+  public void increment() {
+    add(1L);
+  }
+
+  public void add(long x) {
+    cells.getAndAdd(cellIndex(), x);
+  }
+
+  public long get() {
+    long sum = 0;
+    for (int i = 0; i < CELLS; i++) {
+      sum += cells.get(i * PAD);
+    }
+    return sum;
+  }
+
+  void reset() {
+    for (int i = 0; i < CELLS; i++) {
+      cells.set(i * PAD, 0L);
+    }
+  }
+
+  private static int cellIndex() {
+    long id = Thread.currentThread().getId();
+    int h = (int) (id ^ (id >>> 32));
+    h ^= (h >>> 16);
+    return (h & (CELLS - 1)) * PAD;
+  }
+
+  /**
+   * @return the smallest power of two at least twice the number of processors, capped
+   *         at 64.
+   */
+  private static int cellCount() {
+    int wanted = Math.min(64, Runtime.getRuntime().availableProcessors() * 2);
+    int cells = 1;
+    while (cells < wanted) {
+      cells <<= 1;
+    }
+    return cells;
+  }
+}
@@ -0,0 +1,134 @@
+/**
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.nakamura.util.telemetry;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A fixed size, lock free histogram of non negative values, usually latencies in
+ * milliseconds. Values are counted in log-linear buckets in the style of HdrHistogram:
+ * every power of two range is split in {@link #SUB_BUCKETS} equal buckets, so any value
+ * is recorded with a relative error of at most 1/16 whatever its magnitude, and the
+ * histogram never grows.
+ */
+public final class Histogram {
+
+  private static final int SUB_BUCKET_BITS = 4;
+
+  static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+
+  /**
+   * Values below {@link #SUB_BUCKETS} have a bucket each, every further power of two up
+   * to 2^63 has {@link #SUB_BUCKETS} buckets.
+   */
+  static final int BUCKETS = (64 - SUB_BUCKET_BITS) * SUB_BUCKETS;
+
+  private final AtomicLongArray buckets = new AtomicLongArray(BUCKETS);
+  private final Counter count = new Counter();
+  private final Counter sum = new Counter();
+  private final AtomicLong max = new AtomicLong();
+
+  Histogram() {
+  }
+
+  /**
+   * Records a value, negative values are recorded as 0.
+   */
+  public void record(long value) {
+    if (value < 0) {
+      value = 0;
+    }
+    buckets.incrementAndGet(bucketIndex(value));
+    count.increment();
+    sum.add(value);
+    long current = max.get();
+    while (value > current && !max.compareAndSet(current, value)) {
+      current = max.get();
+    }
+  }
+
+  public long getCount() {
+    return count.get();
+  }
+
+  public long getMax() {
+    return max.get();
+  }
+
+  public double getMean() {
+    long n = count.get();
+    return n == 0 ? 0.0 : (double) sum.get() / n;
+  }
+
+  /**
+   * @param percentile
+   *          between 0 and 100.
+   * @return the highest value that could have been recorded in the bucket holding the
+   *         requested percentile, capped at the maximum recorded value. 0 when nothing
+   *         has been recorded.
+   */
+  public long getPercentile(double percentile) {
+    long[] counts = new long[BUCKETS];
+    long total = 0;
+    for (int i = 0; i < BUCKETS; i++) {
+      counts[i] = buckets.get(i);
+      total += counts[i];
+    }
+    if (total == 0) {
+      return 0;
+    }
+    long target = Math.max(1L, (long) Math.ceil(total * Math.min(100.0, percentile) / 100.0));
+    long seen = 0;
+    for (int i = 0; i < BUCKETS; i++) {
+      seen += counts[i];
+      if (seen >= target) {
+        return Math.min(bucketUpperBound(i), max.get());
+      }
+    }
+    return max.get();
+  }
+
+  void reset() {
+    for (int i = 0; i < BUCKETS; i++) {
+      buckets.set(i, 0L);
+    }
+    count.reset();
+    sum.reset();
+    max.set(0L);
+  }
+
+  static int bucketIndex(long value) {
+    if (value < SUB_BUCKETS) {
+      return (int) value;
+    }
+    int exponent = 63 - Long.numberOfLeadingZeros(value);
+    int subBucket = (int) (value >>> (exponent - SUB_BUCKET_BITS)) & (SUB_BUCKETS - 1);
+    return (exponent - SUB_BUCKET_BITS + 1) * SUB_BUCKETS + subBucket;
+  }
+
+  static long bucketUpperBound(int index) {
+    if (index < SUB_BUCKETS) {
+      return index;
+    }
+    int exponent = index / SUB_BUCKETS + SUB_BUCKET_BITS - 1;
+    long subBucket = index % SUB_BUCKETS;
+    long width = 1L << (exponent - SUB_BUCKET_BITS);
+    return ((SUB_BUCKETS + subBucket) << (exponent - SUB_BUCKET_BITS)) + width - 1;
+  }
+}
@@ -17,35 +17,19 @@
  */
 package org.sakaiproject.nakamura.util.telemetry;
 
-import com.google.common.collect.Maps;
-
-import java.util.concurrent.ConcurrentMap;
-
+/**
+ * @deprecated Use {@link TelemetryRegistry#counter(String, String, String)} and keep the
+ *             returned {@link Counter}.
+ */
+@Deprecated
 public class TelemetryCounter {
-  protected static ConcurrentMap<String, TelemetryEntry> counters = Maps.newConcurrentMap();
 
   public static void clear() {
-    counters = Maps.newConcurrentMap();
+    TelemetryRegistry.clear();
   }
 
   public static void incrementValue(String moduleName, String serviceName, String metricName) {
-    String compositeKey = moduleName + "::" + serviceName;
-    TelemetryEntry entry = counters.get(compositeKey);
-    Long value;
-    if (entry == null) {
-      counters.put(compositeKey, new TelemetryEntry(moduleName, serviceName, Status.OK));
-      entry = counters.get(compositeKey);
-    }
-    TelemetryData telemetryData = entry.getMetric(metricName);
-    if (telemetryData == null) {
-      value = Long.valueOf(1);
-    } else {
-      if (!"L".equalsIgnoreCase(telemetryData.type)) {
-        throw new IllegalArgumentException("Attempting to increment a metric that isn't Long type.");
-      }
-      value = Long.parseLong(telemetryData.value) + 1;
-    }
-    entry.addMetric(metricName, new TelemetryData(value));
+    TelemetryRegistry.counter(moduleName, serviceName, metricName).increment();
   }
 
   public static enum Status {
@@ -19,34 +19,39 @@ package org.sakaiproject.nakamura.util.telemetry;
 
 import com.google.common.collect.Maps;
 
-import java.util.concurrent.ConcurrentMap;
+import java.util.Map;
 
-class TelemetryEntry {
+/**
+ * A point in time copy of the metrics of one module and service. Histograms are
+ * flattened into count, mean, percentile and max metrics named after the histogram.
+ */
+public class TelemetryEntry {
   private String module;
   private String service;
   private long lastUpdate;
   private TelemetryCounter.Status status;
-  private ConcurrentMap<String, TelemetryData> metrics;
+  private Map<String, TelemetryData> metrics;
 
   public TelemetryEntry(String module, String service, TelemetryCounter.Status status) {
     this.module = module;
     this.service = service;
     this.status = status;
     lastUpdate = System.currentTimeMillis() / 1000;
-    metrics = Maps.newConcurrentMap();
-  }
-
-  public void addMetric(String name, TelemetryData d) {
-    lastUpdate = System.currentTimeMillis() / 1000;
-    metrics.putIfAbsent(name, d);
-    TelemetryData oldVal;
-    do {
-      oldVal = metrics.get(name);
-    } while (!metrics.replace(name, oldVal, d));
+    metrics = Maps.newTreeMap();
   }
 
-  public TelemetryData getMetric(String metricName) {
-    return metrics.get(metricName);
+  void addMetric(String name, Object metric) {
+    if (metric instanceof Counter) {
+      metrics.put(name, new TelemetryData(((Counter) metric).get()));
+    } else if (metric instanceof Histogram) {
+      Histogram histogram = (Histogram) metric;
+      metrics.put(name + ".count", new TelemetryData(histogram.getCount()));
+      metrics.put(name + ".mean", new TelemetryData(histogram.getMean()));
+      metrics.put(name + ".p50", new TelemetryData(histogram.getPercentile(50)));
+      metrics.put(name + ".p90", new TelemetryData(histogram.getPercentile(90)));
+      metrics.put(name + ".p99", new TelemetryData(histogram.getPercentile(99)));
+      metrics.put(name + ".max", new TelemetryData(histogram.getMax()));
+    }
   }
 
   public String getModule() {
@@ -65,7 +70,7 @@ class TelemetryEntry {
     return status;
   }
 
-  public ConcurrentMap<String, TelemetryData> getMetrics() {
+  Map<String, TelemetryData> getMetrics() {
     return metrics;
   }
 }
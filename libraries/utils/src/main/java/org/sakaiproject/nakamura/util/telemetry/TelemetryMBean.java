@@ -0,0 +1,104 @@
+/**
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.nakamura.util.telemetry;
+
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+
+import java.util.List;
+import java.util.Map;
+
+import javax.management.Attribute;
+import javax.management.AttributeList;
+import javax.management.AttributeNotFoundException;
+import javax.management.DynamicMBean;
+import javax.management.MBeanAttributeInfo;
+import javax.management.MBeanConstructorInfo;
+import javax.management.MBeanInfo;
+import javax.management.MBeanNotificationInfo;
+import javax.management.MBeanOperationInfo;
+import javax.management.ReflectionException;
+
+/**
+ * Exposes the {@link TelemetryRegistry} over JMX. Every metric is a read only attribute
+ * named module::service::metric, histograms show up as their flattened count, mean,
+ * percentile and max attributes.
+ */
+public class TelemetryMBean implements DynamicMBean {
+
+  public Object getAttribute(String attribute) throws AttributeNotFoundException {
+    Object value = getValues().get(attribute);
+    if (value == null) {
+      throw new AttributeNotFoundException(attribute);
+    }
+    return value;
+  }
+
+  public AttributeList getAttributes(String[] attributes) {
+    Map<String, Object> values = getValues();
+    AttributeList list = new AttributeList();
+    for (String name : attributes) {
+      if (values.containsKey(name)) {
+        list.add(new Attribute(name, values.get(name)));
+      }
+    }
+    return list;
+  }
+
+  public MBeanInfo getMBeanInfo() {
+    List<MBeanAttributeInfo> attributes = Lists.newArrayList();
+    for (Map.Entry<String, Object> value : getValues().entrySet()) {
+      attributes.add(new MBeanAttributeInfo(value.getKey(), value.getValue().getClass()
+          .getName(), value.getKey(), true, false, false));
+    }
+    return new MBeanInfo(getClass().getName(), "Sakai Nakamura telemetry",
+        attributes.toArray(new MBeanAttributeInfo[attributes.size()]),
+        new MBeanConstructorInfo[0], new MBeanOperationInfo[0],
+        new MBeanNotificationInfo[0]);
+  }
+
+  public Object invoke(String actionName, Object[] params, String[] signature)
+      throws ReflectionException {
+    // there are no operations.
+    throw new ReflectionException(new NoSuchMethodException(actionName));
+  }
+
+  public void setAttribute(Attribute attribute) throws AttributeNotFoundException {
+    throw new AttributeNotFoundException(attribute.getName() + " is read only");
+  }
+
+  public AttributeList setAttributes(AttributeList attributes) {
+    return new AttributeList();
+  }
+
+  private Map<String, Object> getValues() {
+    Map<String, Object> values = Maps.newTreeMap();
+    for (TelemetryEntry entry : TelemetryRegistry.getEntries()) {
+      String prefix = entry.getModule() + "::" + entry.getService() + "::";
+      for (Map.Entry<String, TelemetryData> metric : entry.getMetrics().entrySet()) {
+        TelemetryData data = metric.getValue();
+        if ("n".equals(data.type)) {
+          values.put(prefix + metric.getKey(), Double.valueOf(data.value));
+        } else {
+          values.put(prefix + metric.getKey(), Long.valueOf(data.value));
+        }
+      }
+    }
+    return values;
+  }
+}
@@ -0,0 +1,171 @@
+/**
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.nakamura.util.telemetry;
+
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * The registry of all telemetry, grouped by module and service. Look metrics up once
+ * and keep the returned {@link Counter} or {@link Histogram}; updating them takes no
+ * locks and does not touch the registry.
+ *
+ * The number of services and the number of metrics per service are bounded. Once a
+ * bound is reached, new names are folded into an {@link #OVERFLOW} service or metric of
+ * the same kind, so using request paths or other unbounded values as metric names can not grow
+ * the registry without limit.
+ */
+public final class TelemetryRegistry {
+
+  /**
+   * The name metrics and services are counted under once their limit is reached.
+   */
+  public static final String OVERFLOW = "_overflow";
+
+  static final int DEFAULT_MAX_SERVICES = 256;
+
+  static final int DEFAULT_MAX_METRICS = 64;
+
+  private static volatile int maxServices = DEFAULT_MAX_SERVICES;
+
+  private static volatile int maxMetrics = DEFAULT_MAX_METRICS;
+
+  private static final ConcurrentMap<String, Metrics> services = Maps.newConcurrentMap();
+
+  private TelemetryRegistry() {
+  }
+
+  /**
+   * @return the counter for the metric, created if needed.
+   * @throws IllegalArgumentException
+   *           if the metric is already registered as a histogram.
+   */
+  public static Counter counter(String moduleName, String serviceName, String metricName) {
+    return getMetric(moduleName, serviceName, metricName, Counter.class);
+  }
+
+  /**
+   * @return the histogram for the metric, created if needed.
+   * @throws IllegalArgumentException
+   *           if the metric is already registered as a counter.
+   */
+  public static Histogram histogram(String moduleName, String serviceName,
+      String metricName) {
+    return getMetric(moduleName, serviceName, metricName, Histogram.class);
+  }
+
+  /**
+   * @return a point in time copy of all metrics, one entry per module and service.
+   */
+  public static List<TelemetryEntry> getEntries() {
+    List<TelemetryEntry> entries = Lists.newArrayList();
+    for (Metrics metrics : services.values()) {
+      TelemetryEntry entry = new TelemetryEntry(metrics.module, metrics.service,
+          TelemetryCounter.Status.OK);
+      for (Map.Entry<String, Object> metric : metrics.metrics.entrySet()) {
+        entry.addMetric(metric.getKey(), metric.getValue());
+      }
+      entries.add(entry);
+    }
+    return Collections.unmodifiableList(entries);
+  }
+
+  /**
+   * Resets every metric to zero. Handles held by callers stay valid.
+   */
+  public static void clear() {
+    for (Metrics metrics : services.values()) {
+      for (Object metric : metrics.metrics.values()) {
+        if (metric instanceof Counter) {
+          ((Counter) metric).reset();
+        } else {
+          ((Histogram) metric).reset();
+        }
+      }
+    }
+  }
+
+  /**
+   * Sets the cardinality bounds. Metrics registered already are kept.
+   */
+  public static void setLimits(int maxServiceCount, int maxMetricsPerService) {
+    maxServices = maxServiceCount;
+    maxMetrics = maxMetricsPerService;
+  }
+
+  private static <T> T getMetric(String moduleName, String serviceName,
+      String metricName, Class<T> type) {
+    Metrics metrics = getMetrics(moduleName, serviceName);
+    Object metric = metrics.metrics.get(metricName);
+    if (metric == null) {
+      String name = metrics.metrics.size() < maxMetrics ? metricName : OVERFLOW + "."
+          + type.getSimpleName().toLowerCase();
+      metric = metrics.metrics.get(name);
+      if (metric == null) {
+        Object created = Counter.class.equals(type) ? new Counter() : new Histogram();
+        metric = metrics.metrics.putIfAbsent(name, created);
+        if (metric == null) {
+          metric = created;
+        }
+      }
+    }
+    if (!type.isInstance(metric)) {
+      throw new IllegalArgumentException("Metric " + moduleName + "::" + serviceName
+          + "::" + metricName + " is not a " + type.getSimpleName());
+    }
+    return type.cast(metric);
+  }
+
+  private static Metrics getMetrics(String moduleName, String serviceName) {
+    String key = moduleName + "::" + serviceName;
+    Metrics metrics = services.get(key);
+    if (metrics == null) {
+      if (services.size() >= maxServices) {
+        moduleName = OVERFLOW;
+        serviceName = OVERFLOW;
+        key = OVERFLOW + "::" + OVERFLOW;
+        metrics = services.get(key);
+        if (metrics != null) {
+          return metrics;
+        }
+      }
+      Metrics created = new Metrics(moduleName, serviceName);
+      metrics = services.putIfAbsent(key, created);
+      if (metrics == null) {
+        metrics = created;
+      }
+    }
+    return metrics;
+  }
+
+  private static final class Metrics {
+    private final String module;
+    private final String service;
+    private final ConcurrentMap<String, Object> metrics = Maps.newConcurrentMap();
+
+    private Metrics(String module, String service) {
+      this.module = module;
+      this.service = service;
+    }
+  }
+}
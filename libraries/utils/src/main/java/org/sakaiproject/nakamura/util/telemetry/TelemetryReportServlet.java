@@ -21,9 +21,18 @@ import org.apache.felix.scr.annotations.sling.SlingServlet;
 import org.apache.sling.api.SlingHttpServletRequest;
 import org.apache.sling.api.SlingHttpServletResponse;
 import org.apache.sling.api.servlets.SlingSafeMethodsServlet;
+import org.apache.sling.commons.json.JSONException;
+import org.apache.sling.commons.json.io.JSONWriter;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 import org.xml.sax.SAXException;
 import org.xml.sax.helpers.AttributesImpl;
 
+import java.lang.management.ManagementFactory;
+import java.util.Map;
+
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
 import javax.servlet.ServletException;
 import javax.xml.transform.OutputKeys;
 import javax.xml.transform.Transformer;
@@ -33,15 +42,80 @@ import javax.xml.transform.sax.TransformerHandler;
 import javax.xml.transform.stream.StreamResult;
 import java.io.IOException;
 
+/**
+ * Reports the {@link TelemetryRegistry} as Resmon XML at /system/telemetry, or as JSON at
+ * /system/telemetry.json, and registers it with the platform MBean server while active.
+ */
 @SlingServlet(paths = "/system/telemetry", generateComponent = true, generateService = true, methods = { "GET" })
 public class TelemetryReportServlet extends SlingSafeMethodsServlet {
-  
+
+  private static final long serialVersionUID = -1856414936522227427L;
+
+  private static final Logger LOGGER = LoggerFactory.getLogger(TelemetryReportServlet.class);
+
+  static final String MBEAN_NAME = "org.sakaiproject.nakamura:type=Telemetry";
+
+  protected void activate(Map<String, Object> properties) {
+    try {
+      MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+      ObjectName name = new ObjectName(MBEAN_NAME);
+      if (server.isRegistered(name)) {
+        server.unregisterMBean(name);
+      }
+      server.registerMBean(new TelemetryMBean(), name);
+    } catch (Exception e) {
+      LOGGER.warn("Unable to register telemetry MBean: {}", e.getMessage());
+    }
+  }
+
+  protected void deactivate(Map<String, Object> properties) {
+    try {
+      MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+      ObjectName name = new ObjectName(MBEAN_NAME);
+      if (server.isRegistered(name)) {
+        server.unregisterMBean(name);
+      }
+    } catch (Exception e) {
+      LOGGER.warn("Unable to unregister telemetry MBean: {}", e.getMessage());
+    }
+  }
+
   @Override
   public void doGet(SlingHttpServletRequest request, SlingHttpServletResponse response) throws ServletException, IOException {
+    if ("json".equals(request.getRequestPathInfo().getExtension())) {
+      response.setContentType("application/json");
+      response.setCharacterEncoding("UTF-8");
+      try {
+        writeJson(response);
+      } catch (JSONException e) {
+        throw new ServletException(e.getMessage(), e);
+      }
+      return;
+    }
     response.setContentType("application/xml");
     write(response);
   }
 
+  private void writeJson(SlingHttpServletResponse response) throws IOException, JSONException {
+    JSONWriter writer = new JSONWriter(response.getWriter());
+    writer.object();
+    for (TelemetryEntry entry : TelemetryRegistry.getEntries()) {
+      writer.key(entry.getModule() + "::" + entry.getService());
+      writer.object();
+      for (Map.Entry<String, TelemetryData> metric : entry.getMetrics().entrySet()) {
+        TelemetryData data = metric.getValue();
+        writer.key(metric.getKey());
+        if ("n".equals(data.type)) {
+          writer.value(Double.parseDouble(data.value));
+        } else {
+          writer.value(Long.parseLong(data.value));
+        }
+      }
+      writer.endObject();
+    }
+    writer.endObject();
+  }
+
   private void write(SlingHttpServletResponse response) throws IOException {
     StreamResult streamResult;
     SAXTransformerFactory tf;
@@ -62,8 +136,8 @@ public class TelemetryReportServlet extends SlingSafeMethodsServlet {
       hd.processingInstruction("xml-stylesheet","type=\"text/xsl\" href=\"/system/resmon/resmon.xsl\"");
       AttributesImpl atts = new AttributesImpl();
       hd.startElement("","","ResmonResults",atts);
-      for ( String telemetryKey : TelemetryCounter.counters.keySet() ) {
-        TelemetryEntryXml.write(hd, TelemetryCounter.counters.get(telemetryKey));
+      for (TelemetryEntry entry : TelemetryRegistry.getEntries()) {
+        TelemetryEntryXml.write(hd, entry);
       }
       hd.endElement("","","ResmonResults");
       hd.endDocument();
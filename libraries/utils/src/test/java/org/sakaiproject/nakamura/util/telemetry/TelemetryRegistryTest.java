@@ -0,0 +1,160 @@
+/**
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.nakamura.util.telemetry;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import org.junit.After;
+import org.junit.Test;
+
+import java.util.concurrent.CountDownLatch;
+
+import javax.management.Attribute;
+import javax.management.AttributeNotFoundException;
+import javax.management.MBeanAttributeInfo;
+import javax.management.ReflectionException;
+
+public class TelemetryRegistryTest {
+
+  @After
+  public void tearDown() {
+    TelemetryRegistry.setLimits(TelemetryRegistry.DEFAULT_MAX_SERVICES,
+        TelemetryRegistry.DEFAULT_MAX_METRICS);
+    TelemetryRegistry.clear();
+  }
+
+  @Test
+  public void testConcurrentIncrementsAreNotLost() throws Exception {
+    final Counter counter = TelemetryRegistry.counter("test", "concurrent", "hits");
+    final CountDownLatch start = new CountDownLatch(1);
+    Thread[] threads = new Thread[8];
+    for (int i = 0; i < threads.length; i++) {
+      threads[i] = new Thread() {
+        @Override
+        public void run() {
+          try {
+            start.await();
+          } catch (InterruptedException e) {
+            return;
+          }
+          for (int j = 0; j < 10000; j++) {
+            TelemetryCounter.incrementValue("test", "concurrent", "hits");
+            counter.increment();
+          }
+        }
+      };
+      threads[i].start();
+    }
+    start.countDown();
+    for (Thread t : threads) {
+      t.join();
+    }
+    assertEquals(160000, counter.get());
+  }
+
+  @Test
+  public void testSameNameSameHandle() {
+    assertSame(TelemetryRegistry.counter("test", "handles", "a"),
+        TelemetryRegistry.counter("test", "handles", "a"));
+    assertNotSame(TelemetryRegistry.counter("test", "handles", "a"),
+        TelemetryRegistry.counter("test", "handles", "b"));
+  }
+
+  @Test
+  public void testTypeMismatch() {
+    TelemetryRegistry.counter("test", "types", "a");
+    try {
+      TelemetryRegistry.histogram("test", "types", "a");
+      fail("A counter can not be used as a histogram");
+    } catch (IllegalArgumentException e) {
+      // expected
+    }
+  }
+
+  @Test
+  public void testMetricCardinalityIsBounded() {
+    TelemetryRegistry.setLimits(TelemetryRegistry.DEFAULT_MAX_SERVICES, 3);
+    for (int i = 0; i < 100; i++) {
+      TelemetryRegistry.counter("test", "bounded", "/some/path/" + i).increment();
+    }
+    TelemetryEntry entry = null;
+    for (TelemetryEntry e : TelemetryRegistry.getEntries()) {
+      if ("bounded".equals(e.getService())) {
+        entry = e;
+      }
+    }
+    assertEquals(4, entry.getMetrics().size());
+    assertEquals("97",
+        entry.getMetrics().get(TelemetryRegistry.OVERFLOW + ".counter").value);
+  }
+
+  @Test
+  public void testHistogramPercentiles() {
+    Histogram histogram = TelemetryRegistry.histogram("test", "latency", "time");
+    for (int i = 1; i <= 1000; i++) {
+      histogram.record(i);
+    }
+    assertEquals(1000, histogram.getCount());
+    assertEquals(1000, histogram.getMax());
+    assertEquals(500.5, histogram.getMean(), 0.001);
+    long p50 = histogram.getPercentile(50);
+    assertTrue("p50 was " + p50, p50 >= 500 && p50 <= 500 + 500 / 16);
+    long p99 = histogram.getPercentile(99);
+    assertTrue("p99 was " + p99, p99 >= 990 && p99 <= 1000);
+    assertEquals(1000, histogram.getPercentile(100));
+  }
+
+  @Test
+  public void testBucketBoundaries() {
+    for (long v : new long[] { 0, 1, 15, 16, 17, 31, 32, 1000, 123456789L, Long.MAX_VALUE }) {
+      int index = Histogram.bucketIndex(v);
+      assertTrue(index < Histogram.BUCKETS);
+      assertTrue(v <= Histogram.bucketUpperBound(index));
+      if (index > 0) {
+        assertTrue(v > Histogram.bucketUpperBound(index - 1));
+      }
+    }
+  }
+
+  @Test
+  public void testMBeanIsReadOnly() throws Exception {
+    TelemetryRegistry.counter("test", "mbean", "hits").increment();
+    TelemetryMBean mbean = new TelemetryMBean();
+    assertEquals(1L, mbean.getAttribute("test::mbean::hits"));
+    for (MBeanAttributeInfo info : mbean.getMBeanInfo().getAttributes()) {
+      assertFalse(info.isWritable());
+    }
+    try {
+      mbean.setAttribute(new Attribute("test::mbean::hits", 0L));
+      fail();
+    } catch (AttributeNotFoundException e) {
+      // expected
+    }
+    try {
+      mbean.invoke("reset", new Object[0], new String[0]);
+      fail();
+    } catch (ReflectionException e) {
+      assertTrue(e.getTargetException() instanceof NoSuchMethodException);
+    }
+  }
+}